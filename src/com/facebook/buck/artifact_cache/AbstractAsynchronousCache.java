@@ -137,6 +137,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
   }
 
   private void doMultiCheck(ImmutableMap<RuleKey, ClaimedFetchRequest> ruleKeyToRequest) {
+    List<FetchRequest> hits = new ArrayList<>();
     try {
       ImmutableMap<RuleKey, CacheResult> ruleKeyToResult =
           multiContainsImpl(ruleKeyToRequest.keySet()).getCacheResults();
@@ -154,7 +155,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
         } else {
           // Otherwise reschedule it. It will be added to the fetch queue and it will be picked
           // by fetching thread.
-          claimedFetchRequest.reschedule();
+          hits.add(claimedFetchRequest.unclaim());
         }
       }
     } catch (IOException e) {
@@ -169,6 +170,9 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
       for (ClaimedFetchRequest request : ruleKeyToRequest.values()) {
         request.setResult(CacheResult.error(name, mode, msg));
       }
+    } finally {
+      // Queue all hits before scheduling them, so that they are fetched in full batches.
+      addFetchRequests(hits);
     }
   }
 
@@ -429,6 +433,13 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
       addFetchRequest(getRequest());
       request = null;
     }
+
+    /** Releases the request without fulfilling it, the caller must reschedule it. */
+    public FetchRequest unclaim() {
+      FetchRequest unclaimed = getRequest();
+      request = null;
+      return unclaimed;
+    }
   }
 
   @Nullable
@@ -458,6 +469,14 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     fetchExecutorService.submit(this::processFetch);
   }
 
+  @SuppressWarnings("CheckReturnValue")
+  private void addFetchRequests(List<FetchRequest> fetchRequests) {
+    pendingFetchRequests.addAll(fetchRequests);
+    for (int i = 0; i < fetchRequests.size(); i++) {
+      fetchExecutorService.submit(this::processFetch);
+    }
+  }
+
   @SuppressWarnings("CheckReturnValue")
   private void addCheckRequest(FetchRequest fetchRequest) {
     pendingCheckRequests.add(fetchRequest);
@@ -477,6 +496,40 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     return future;
   }
 
+  /**
+   * Queues the whole batch before scheduling any work for it, so that it is checked with a single
+   * multiContains request if multi-check is enabled, and fetched in full multiFetch batches.
+   */
+  @Override
+  @SuppressWarnings("CheckReturnValue")
+  public final ImmutableList<ListenableFuture<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    ImmutableList.Builder<ListenableFuture<CacheResult>> futures =
+        ImmutableList.builderWithExpectedSize(requests.size());
+    List<FetchRequest> fetchRequests = new ArrayList<>(requests.size());
+    for (ArtifactFetchRequest request : requests) {
+      SettableFuture<CacheResult> future = SettableFuture.create();
+      fetchRequests.add(
+          new FetchRequest(
+              request.getBuildTarget().orElse(null),
+              request.getRuleKey(),
+              request.getOutput(),
+              future));
+      futures.add(future);
+    }
+    if (fetchRequests.isEmpty()) {
+      return futures.build();
+    }
+    if (isMultiCheckEnabled()) {
+      // A single processCheck() drains the whole check queue.
+      pendingCheckRequests.addAll(fetchRequests);
+      fetchExecutorService.submit(this::processCheck);
+    } else {
+      addFetchRequests(fetchRequests);
+    }
+    return futures.build();
+  }
+
   @Override
   public final ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
       ImmutableSet<RuleKey> ruleKeys) {
@@ -24,13 +24,16 @@ import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.event.EventDispatcher;
+import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.slb.HttpService;
 import com.facebook.buck.slb.NoHealthyServersException;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.regex.Matcher;
@@ -45,6 +48,7 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
   protected final HttpService fetchClient;
   protected final HttpService storeClient;
   private final ErrorReporter errorReporter;
+  private final boolean streamingFetchEnabled;
 
   public AbstractNetworkCache(NetworkCacheArgs args) {
     super(
@@ -66,6 +70,7 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
     this.fetchClient = args.getFetchClient();
     this.storeClient = args.getStoreClient();
     this.errorReporter = new ErrorReporter(args);
+    this.streamingFetchEnabled = args.getStreamingFetchEnabled();
   }
 
   private static boolean isNoHealthyServersException(Throwable exception) {
@@ -78,6 +83,18 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
     }
   }
 
+  /**
+   * Hands the payload of a hit to {@code output} while it is being downloaded, if streaming is
+   * enabled and {@code output} is a {@link StreamingLazyPath} that accepts it.
+   *
+   * @return true if the payload was consumed, false if it still has to be written to {@code output}
+   */
+  protected boolean tryStreamPayload(
+      LazyPath output, ImmutableMap<String, String> metadata, InputStream payload)
+      throws IOException {
+    return streamingFetchEnabled && StreamingLazyPath.tryStream(output, metadata, payload);
+  }
+
   protected String getRepository() {
     return repository;
   }
@@ -47,6 +47,26 @@ public interface ArtifactCache extends AutoCloseable {
   ListenableFuture<CacheResult> fetchAsync(
       @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Fetch a batch of cached artifacts, such as the outputs of all rules that became ready at the
+   * same time. Implementations talking to a remote cache should coalesce the batch into as few
+   * round trips as they can, instead of paying the latency of one request per artifact.
+   *
+   * @return one future per request, in request order, each completing like the future returned by
+   *     {@link #fetchAsync} for that request.
+   */
+  default ImmutableList<ListenableFuture<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    ImmutableList.Builder<ListenableFuture<CacheResult>> results =
+        ImmutableList.builderWithExpectedSize(requests.size());
+    for (ArtifactFetchRequest request : requests) {
+      results.add(
+          fetchAsync(
+              request.getBuildTarget().orElse(null), request.getRuleKey(), request.getOutput()));
+    }
+    return results.build();
+  }
+
   /** All pending (and future) async fetches will be immediately marked as skipped. */
   void skipPendingAndFutureAsyncFetches();
 
@@ -101,6 +121,15 @@ public interface ArtifactCache extends AutoCloseable {
   ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
       ImmutableSet<RuleKey> ruleKeys);
 
+  /**
+   * This method must return the same value over the lifetime of this object.
+   *
+   * @return whether {@link #multiContainsAsync} can be called on this {@link ArtifactCache}.
+   */
+  default boolean supportsMultiContains() {
+    return true;
+  }
+
   ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys);
 
   /**
@@ -32,6 +32,7 @@ import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.model.TargetConfigurationSerializer;
 import com.facebook.buck.core.model.UnconfiguredBuildTarget;
 import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.counters.CounterRegistry;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.event.NetworkEvent.BytesReceivedEvent;
@@ -67,6 +68,7 @@ import okhttp3.ConnectionPool;
 import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
@@ -486,12 +488,18 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               cacheDir,
               dirCacheConfig.getCacheReadMode(),
               dirCacheConfig.getMaxSizeBytes(),
-              storeExecutorService);
+              storeExecutorService,
+              dirCacheConfig.isChunked());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
       }
 
+      buckEventBus
+          .get()
+          .post(
+              new CounterRegistry.AsyncCounterRegistrationEvent(dirArtifactCache.getCounters()));
+
       return new LoggingArtifactCacheDecorator(
           buckEventBus.get(),
           dirArtifactCache,
@@ -579,6 +587,12 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
     dispatcher.setMaxRequestsPerHost((int) config.getThreadPoolSize());
     storeClientBuilder.dispatcher(dispatcher);
 
+    // Prior knowledge is only for cleartext endpoints, https ones negotiate HTTP/2 with ALPN.
+    if (config.getHttpH2PriorKnowledge()
+        && "http".equalsIgnoreCase(cacheDescription.getUrl().getScheme())) {
+      storeClientBuilder.protocols(ImmutableList.of(Protocol.H2_PRIOR_KNOWLEDGE));
+    }
+
     ImmutableMap<String, String> readHeaders = cacheDescription.getReadHeaders();
     ImmutableMap<String, String> writeHeaders = cacheDescription.getWriteHeaders();
 
@@ -691,6 +705,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
             .setErrorTextLimit(cacheDescription.getErrorMessageLimit())
             .setMaxStoreSizeBytes(cacheDescription.getMaxStoreSize())
+            .setStreamingFetchEnabled(config.getHttpStreamingFetch())
             .build());
   }
 
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.LazyPath;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Collects fetches from an {@link ArtifactCache} and sends them together with a single call to
+ * {@link ArtifactCache#multiFetchAsync}, once {@link #send()} is called.
+ */
+@ThreadSafe
+public class ArtifactFetchBatch {
+
+  private final ArtifactCache artifactCache;
+
+  @GuardedBy("this")
+  private final List<ArtifactFetchRequest> requests = new ArrayList<>();
+
+  @GuardedBy("this")
+  private final List<SettableFuture<CacheResult>> results = new ArrayList<>();
+
+  @GuardedBy("this")
+  private boolean sent = false;
+
+  public ArtifactFetchBatch(ArtifactCache artifactCache) {
+    this.artifactCache = artifactCache;
+  }
+
+  public ArtifactCache getArtifactCache() {
+    return artifactCache;
+  }
+
+  /**
+   * Adds a fetch to the batch, see {@link ArtifactCache#fetchAsync}.
+   *
+   * @return a future that completes once the batch was sent and the artifact was fetched.
+   */
+  public synchronized ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    Preconditions.checkState(!sent, "Fetch added to a batch that was already sent.");
+    SettableFuture<CacheResult> result = SettableFuture.create();
+    requests.add(ArtifactFetchRequest.of(target, ruleKey, output));
+    results.add(result);
+    return result;
+  }
+
+  /**
+   * Sends the fetches added so far, no more fetches can be added afterwards. Fetches whose futures
+   * were cancelled in the meantime are dropped from the batch, and a single fetch is sent on its
+   * own.
+   */
+  public void send() {
+    ImmutableList.Builder<ArtifactFetchRequest> batchBuilder = ImmutableList.builder();
+    ImmutableList.Builder<SettableFuture<CacheResult>> batchResultsBuilder =
+        ImmutableList.builder();
+    synchronized (this) {
+      Preconditions.checkState(!sent, "Batch was already sent.");
+      sent = true;
+      for (int i = 0; i < requests.size(); i++) {
+        if (!results.get(i).isCancelled()) {
+          batchBuilder.add(requests.get(i));
+          batchResultsBuilder.add(results.get(i));
+        }
+      }
+    }
+    ImmutableList<ArtifactFetchRequest> batch = batchBuilder.build();
+    ImmutableList<SettableFuture<CacheResult>> batchResults = batchResultsBuilder.build();
+    if (batch.isEmpty()) {
+      return;
+    }
+    ImmutableList<ListenableFuture<CacheResult>> fetched;
+    try {
+      if (batch.size() == 1) {
+        ArtifactFetchRequest request = batch.get(0);
+        fetched =
+            ImmutableList.of(
+                artifactCache.fetchAsync(
+                    request.getBuildTarget().orElse(null),
+                    request.getRuleKey(),
+                    request.getOutput()));
+      } else {
+        fetched = artifactCache.multiFetchAsync(batch);
+      }
+    } catch (RuntimeException e) {
+      batchResults.forEach(result -> result.setException(e));
+      return;
+    }
+    for (int i = 0; i < batchResults.size(); i++) {
+      batchResults.get(i).setFuture(fetched.get(i));
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.LazyPath;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Coalesces fetches from an {@link ArtifactCache} which are started close together into {@link
+ * ArtifactFetchBatch}es.
+ *
+ * <p>The first fetch of a batch schedules the batch to be sent on the given executor. Every fetch
+ * started before that task runs, such as the lookups of all the rules which became ready when a
+ * shared dep finished, joins the batch.
+ */
+@ThreadSafe
+public class ArtifactFetchCoalescer {
+
+  private final ArtifactCache artifactCache;
+  private final Executor executor;
+
+  @GuardedBy("this")
+  @Nullable
+  private ArtifactFetchBatch pendingBatch;
+
+  public ArtifactFetchCoalescer(ArtifactCache artifactCache, Executor executor) {
+    this.artifactCache = artifactCache;
+    this.executor = executor;
+  }
+
+  public ArtifactCache getArtifactCache() {
+    return artifactCache;
+  }
+
+  /**
+   * Adds a fetch to the pending batch, see {@link ArtifactCache#fetchAsync}.
+   *
+   * @return a future that completes once the batch was sent and the artifact was fetched.
+   */
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    ListenableFuture<CacheResult> result;
+    boolean firstOfBatch;
+    synchronized (this) {
+      firstOfBatch = pendingBatch == null;
+      if (firstOfBatch) {
+        pendingBatch = new ArtifactFetchBatch(artifactCache);
+      }
+      result = pendingBatch.fetchAsync(target, ruleKey, output);
+    }
+    if (firstOfBatch) {
+      try {
+        executor.execute(this::sendPendingBatch);
+      } catch (RejectedExecutionException e) {
+        sendPendingBatch();
+      }
+    }
+    return result;
+  }
+
+  private void sendPendingBatch() {
+    ArtifactFetchBatch batch;
+    synchronized (this) {
+      batch = pendingBatch;
+      pendingBatch = null;
+    }
+    if (batch != null) {
+      batch.send();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.util.immutables.BuckStyleValue;
+import com.facebook.buck.io.file.LazyPath;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/** A single fetch of a batch passed to {@link ArtifactCache#multiFetchAsync}. */
+@BuckStyleValue
+public abstract class ArtifactFetchRequest {
+
+  /** Rule for which this is an artifact, if known. */
+  public abstract Optional<BuildTarget> getBuildTarget();
+
+  public abstract RuleKey getRuleKey();
+
+  /** Path to store the artifact to, see {@link ArtifactCache#fetchAsync}. */
+  public abstract LazyPath getOutput();
+
+  public static ArtifactFetchRequest of(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    return ImmutableArtifactFetchRequest.of(Optional.ofNullable(target), ruleKey, output);
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.artifact_cache;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.core.exceptions.BuckUncheckedExecutionException;
 import com.facebook.buck.core.exceptions.HumanReadableExceptionAugmentor;
 import com.facebook.buck.core.model.BuildTarget;
@@ -69,13 +70,19 @@ public class ArtifactUploader {
       ImmutableMap<String, String> buildMetadata,
       SortedSet<Path> pathsToIncludeInArchive,
       BuildRule buildRule,
-      long buildTimeMs) {
+      long buildTimeMs,
+      ArtifactCompression compression) {
     ProjectFilesystem projectFilesystem = buildRule.getProjectFilesystem();
     NamedTemporaryFile archive;
     try {
       archive =
           getTemporaryArtifactArchive(
-              buildRule, projectFilesystem, ruleKeys, eventBus, pathsToIncludeInArchive);
+              buildRule,
+              projectFilesystem,
+              ruleKeys,
+              eventBus,
+              pathsToIncludeInArchive,
+              compression);
     } catch (BuckUncheckedExecutionException e) {
       LOG.error(e.getMessage());
       LOG.debug(e.toString() + "\n" + Throwables.getStackTraceAsString(e));
@@ -164,7 +171,8 @@ public class ArtifactUploader {
       ProjectFilesystem projectFilesystem,
       ImmutableSet<RuleKey> ruleKeys,
       BuckEventBus eventBus,
-      SortedSet<Path> pathsToIncludeInArchive) {
+      SortedSet<Path> pathsToIncludeInArchive,
+      ArtifactCompression compression) {
     ArtifactCompressionEvent.Started started =
         ArtifactCompressionEvent.started(
             ArtifactCompressionEvent.Operation.COMPRESS, ruleKeys, buildRule);
@@ -175,8 +183,10 @@ public class ArtifactUploader {
     try (CloseableHolder<NamedTemporaryFile> archive =
         new CloseableHolder<>(
             new NamedTemporaryFile(
-                "buck_artifact_" + MostFiles.sanitize(buildTarget.getShortName()), ".tar.zst"))) {
-      fullSize = compress(projectFilesystem, pathsToIncludeInArchive, archive.get().get());
+                "buck_artifact_" + MostFiles.sanitize(buildTarget.getShortName()),
+                compression.getCodec() == ArtifactCompression.Codec.NONE ? ".tar" : ".tar.zst"))) {
+      fullSize =
+          compress(projectFilesystem, pathsToIncludeInArchive, archive.get().get(), compression);
       compressedSize = Files.size(archive.get().get());
       return archive.release();
     } catch (IOException e) {
@@ -191,14 +201,23 @@ public class ArtifactUploader {
     }
   }
 
-  /** Archive and compress 'pathsToIncludeInArchive' into 'out', using tar+zstandard. */
+  /**
+   * Archive 'pathsToIncludeInArchive' into 'out' using tar, compressed as configured by
+   * 'compression'.
+   */
   @VisibleForTesting
   static long compress(
-      ProjectFilesystem projectFilesystem, Collection<Path> pathsToIncludeInArchive, Path out)
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> pathsToIncludeInArchive,
+      Path out,
+      ArtifactCompression compression)
       throws IOException {
     long fullSize = 0L;
     try (OutputStream o = new BufferedOutputStream(Files.newOutputStream(out));
-        OutputStream z = new ZstdCompressorOutputStream(o);
+        OutputStream z =
+            compression.getCodec() == ArtifactCompression.Codec.NONE
+                ? o
+                : new ZstdCompressorOutputStream(o, compression.getLevel());
         TarArchiveOutputStream archive = new TarArchiveOutputStream(z)) {
       archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
       for (Path path : pathsToIncludeInArchive) {
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks whose boundaries are determined by the content rather than by
+ * offsets, so that a local edit in a large artifact only changes the chunks around the edit.
+ *
+ * <p>Boundaries are found with a Gear rolling hash (as used by FastCDC): a boundary is declared
+ * when the top bits of the hash over the last 64 bytes are all zero, but never before {@link
+ * #MIN_CHUNK_SIZE} bytes and always at {@link #MAX_CHUNK_SIZE} bytes. The expected chunk size is
+ * about {@code MIN_CHUNK_SIZE + 64KB}.
+ */
+final class ContentDefinedChunker {
+
+  static final int MIN_CHUNK_SIZE = 16 * 1024;
+  static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+  /** 16 high bits: a boundary every 64KB on average. */
+  private static final long BOUNDARY_MASK = 0xFFFF_0000_0000_0000L;
+
+  /**
+   * Per-byte-value random values of the rolling hash. The seed must never change, otherwise
+   * artifacts stored by different Buck versions would no longer share chunks.
+   */
+  private static final long[] GEAR = createGearTable(0x62756b6364634cL);
+
+  private ContentDefinedChunker() {}
+
+  /** Receives chunks in stream order. {@code buffer} is reused after the call returns. */
+  interface ChunkConsumer {
+    void accept(byte[] buffer, int length) throws IOException;
+  }
+
+  /** Reads {@code in} to the end and passes every chunk of it to {@code consumer}. */
+  static void split(InputStream in, ChunkConsumer consumer) throws IOException {
+    byte[] chunk = new byte[MAX_CHUNK_SIZE];
+    byte[] readBuffer = new byte[64 * 1024];
+    int length = 0;
+    long hash = 0;
+    int read;
+    while ((read = in.read(readBuffer)) != -1) {
+      for (int i = 0; i < read; i++) {
+        int b = readBuffer[i] & 0xFF;
+        chunk[length++] = (byte) b;
+        hash = (hash << 1) + GEAR[b];
+        if (length == MAX_CHUNK_SIZE
+            || (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0)) {
+          consumer.accept(chunk, length);
+          length = 0;
+          hash = 0;
+        }
+      }
+    }
+    if (length > 0) {
+      consumer.accept(chunk, length);
+    }
+  }
+
+  private static long[] createGearTable(long seed) {
+    Random random = new Random(seed);
+    long[] table = new long[256];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = random.nextLong();
+    }
+    return table;
+  }
+}
@@ -21,6 +21,9 @@ import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
@@ -40,6 +43,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -52,6 +56,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 public class DirArtifactCache implements ArtifactCache {
@@ -65,6 +70,7 @@ public class DirArtifactCache implements ArtifactCache {
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String COUNTER_CATEGORY = "buck_dir_cache_stats";
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -72,6 +78,10 @@ public class DirArtifactCache implements ArtifactCache {
   private final Optional<Long> maxCacheSizeBytes;
   private final CacheReadMode cacheReadMode;
   private final ListeningExecutorService storeExecutorService;
+  private final Optional<DirArtifactChunkStore> chunkStore;
+  private final Optional<DirArtifactCacheIndex> index;
+  private final IntegerCounter evictedBytes;
+  private final SamplingCounter evictionTimeMs;
   private long bytesSinceLastDeleteOldFiles;
 
   public DirArtifactCache(
@@ -82,6 +92,29 @@ public class DirArtifactCache implements ArtifactCache {
       Optional<Long> maxCacheSizeBytes,
       ListeningExecutorService storeExecutorService)
       throws IOException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        cacheReadMode,
+        maxCacheSizeBytes,
+        storeExecutorService,
+        /* chunked */ false);
+  }
+
+  /**
+   * @param chunked whether artifacts are stored as deduplicated content-defined chunks, see {@link
+   *     DirArtifactChunkStore}, rather than as whole files.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      ListeningExecutorService storeExecutorService,
+      boolean chunked)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
@@ -89,6 +122,25 @@ public class DirArtifactCache implements ArtifactCache {
     this.cacheReadMode = cacheReadMode;
     this.storeExecutorService = storeExecutorService;
     this.bytesSinceLastDeleteOldFiles = 0L;
+    this.index =
+        maxCacheSizeBytes.isPresent() && cacheReadMode.isWritable()
+            ? Optional.of(
+                new DirArtifactCacheIndex(
+                    filesystem.resolve(cacheDir),
+                    filesystem.resolve(getPathToTempFolder()),
+                    chunked))
+            : Optional.empty();
+    this.chunkStore =
+        chunked
+            ? Optional.of(
+                new DirArtifactChunkStore(
+                    filesystem.resolve(cacheDir),
+                    filesystem.resolve(getPathToTempFolder()),
+                    index))
+            : Optional.empty();
+    this.evictedBytes = new IntegerCounter(COUNTER_CATEGORY, "evicted_bytes", ImmutableMap.of());
+    this.evictionTimeMs =
+        new SamplingCounter(COUNTER_CATEGORY, "eviction_time_ms", ImmutableMap.of());
 
     // Check first, as mkdirs will fail if the path is a symlink.
     if (!filesystem.isDirectory(cacheDir)) {
@@ -128,7 +180,16 @@ public class DirArtifactCache implements ArtifactCache {
       }
 
       // Now copy the artifact out.
-      filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.empty()), output.get());
+      if (chunkStore.isPresent()) {
+        try (OutputStream out = filesystem.newFileOutputStream(output.get())) {
+          chunkStore
+              .get()
+              .materialize(filesystem.resolve(getPathForRuleKey(ruleKey, getBodyExtension())), out);
+        }
+      } else {
+        filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.empty()), output.get());
+      }
+      index.ifPresent(i -> i.recordAccess(getIndexKey(ruleKey)));
 
       result =
           CacheResult.hit(name, CACHE_MODE, metadata.build(), filesystem.getFileSize(output.get()));
@@ -162,6 +223,10 @@ public class DirArtifactCache implements ArtifactCache {
   }
 
   private void storeSynchronously(ArtifactInfo info, BorrowablePath output) {
+    if (chunkStore.isPresent()) {
+      storeChunkedSynchronously(info, output, chunkStore.get());
+      return;
+    }
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
       for (RuleKey ruleKey : info.getRuleKeys()) {
@@ -187,24 +252,16 @@ public class DirArtifactCache implements ArtifactCache {
             filesystem.copyFile(borrowedAndStoredArtifactPath.get(), artifactPath);
           }
         }
-        bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
+        long artifactSize = filesystem.getFileSize(artifactPath);
+        bytesSinceLastDeleteOldFiles += artifactSize;
 
         // Now, write the meta data artifact.
-        Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
-        try {
-          try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
-            out.writeInt(info.getMetadata().size());
-            for (Map.Entry<String, String> ent : info.getMetadata().entrySet()) {
-              out.writeUTF(ent.getKey());
-              byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
-              out.writeInt(val.length);
-              out.write(val);
-            }
-          }
-          filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
-          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
-        } finally {
-          filesystem.deleteFileAtPathIfExists(tmp);
+        writeMetadata(info, metadataPath);
+        if (index.isPresent()) {
+          index
+              .get()
+              .recordStore(
+                  getIndexKey(ruleKey), artifactSize + filesystem.getFileSize(metadataPath));
         }
       }
 
@@ -212,6 +269,66 @@ public class DirArtifactCache implements ArtifactCache {
       LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
     }
 
+    deleteOldFilesIfNeeded();
+  }
+
+  private void storeChunkedSynchronously(
+      ArtifactInfo info, BorrowablePath output, DirArtifactChunkStore store) {
+    try {
+      List<String> missingKeys = new ArrayList<>();
+      for (RuleKey ruleKey : info.getRuleKeys()) {
+        Path manifestPath = getPathForRuleKey(ruleKey, getBodyExtension());
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+        if (filesystem.exists(manifestPath) && filesystem.exists(metadataPath)) {
+          continue;
+        }
+        // An entry is only visible once its manifest exists, so the metadata goes first and is
+        // accounted for when the chunk store records the entry.
+        writeMetadata(info, metadataPath);
+        missingKeys.add(getIndexKey(ruleKey));
+      }
+
+      // Only chunks not shared with previously stored artifacts are written, and the output is
+      // only read, so there is no benefit in borrowing it.
+      bytesSinceLastDeleteOldFiles +=
+          store.store(filesystem.resolve(output.getPath()), missingKeys);
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
+    }
+
+    deleteOldFilesIfNeeded();
+  }
+
+  private void writeMetadata(ArtifactInfo info, Path metadataPath) throws IOException {
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
+    try {
+      try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
+        out.writeInt(info.getMetadata().size());
+        for (Map.Entry<String, String> ent : info.getMetadata().entrySet()) {
+          out.writeUTF(ent.getKey());
+          byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
+          out.writeInt(val.length);
+          out.write(val);
+        }
+      }
+      filesystem.mkdirs(metadataPath.getParent());
+      filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
+      bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /**
+   * The artifact itself is stored without extension, or as a chunk manifest in chunked mode.
+   */
+  private Optional<String> getBodyExtension() {
+    return chunkStore.isPresent()
+        ? Optional.of(DirArtifactChunkStore.MANIFEST_EXTENSION)
+        : Optional.empty();
+  }
+
+  private void deleteOldFilesIfNeeded() {
     if (maxCacheSizeBytes.isPresent()
         && bytesSinceLastDeleteOldFiles
             > (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
@@ -230,7 +347,7 @@ public class DirArtifactCache implements ArtifactCache {
     ImmutableMap.Builder<RuleKey, CacheResult> results = new ImmutableMap.Builder<>();
 
     for (RuleKey ruleKey : ruleKeys) {
-      Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+      Path artifactPath = getPathForRuleKey(ruleKey, getBodyExtension());
       Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
 
       boolean contains = filesystem.exists(artifactPath) && filesystem.exists(metadataPath);
@@ -244,12 +361,14 @@ public class DirArtifactCache implements ArtifactCache {
   }
 
   private void deleteSync(RuleKey ruleKey) {
-    Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+    // Chunks of a deleted artifact are freed by the next eviction if no other artifact uses them.
+    Path artifactPath = getPathForRuleKey(ruleKey, getBodyExtension());
     Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
 
     try {
       filesystem.deleteFileAtPathIfExists(metadataPath);
       filesystem.deleteFileAtPathIfExists(artifactPath);
+      index.ifPresent(i -> i.recordRemoval(getIndexKey(ruleKey)));
     } catch (IOException e) {
       String message =
           String.format("Failed to delete artifact for rule key [%s] from local cache", ruleKey);
@@ -292,6 +411,11 @@ public class DirArtifactCache implements ArtifactCache {
     return getParentDirForRuleKey(ruleKey).resolve(ruleKey + extension.orElse(""));
   }
 
+  /** Entries are indexed by the path of the artifact relative to the cache directory. */
+  private String getIndexKey(RuleKey ruleKey) {
+    return cacheDir.relativize(getPathForRuleKey(ruleKey, Optional.empty())).toString();
+  }
+
   @VisibleForTesting
   Path getParentDirForRuleKey(RuleKey ruleKey) {
     ImmutableList<String> folders = subfolders(ruleKey);
@@ -313,6 +437,12 @@ public class DirArtifactCache implements ArtifactCache {
     if (bytesSinceLastDeleteOldFiles > 0) {
       deleteOldFiles();
     }
+    index.ifPresent(DirArtifactCacheIndex::close);
+  }
+
+  /** Counters for the bytes evicted from the cache and the time spent evicting them. */
+  public ImmutableList<Counter> getCounters() {
+    return ImmutableList.of(evictedBytes, evictionTimeMs);
   }
 
   /** Deletes files that haven't been accessed recently from the directory cache. */
@@ -323,13 +453,25 @@ public class DirArtifactCache implements ArtifactCache {
     }
 
     Path cacheDirInFs = filesystem.resolve(cacheDir);
+    long maxBytesAfterDeletion = (long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO);
+    long startNanos = System.nanoTime();
     try {
       synchronized (this) {
-        newDirectoryCleaner().clean(cacheDirInFs);
+        if (chunkStore.isPresent()) {
+          evictedBytes.inc(
+              chunkStore.get().evict(maxCacheSizeBytes.get(), maxBytesAfterDeletion));
+        } else if (index.isPresent() && index.get().isUsable()) {
+          evictedBytes.inc(index.get().evict(maxCacheSizeBytes.get(), maxBytesAfterDeletion));
+        } else {
+          List<DirectoryCleaner.PathStats> kept = newDirectoryCleaner().clean(cacheDirInFs);
+          // The cleaner does not record what it deletes, but it found what is left.
+          index.ifPresent(i -> i.reset(kept));
+        }
       }
     } catch (IOException e) {
       LOG.error(e, "Failed to clean path [%s].", cacheDirInFs);
     }
+    evictionTimeMs.addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
   }
 
   @VisibleForTesting
@@ -356,6 +498,9 @@ public class DirArtifactCache implements ArtifactCache {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                 throws IOException {
+              if (DirArtifactCacheIndex.isIndexFile(file)) {
+                return FileVisitResult.CONTINUE;
+              }
               allFiles.add(file);
               return super.visitFile(file, attrs);
             }
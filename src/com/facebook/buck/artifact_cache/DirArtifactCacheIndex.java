@@ -0,0 +1,929 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.DirectoryCleaner;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * On-disk index of the entries of a {@link DirArtifactCache} with their sizes and last access
+ * times, so that eviction can pick the least recently used entries without walking and stat'ing
+ * the whole cache directory.
+ *
+ * <p>The index is an append-only log of store, access and removal records in the cache directory.
+ * Several processes sharing the cache log to it, holding a lock on a lock file next to it while
+ * they write. Records of other processes are read before every eviction. When there is no index
+ * yet (or it is unreadable) it is built once by walking the cache directory, using file access
+ * times. The log is compacted on {@link #close()} when it consists mostly of stale records, by
+ * replacing it with a new file while holding the lock; other processes notice the replacement the
+ * next time they take the lock, and reopen the log.
+ *
+ * <p>Access records only affect the order of eviction, so cache hits are buffered and logged
+ * together with the next store, eviction or batch of hits, rather than taking the lock one by one.
+ *
+ * <p>An entry is keyed by the path of its artifact relative to the cache directory, and consists
+ * of the artifact and its {@code .metadata} file.
+ *
+ * <p>In a chunked cache (see {@link DirArtifactChunkStore}) the artifact is a chunk manifest, and
+ * every chunk is an entry of its own, keyed by its path. The entries of manifests record the chunks
+ * they refer to: chunks are never picked for eviction themselves, they are deleted along with the
+ * last entry referring to them, and a hit of an entry counts as an access of its chunks.
+ */
+class DirArtifactCacheIndex implements Closeable {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  static final String INDEX_FILE_NAME = ".lru_index";
+  private static final String LOCK_FILE_NAME = INDEX_FILE_NAME + ".lock";
+
+  /**
+   * Locks of the lock files in use by this process. File locks are held on behalf of the whole
+   * process, so the indexes of a cache directory in this process take turns through these.
+   */
+  private static final ConcurrentMap<Path, Object> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+  private static final int MAGIC = 0xB0C41D3C;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 8;
+
+  private static final byte RECORD_STORE = 1;
+  private static final byte RECORD_ACCESS = 2;
+  private static final byte RECORD_REMOVE = 3;
+  private static final byte RECORD_STORE_CHUNKED = 4;
+
+  private static final String METADATA_EXTENSION = ".metadata";
+
+  /** Stale records tolerated in the log on top of twice the number of entries. */
+  private static final int COMPACTION_SLACK_RECORDS = 1024;
+
+  /** Number of buffered access records that are logged at once. */
+  private static final int ACCESS_BATCH_SIZE = 64;
+
+  private final Path cacheRoot;
+  private final Path indexPath;
+  private final Path lockPath;
+  private final Path tmpDir;
+  private final boolean chunked;
+  /** Prefix of the keys of chunks, in a chunked cache. */
+  private final String chunkKeyPrefix;
+
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final TreeSet<Entry> lruOrder =
+      new TreeSet<>(
+          (e1, e2) ->
+              ComparisonChain.start()
+                  .compare(e1.lastAccessMillis, e2.lastAccessMillis)
+                  .compare(e1.sequence, e2.sequence)
+                  .result());
+  private long totalBytes = 0;
+  private long nextSequence = 0;
+  /** Access times of cache hits not logged yet, by key. */
+  private final Map<String, Long> pendingAccesses = new LinkedHashMap<>();
+
+  private boolean loaded = false;
+  private boolean writeFailed = false;
+  /** Whether the in-memory state contains entries that are not in the log. */
+  private boolean dirty = false;
+  /** Offset up to which the log has been applied. */
+  private long readOffset = 0;
+  /** Identity of the log file that was read up to {@link #readOffset}. */
+  @Nullable private Object readFileKey = null;
+  private long recordsInLog = 0;
+  @Nullable private FileChannel log = null;
+  /** Identity of the log file {@link #log} appends to. */
+  @Nullable private Object logFileKey = null;
+
+  @Nullable private FileChannel lockChannel = null;
+  private boolean lockHeld = false;
+
+  /**
+   * @param cacheRoot absolute path of the cache directory.
+   * @param tmpDir absolute path of the cache's directory for partially written files.
+   */
+  DirArtifactCacheIndex(Path cacheRoot, Path tmpDir) {
+    this(cacheRoot, tmpDir, /* chunked */ false);
+  }
+
+  /** @param chunked whether the cache stores artifacts as chunk manifests. */
+  DirArtifactCacheIndex(Path cacheRoot, Path tmpDir, boolean chunked) {
+    this.cacheRoot = cacheRoot;
+    this.indexPath = cacheRoot.resolve(INDEX_FILE_NAME);
+    this.lockPath = cacheRoot.resolve(LOCK_FILE_NAME);
+    this.tmpDir = tmpDir;
+    this.chunked = chunked;
+    this.chunkKeyPrefix =
+        DirArtifactChunkStore.CHUNKS_DIR + cacheRoot.getFileSystem().getSeparator();
+  }
+
+  /** @return whether {@code file} in the cache directory belongs to the index. */
+  static boolean isIndexFile(Path file) {
+    return file.getFileName().toString().startsWith(INDEX_FILE_NAME);
+  }
+
+  /** @return false if the index could not be written and eviction should not rely on it. */
+  synchronized boolean isUsable() {
+    return !writeFailed;
+  }
+
+  /** Records that an entry of {@code sizeBytes} bytes was stored under {@code key}. */
+  synchronized void recordStore(String key, long sizeBytes) {
+    ensureLoaded();
+    long now = System.currentTimeMillis();
+    append(RECORD_STORE, key, now, sizeBytes);
+    apply(RECORD_STORE, key, now, sizeBytes);
+  }
+
+  /**
+   * Records that the chunks in {@code newChunks} (chunk key to size) were stored, along with the
+   * entries in {@code newEntries} (key to size of the manifest and metadata) that all refer to
+   * {@code chunkKeys}. Chunks already in the cache that the entries refer to count as accessed.
+   */
+  synchronized void recordChunkedStore(
+      Map<String, Long> newChunks, Map<String, Long> newEntries, ImmutableList<String> chunkKeys) {
+    ensureLoaded();
+    long now = System.currentTimeMillis();
+    append(
+        out -> {
+          for (Map.Entry<String, Long> chunk : newChunks.entrySet()) {
+            writeRecord(out, RECORD_STORE, chunk.getKey(), now, chunk.getValue(), ImmutableList.of());
+          }
+          for (Map.Entry<String, Long> entry : newEntries.entrySet()) {
+            writeRecord(out, RECORD_STORE_CHUNKED, entry.getKey(), now, entry.getValue(), chunkKeys);
+          }
+        },
+        newChunks.size() + newEntries.size());
+    for (Map.Entry<String, Long> chunk : newChunks.entrySet()) {
+      apply(RECORD_STORE, chunk.getKey(), now, chunk.getValue(), ImmutableList.of());
+    }
+    for (Map.Entry<String, Long> entry : newEntries.entrySet()) {
+      apply(RECORD_STORE_CHUNKED, entry.getKey(), now, entry.getValue(), chunkKeys);
+    }
+  }
+
+  /** Records a cache hit of the entry stored under {@code key}. */
+  synchronized void recordAccess(String key) {
+    ensureLoaded();
+    long now = System.currentTimeMillis();
+    apply(RECORD_ACCESS, key, now, 0);
+    pendingAccesses.put(key, now);
+    if (pendingAccesses.size() >= ACCESS_BATCH_SIZE) {
+      appendPendingAccesses();
+    }
+  }
+
+  /** Records that the entry stored under {@code key} was deleted. */
+  synchronized void recordRemoval(String key) {
+    ensureLoaded();
+    if (entries.containsKey(key)) {
+      append(RECORD_REMOVE, key, 0, 0);
+      apply(RECORD_REMOVE, key, 0, 0);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getTotalBytes() {
+    ensureLoaded();
+    return totalBytes;
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    ensureLoaded();
+    return entries.size();
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache is no larger than {@code
+   * maxBytesAfterDeletion}, if it is currently larger than {@code maxTotalSizeBytes}.
+   *
+   * @return the number of bytes freed.
+   */
+  synchronized long evict(long maxTotalSizeBytes, long maxBytesAfterDeletion) {
+    ensureLoaded();
+    try {
+      // Holding the lock keeps other processes from evicting the same entries concurrently.
+      return withLockIfShared(() -> evictLocked(maxTotalSizeBytes, maxBytesAfterDeletion));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to lock %s, falling back to directory walks", lockPath);
+      writeFailed = true;
+      return 0;
+    }
+  }
+
+  private long evictLocked(long maxTotalSizeBytes, long maxBytesAfterDeletion) {
+    appendPendingAccesses();
+    refresh();
+    // Removals are applied right away and logged at once. Nobody else can log in the meantime,
+    // since the lock is held.
+    List<Entry> removed = new ArrayList<>();
+    long freedBytes = 0;
+    if (chunked) {
+      long orphanDeadline = System.currentTimeMillis() - DirArtifactChunkStore.ORPHAN_GRACE_MILLIS;
+      for (Entry entry : entries.values()) {
+        if (entry.isChunk && entry.refCount == 0 && entry.lastAccessMillis < orphanDeadline) {
+          removed.add(entry);
+        }
+      }
+      for (Entry chunk : removed) {
+        freedBytes += delete(chunk);
+      }
+    }
+    int evicted = 0;
+    if (totalBytes > maxTotalSizeBytes) {
+      while (totalBytes > maxBytesAfterDeletion && !lruOrder.isEmpty()) {
+        Entry victim = lruOrder.first();
+        freedBytes += delete(victim);
+        removed.add(victim);
+        evicted++;
+        for (String chunkKey : victim.chunkKeys) {
+          Entry chunk = entries.get(chunkKey);
+          if (chunk != null && chunk.refCount == 0) {
+            freedBytes += delete(chunk);
+            removed.add(chunk);
+          }
+        }
+      }
+    }
+    if (!removed.isEmpty()) {
+      append(
+          out -> {
+            for (Entry entry : removed) {
+              writeRecord(out, RECORD_REMOVE, entry.key, 0, 0, ImmutableList.of());
+            }
+          },
+          removed.size());
+      flush();
+    }
+    LOG.debug(
+        "Evicted %d entries (%d files, %d bytes) from %s",
+        evicted, removed.size(), freedBytes, cacheRoot);
+    return freedBytes;
+  }
+
+  /** Deletes the files of {@code entry} and removes it from the index, without logging it. */
+  private long delete(Entry entry) {
+    try {
+      if (entry.isChunk) {
+        Files.deleteIfExists(cacheRoot.resolve(entry.key));
+      } else {
+        Files.deleteIfExists(cacheRoot.resolve(entry.key + METADATA_EXTENSION));
+        Files.deleteIfExists(cacheRoot.resolve(entry.key + getBodyExtension()));
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to delete %s from %s", entry.key, cacheRoot);
+    }
+    apply(RECORD_REMOVE, entry.key, 0, 0, ImmutableList.of());
+    return entry.sizeBytes;
+  }
+
+  private String getBodyExtension() {
+    return chunked ? DirArtifactChunkStore.MANIFEST_EXTENSION : "";
+  }
+
+  /**
+   * Replaces the state of the index with the files left in the cache directory after entries were
+   * deleted without being recorded, e.g. by a {@link com.facebook.buck.util.DirectoryCleaner}.
+   *
+   * @param files the remaining files, as found by the walk of whoever deleted entries, so that the
+   *     cache directory does not need to be walked once more.
+   */
+  synchronized void reset(Iterable<DirectoryCleaner.PathStats> files) {
+    try {
+      withLock(
+          () -> {
+            closeLog();
+            Files.deleteIfExists(indexPath);
+            clear();
+            pendingAccesses.clear();
+            writeFailed = false;
+            loaded = true;
+            Map<String, Entry> found = new HashMap<>();
+            for (DirectoryCleaner.PathStats file : files) {
+              if (!isIndexFile(file.getPath())) {
+                addFile(found, file.getPath(), file.getTotalSizeBytes(), file.getLastAccessMillis());
+              }
+            }
+            addFound(found);
+          });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to reset %s", indexPath);
+      writeFailed = true;
+    }
+  }
+
+  /** Flushes the log, and rewrites it if it consists mostly of stale records. */
+  @Override
+  public synchronized void close() {
+    if (!loaded) {
+      return;
+    }
+    appendPendingAccesses();
+    flush();
+    closeLog();
+    if (!writeFailed
+        && (dirty || recordsInLog > 2L * entries.size() + COMPACTION_SLACK_RECORDS)) {
+      try {
+        withLock(
+            () -> {
+              refresh();
+              compact();
+            });
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to compact %s", indexPath);
+      }
+    }
+    if (lockChannel != null) {
+      try {
+        lockChannel.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to close %s", lockPath);
+      }
+      lockChannel = null;
+    }
+  }
+
+  private void closeLog() {
+    if (log != null) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to close %s", indexPath);
+      }
+      log = null;
+      logFileKey = null;
+    }
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    try {
+      withLockIfShared(
+          () -> {
+            refresh();
+            return null;
+          });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to lock %s, falling back to directory walks", lockPath);
+      writeFailed = true;
+    }
+  }
+
+  private interface LockedOperation<T> {
+    T run() throws IOException;
+  }
+
+  private interface LockedAction {
+    void run() throws IOException;
+  }
+
+  private void withLock(LockedAction action) throws IOException {
+    withLock(
+        () -> {
+          action.run();
+          return null;
+        });
+  }
+
+  /**
+   * Like {@link #withLock(LockedOperation)}, but does not create the lock file while there is no
+   * log yet, since nothing can be read from the log then.
+   */
+  private <T> T withLockIfShared(LockedOperation<T> operation) throws IOException {
+    if (lockChannel == null && !Files.exists(indexPath) && !Files.exists(lockPath)) {
+      return operation.run();
+    }
+    return withLock(operation);
+  }
+
+  /**
+   * Runs {@code operation} while holding the lock that keeps the log from being replaced, and
+   * other processes from writing to it.
+   */
+  private <T> T withLock(LockedOperation<T> operation) throws IOException {
+    if (lockHeld) {
+      return operation.run();
+    }
+    synchronized (PROCESS_LOCKS.computeIfAbsent(lockPath, ignored -> new Object())) {
+      if (lockChannel == null) {
+        lockChannel =
+            FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      }
+      try (FileLock lock = lockChannel.lock()) {
+        lockHeld = true;
+        return operation.run();
+      } finally {
+        lockHeld = false;
+      }
+    }
+  }
+
+  /**
+   * Applies records appended to the log since it was last read, by this or other processes. Must
+   * be called while holding the lock.
+   */
+  private void refresh() {
+    try {
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(indexPath, BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        if (readOffset == 0 && entries.isEmpty() && !dirty) {
+          rebuild();
+        }
+        return;
+      }
+      Object fileKey = attributes.fileKey();
+      if (readOffset > 0
+          && (attributes.size() < readOffset
+              || fileKey == null
+              || !fileKey.equals(readFileKey))) {
+        // Compacted by another process.
+        clear();
+      }
+      readFileKey = fileKey;
+      if (attributes.size() == readOffset) {
+        return;
+      }
+      readLog();
+    } catch (IOException e) {
+      LOG.warn(e, "Rebuilding unreadable cache index %s", indexPath);
+      try {
+        Files.deleteIfExists(indexPath);
+      } catch (IOException deleteException) {
+        LOG.warn(deleteException, "Failed to delete %s", indexPath);
+      }
+      clear();
+      rebuild();
+    }
+  }
+
+  private void readLog() throws IOException {
+    try (CountingInputStream counting =
+            new CountingInputStream(new BufferedInputStream(Files.newInputStream(indexPath)));
+        DataInputStream in = new DataInputStream(counting)) {
+      readLog(counting, in);
+    }
+  }
+
+  private void readLog(CountingInputStream counting, DataInputStream in) throws IOException {
+    if (readOffset == 0) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unexpected cache index header");
+      }
+      readOffset = HEADER_SIZE;
+    } else {
+      ByteStreams.skipFully(in, readOffset);
+    }
+    while (true) {
+      byte type;
+      String key;
+      long time;
+      long size = 0;
+      ImmutableList<String> chunkKeys = ImmutableList.of();
+      try {
+        type = in.readByte();
+        key = in.readUTF();
+        time = in.readLong();
+        if (type == RECORD_STORE) {
+          size = in.readLong();
+        } else if (type == RECORD_STORE_CHUNKED) {
+          size = in.readLong();
+          chunkKeys = readChunkKeys(in);
+        } else if (type != RECORD_ACCESS && type != RECORD_REMOVE) {
+          throw new IOException("Unexpected cache index record type " + type);
+        }
+      } catch (EOFException e) {
+        // Either the end of the log, or a record another process is still appending.
+        return;
+      }
+      apply(type, key, time, size, chunkKeys);
+      recordsInLog++;
+      readOffset = counting.getCount();
+    }
+  }
+
+  private static ImmutableList<String> readChunkKeys(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    ImmutableList.Builder<String> chunkKeys = ImmutableList.builderWithExpectedSize(count);
+    for (int i = 0; i < count; i++) {
+      byte[] hash = new byte[in.readUnsignedByte()];
+      in.readFully(hash);
+      chunkKeys.add(DirArtifactChunkStore.getChunkKey(HashCode.fromBytes(hash)));
+    }
+    return chunkKeys.build();
+  }
+
+  private void apply(byte type, String key, long time, long size) {
+    apply(type, key, time, size, ImmutableList.of());
+  }
+
+  private void apply(
+      byte type, String key, long time, long size, ImmutableList<String> chunkKeys) {
+    boolean isStore = type == RECORD_STORE || type == RECORD_STORE_CHUNKED;
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      if (!entry.isChunk) {
+        lruOrder.remove(entry);
+      }
+      if (type == RECORD_REMOVE) {
+        entries.remove(key);
+        totalBytes -= entry.sizeBytes;
+        release(entry.chunkKeys);
+        return;
+      }
+      if (isStore) {
+        totalBytes += size - entry.sizeBytes;
+        entry.sizeBytes = size;
+        retain(chunkKeys);
+        release(entry.chunkKeys);
+        entry.chunkKeys = chunkKeys;
+      }
+      entry.lastAccessMillis = Math.max(entry.lastAccessMillis, time);
+      entry.sequence = nextSequence++;
+      if (!entry.isChunk) {
+        lruOrder.add(entry);
+      }
+    } else if (isStore) {
+      entry = new Entry(key, size, time, nextSequence++, chunked && key.startsWith(chunkKeyPrefix));
+      entries.put(key, entry);
+      totalBytes += size;
+      retain(chunkKeys);
+      entry.chunkKeys = chunkKeys;
+      if (!entry.isChunk) {
+        lruOrder.add(entry);
+      }
+    } else {
+      return;
+    }
+    touch(entry.chunkKeys, time);
+  }
+
+  private void retain(ImmutableList<String> chunkKeys) {
+    for (String chunkKey : chunkKeys) {
+      Entry chunk = entries.get(chunkKey);
+      if (chunk != null) {
+        chunk.refCount++;
+      }
+    }
+  }
+
+  private void release(ImmutableList<String> chunkKeys) {
+    for (String chunkKey : chunkKeys) {
+      Entry chunk = entries.get(chunkKey);
+      if (chunk != null) {
+        chunk.refCount--;
+      }
+    }
+  }
+
+  /** Keeps chunks used by a recently stored or accessed entry out of the orphan grace period. */
+  private void touch(ImmutableList<String> chunkKeys, long time) {
+    for (String chunkKey : chunkKeys) {
+      Entry chunk = entries.get(chunkKey);
+      if (chunk != null) {
+        chunk.lastAccessMillis = Math.max(chunk.lastAccessMillis, time);
+      }
+    }
+  }
+
+  private interface RecordWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * Appends a record to the log, preceded by the buffered access records. This is done before
+   * applying the record, since opening the log may reload the state of the index.
+   */
+  private void append(byte type, String key, long time, long size) {
+    append(out -> writeRecord(out, type, key, time, size, ImmutableList.of()), 1);
+  }
+
+  /** Like {@link #append(byte, String, long, long)}, for the {@code count} records of {@code writer}. */
+  private void append(RecordWriter writer, int count) {
+    if (writeFailed) {
+      return;
+    }
+    Map<String, Long> accesses = takePendingAccesses();
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream records = new DataOutputStream(bytes);
+      for (Map.Entry<String, Long> access : accesses.entrySet()) {
+        writeRecord(
+            records, RECORD_ACCESS, access.getKey(), access.getValue(), 0, ImmutableList.of());
+      }
+      writer.write(records);
+      appendRecords(bytes.toByteArray(), accesses.size() + count);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write cache index %s, falling back to directory walks", indexPath);
+      writeFailed = true;
+    }
+    // Applied once more, in case opening the log reloaded the state of the index.
+    for (Map.Entry<String, Long> access : accesses.entrySet()) {
+      apply(RECORD_ACCESS, access.getKey(), access.getValue(), 0);
+    }
+  }
+
+  private void appendPendingAccesses() {
+    if (writeFailed) {
+      pendingAccesses.clear();
+    }
+    if (!pendingAccesses.isEmpty()) {
+      append(out -> {}, 0);
+    }
+  }
+
+  private Map<String, Long> takePendingAccesses() {
+    if (pendingAccesses.isEmpty()) {
+      return ImmutableMap.of();
+    }
+    Map<String, Long> accesses = new LinkedHashMap<>(pendingAccesses);
+    pendingAccesses.clear();
+    return accesses;
+  }
+
+  private static void writeRecord(
+      DataOutputStream out,
+      byte type,
+      String key,
+      long time,
+      long size,
+      ImmutableList<String> chunkKeys)
+      throws IOException {
+    out.writeByte(type);
+    out.writeUTF(key);
+    out.writeLong(time);
+    if (type == RECORD_STORE || type == RECORD_STORE_CHUNKED) {
+      out.writeLong(size);
+    }
+    if (type == RECORD_STORE_CHUNKED) {
+      out.writeInt(chunkKeys.size());
+      for (String chunkKey : chunkKeys) {
+        byte[] hash = DirArtifactChunkStore.getChunkHash(chunkKey).asBytes();
+        out.writeByte(hash.length);
+        out.write(hash);
+      }
+    }
+  }
+
+  private void appendRecords(byte[] records, int count) throws IOException {
+    withLock(
+        () -> {
+          FileChannel channel = getLog();
+          long sizeBefore = channel.size();
+          ByteBuffer buffer = ByteBuffer.wrap(records);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          recordsInLog += count;
+          if (sizeBefore == readOffset) {
+            // Nobody else appended since the log was read, no need to read these records back.
+            readOffset = channel.size();
+          }
+        });
+  }
+
+  /** @return the channel to append to the current log file. Must be called holding the lock. */
+  private FileChannel getLog() throws IOException {
+    if (log != null && !isCurrentLog(logFileKey)) {
+      // Replaced by another process, this one's records would go to a deleted file.
+      closeLog();
+    }
+    if (log == null) {
+      // Catches up with records of other processes, so the append does not skip them.
+      refresh();
+      if (dirty || !Files.exists(indexPath)) {
+        // The in-memory state was built by walking the cache, persist it before appending to it.
+        compact();
+      }
+      log =
+          FileChannel.open(
+              indexPath,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+      logFileKey = Files.readAttributes(indexPath, BasicFileAttributes.class).fileKey();
+    }
+    return log;
+  }
+
+  private boolean isCurrentLog(@Nullable Object fileKey) throws IOException {
+    try {
+      return fileKey != null
+          && fileKey.equals(Files.readAttributes(indexPath, BasicFileAttributes.class).fileKey());
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  private void flush() {
+    if (log != null) {
+      try {
+        log.force(false);
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to flush %s", indexPath);
+      }
+    }
+  }
+
+  private void compact() throws IOException {
+    Files.createDirectories(tmpDir);
+    Path tmp = Files.createTempFile(tmpDir, INDEX_FILE_NAME, ".tmp");
+    long written = 0;
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        // Chunks go first, so that the entries referring to them find them when the log is read.
+        for (Entry entry : entries.values()) {
+          if (entry.isChunk) {
+            writeRecord(
+                out,
+                RECORD_STORE,
+                entry.key,
+                entry.lastAccessMillis,
+                entry.sizeBytes,
+                ImmutableList.of());
+          }
+        }
+        for (Entry entry : lruOrder) {
+          writeRecord(
+              out,
+              entry.chunkKeys.isEmpty() ? RECORD_STORE : RECORD_STORE_CHUNKED,
+              entry.key,
+              entry.lastAccessMillis,
+              entry.sizeBytes,
+              entry.chunkKeys);
+        }
+        written = out.size();
+      }
+      Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    readOffset = written;
+    readFileKey = Files.readAttributes(indexPath, BasicFileAttributes.class).fileKey();
+    recordsInLog = entries.size();
+    dirty = false;
+  }
+
+  private void clear() {
+    entries.clear();
+    lruOrder.clear();
+    totalBytes = 0;
+    readOffset = 0;
+    readFileKey = null;
+    recordsInLog = 0;
+    dirty = false;
+  }
+
+  /** Builds the index from the contents of the cache directory. */
+  private void rebuild() {
+    Map<String, Entry> found = new HashMap<>();
+    try {
+      Files.walkFileTree(
+          cacheRoot,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+              return dir.equals(tmpDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              if (!isIndexFile(file)) {
+                addFile(found, file, attrs.size(), attrs.lastAccessTime().toMillis());
+              }
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to walk %s", cacheRoot);
+    }
+    addFound(found);
+  }
+
+  private void addFile(Map<String, Entry> found, Path file, long size, long lastAccessMillis) {
+    String key = cacheRoot.relativize(file).toString();
+    boolean isChunk = chunked && key.startsWith(chunkKeyPrefix);
+    if (isChunk && file.getFileName().toString().startsWith(".")) {
+      // The lock file of the chunk store.
+      return;
+    } else if (key.endsWith(METADATA_EXTENSION)) {
+      key = key.substring(0, key.length() - METADATA_EXTENSION.length());
+    } else if (chunked && key.endsWith(DirArtifactChunkStore.MANIFEST_EXTENSION)) {
+      key = key.substring(0, key.length() - DirArtifactChunkStore.MANIFEST_EXTENSION.length());
+    }
+    Entry entry = found.computeIfAbsent(key, k -> new Entry(k, 0, Long.MIN_VALUE, 0, isChunk));
+    entry.sizeBytes += size;
+    entry.lastAccessMillis = Math.max(entry.lastAccessMillis, lastAccessMillis);
+    if (chunked && file.toString().endsWith(DirArtifactChunkStore.MANIFEST_EXTENSION)) {
+      try {
+        entry.chunkKeys = DirArtifactChunkStore.readChunkKeys(file);
+      } catch (IOException e) {
+        LOG.warn(e, "Unreadable chunk manifest %s", file);
+      }
+    }
+  }
+
+  private void addFound(Map<String, Entry> found) {
+    // Chunks go first, so that the entries referring to them find them.
+    for (Entry entry : found.values()) {
+      if (entry.isChunk) {
+        apply(RECORD_STORE, entry.key, entry.lastAccessMillis, entry.sizeBytes);
+      }
+    }
+    for (Entry entry : found.values()) {
+      if (!entry.isChunk) {
+        apply(
+            RECORD_STORE_CHUNKED,
+            entry.key,
+            entry.lastAccessMillis,
+            entry.sizeBytes,
+            entry.chunkKeys);
+      }
+    }
+    dirty = !found.isEmpty();
+    LOG.info("Built cache index of %s with %d entries", cacheRoot, found.size());
+  }
+
+  private static class Entry {
+    private final String key;
+    private long sizeBytes;
+    private long lastAccessMillis;
+    /** Order in which records were applied, breaks ties between equal access times. */
+    private long sequence;
+    /** Whether this is a chunk of a chunked cache, rather than an entry stored for a rule key. */
+    private final boolean isChunk;
+    /** Keys of the chunks this entry refers to. */
+    private ImmutableList<String> chunkKeys = ImmutableList.of();
+    /** Number of references to this chunk by entries. */
+    private int refCount = 0;
+
+    private Entry(
+        String key, long sizeBytes, long lastAccessMillis, long sequence, boolean isChunk) {
+      this.key = key;
+      this.sizeBytes = sizeBytes;
+      this.lastAccessMillis = lastAccessMillis;
+      this.sequence = sequence;
+      this.isChunk = isChunk;
+    }
+  }
+}
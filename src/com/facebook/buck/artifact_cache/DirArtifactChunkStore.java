@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.concurrent.AutoCloseableLock;
+import com.facebook.buck.util.concurrent.AutoCloseableReadWriteLock;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Chunked storage backing {@link DirArtifactCache}: artifacts are split by {@link
+ * ContentDefinedChunker}, every chunk is stored once under {@code chunks/} keyed by its hash, and
+ * every rule key gets a small manifest listing its chunks. Artifacts that differ only a little
+ * share most of their chunks, which saves both disk space and write I/O.
+ *
+ * <p>Chunks are reference counted by the manifests pointing to them, so eviction only frees the
+ * bytes of chunks no remaining entry refers to. Stores record chunks and manifests in the {@link
+ * DirArtifactCacheIndex} of the cache, which eviction uses to find victims; the cache directory is
+ * only scanned when there is no usable index. Several processes may share the cache directory,
+ * stores, fetches and eviction take turns through a file lock on {@code chunks/.lock}.
+ *
+ * <p>Chunks are named after the hash of their contents, which is checked when they are read, so a
+ * truncated or corrupt chunk is never served.
+ */
+class DirArtifactChunkStore {
+
+  private static final Logger LOG = Logger.get(DirArtifactChunkStore.class);
+
+  static final String MANIFEST_EXTENSION = ".chunks";
+  private static final String METADATA_EXTENSION = ".metadata";
+  static final String CHUNKS_DIR = "chunks";
+  private static final String LOCK_FILE_NAME = ".lock";
+
+  private static final ConcurrentMap<Path, CacheDirLock> CACHE_DIR_LOCKS =
+      new ConcurrentHashMap<>();
+
+  private static final int MANIFEST_MAGIC = 0xB0C4C4C5;
+  private static final HashFunction CHUNK_HASH = Hashing.sha1();
+
+  /**
+   * Unreferenced chunks younger than this are kept by eviction, they may belong to a store in
+   * progress in another process.
+   */
+  static final long ORPHAN_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final Path cacheRoot;
+  private final Path tmpDir;
+  private final Optional<DirArtifactCacheIndex> index;
+
+  /** Stores hold this lock shared, so that eviction never deletes a chunk a new manifest uses. */
+  private final CacheDirLock evictionLock;
+
+  /**
+   * @param cacheRoot absolute path of the cache directory.
+   * @param tmpDir absolute path of a directory in the same filesystem for partially written files.
+   * @param index index of the cache to record stored chunks and manifests in, if it has one.
+   */
+  DirArtifactChunkStore(Path cacheRoot, Path tmpDir, Optional<DirArtifactCacheIndex> index) {
+    this.cacheRoot = cacheRoot;
+    this.tmpDir = tmpDir;
+    this.index = index;
+    this.evictionLock =
+        CACHE_DIR_LOCKS.computeIfAbsent(
+            cacheRoot, root -> new CacheDirLock(root.resolve(CHUNKS_DIR).resolve(LOCK_FILE_NAME)));
+  }
+
+  /**
+   * Stores the chunks of {@code artifact} that are not stored yet and writes a manifest for them
+   * for each of {@code keys}, the paths relative to the cache directory of the entries to store.
+   * The metadata of the entries is expected to be written already.
+   *
+   * @return the number of bytes written to the cache.
+   */
+  long store(Path artifact, List<String> keys) throws IOException {
+    if (keys.isEmpty()) {
+      return 0;
+    }
+    try (Closeable sharedLock = evictionLock.lockShared()) {
+      Files.createDirectories(tmpDir);
+      List<HashCode> hashes = new ArrayList<>();
+      List<Integer> sizes = new ArrayList<>();
+      Map<String, Long> newChunks = new HashMap<>();
+      long[] bytesWritten = {0};
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(artifact))) {
+        ContentDefinedChunker.split(
+            in,
+            (buffer, length) -> {
+              HashCode hash = CHUNK_HASH.hashBytes(buffer, 0, length);
+              Path chunkPath = getChunkPath(hash);
+              if (!Files.exists(chunkPath)) {
+                Path tmp = Files.createTempFile(tmpDir, "chunk", ".tmp");
+                try {
+                  try (OutputStream out = Files.newOutputStream(tmp)) {
+                    out.write(buffer, 0, length);
+                  }
+                  Files.createDirectories(chunkPath.getParent());
+                  Files.move(tmp, chunkPath, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                  Files.deleteIfExists(tmp);
+                }
+                bytesWritten[0] += length;
+                newChunks.put(getChunkKey(hash), (long) length);
+              } else {
+                // Keeps the chunk out of the grace period for unreferenced chunks of eviction.
+                Files.setLastModifiedTime(
+                    chunkPath, FileTime.fromMillis(System.currentTimeMillis()));
+              }
+              hashes.add(hash);
+              sizes.add(length);
+            });
+      }
+      Map<String, Long> newEntries = new HashMap<>();
+      for (String key : keys) {
+        long manifestSize =
+            writeManifest(cacheRoot.resolve(key + MANIFEST_EXTENSION), hashes, sizes);
+        bytesWritten[0] += manifestSize;
+        newEntries.put(key, manifestSize + getSizeIfExists(cacheRoot.resolve(key + METADATA_EXTENSION)));
+      }
+      if (index.isPresent()) {
+        // Recorded while holding the lock, so that eviction never sees the chunks unreferenced.
+        index
+            .get()
+            .recordChunkedStore(
+                newChunks,
+                newEntries,
+                hashes.stream()
+                    .map(DirArtifactChunkStore::getChunkKey)
+                    .collect(ImmutableList.toImmutableList()));
+      }
+      return bytesWritten[0];
+    }
+  }
+
+  /**
+   * Writes the artifact described by the manifest at {@code manifestPath} to {@code out}.
+   *
+   * @throws java.nio.file.NoSuchFileException if the manifest or one of its chunks is missing.
+   * @throws IOException if a chunk does not match its hash. The chunk is deleted, so that it is
+   *     written again by the next store of an artifact containing it.
+   */
+  void materialize(Path manifestPath, OutputStream out) throws IOException {
+    try (Closeable sharedLock = evictionLock.lockShared()) {
+      byte[] buffer = new byte[ContentDefinedChunker.MAX_CHUNK_SIZE];
+      for (HashCode hash : readManifest(manifestPath)) {
+        Path chunkPath = getChunkPath(hash);
+        int length;
+        try (InputStream in = Files.newInputStream(chunkPath)) {
+          length = ByteStreams.read(in, buffer, 0, buffer.length);
+          if (in.read() != -1) {
+            length = -1;
+          }
+        }
+        if (length < 0 || !CHUNK_HASH.hashBytes(buffer, 0, length).equals(hash)) {
+          Files.deleteIfExists(chunkPath);
+          throw new IOException("Corrupt chunk " + chunkPath);
+        }
+        out.write(buffer, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache is no larger than {@code
+   * maxBytesAfterDeletion}, if it is currently larger than {@code maxTotalSizeBytes}. An entry is
+   * all the files stored for one rule key; deleting it frees its manifest and metadata plus every
+   * chunk that no other entry refers to. Unreferenced chunks are always deleted.
+   *
+   * @return the number of bytes freed.
+   */
+  long evict(long maxTotalSizeBytes, long maxBytesAfterDeletion) throws IOException {
+    try (Closeable exclusiveLock = evictionLock.lockExclusive()) {
+      if (index.isPresent() && index.get().isUsable()) {
+        return index.get().evict(maxTotalSizeBytes, maxBytesAfterDeletion);
+      }
+      Map<String, Entry> entries = new HashMap<>();
+      Map<HashCode, ChunkStats> chunks = new HashMap<>();
+      scan(entries, chunks);
+
+      long totalBytes = 0;
+      for (Entry entry : entries.values()) {
+        totalBytes += entry.bytes;
+        if (entry.manifest != null) {
+          try {
+            entry.chunkRefs = readManifest(entry.manifest);
+          } catch (IOException e) {
+            LOG.warn(e, "Unreadable chunk manifest %s", entry.manifest);
+            entry.corrupt = true;
+          }
+          for (HashCode hash : entry.chunkRefs) {
+            ChunkStats chunk = chunks.get(hash);
+            if (chunk != null) {
+              chunk.refCount++;
+            }
+          }
+        }
+      }
+      for (ChunkStats chunk : chunks.values()) {
+        totalBytes += chunk.size;
+      }
+
+      long freedBytes = 0;
+      long orphanDeadline = System.currentTimeMillis() - ORPHAN_GRACE_MILLIS;
+      for (ChunkStats chunk : chunks.values()) {
+        if (chunk.refCount == 0 && chunk.lastModifiedMillis < orphanDeadline) {
+          freedBytes += deleteChunk(chunk);
+        }
+      }
+
+      List<Entry> candidates = new ArrayList<>(entries.values());
+      candidates.sort(
+          (e1, e2) ->
+              ComparisonChain.start()
+                  .compareTrueFirst(e1.corrupt, e2.corrupt)
+                  .compare(e1.lastAccessMillis, e2.lastAccessMillis)
+                  .compare(e1.creationMillis, e2.creationMillis)
+                  .result());
+      boolean trim = totalBytes - freedBytes > maxTotalSizeBytes;
+      for (Entry entry : candidates) {
+        if (!entry.corrupt && (!trim || totalBytes - freedBytes <= maxBytesAfterDeletion)) {
+          break;
+        }
+        for (Path file : entry.files) {
+          Files.deleteIfExists(file);
+        }
+        freedBytes += entry.bytes;
+        for (HashCode hash : entry.chunkRefs) {
+          ChunkStats chunk = chunks.get(hash);
+          if (chunk != null && --chunk.refCount == 0) {
+            freedBytes += deleteChunk(chunk);
+          }
+        }
+      }
+      LOG.debug("Freed %d of %d bytes in %s", freedBytes, totalBytes, cacheRoot);
+      return freedBytes;
+    }
+  }
+
+  @VisibleForTesting
+  Path getChunkPath(HashCode hash) {
+    return cacheRoot.resolve(getChunkKey(hash));
+  }
+
+  /** @return the path of the chunk with the given hash relative to the cache directory. */
+  static String getChunkKey(HashCode hash) {
+    String hex = hash.toString();
+    return Paths.get(CHUNKS_DIR, hex.substring(0, 2), hex).toString();
+  }
+
+  /**
+   * @return the hash of the chunk at {@code chunkKey} relative to the cache directory.
+   * @throws IllegalArgumentException if it is not the path of a chunk.
+   */
+  static HashCode getChunkHash(String chunkKey) {
+    return HashCode.fromString(Paths.get(chunkKey).getFileName().toString());
+  }
+
+  /** @return the paths of the chunks the manifest at {@code manifestPath} refers to. */
+  static ImmutableList<String> readChunkKeys(Path manifestPath) throws IOException {
+    return readManifest(manifestPath).stream()
+        .map(DirArtifactChunkStore::getChunkKey)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  private static long getSizeIfExists(Path path) throws IOException {
+    try {
+      return Files.size(path);
+    } catch (NoSuchFileException e) {
+      return 0;
+    }
+  }
+
+  private long deleteChunk(ChunkStats chunk) throws IOException {
+    Files.deleteIfExists(chunk.path);
+    return chunk.size;
+  }
+
+  private void scan(Map<String, Entry> entries, Map<HashCode, ChunkStats> chunks)
+      throws IOException {
+    Path chunksDir = cacheRoot.resolve(CHUNKS_DIR);
+    Files.walkFileTree(
+        cacheRoot,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            return dir.equals(tmpDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            String fileName = file.getFileName().toString();
+            if (file.startsWith(chunksDir)) {
+              if (fileName.equals(LOCK_FILE_NAME)) {
+                return FileVisitResult.CONTINUE;
+              }
+              HashCode hash;
+              try {
+                hash = HashCode.fromString(fileName);
+              } catch (IllegalArgumentException e) {
+                return FileVisitResult.CONTINUE;
+              }
+              chunks.put(
+                  hash, new ChunkStats(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+              return FileVisitResult.CONTINUE;
+            }
+            // All files stored for a rule key are named after it, with different extensions.
+            int dot = fileName.indexOf('.');
+            String ruleKey = dot < 0 ? fileName : fileName.substring(0, dot);
+            String key = file.getParent().resolve(ruleKey).toString();
+            Entry entry = entries.computeIfAbsent(key, ignored -> new Entry());
+            entry.files.add(file);
+            entry.bytes += attrs.size();
+            entry.lastAccessMillis =
+                Math.max(entry.lastAccessMillis, attrs.lastAccessTime().toMillis());
+            entry.creationMillis = Math.min(entry.creationMillis, attrs.creationTime().toMillis());
+            if (fileName.endsWith(MANIFEST_EXTENSION)) {
+              entry.manifest = file;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            // Deleted concurrently.
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private long writeManifest(Path manifestPath, List<HashCode> hashes, List<Integer> sizes)
+      throws IOException {
+    Files.createDirectories(manifestPath.getParent());
+    Path tmp = Files.createTempFile(tmpDir, "manifest", ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MANIFEST_MAGIC);
+        out.writeInt(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+          out.write(hashes.get(i).asBytes());
+          out.writeInt(sizes.get(i));
+        }
+      }
+      long size = Files.size(tmp);
+      Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+      return size;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static ImmutableList<HashCode> readManifest(Path manifestPath) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestPath)))) {
+      if (in.readInt() != MANIFEST_MAGIC) {
+        throw new IOException("Not a chunk manifest: " + manifestPath);
+      }
+      int count = in.readInt();
+      ImmutableList.Builder<HashCode> hashes = ImmutableList.builderWithExpectedSize(count);
+      byte[] hash = new byte[CHUNK_HASH.bits() / 8];
+      for (int i = 0; i < count; i++) {
+        in.readFully(hash);
+        in.readInt();
+        hashes.add(HashCode.fromBytes(hash));
+      }
+      return hashes.build();
+    }
+  }
+
+  /** Files stored for one rule key. */
+  private static class Entry {
+    private final List<Path> files = new ArrayList<>();
+    private long bytes = 0;
+    private long lastAccessMillis = Long.MIN_VALUE;
+    private long creationMillis = Long.MAX_VALUE;
+    @Nullable private Path manifest = null;
+    private ImmutableList<HashCode> chunkRefs = ImmutableList.of();
+    private boolean corrupt = false;
+  }
+
+  /**
+   * Lock of a cache directory, held shared by stores and exclusively by eviction, both within this
+   * process and across processes through a file lock. File locks are held on behalf of the whole
+   * process, so the shared file lock is taken by the first store of this process and released by
+   * the last one.
+   */
+  private static class CacheDirLock {
+    private final Path lockPath;
+    private final AutoCloseableReadWriteLock processLock = new AutoCloseableReadWriteLock();
+
+    @GuardedBy("this")
+    private int sharedHolders = 0;
+
+    /** Open while the file lock is held, closing it releases the file lock. */
+    @GuardedBy("this")
+    @Nullable
+    private FileChannel channel = null;
+
+    private CacheDirLock(Path lockPath) {
+      this.lockPath = lockPath;
+    }
+
+    Closeable lockShared() throws IOException {
+      AutoCloseableLock readLock = processLock.readLock();
+      try {
+        synchronized (this) {
+          if (sharedHolders == 0) {
+            lockFile(true);
+          }
+          sharedHolders++;
+        }
+      } catch (IOException | RuntimeException e) {
+        readLock.close();
+        throw e;
+      }
+      return () -> {
+        try {
+          synchronized (this) {
+            if (--sharedHolders == 0) {
+              unlockFile();
+            }
+          }
+        } finally {
+          readLock.close();
+        }
+      };
+    }
+
+    Closeable lockExclusive() throws IOException {
+      AutoCloseableLock writeLock = processLock.writeLock();
+      try {
+        synchronized (this) {
+          lockFile(false);
+        }
+      } catch (IOException | RuntimeException e) {
+        writeLock.close();
+        throw e;
+      }
+      return () -> {
+        try {
+          synchronized (this) {
+            unlockFile();
+          }
+        } finally {
+          writeLock.close();
+        }
+      };
+    }
+
+    @GuardedBy("this")
+    private void lockFile(boolean shared) throws IOException {
+      Files.createDirectories(lockPath.getParent());
+      FileChannel opened =
+          FileChannel.open(
+              lockPath,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      try {
+        opened.lock(0, Long.MAX_VALUE, shared);
+      } catch (IOException | RuntimeException e) {
+        opened.close();
+        throw e;
+      }
+      channel = opened;
+    }
+
+    @GuardedBy("this")
+    private void unlockFile() throws IOException {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+
+  private static class ChunkStats {
+    private final Path path;
+    private final long size;
+    private final long lastModifiedMillis;
+    private int refCount = 0;
+
+    private ChunkStats(Path path, long size, long lastModifiedMillis) {
+      this.path = path;
+      this.size = size;
+      this.lastModifiedMillis = lastModifiedMillis;
+    }
+  }
+}
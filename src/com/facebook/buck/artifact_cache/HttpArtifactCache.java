@@ -25,6 +25,7 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.slb.HttpResponse;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,6 +35,7 @@ import java.net.URLEncoder;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import javax.annotation.Nullable;
 import okhttp3.MediaType;
@@ -94,19 +96,26 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
           return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        getProjectFilesystem().createParentDirs(file);
-        Path temp =
-            getProjectFilesystem()
-                .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
-
-        HttpArtifactCacheBinaryProtocol.FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
-          fetchedData =
-              HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
-        }
+        // Unless the payload can be streamed to its consumer, set up a temporary file, which sits
+        // next to the destination, to write to and make sure all parent dirs exist.
+        AtomicReference<Path> temp = new AtomicReference<>();
+        HttpArtifactCacheBinaryProtocol.FetchResponseReadResult fetchedData =
+            HttpArtifactCacheBinaryProtocol.readFetchResponse(
+                input,
+                (metadata, payload) -> {
+                  if (tryStreamPayload(output, metadata, payload)) {
+                    return;
+                  }
+                  Path file = output.get();
+                  getProjectFilesystem().createParentDirs(file);
+                  temp.set(
+                      getProjectFilesystem()
+                          .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp"));
+                  try (OutputStream tempFileOutputStream =
+                      getProjectFilesystem().newFileOutputStream(temp.get())) {
+                    ByteStreams.copy(payload, tempFileOutputStream);
+                  }
+                });
 
         resultBuilder
             .setBuildTarget(
@@ -129,12 +138,17 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
         if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
           String msg = "artifact had invalid checksum";
           reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          getProjectFilesystem().deleteFileAtPath(temp);
+          if (temp.get() != null) {
+            getProjectFilesystem().deleteFileAtPath(temp.get());
+          }
           return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
         }
 
         // Finally, move the temp file into it's final place.
-        getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        if (temp.get() != null) {
+          getProjectFilesystem()
+              .move(temp.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+        }
 
         LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
         return resultBuilder
@@ -154,6 +168,12 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
     throw new UnsupportedOperationException("multiContains is not supported");
   }
 
+  @Override
+  public boolean supportsMultiContains() {
+    // The HTTP cache protocol has no way to check for artifacts without fetching them.
+    return false;
+  }
+
   @Override
   protected StoreResult storeImpl(ArtifactInfo info, Path file) throws IOException {
     ImmutableStoreResult.Builder resultBuilder = ImmutableStoreResult.builder();
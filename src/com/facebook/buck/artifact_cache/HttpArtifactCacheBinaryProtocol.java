@@ -30,6 +30,7 @@ import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -52,9 +53,19 @@ public class HttpArtifactCacheBinaryProtocol {
 
   public static FetchResponseReadResult readFetchResponse(
       DataInputStream input, OutputStream payloadSink) throws IOException {
+    return readFetchResponse(input, (metadata, payload) -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  /**
+   * Like {@link #readFetchResponse(DataInputStream, OutputStream)}, but hands the payload to {@code
+   * payloadReader} as a stream once the metadata has been read. Whatever the reader leaves unread
+   * is drained afterwards so that the checksums always cover the whole payload.
+   */
+  public static FetchResponseReadResult readFetchResponse(
+      DataInputStream input, PayloadReader payloadReader) throws IOException {
 
     MetadataAndPayloadReadResultInternal resultInternal =
-        readMetadataAndPayload(input, payloadSink);
+        readMetadataAndPayload(input, payloadReader);
 
     ImmutableFetchResponseReadResult.Builder result =
         ImmutableFetchResponseReadResult.builder().from(resultInternal);
@@ -80,6 +91,12 @@ public class HttpArtifactCacheBinaryProtocol {
 
   public static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
       DataInputStream input, OutputStream payloadSink) throws IOException {
+    return readMetadataAndPayload(
+        input, (metadata, payload) -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  private static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
+      DataInputStream input, PayloadReader payloadReader) throws IOException {
     // Read the size of a the metadata, and use that to build a input stream to read and
     // process the rest of it.
     int metadataSize = input.readInt();
@@ -91,6 +108,7 @@ public class HttpArtifactCacheBinaryProtocol {
     // Create a hasher to be used to generate a hash of the metadata and input.  We'll use
     // this to compare against the embedded checksum.
     Hasher hasher = HASH_FUNCTION.newHasher();
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
     byte[] rawMetadata = new byte[metadataSize];
     ByteStreams.readFully(input, rawMetadata);
     try (InputStream rawMetadataIn = new ByteArrayInputStream(rawMetadata)) {
@@ -113,7 +131,7 @@ public class HttpArtifactCacheBinaryProtocol {
           int valSize = metadataIn.readInt();
           byte[] val = new byte[valSize];
           ByteStreams.readFully(metadataIn, val);
-          result.putMetadata(key, new String(val, Charsets.UTF_8));
+          metadata.put(key, new String(val, Charsets.UTF_8));
         }
       }
 
@@ -123,13 +141,18 @@ public class HttpArtifactCacheBinaryProtocol {
       ByteStreams.readFully(rawMetadataIn, hashCodeBytes);
       result.setExpectedHashCode(HashCode.fromBytes(hashCodeBytes));
     }
+    ImmutableMap<String, String> readMetadata = metadata.build();
+    result.setMetadata(readMetadata);
 
-    // The remaining data is the payload, which we write to the created file, and also include
-    // in our verification checksum.
+    // The remaining data is the payload, which we hand to the reader, and also include in our
+    // verification checksum.
     Hasher artifactOnlyHasher = HASH_FUNCTION.newHasher();
-    try (InputStream payload =
-        new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input))) {
-      result.setResponseSizeBytes(ByteStreams.copy(payload, payloadSink));
+    try (CountingInputStream payload =
+        new CountingInputStream(
+            new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input)))) {
+      payloadReader.read(readMetadata, payload);
+      ByteStreams.exhaust(payload);
+      result.setResponseSizeBytes(payload.getCount());
       result.setArtifactOnlyHashCode(artifactOnlyHasher.hash());
     }
 
@@ -269,6 +292,12 @@ public class HttpArtifactCacheBinaryProtocol {
     public abstract ImmutableMap<String, String> getMetadata();
   }
 
+  /** Consumes the payload of a response whose metadata has already been read. */
+  @FunctionalInterface
+  public interface PayloadReader {
+    void read(ImmutableMap<String, String> metadata, InputStream payload) throws IOException;
+  }
+
   @BuckStyleValueWithBuilder
   abstract static class MetadataAndPayloadReadResultInternal extends MetadataAndPayloadReadResult {}
 
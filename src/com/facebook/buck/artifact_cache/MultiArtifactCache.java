@@ -33,11 +33,13 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
@@ -90,36 +92,121 @@ public class MultiArtifactCache implements ArtifactCache {
     // Propagate the artifact to previous writable caches.
     return Futures.transform(
         cacheResult,
-        (CacheResult result) -> {
-          if (!result.getType().isSuccess()) {
-            return result;
-          }
+        (CacheResult result) ->
+            fillPreviousCaches(lastCache.get(), target, ruleKey, output, result),
+        MoreExecutors.directExecutor());
+  }
 
-          ImmutableList.Builder<ArtifactCache> builder = ImmutableList.builder();
-          for (ArtifactCache artifactCache : artifactCaches) {
-            if (artifactCache == lastCache.get()) {
-              break;
-            }
+  /**
+   * Each cache is sent a single batch with the requests all previous caches missed, once all
+   * requests of the previous batch completed. Hits complete as soon as they are fetched.
+   */
+  @Override
+  public ImmutableList<ListenableFuture<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    ImmutableList.Builder<SettableFuture<CacheResult>> results =
+        ImmutableList.builderWithExpectedSize(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      results.add(SettableFuture.create());
+    }
+    ImmutableList<SettableFuture<CacheResult>> resultFutures = results.build();
+    if (artifactCaches.isEmpty()) {
+      resultFutures.forEach(future -> future.set(CacheResult.miss()));
+    } else {
+      multiFetchFromCache(0, requests, resultFutures);
+    }
+    return ImmutableList.copyOf(resultFutures);
+  }
 
-            if (artifactCache.getCacheReadMode().isWritable()) {
-              builder.add(artifactCache);
-            }
-          }
+  private void multiFetchFromCache(
+      int cacheIndex,
+      ImmutableList<ArtifactFetchRequest> requests,
+      ImmutableList<SettableFuture<CacheResult>> results) {
+    ArtifactCache artifactCache = artifactCaches.get(cacheIndex);
+    boolean isLastCache = cacheIndex == artifactCaches.size() - 1;
+    ImmutableList<ListenableFuture<CacheResult>> fetches = artifactCache.multiFetchAsync(requests);
+    List<ListenableFuture<CacheResult>> handledFetches = new ArrayList<>(fetches.size());
+    for (int i = 0; i < requests.size(); i++) {
+      ArtifactFetchRequest request = requests.get(i);
+      SettableFuture<CacheResult> result = results.get(i);
+      handledFetches.add(
+          Futures.transform(
+              fetches.get(i),
+              cacheResult -> {
+                if (cacheResult.getType().isSuccess() || isLastCache) {
+                  result.set(
+                      fillPreviousCaches(
+                          artifactCache,
+                          request.getBuildTarget().orElse(null),
+                          request.getRuleKey(),
+                          request.getOutput(),
+                          cacheResult));
+                }
+                return cacheResult;
+              },
+              MoreExecutors.directExecutor()));
+    }
 
-          ImmutableList<ArtifactCache> cachesToFill = builder.build();
-          if (!cachesToFill.isEmpty()) {
-            storeToCaches(
-                cachesToFill,
-                ArtifactInfo.builder()
-                    .addRuleKeys(ruleKey)
-                    .setMetadata(result.getMetadata())
-                    .setBuildTarget(Optional.ofNullable(target))
-                    .build(),
-                BorrowablePath.notBorrowablePath(output.getUnchecked()));
-          }
-          return result;
-        },
-        MoreExecutors.directExecutor());
+    Futures.successfulAsList(handledFetches)
+        .addListener(
+            () -> {
+              ImmutableList.Builder<ArtifactFetchRequest> missedRequests = ImmutableList.builder();
+              ImmutableList.Builder<SettableFuture<CacheResult>> missedResults =
+                  ImmutableList.builder();
+              for (int i = 0; i < requests.size(); i++) {
+                try {
+                  Futures.getDone(handledFetches.get(i));
+                } catch (ExecutionException | RuntimeException e) {
+                  results.get(i).setException(e instanceof ExecutionException ? e.getCause() : e);
+                }
+                if (!results.get(i).isDone()) {
+                  missedRequests.add(requests.get(i));
+                  missedResults.add(results.get(i));
+                }
+              }
+              ImmutableList<ArtifactFetchRequest> misses = missedRequests.build();
+              if (!misses.isEmpty()) {
+                multiFetchFromCache(cacheIndex + 1, misses, missedResults.build());
+              }
+            },
+            MoreExecutors.directExecutor());
+  }
+
+  /** Stores a hit from {@code lastCache} to the writable caches before it. */
+  private CacheResult fillPreviousCaches(
+      @Nullable ArtifactCache lastCache,
+      @Nullable BuildTarget target,
+      RuleKey ruleKey,
+      LazyPath output,
+      CacheResult result) {
+    // A streamed payload was never written to the output, so there is nothing to store.
+    if (!result.getType().isSuccess() || StreamingLazyPath.wasStreamed(output)) {
+      return result;
+    }
+
+    ImmutableList.Builder<ArtifactCache> builder = ImmutableList.builder();
+    for (ArtifactCache artifactCache : artifactCaches) {
+      if (artifactCache == lastCache) {
+        break;
+      }
+
+      if (artifactCache.getCacheReadMode().isWritable()) {
+        builder.add(artifactCache);
+      }
+    }
+
+    ImmutableList<ArtifactCache> cachesToFill = builder.build();
+    if (!cachesToFill.isEmpty()) {
+      storeToCaches(
+          cachesToFill,
+          ArtifactInfo.builder()
+              .addRuleKeys(ruleKey)
+              .setMetadata(result.getMetadata())
+              .setBuildTarget(Optional.ofNullable(target))
+              .build(),
+          BorrowablePath.notBorrowablePath(output.getUnchecked()));
+    }
+    return result;
   }
 
   @Override
@@ -187,7 +274,12 @@ public class MultiArtifactCache implements ArtifactCache {
     ListenableFuture<Map<RuleKey, CacheResult>> cacheResultFuture =
         Futures.immediateFuture(initialResults);
 
+    // Caches that can't check for artifacts are left out, the keys missing from the others are
+    // reported as misses.
     for (ArtifactCache nextCache : artifactCaches) {
+      if (!nextCache.supportsMultiContains()) {
+        continue;
+      }
       cacheResultFuture =
           Futures.transformAsync(
               cacheResultFuture,
@@ -219,6 +311,11 @@ public class MultiArtifactCache implements ArtifactCache {
         cacheResultFuture, ImmutableMap::copyOf, MoreExecutors.directExecutor());
   }
 
+  @Override
+  public boolean supportsMultiContains() {
+    return artifactCaches.stream().anyMatch(ArtifactCache::supportsMultiContains);
+  }
+
   @Override
   public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
     ArrayList<ListenableFuture<CacheDeleteResult>> futures = new ArrayList<>();
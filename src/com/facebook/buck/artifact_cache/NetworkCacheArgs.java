@@ -27,6 +27,7 @@ import com.facebook.buck.slb.HttpService;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.util.Optional;
 import java.util.function.Function;
+import org.immutables.value.Value;
 
 @BuckStyleValueWithBuilder
 interface NetworkCacheArgs {
@@ -61,4 +62,10 @@ interface NetworkCacheArgs {
   int getErrorTextLimit();
 
   Optional<Long> getMaxStoreSizeBytes();
+
+  /** Whether hits may be streamed to a {@link StreamingLazyPath} instead of written to a file. */
+  @Value.Default
+  default boolean getStreamingFetchEnabled() {
+    return false;
+  }
 }
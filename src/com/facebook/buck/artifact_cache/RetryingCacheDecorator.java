@@ -65,8 +65,35 @@ public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
   @Override
   public ListenableFuture<CacheResult> fetchAsync(
       @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    return retryOnError(target, ruleKey, output, delegate.fetchAsync(target, ruleKey, output));
+  }
+
+  /** The first attempt is made for the whole batch, failed fetches are retried one by one. */
+  @Override
+  public ImmutableList<ListenableFuture<CacheResult>> multiFetchAsync(
+      ImmutableList<ArtifactFetchRequest> requests) {
+    ImmutableList<ListenableFuture<CacheResult>> firstAttempts = delegate.multiFetchAsync(requests);
+    ImmutableList.Builder<ListenableFuture<CacheResult>> results =
+        ImmutableList.builderWithExpectedSize(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      ArtifactFetchRequest request = requests.get(i);
+      results.add(
+          retryOnError(
+              request.getBuildTarget().orElse(null),
+              request.getRuleKey(),
+              request.getOutput(),
+              firstAttempts.get(i)));
+    }
+    return results.build();
+  }
+
+  private ListenableFuture<CacheResult> retryOnError(
+      @Nullable BuildTarget target,
+      RuleKey ruleKey,
+      LazyPath output,
+      ListenableFuture<CacheResult> firstAttempt) {
     List<String> allCacheErrors = new ArrayList<>();
-    ListenableFuture<CacheResult> resultFuture = delegate.fetchAsync(target, ruleKey, output);
+    ListenableFuture<CacheResult> resultFuture = firstAttempt;
     for (int retryCount = 1; retryCount < maxFetchRetries; retryCount++) {
       int retryCountForLambda = retryCount;
       resultFuture =
@@ -128,6 +155,11 @@ public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
     return delegate.multiContainsAsync(ruleKeys);
   }
 
+  @Override
+  public boolean supportsMultiContains() {
+    return delegate.supportsMultiContains();
+  }
+
   @Override
   public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
     return delegate.deleteAsync(ruleKeys);
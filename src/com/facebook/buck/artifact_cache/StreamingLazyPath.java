@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.file.LazyPath;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * A {@link LazyPath} for fetches whose payload can be consumed while it is being downloaded.
+ *
+ * <p>Network caches with streaming enabled offer the payload of a hit to {@link
+ * #acceptsPayload(ImmutableMap)} as soon as its metadata is known. If it is accepted, the payload
+ * is passed to {@link #consumePayload(ImmutableMap, InputStream)} instead of being written to the
+ * path, and the path is never created. Other caches use this as a regular {@link LazyPath}, so
+ * callers must check {@link #wasStreamed()} to find out where a hit ended up.
+ *
+ * <p>The payload checksum can only be verified once the whole payload has been read, so a consumer
+ * may have acted on a payload that the cache then reports as an error.
+ */
+public abstract class StreamingLazyPath extends LazyPath {
+
+  private volatile boolean streamed = false;
+
+  /** @return whether the payload of an artifact with the given metadata should be streamed. */
+  protected abstract boolean acceptsPayload(ImmutableMap<String, String> metadata);
+
+  /**
+   * Consumes the payload of an accepted artifact. May be called again if the fetch is retried, and
+   * does not need to read the payload to the end.
+   */
+  protected abstract void consumePayload(ImmutableMap<String, String> metadata, InputStream payload)
+      throws IOException;
+
+  /** @return whether the last payload fetched for this path went to the consumer. */
+  public boolean wasStreamed() {
+    return streamed;
+  }
+
+  /**
+   * Streams {@code payload} to the consumer if {@code output} is a {@link StreamingLazyPath} that
+   * accepts it.
+   *
+   * @return true if the payload was consumed, false if it still has to be written to {@code output}
+   */
+  static boolean tryStream(
+      LazyPath output, ImmutableMap<String, String> metadata, InputStream payload)
+      throws IOException {
+    if (!(output instanceof StreamingLazyPath)) {
+      return false;
+    }
+    StreamingLazyPath streamingOutput = (StreamingLazyPath) output;
+    streamingOutput.streamed = false;
+    if (!streamingOutput.acceptsPayload(metadata)) {
+      return false;
+    }
+    streamingOutput.consumePayload(metadata, payload);
+    streamingOutput.streamed = true;
+    return true;
+  }
+
+  /**
+   * @return a {@link LazyPath} for the same file as {@code output} whose payload is never streamed
+   */
+  static LazyPath withoutStreaming(LazyPath output) {
+    if (!(output instanceof StreamingLazyPath)) {
+      return output;
+    }
+    return new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        return output.get();
+      }
+    };
+  }
+
+  /** @return whether a hit fetched into {@code output} was streamed rather than written to it. */
+  static boolean wasStreamed(LazyPath output) {
+    return output instanceof StreamingLazyPath && ((StreamingLazyPath) output).wasStreamed();
+  }
+}
@@ -55,6 +55,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -62,6 +63,7 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -183,17 +185,10 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         }
 
         LOG.verbose("Got artifact.  Attempting to read payload.");
-        Path tmp = createTempFileForDownload();
-        ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult;
-        try (OutputStream tmpFile = getProjectFilesystem().newFileOutputStream(tmp)) {
-          try {
-            readResult = response.readPayload(tmpFile);
-          } catch (IOException e) {
-            LOG.debug(e, "encountered an exception while receiving the payload for %s", ruleKey);
-            throw e;
-          }
-          LOG.verbose("Successfully read payload: %d bytes.", readResult.getBytesRead());
-        }
+        AtomicReference<Path> tmp = new AtomicReference<>();
+        ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult =
+            new PayloadReader(response)
+                .readNextPayload(output, fetchResponse.getMetadata(), tmp, ruleKey);
 
         if (!fetchResponse.isSetMetadata()) {
           String msg =
@@ -258,7 +253,10 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         }
 
         // This makes sure we don't have 'half downloaded files' in the dir cache.
-        getProjectFilesystem().move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
+        if (tmp.get() != null) {
+          getProjectFilesystem()
+              .move(tmp.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+        }
         return resultBuilder
             .setCacheResult(
                 CacheResult.hit(
@@ -594,13 +592,13 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
     }
 
     LOG.verbose("Got artifact.  Attempting to read payload.");
-    Path tmp = createTempFileForDownload();
+    AtomicReference<Path> tmp = new AtomicReference<>();
 
     // Always read payload even if information is missing to ensure that we associate payloads
     // with the correct result.
     @SuppressWarnings("PMD.PrematureDeclaration")
     ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult =
-        payloadReader.readNextPayload(tmp, ruleKey);
+        payloadReader.readNextPayload(output, fetchResponse.getMetadata(), tmp, ruleKey);
 
     if (!fetchResponse.isSetMetadata()) {
       String msg =
@@ -673,7 +671,9 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
     }
 
     // This makes sure we don't have 'half downloaded files' in the dir cache.
-    getProjectFilesystem().move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
+    if (tmp.get() != null) {
+      getProjectFilesystem().move(tmp.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+    }
     builder.setCacheResult(
         CacheResult.hit(
             getName(),
@@ -931,19 +931,40 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
       this.response = response;
     }
 
-    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readNextPayload(Path path, RuleKey ruleKey)
+    /**
+     * Reads the next payload, streaming it to {@code output} if it accepts it and writing it to a
+     * temporary file otherwise. The temporary file, if any, is stored in {@code tmp}.
+     */
+    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readNextPayload(
+        LazyPath output,
+        @Nullable ArtifactMetadata metadata,
+        AtomicReference<Path> tmp,
+        RuleKey ruleKey)
         throws IOException {
-      try (OutputStream tmpFile = getProjectFilesystem().newFileOutputStream(path)) {
-        ThriftArtifactCacheProtocol.Response.ReadPayloadInfo result;
-        try {
-          result = response.readPayload(tmpFile);
-        } catch (IOException e) {
-          LOG.debug(e, "Encountered an exception while receiving the payload for %s", ruleKey);
-          throw e;
-        }
-        LOG.verbose("Successfully read payload: %d bytes.", result.getBytesRead());
-        return result;
+      ImmutableMap<String, String> artifactMetadata =
+          metadata != null && metadata.isSetMetadata()
+              ? ImmutableMap.copyOf(metadata.getMetadata())
+              : ImmutableMap.of();
+      ThriftArtifactCacheProtocol.Response.ReadPayloadInfo result;
+      try {
+        result =
+            response.readPayload(
+                payload -> {
+                  if (tryStreamPayload(output, artifactMetadata, payload)) {
+                    return;
+                  }
+                  tmp.set(createTempFileForDownload());
+                  try (OutputStream tmpFile =
+                      getProjectFilesystem().newFileOutputStream(tmp.get())) {
+                    ByteStreams.copy(payload, tmpFile);
+                  }
+                });
+      } catch (IOException e) {
+        LOG.debug(e, "Encountered an exception while receiving the payload for %s", ruleKey);
+        throw e;
       }
+      LOG.verbose("Successfully read payload: %d bytes.", result.getBytesRead());
+      return result;
     }
   }
 }
@@ -26,9 +26,11 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -200,12 +202,52 @@ public class ThriftArtifactCacheProtocol {
       }
     }
 
+    /**
+     * Hands the next payload to {@code reader} as a stream. Whatever the reader leaves unread is
+     * drained afterwards so that the hash covers the whole payload and the next payload starts at
+     * the right offset.
+     */
+    public ReadPayloadInfo readPayload(PayloadReader reader) throws IOException {
+      assertTrue(
+          nextPayloadToBeRead < thriftData.getPayloadsSize(),
+          "Trying to download payload index=[%s] but the thriftData only contains [%s] payloads.",
+          nextPayloadToBeRead,
+          thriftData.getPayloadsSize());
+
+      long payloadSizeBytes =
+          assertNotNull(thriftData.getPayloads(), "Payloads[] cannot be null.")
+              .get(nextPayloadToBeRead)
+              .getSizeBytes();
+      // The payload stream is deliberately not closed, as that would close the response.
+      CountingInputStream countingStream =
+          new CountingInputStream(ByteStreams.limit(responseStream, payloadSizeBytes));
+      HashingInputStream payload = new HashingInputStream(MD5_HASH_FUNCTION, countingStream);
+      reader.read(payload);
+      ByteStreams.exhaust(payload);
+      if (countingStream.getCount() < payloadSizeBytes) {
+        String msg =
+            String.format(
+                "InputStream was missing [%d] bytes. Expected to read a total of [%d] bytes.",
+                payloadSizeBytes - countingStream.getCount(), payloadSizeBytes);
+        LOG.error(msg);
+        throw new IOException(msg);
+      }
+      ++nextPayloadToBeRead;
+      return new ReadPayloadInfo(payloadSizeBytes, payload.hash().toString());
+    }
+
     @Override
     public void close() throws IOException {
       responseStream.close();
       nextPayloadToBeRead = -1;
     }
 
+    /** Consumes a payload of a response. */
+    @FunctionalInterface
+    public interface PayloadReader {
+      void read(InputStream payload) throws IOException;
+    }
+
     public static class ReadPayloadInfo {
       private final long bytesRead;
       private final String md5Hash;
@@ -123,8 +123,9 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
   @Override
   public ListenableFuture<CacheResult> fetchAsync(
       @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    // The first-level entry may just point to the second-level one, so it must not be streamed.
     return Futures.transformAsync(
-        delegate.fetchAsync(target, ruleKey, output),
+        delegate.fetchAsync(target, ruleKey, StreamingLazyPath.withoutStreaming(output)),
         (CacheResult fetchResult) -> {
           if (!fetchResult.getType().isSuccess()) {
             LOG.verbose("Missed first-level lookup.");
@@ -215,6 +216,11 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
     return delegate.multiContainsAsync(ruleKeys);
   }
 
+  @Override
+  public boolean supportsMultiContains() {
+    return delegate.supportsMultiContains();
+  }
+
   @Override
   public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
     // Artifact can be stored as two-level entry (rule key -> hash -> content)
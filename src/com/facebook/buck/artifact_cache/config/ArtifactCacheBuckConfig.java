@@ -85,9 +85,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_CHUNKED_FIELD = "dir_chunked";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_CHUNKED_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -138,6 +139,9 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String CAS_DEADLINE_SEC = "cas_deadline_sec";
   private static final int DEFAULT_CAS_DEADLINE_SEC = 300;
 
+  private static final String ARTIFACT_COMPRESSION = "artifact_compression";
+  private static final String ARTIFACT_COMPRESSION_LEVEL = "artifact_compression_level";
+
   private static final String SCHEDULE_TYPE = "schedule_type";
   private static final String DEFAULT_SCHEDULE_TYPE = "none";
   public static final String MULTI_FETCH = "multi_fetch";
@@ -167,6 +171,27 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .orElse(MultiFetchType.DEFAULT);
   }
 
+  /**
+   * @return how artifacts are compressed before they are stored. Zstd levels range from 1 (fastest)
+   *     to 19 (smallest).
+   */
+  public ArtifactCompression getArtifactCompression() {
+    ArtifactCompression.Codec codec =
+        buckConfig
+            .getEnum(CACHE_SECTION_NAME, ARTIFACT_COMPRESSION, ArtifactCompression.Codec.class)
+            .orElse(ArtifactCompression.DEFAULT.getCodec());
+    int level =
+        buckConfig
+            .getInteger(CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_LEVEL)
+            .orElse(ArtifactCompression.DEFAULT_ZSTD_LEVEL);
+    if (level < 1 || level > 19) {
+      throw new HumanReadableException(
+          "%s.%s must be between 1 and 19, got %d",
+          CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_LEVEL, level);
+    }
+    return ArtifactCompression.of(codec, level);
+  }
+
   public boolean getMultiCheckEnabled() {
     return buckConfig.getBooleanValue(CACHE_SECTION_NAME, MULTI_CHECK, false);
   }
@@ -406,6 +431,24 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .map(SizeUnit::parseBytes);
   }
 
+  /**
+   * If true, talk cleartext HTTP/2 to http:// caches without negotiating it first, so that all
+   * concurrent requests are multiplexed on a single connection instead of one connection each.
+   * Caches served over https negotiate HTTP/2 on their own if the server supports it.
+   */
+  public boolean getHttpH2PriorKnowledge() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, "http_h2_prior_knowledge", false);
+  }
+
+  /**
+   * If true, artifacts fetched from http and thrift caches are unpacked into buck-out while they
+   * are being downloaded instead of being downloaded to a temporary file and unpacked from there.
+   * Such artifacts are not copied into the local dir cache.
+   */
+  public boolean getHttpStreamingFetch() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, "http_streaming_fetch", false);
+  }
+
   /**
    * If true, fail if client TLS certificate or key paths are unspecified, don't exist, are not the
    * right format or have expired
@@ -538,7 +581,9 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     Optional<Long> maxSizeBytes =
         buckConfig.getValue(section, DIR_MAX_SIZE_FIELD).map(SizeUnit::parseBytes);
 
-    return DirCacheEntry.of(cacheName, pathToCacheDir, maxSizeBytes, readMode);
+    boolean chunked = buckConfig.getBooleanValue(section, DIR_CHUNKED_FIELD, false);
+
+    return DirCacheEntry.of(cacheName, pathToCacheDir, maxSizeBytes, readMode, chunked);
   }
 
   private HttpCacheEntry obtainHttpEntry() {
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+import com.facebook.buck.core.util.immutables.BuckStyleValue;
+
+/**
+ * How the tar archive of a rule's outputs is compressed before it is stored in the artifact cache.
+ * Fetched artifacts are decompressed according to their content, so caches can hold artifacts
+ * written with different settings.
+ */
+@BuckStyleValue
+public abstract class ArtifactCompression {
+
+  /** Codec applied to the archive. */
+  public enum Codec {
+    /** Zstandard at {@link #getLevel()}. */
+    ZSTD,
+    /** A plain tar archive, for caches on a fast local network. */
+    NONE,
+  }
+
+  /** The level zstd uses when no other is configured. */
+  public static final int DEFAULT_ZSTD_LEVEL = 3;
+
+  public static final ArtifactCompression DEFAULT = of(Codec.ZSTD, DEFAULT_ZSTD_LEVEL);
+
+  public abstract Codec getCodec();
+
+  /** @return compression level; only meaningful for {@link Codec#ZSTD}. */
+  public abstract int getLevel();
+
+  public static ArtifactCompression of(Codec codec, int level) {
+    return ImmutableArtifactCompression.of(codec, level);
+  }
+}
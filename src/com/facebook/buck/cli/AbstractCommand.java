@@ -21,6 +21,7 @@ import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.cell.CellConfig;
 import com.facebook.buck.core.cell.CellName;
 import com.facebook.buck.core.config.BuckConfig;
+import com.facebook.buck.core.exceptions.DependencyStack;
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.model.BuildTarget;
@@ -28,24 +29,35 @@ import com.facebook.buck.core.model.BuildTargetWithOutputs;
 import com.facebook.buck.core.model.OutputLabel;
 import com.facebook.buck.core.model.UnconfiguredBuildTarget;
 import com.facebook.buck.core.model.UnconfiguredTargetConfiguration;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
 import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.model.targetgraph.impl.TargetGraphHashing;
 import com.facebook.buck.core.parser.buildtargetparser.UnconfiguredBuildTargetViewFactory;
 import com.facebook.buck.core.resources.ResourcesConfig;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.rulekey.config.RuleKeyConfig;
+import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.log.LogConfigSetup;
+import com.facebook.buck.parser.ParserPythonInterpreterProvider;
 import com.facebook.buck.parser.ParsingContext;
+import com.facebook.buck.parser.PerBuildState;
+import com.facebook.buck.parser.PerBuildStateFactory;
 import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.spec.BuildTargetMatcherTargetNodeParser;
 import com.facebook.buck.parser.spec.BuildTargetSpec;
 import com.facebook.buck.parser.spec.TargetNodeSpec;
+import com.facebook.buck.rules.coercer.DefaultConstructorArgMarshaller;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.EventPostingRuleKeyCacheScope;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
+import com.facebook.buck.rules.keys.RuleKeyInputsFingerprint;
 import com.facebook.buck.rules.keys.TrackedRuleKeyCache;
 import com.facebook.buck.support.cli.args.BuckCellArg;
 import com.facebook.buck.support.cli.args.GlobalCliOptions;
@@ -57,6 +69,7 @@ import com.facebook.buck.util.cache.InstrumentingCacheStatsTracker;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.util.concurrent.ExecutorPool;
 import com.facebook.buck.util.config.Configs;
+import com.facebook.buck.util.hashing.FileHashLoader;
 import com.facebook.buck.util.types.Pair;
 import com.facebook.buck.versions.VersionException;
 import com.google.common.base.Splitter;
@@ -64,6 +77,8 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.devtools.build.lib.clock.Clock;
 import com.google.devtools.build.lib.clock.JavaClock;
@@ -87,6 +102,8 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -483,6 +500,77 @@ public abstract class AbstractCommand extends CommandWithPluginManager {
                         new DefaultRuleKeyCache<>(), new InstrumentingCacheStatsTracker())));
   }
 
+  /**
+   * Like {@link #getDefaultRuleKeyCacheScope(CommandRunnerParams,
+   * RuleKeyCacheRecycler.SettingsAffectingCache)}, but if the daemon has no keys to recycle yet,
+   * keys persisted by earlier builds are reused for the rules which {@code fingerprints} describe.
+   * The fingerprints are only computed in that case.
+   */
+  RuleKeyCacheScope<RuleKey> getDefaultRuleKeyCacheScope(
+      CommandRunnerParams params,
+      RuleKeyCacheRecycler.SettingsAffectingCache settings,
+      Supplier<Function<BuildRule, Optional<RuleKeyInputsFingerprint>>> fingerprints) {
+    Optional<RuleKeyCacheRecycler<RuleKey>> recycler =
+        params.getDefaultRuleKeyFactoryCacheRecycler();
+    if (!recycler.isPresent() || !recycler.get().getPersistentStore().isPresent()) {
+      return getDefaultRuleKeyCacheScope(params, settings);
+    }
+    PersistentRuleKeyStore store = recycler.get().getPersistentStore().get();
+    return recycler
+        .get()
+        .withRecycledCacheWrapping(
+            params.getBuckEventBus(),
+            settings,
+            cache -> new PersistentRuleKeyCache(cache, store, fingerprints.get()));
+  }
+
+  /**
+   * Hashes the description and input files of each of {@code roots} and their transitive deps, as
+   * shown by {@code buck targets --show-target-hash}.
+   */
+  ImmutableMap<BuildTarget, HashCode> hashTargetGraph(
+      CommandRunnerParams params,
+      ListeningExecutorService executor,
+      TargetGraph targetGraph,
+      Iterable<TargetNode<?>> roots,
+      FileHashLoader fileHashLoader,
+      HashFunction hashFunction)
+      throws InterruptedException {
+    try (PerBuildState state =
+        new PerBuildStateFactory(
+                params.getTypeCoercerFactory(),
+                new DefaultConstructorArgMarshaller(),
+                params.getKnownRuleTypesProvider(),
+                new ParserPythonInterpreterProvider(
+                    params.getCells().getRootCell().getBuckConfig(), params.getExecutableFinder()),
+                params.getWatchman(),
+                params.getBuckEventBus(),
+                params.getUnconfiguredBuildTargetFactory(),
+                params.getHostConfiguration().orElse(UnconfiguredTargetConfiguration.INSTANCE))
+            .create(
+                createParsingContext(params.getCells().getRootCell(), executor)
+                    .withExcludeUnsupportedTargets(false),
+                params.getParser().getPermState())) {
+      return new TargetGraphHashing(
+              params.getBuckEventBus(),
+              targetGraph,
+              fileHashLoader,
+              roots,
+              executor,
+              params.getRuleKeyConfiguration(),
+              node ->
+                  params
+                      .getParser()
+                      .getTargetNodeRawAttributesJob(
+                          state,
+                          params.getCells().getRootCell(),
+                          node,
+                          DependencyStack.top(node.getBuildTarget())),
+              hashFunction)
+          .hashTargetGraph();
+    }
+  }
+
   @Override
   public boolean performsBuild() {
     return false;
@@ -102,10 +102,22 @@ public abstract class AbstractPerfCommand<CommandContext> extends AbstractComman
   /** Run the targeted test. */
   abstract void runPerfTest(CommandRunnerParams params, CommandContext context) throws Exception;
 
+  /** Releases what prepareTest set up, once all the runPerfTest calls are done. */
+  @SuppressWarnings("unused")
+  void cleanupTest(CommandContext context) {}
+
   @Override
   public final ExitCode runWithoutHelp(CommandRunnerParams params) throws Exception {
     CommandContext context = prepareTest(params);
+    try {
+      return runPerfTests(params, context);
+    } finally {
+      cleanupTest(context);
+    }
+  }
 
+  private ExitCode runPerfTests(CommandRunnerParams params, CommandContext context)
+      throws Exception {
     Stopwatch stopwatch = Stopwatch.createStarted();
     Stopwatch current = Stopwatch.createStarted();
 
@@ -35,7 +35,9 @@ import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
 import com.facebook.buck.core.model.graph.ActionAndTargetGraphs;
 import com.facebook.buck.core.model.impl.BuildPaths;
 import com.facebook.buck.core.model.impl.HashedBuckOutLinkMode;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
 import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
 import com.facebook.buck.core.parser.buildtargetparser.BuildTargetOutputLabelParser;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.rulekey.calculator.ParallelRuleKeyCalculator;
@@ -61,6 +63,7 @@ import com.facebook.buck.rules.keys.DefaultRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
+import com.facebook.buck.rules.keys.RuleKeyInputsFingerprint;
 import com.facebook.buck.support.cli.config.AliasConfig;
 import com.facebook.buck.support.cli.config.CliConfig;
 import com.facebook.buck.util.CommandLineException;
@@ -75,9 +78,12 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
 import java.io.IOException;
@@ -98,6 +104,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import org.immutables.value.Value;
 import org.kohsuke.args4j.Argument;
@@ -509,7 +516,13 @@ public class BuildCommand extends AbstractCommand {
 
       try (RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
           getDefaultRuleKeyCacheScope(
-              params, graphsAndBuildTargets.getGraphs().getActionGraphAndBuilder())) {
+              params,
+              graphsAndBuildTargets.getGraphs().getActionGraphAndBuilder(),
+              () ->
+                  computeRuleKeyInputsFingerprints(
+                      params,
+                      commandThreadManager.getListeningExecutorService(),
+                      graphsAndBuildTargets))) {
         exitCode =
             executeLocalBuild(
                 params,
@@ -956,6 +969,69 @@ public class BuildCommand extends AbstractCommand {
             actionGraphAndBuilder.getActionGraph()));
   }
 
+  private RuleKeyCacheScope<RuleKey> getDefaultRuleKeyCacheScope(
+      CommandRunnerParams params,
+      ActionGraphAndBuilder actionGraphAndBuilder,
+      Supplier<Function<BuildRule, Optional<RuleKeyInputsFingerprint>>> fingerprints) {
+    return getDefaultRuleKeyCacheScope(
+        params,
+        new RuleKeyCacheRecycler.SettingsAffectingCache(
+            params.getBuckConfig().getView(BuildBuckConfig.class).getKeySeed(),
+            actionGraphAndBuilder.getActionGraph()),
+        fingerprints);
+  }
+
+  /**
+   * Fingerprints the inputs of the rules created from the target graph of the build, so that their
+   * persisted keys can be reused. A rule's fingerprint covers the target hash of its node, which in
+   * turn covers the node's description and input files and those of its transitive deps, as well
+   * as the flavors and type of the rule.
+   */
+  private Function<BuildRule, Optional<RuleKeyInputsFingerprint>> computeRuleKeyInputsFingerprints(
+      CommandRunnerParams params,
+      ListeningExecutorService executor,
+      GraphsAndBuildTargets graphsAndBuildTargets) {
+    TargetGraph targetGraph = graphsAndBuildTargets.getGraphs().getTargetGraph().getTargetGraph();
+    ImmutableMap<BuildTarget, HashCode> targetHashes;
+    try {
+      targetHashes =
+          hashTargetGraph(
+              params,
+              executor,
+              targetGraph,
+              targetGraph.getNodes(),
+              params.getFileHashCache(),
+              Hashing.sha1());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return rule -> Optional.empty();
+    }
+    return rule -> {
+      BuildTarget target = rule.getBuildTarget();
+      HashCode targetHash = targetHashes.get(target);
+      if (targetHash == null) {
+        targetHash = targetHashes.get(target.withoutFlavors());
+      }
+      Optional<TargetNode<?>> node = targetGraph.getOptional(target);
+      if (targetHash == null || !node.isPresent()) {
+        return Optional.empty();
+      }
+      ProjectFilesystem filesystem = node.get().getFilesystem();
+      return Optional.of(
+          RuleKeyInputsFingerprint.of(
+              Hashing.sha1()
+                  .newHasher()
+                  .putBytes(targetHash.asBytes())
+                  .putUnencodedChars(target.toStringWithConfiguration())
+                  .putUnencodedChars(rule.getType())
+                  .hash(),
+              filesystem,
+              node.get().getInputs().stream()
+                  .map(path -> path.toPath(filesystem.getFileSystem()))
+                  .collect(ImmutableSet.toImmutableSet())));
+    };
+  }
+
   @Override
   protected ExecutionContext.Builder getExecutionContextBuilder(CommandRunnerParams params) {
     return super.getExecutionContextBuilder(params)
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
@@ -142,6 +143,10 @@ public class FetchCommand extends BuildCommand {
                   cachingBuildEngineBuckConfig.getBuildDepFiles(),
                   cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                   cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                  params
+                      .getBuckConfig()
+                      .getView(ArtifactCacheBuckConfig.class)
+                      .getArtifactCompression(),
                   actionGraphAndBuilder.getActionGraphBuilder(),
                   actionGraphAndBuilder.getBuildEngineActionToBuildRuleResolver(),
                   params.getTargetConfigurationSerializer(),
@@ -156,7 +161,11 @@ public class FetchCommand extends BuildCommand {
                           .getBuckConfig()
                           .getView(BuildBuckConfig.class)
                           .getBuildInputRuleKeyFileSizeLimit(),
-                      ruleKeyCacheScope.getCache()));
+                      ruleKeyCacheScope.getCache()),
+                  Optional.empty(),
+                  Optional.empty(),
+                  Optional.empty(),
+                  false);
           Build build =
               new Build(
                   actionGraphAndBuilder.getActionGraphBuilder(),
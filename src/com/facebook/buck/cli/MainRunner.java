@@ -28,6 +28,8 @@ import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.command.config.ConfigDifference;
 import com.facebook.buck.command.config.ConfigDifference.ConfigChange;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
+import com.facebook.buck.core.build.stats.BuildRuleHistory;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.cell.CellName;
 import com.facebook.buck.core.cell.Cells;
@@ -83,6 +85,7 @@ import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.event.ExperimentEvent;
 import com.facebook.buck.event.chrome_trace.ChromeTraceBuckConfig;
 import com.facebook.buck.event.listener.AbstractConsoleEventBusListener;
+import com.facebook.buck.event.listener.BuildRuleHistoryListener;
 import com.facebook.buck.event.listener.CacheRateStatsListener;
 import com.facebook.buck.event.listener.ChromeTraceBuildListener;
 import com.facebook.buck.event.listener.CriticalPathEventListener;
@@ -1501,6 +1504,7 @@ public final class MainRunner {
                 new CacheStatsEvent(
                     "versioned_target_graph_cache",
                     parserAndCaches.getVersionedTargetGraphCache().getCacheStats()));
+            buckGlobalState.scheduleSnapshotSave(managerScope);
           }
         } catch (Exception e) {
           exceptionForFix = Optional.of(e);
@@ -2218,6 +2222,20 @@ public final class MainRunner {
         new CriticalPathEventListener(criticalPathLog);
     buckEventBus.register(criticalPathEventListener);
 
+    CachingBuildEngineBuckConfig engineConfig =
+        buckConfig.getView(CachingBuildEngineBuckConfig.class);
+    if (engineConfig.getRuleHistoryEnabled()) {
+      eventListenersBuilder.add(
+          new BuildRuleHistoryListener(
+              BuildRuleHistory.load(
+                  projectFilesystem.resolve(
+                      projectFilesystem
+                          .getBuckPaths()
+                          .getLogDir()
+                          .resolve(BuildRuleHistory.FILE_NAME)),
+                  engineConfig.getRuleHistoryMaxTargets())));
+    }
+
     ChromeTraceBuckConfig chromeTraceConfig = buckConfig.getView(ChromeTraceBuckConfig.class);
     if (chromeTraceConfig.isChromeTraceCreationEnabled()) {
       try {
@@ -19,16 +19,48 @@ package com.facebook.buck.cli;
 import com.facebook.buck.cli.PerfActionGraphCommand.PreparedState;
 import com.facebook.buck.core.exceptions.BuckUncheckedExecutionException;
 import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
+import com.facebook.buck.core.model.actiongraph.computation.ActionGraphCache;
+import com.facebook.buck.core.model.actiongraph.computation.ActionGraphFactory;
+import com.facebook.buck.core.model.actiongraph.computation.ActionGraphProvider;
 import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
+import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.util.CommandLineException;
+import com.facebook.buck.util.concurrent.ExecutorPool;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 
 /** Tests performance of creating the action graph. */
 public class PerfActionGraphCommand extends AbstractPerfCommand<PreparedState> {
 
+  /** How the action graph is created in each run. */
+  enum Mode {
+    /** Create rules in parallel on the graph-cpu pool, as builds do. */
+    PARALLEL,
+    /** Create rules one at a time on the calling thread. */
+    SERIAL,
+    /** Create the graph both ways and check that the results match. */
+    COMPARE,
+  }
+
+  @Option(
+      name = "--mode",
+      usage =
+          "how to create the action graph: parallel (the default), serial or compare. compare creates it both ways in each run and reports both times.")
+  private Mode mode = Mode.PARALLEL;
+
   @Argument private List<String> arguments = new ArrayList<>();
 
   @Override
@@ -42,7 +74,7 @@ public class PerfActionGraphCommand extends AbstractPerfCommand<PreparedState> {
 
       TargetGraphCreationResult targetGraph = getTargetGraph(params, targets);
 
-      return new PreparedState(targetGraph);
+      return new PreparedState(targetGraph, createSerialActionGraphProvider(params));
     } catch (Exception e) {
       throw new BuckUncheckedExecutionException(e, "When creating the target graph.");
     }
@@ -51,20 +83,74 @@ public class PerfActionGraphCommand extends AbstractPerfCommand<PreparedState> {
   /** The state prepared for us to compute keys. */
   static class PreparedState {
     private final TargetGraphCreationResult targetGraph;
+    private final ActionGraphProvider serialActionGraphProvider;
 
-    public PreparedState(TargetGraphCreationResult targetGraph) {
+    public PreparedState(
+        TargetGraphCreationResult targetGraph, ActionGraphProvider serialActionGraphProvider) {
       this.targetGraph = targetGraph;
+      this.serialActionGraphProvider = serialActionGraphProvider;
     }
   }
 
+  /**
+   * Creates a provider whose graph-cpu pool runs everything on the calling thread and which creates
+   * rules with a single worker, so that rules are created one at a time.
+   */
+  private static ActionGraphProvider createSerialActionGraphProvider(CommandRunnerParams params) {
+    Map<ExecutorPool, ListeningExecutorService> executors = new HashMap<>(params.getExecutors());
+    executors.put(ExecutorPool.GRAPH_CPU, MoreExecutors.newDirectExecutorService());
+    return new ActionGraphProvider(
+        params.getBuckEventBus(),
+        ActionGraphFactory.create(
+            params.getBuckEventBus(),
+            params.getCells().getRootCell().getCellProvider(),
+            ImmutableMap.copyOf(executors),
+            params.getDepsAwareExecutorSupplier(),
+            params.getBuckConfig(),
+            1),
+        new ActionGraphCache(1),
+        params.getRuleKeyConfiguration(),
+        params.getBuckConfig());
+  }
+
   @Override
   protected String getComputationName() {
-    return "action-graph creation";
+    return "action-graph creation (" + mode.name().toLowerCase() + ")";
   }
 
   @Override
   void runPerfTest(CommandRunnerParams params, PreparedState state) {
-    params.getActionGraphProvider().getFreshActionGraph(state.targetGraph);
+    switch (mode) {
+      case PARALLEL:
+        params.getActionGraphProvider().getFreshActionGraph(state.targetGraph);
+        return;
+      case SERIAL:
+        state.serialActionGraphProvider.getFreshActionGraph(state.targetGraph);
+        return;
+      case COMPARE:
+        Stopwatch serialWatch = Stopwatch.createStarted();
+        ActionGraphAndBuilder serial =
+            state.serialActionGraphProvider.getFreshActionGraph(state.targetGraph);
+        long serialMillis = serialWatch.elapsed(TimeUnit.MILLISECONDS);
+        Stopwatch parallelWatch = Stopwatch.createStarted();
+        ActionGraphAndBuilder parallel =
+            params.getActionGraphProvider().getFreshActionGraph(state.targetGraph);
+        long parallelMillis = parallelWatch.elapsed(TimeUnit.MILLISECONDS);
+        Preconditions.checkState(
+            getBuildTargets(serial).equals(getBuildTargets(parallel)),
+            "Serial and parallel action graph creation produced different rules.");
+        printWarning(params, "serial: %d ms, parallel: %d ms", serialMillis, parallelMillis);
+        return;
+    }
+    throw new IllegalStateException("Unknown mode " + mode);
+  }
+
+  private static ImmutableList<BuildTarget> getBuildTargets(ActionGraphAndBuilder graph) {
+    ImmutableList.Builder<BuildTarget> targets = ImmutableList.builder();
+    for (BuildRule rule : graph.getActionGraph().getNodes()) {
+      targets.add(rule.getBuildTarget());
+    }
+    return targets.build();
   }
 
   @Override
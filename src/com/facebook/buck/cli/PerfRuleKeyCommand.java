@@ -28,6 +28,7 @@ import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
 import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
 import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rulekey.calculator.ForkJoinRuleKeyCalculator;
 import com.facebook.buck.core.rulekey.calculator.ParallelRuleKeyCalculator;
 import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.core.rules.attr.SupportsDependencyFileRuleKey;
@@ -55,6 +56,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import javax.annotation.Nullable;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -95,6 +97,12 @@ public class PerfRuleKeyCommand extends AbstractPerfCommand<PreparedState> {
           "Whether to keep the file hash cache between runs or not. If enabled, the first run will have a cold cache. This may more accurately reflect the performance for incremental builds.")
   private boolean preserveFileHashCache;
 
+  @Option(
+      name = "--fork-join",
+      usage =
+          "Compute keys on a work-stealing fork-join pool instead of chaining futures per rule, and print the resulting throughput.")
+  private boolean forkJoin;
+
   @Argument private List<String> arguments = new ArrayList<>();
 
   private enum KeyType {
@@ -147,15 +155,16 @@ public class PerfRuleKeyCommand extends AbstractPerfCommand<PreparedState> {
         }
       }
 
+      int numThreads = params.getBuckConfig().getView(BuildBuckConfig.class).getNumThreads();
       ListeningExecutorService service =
           MoreExecutors.listeningDecorator(
-              MostExecutors.newMultiThreadExecutor(
-                  "rulekey-computation",
-                  params.getBuckConfig().getView(BuildBuckConfig.class).getNumThreads()));
+              MostExecutors.newMultiThreadExecutor("rulekey-computation", numThreads));
+      ForkJoinPool forkJoinPool = forkJoin ? new ForkJoinPool(numThreads) : null;
 
       StackedFileHashCache fileHashCache =
           preserveFileHashCache ? createStackedFileHashCache(params) : null;
-      return new PreparedState(service, graphAndBuilder, rulesInGraph, usedInputs, fileHashCache);
+      return new PreparedState(
+          service, forkJoinPool, graphAndBuilder, rulesInGraph, usedInputs, fileHashCache);
     } catch (Exception e) {
       throw new BuckUncheckedExecutionException(
           e, "When inspecting serialization state of the action graph.");
@@ -165,6 +174,7 @@ public class PerfRuleKeyCommand extends AbstractPerfCommand<PreparedState> {
   /** The state prepared for us to compute keys. */
   static class PreparedState {
     private final ListeningExecutorService service;
+    @Nullable private final ForkJoinPool forkJoinPool;
     private final ActionGraphAndBuilder graphAndBuilder;
     private final ImmutableList<BuildRule> rulesInGraph;
     private final Map<BuildEngineAction, ImmutableList<DependencyFileEntry>> usedInputs;
@@ -172,11 +182,13 @@ public class PerfRuleKeyCommand extends AbstractPerfCommand<PreparedState> {
 
     PreparedState(
         ListeningExecutorService service,
+        @Nullable ForkJoinPool forkJoinPool,
         ActionGraphAndBuilder graphAndBuilder,
         ImmutableList<BuildRule> rulesInGraph,
         Map<BuildEngineAction, ImmutableList<DependencyFileEntry>> usedInputs,
         @Nullable StackedFileHashCache fileHashCache) {
       this.service = service;
+      this.forkJoinPool = forkJoinPool;
       this.graphAndBuilder = graphAndBuilder;
       this.rulesInGraph = rulesInGraph;
       this.usedInputs = usedInputs;
@@ -184,6 +196,14 @@ public class PerfRuleKeyCommand extends AbstractPerfCommand<PreparedState> {
     }
   }
 
+  @Override
+  void cleanupTest(PreparedState state) {
+    state.service.shutdown();
+    if (state.forkJoinPool != null) {
+      state.forkJoinPool.shutdown();
+    }
+  }
+
   @Override
   protected String getComputationName() {
     return String.format("%s key", keyType.toString().toLowerCase());
@@ -193,6 +213,26 @@ public class PerfRuleKeyCommand extends AbstractPerfCommand<PreparedState> {
   void runPerfTest(CommandRunnerParams params, PreparedState state) throws Exception {
     RuleKeyFactory<?> keyFactory = getRuleKeyFactory(params, state);
 
+    if (state.forkJoinPool != null) {
+      ForkJoinRuleKeyCalculator<?> keyCalculator =
+          new ForkJoinRuleKeyCalculator<>(
+              state.forkJoinPool,
+              keyFactory,
+              new DefaultRuleDepsCache(
+                  state.graphAndBuilder.getActionGraphBuilder(),
+                  state.graphAndBuilder.getBuildEngineActionToBuildRuleResolver()),
+              (buckEventBus, buildRule) -> () -> {});
+      keyCalculator.calculate(params.getBuckEventBus(), state.rulesInGraph);
+      ForkJoinRuleKeyCalculator.Metrics metrics = keyCalculator.getMetrics();
+      printWarning(
+          params,
+          "Computed %d keys (%.0f keys/sec), cache hit rate %.1f%%.",
+          metrics.getKeysComputed(),
+          metrics.getKeysPerSecond(),
+          metrics.getCacheHitRate() * 100);
+      return;
+    }
+
     ParallelRuleKeyCalculator<?> keyCalculator =
         new ParallelRuleKeyCalculator<>(
             state.service,
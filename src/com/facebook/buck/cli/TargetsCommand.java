@@ -43,7 +43,6 @@ import com.facebook.buck.core.model.impl.InMemoryBuildFileTree;
 import com.facebook.buck.core.model.targetgraph.TargetGraph;
 import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
 import com.facebook.buck.core.model.targetgraph.TargetNode;
-import com.facebook.buck.core.model.targetgraph.impl.TargetGraphHashing;
 import com.facebook.buck.core.model.targetgraph.impl.TargetNodes;
 import com.facebook.buck.core.model.targetgraph.raw.UnconfiguredTargetNodeWithDepsPackage;
 import com.facebook.buck.core.parser.BuildTargetPatternToBuildPackagePathKey;
@@ -1408,42 +1407,14 @@ public class TargetsCommand extends AbstractCommand {
     FileHashLoader fileHashLoader = createOrGetFileHashLoader(params);
 
     // Hash each target's rule description and contents of any files.
-    ImmutableMap<BuildTarget, HashCode> buildTargetHashes;
-
-    try (PerBuildState state =
-        new PerBuildStateFactory(
-                params.getTypeCoercerFactory(),
-                new DefaultConstructorArgMarshaller(),
-                params.getKnownRuleTypesProvider(),
-                new ParserPythonInterpreterProvider(
-                    params.getCells().getRootCell().getBuckConfig(), params.getExecutableFinder()),
-                params.getWatchman(),
-                params.getBuckEventBus(),
-                params.getUnconfiguredBuildTargetFactory(),
-                params.getHostConfiguration().orElse(UnconfiguredTargetConfiguration.INSTANCE))
-            .create(
-                createParsingContext(params.getCells().getRootCell(), executor)
-                    .withExcludeUnsupportedTargets(false),
-                params.getParser().getPermState())) {
-      buildTargetHashes =
-          new TargetGraphHashing(
-                  params.getBuckEventBus(),
-                  targetGraphWithTests,
-                  fileHashLoader,
-                  targetGraphAndNodesWithTests.getSecond(),
-                  executor,
-                  params.getRuleKeyConfiguration(),
-                  node ->
-                      params
-                          .getParser()
-                          .getTargetNodeRawAttributesJob(
-                              state,
-                              params.getCells().getRootCell(),
-                              node,
-                              DependencyStack.top(node.getBuildTarget())),
-                  getHashFunction())
-              .hashTargetGraph();
-    }
+    ImmutableMap<BuildTarget, HashCode> buildTargetHashes =
+        hashTargetGraph(
+            params,
+            executor,
+            targetGraphWithTests,
+            targetGraphAndNodesWithTests.getSecond(),
+            fileHashLoader,
+            getHashFunction());
 
     ImmutableMap<BuildTarget, HashCode> finalHashes =
         rehashWithTestsIfNeeded(
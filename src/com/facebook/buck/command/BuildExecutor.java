@@ -16,18 +16,25 @@
 
 package com.facebook.buck.command;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
 import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.impl.CachingBuildEngine;
+import com.facebook.buck.core.build.engine.impl.RuleMemoryFootprints;
 import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.execution.context.ExecutionContext;
+import com.facebook.buck.core.build.stats.BuildRuleHistory;
+import com.facebook.buck.core.build.stats.CriticalPathEstimates;
 import com.facebook.buck.core.exceptions.BuildTargetParseException;
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.TargetConfigurationSerializer;
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
+import com.facebook.buck.core.resources.ResourcesConfig;
 import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.jvm.java.JavaBuckConfig;
 import com.facebook.buck.log.thrift.ThriftRuleKeyLogger;
 import com.facebook.buck.remoteexecution.config.RemoteExecutionConfig;
@@ -53,6 +60,8 @@ public class BuildExecutor {
   private final Optional<ThriftRuleKeyLogger> ruleKeyLogger;
   private final MetadataProvider metadataProvider;
   private final TargetConfigurationSerializer targetConfigurationSerializer;
+  private final Optional<BuildRuleHistory> ruleHistory;
+  private final Optional<RuleMemoryFootprints> ruleMemoryFootprints;
 
   private final CachingBuildEngine cachingBuildEngine;
   private final Build build;
@@ -84,6 +93,9 @@ public class BuildExecutor {
     this.targetConfigurationSerializer = targetConfigurationSerializer;
 
     // Init resources.
+    this.ruleHistory = loadRuleHistory();
+    this.ruleMemoryFootprints = createRuleMemoryFootprints();
+    ruleMemoryFootprints.ifPresent(args.getBuckEventBus()::register);
     this.cachingBuildEngine =
         createCachingBuildEngine(remoteExecutionAutoEnabled, forceDisableRemoteExecution);
     this.build =
@@ -136,6 +148,7 @@ public class BuildExecutor {
     // Destroy resources.
     build.close();
     cachingBuildEngine.close();
+    ruleMemoryFootprints.ifPresent(args.getBuckEventBus()::unregister);
   }
 
   private CachingBuildEngine createCachingBuildEngine(
@@ -161,6 +174,7 @@ public class BuildExecutor {
         engineConfig.getBuildDepFiles(),
         engineConfig.getBuildMaxDepFileCacheEntries(),
         engineConfig.getBuildArtifactCacheSizeLimit(),
+        args.getBuckConfig().getView(ArtifactCacheBuckConfig.class).getArtifactCompression(),
         actionGraphAndBuilder.getActionGraphBuilder(),
         actionGraphAndBuilder.getBuildEngineActionToBuildRuleResolver(),
         targetConfigurationSerializer,
@@ -173,7 +187,59 @@ public class BuildExecutor {
             actionGraphAndBuilder.getActionGraphBuilder(),
             args.getBuckConfig().getView(BuildBuckConfig.class).getBuildInputRuleKeyFileSizeLimit(),
             ruleKeyCacheScope.getCache(),
-            ruleKeyLogger));
+            ruleKeyLogger),
+        createCriticalPathEstimates(engineConfig),
+        ruleMemoryFootprints,
+        engineConfig.getSpeculativeBuildDelayMillis(),
+        engineConfig.isLazyCacheMaterializationEnabled());
+  }
+
+  /** @return the history of previous builds, if anything in this build makes use of it. */
+  private Optional<BuildRuleHistory> loadRuleHistory() {
+    CachingBuildEngineBuckConfig engineConfig =
+        args.getBuckConfig().getView(CachingBuildEngineBuckConfig.class);
+    boolean memoryBudgetEnabled =
+        args.getBuckConfig().getView(ResourcesConfig.class).getMemoryBudgetBytes().isPresent();
+    if (!engineConfig.getCriticalPathSchedulingEnabled() && !memoryBudgetEnabled) {
+      return Optional.empty();
+    }
+    ProjectFilesystem filesystem = args.getCells().getRootCell().getFilesystem();
+    return Optional.of(
+        BuildRuleHistory.load(
+            filesystem.resolve(
+                filesystem.getBuckPaths().getLogDir().resolve(BuildRuleHistory.FILE_NAME)),
+            engineConfig.getRuleHistoryMaxTargets()));
+  }
+
+  private Optional<CriticalPathEstimates> createCriticalPathEstimates(
+      CachingBuildEngineBuckConfig engineConfig) {
+    if (!engineConfig.getCriticalPathSchedulingEnabled()) {
+      return Optional.empty();
+    }
+    warnIfRuleHistoryIsDisabled(engineConfig, "build.critical_path_scheduling");
+    return ruleHistory.map(CriticalPathEstimates::new);
+  }
+
+  private Optional<RuleMemoryFootprints> createRuleMemoryFootprints() {
+    if (!args.getBuckConfig().getView(ResourcesConfig.class).getMemoryBudgetBytes().isPresent()) {
+      return Optional.empty();
+    }
+    warnIfRuleHistoryIsDisabled(
+        args.getBuckConfig().getView(CachingBuildEngineBuckConfig.class),
+        "resources.memory_budget_mb");
+    return ruleHistory.map(RuleMemoryFootprints::new);
+  }
+
+  private void warnIfRuleHistoryIsDisabled(
+      CachingBuildEngineBuckConfig engineConfig, String option) {
+    if (!engineConfig.getRuleHistoryEnabled()) {
+      args.getBuckEventBus()
+          .post(
+              ConsoleEvent.warning(
+                  "%s relies on the rule history of previous builds, which is only recorded with "
+                      + "build.rule_history enabled.",
+                  option));
+    }
   }
 
   public Build getBuild() {
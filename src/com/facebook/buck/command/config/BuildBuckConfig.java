@@ -251,6 +251,24 @@ public abstract class BuildBuckConfig implements ConfigView<BuckConfig> {
         .orElse(FileHashCacheMode.DEFAULT);
   }
 
+  /**
+   * @return whether the daemon's file hash caches should persist hashes to buck-out, so that a
+   *     restarted daemon does not have to rehash unchanged files.
+   */
+  @Value.Lazy
+  public boolean isPersistentFileHashCacheEnabled() {
+    return getDelegate().getBooleanValue(BUILD_SECTION, "persistent_file_hash_cache", false);
+  }
+
+  /**
+   * @return whether default rule keys should be persisted to buck-out, so that a restarted daemon
+   *     can reuse the keys of rules whose inputs did not change.
+   */
+  @Value.Lazy
+  public boolean isPersistentRuleKeyCacheEnabled() {
+    return getDelegate().getBooleanValue(BUILD_SECTION, "persistent_rule_key_cache", false);
+  }
+
   @Value.Lazy
   public boolean shouldBuckOutIncludeTargetConfigHash() {
     return getDelegate()
@@ -17,8 +17,11 @@
 package com.facebook.buck.core.build.engine.cache.manager;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactFetchBatch;
+import com.facebook.buck.artifact_cache.ArtifactFetchCoalescer;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.StreamingLazyPath;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfoStore;
@@ -34,25 +37,44 @@ import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.stream.RichStream;
-import com.facebook.buck.util.unarchive.ArchiveFormat;
 import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.facebook.buck.util.unarchive.Untar;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
+import com.google.common.io.CountingInputStream;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 public class BuildCacheArtifactFetcher {
 
   private static final Logger LOG = Logger.get(BuildCacheArtifactFetcher.class);
 
+  /** How much of a streamed payload may be downloaded ahead of unpacking it. */
+  private static final int STREAMING_PIPE_SIZE = 1024 * 1024;
+
+  private static final int STREAMING_BUFFER_SIZE = 64 * 1024;
+
   private final BuildRule rule;
-  private final BuildRuleScopeManager buildRuleScopeManager;
+  private final Supplier<Scope> buildRuleScope;
   private final WeightedListeningExecutorService executorService;
   private final OnOutputsWillChange onOutputsWillChange;
   private final BuckEventBus eventBus;
@@ -61,14 +83,14 @@ public class BuildCacheArtifactFetcher {
 
   public BuildCacheArtifactFetcher(
       BuildRule rule,
-      BuildRuleScopeManager buildRuleScopeManager,
+      Supplier<Scope> buildRuleScope,
       WeightedListeningExecutorService executorService,
       OnOutputsWillChange onOutputsWillChange,
       BuckEventBus eventBus,
       BuildInfoStoreManager buildInfoStoreManager,
       OnDiskBuildInfo onDiskBuildInfo) {
     this.rule = rule;
-    this.buildRuleScopeManager = buildRuleScopeManager;
+    this.buildRuleScope = buildRuleScope;
     this.executorService = executorService;
     this.onOutputsWillChange = onOutputsWillChange;
     this.eventBus = eventBus;
@@ -77,7 +99,7 @@ public class BuildCacheArtifactFetcher {
   }
 
   private Scope buildRuleScope() {
-    return buildRuleScopeManager.scope();
+    return buildRuleScope.get();
   }
 
   /**
@@ -117,58 +139,119 @@ public class BuildCacheArtifactFetcher {
   public ListenableFuture<CacheResult>
       tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
           RuleKey ruleKey, ArtifactCache artifactCache, ProjectFilesystem filesystem) {
+    return tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+        ruleKey,
+        filesystem,
+        artifactCache,
+        output -> artifactCache.fetchAsync(rule.getBuildTarget(), ruleKey, output));
+  }
+
+  /**
+   * Like {@link #tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(RuleKey,
+   * ArtifactCache, ProjectFilesystem)}, but the artifact is fetched along with the rest of the
+   * given batch, once it is sent.
+   */
+  public ListenableFuture<CacheResult>
+      tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+          RuleKey ruleKey, ArtifactFetchBatch fetchBatch, ProjectFilesystem filesystem) {
+    return tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+        ruleKey,
+        filesystem,
+        fetchBatch.getArtifactCache(),
+        output -> fetchBatch.fetchAsync(rule.getBuildTarget(), ruleKey, output));
+  }
+
+  /**
+   * Like {@link #tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(RuleKey,
+   * ArtifactCache, ProjectFilesystem)}, but the artifact is fetched along with the other fetches
+   * the coalescer gets before it sends its pending batch.
+   */
+  public ListenableFuture<CacheResult>
+      tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+          RuleKey ruleKey, ArtifactFetchCoalescer fetchCoalescer, ProjectFilesystem filesystem) {
+    return tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+        ruleKey,
+        filesystem,
+        fetchCoalescer.getArtifactCache(),
+        output -> fetchCoalescer.fetchAsync(rule.getBuildTarget(), ruleKey, output));
+  }
+
+  private ListenableFuture<CacheResult>
+      tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+          RuleKey ruleKey,
+          ProjectFilesystem filesystem,
+          ArtifactCache artifactCache,
+          Function<LazyPath, ListenableFuture<CacheResult>> fetchAsync) {
     if (!rule.isCacheable()) {
       return Futures.immediateFuture(CacheResult.ignored());
     }
 
     // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    LazyPath lazyZipPath =
-        new LazyPath() {
-          @Override
-          protected Path create() throws IOException {
-            return Files.createTempFile(
-                "buck_artifact_" + MostFiles.sanitize(rule.getBuildTarget().getShortName()),
-                ".zip");
-          }
-        };
+    // that we are creating a zip-based FileSystem. Caches that support it unpack the artifact
+    // while it is being downloaded instead, in which case the file is never created.
+    ArtifactStreamingPath lazyZipPath = new ArtifactStreamingPath(ruleKey, filesystem);
 
     // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
     // Then we could download directly from the remote cache into the on-disk cache and unzip it
     // from there.
-    return convertErrorToSoftError(
-        Futures.transformAsync(
-            fetch(artifactCache, ruleKey, lazyZipPath),
-            cacheResult -> {
-              try (Scope ignored = buildRuleScope()) {
-                // Verify that the rule key we used to fetch the artifact is one of the rule keys
-                // reported in it's metadata.
-                if (cacheResult.getType().isSuccess()) {
-                  ImmutableSet<RuleKey> ruleKeys =
-                      RichStream.from(cacheResult.getMetadata().entrySet())
-                          .filter(e -> BuildInfo.RULE_KEY_NAMES.contains(e.getKey()))
-                          .map(Map.Entry::getValue)
-                          .map(RuleKey::new)
-                          .toImmutableSet();
-                  if (!ruleKeys.contains(ruleKey)) {
-                    LOG.warn(
-                        "%s: rule keys in artifact don't match rule key used to fetch it: %s not in %s",
-                        rule.getBuildTarget(), ruleKey, ruleKeys);
-                  }
-                }
+    return discardStagedArchiveWhenDone(
+        lazyZipPath,
+        convertErrorToSoftError(
+            Futures.transformAsync(
+                verifyFetchedMetadata(artifactCache, ruleKey, fetchAsync.apply(lazyZipPath)),
+                cacheResult ->
+                    Futures.immediateFuture(
+                        overlayFetchedArtifact(ruleKey, lazyZipPath, filesystem, cacheResult)),
+                executorService),
+            ruleKey));
+  }
 
-                return Futures.immediateFuture(
-                    extractArtifactFromCacheResult(ruleKey, lazyZipPath, filesystem, cacheResult));
-              }
-            },
-            executorService),
-        ruleKey);
+  private CacheResult overlayFetchedArtifact(
+      RuleKey ruleKey,
+      ArtifactStreamingPath lazyZipPath,
+      ProjectFilesystem filesystem,
+      CacheResult cacheResult)
+      throws IOException {
+    try (Scope ignored = buildRuleScope()) {
+      // Verify that the rule key we used to fetch the artifact is one of the rule keys
+      // reported in it's metadata.
+      if (cacheResult.getType().isSuccess()) {
+        ImmutableSet<RuleKey> ruleKeys =
+            RichStream.from(cacheResult.getMetadata().entrySet())
+                .filter(e -> BuildInfo.RULE_KEY_NAMES.contains(e.getKey()))
+                .map(Map.Entry::getValue)
+                .map(RuleKey::new)
+                .toImmutableSet();
+        if (!ruleKeys.contains(ruleKey)) {
+          LOG.warn(
+              "%s: rule keys in artifact don't match rule key used to fetch it: %s not in %s",
+              rule.getBuildTarget(), ruleKey, ruleKeys);
+        }
+      }
+
+      return extractArtifactFromCacheResult(ruleKey, lazyZipPath, filesystem, cacheResult);
+    }
+  }
+
+  /** Drops the staged artifact of a streamed fetch which failed before it could be moved. */
+  private static ListenableFuture<CacheResult> discardStagedArchiveWhenDone(
+      ArtifactStreamingPath lazyZipPath, ListenableFuture<CacheResult> result) {
+    result.addListener(lazyZipPath::discardStagedArchive, MoreExecutors.directExecutor());
+    return result;
   }
 
   public ListenableFuture<CacheResult> fetch(
       ArtifactCache artifactCache, RuleKey ruleKey, LazyPath outputPath) {
+    return verifyFetchedMetadata(
+        artifactCache,
+        ruleKey,
+        artifactCache.fetchAsync(rule.getBuildTarget(), ruleKey, outputPath));
+  }
+
+  private ListenableFuture<CacheResult> verifyFetchedMetadata(
+      ArtifactCache artifactCache, RuleKey ruleKey, ListenableFuture<CacheResult> fetched) {
     return Futures.transform(
-        artifactCache.fetchAsync(rule.getBuildTarget(), ruleKey, outputPath),
+        fetched,
         (CacheResult cacheResult) -> {
           try (Scope ignored = buildRuleScope()) {
             if (cacheResult.getType() != CacheResultType.HIT) {
@@ -207,22 +290,37 @@ public class BuildCacheArtifactFetcher {
   }
 
   private CacheResult extractArtifactFromCacheResult(
-      RuleKey ruleKey, LazyPath lazyZipPath, ProjectFilesystem filesystem, CacheResult cacheResult)
+      RuleKey ruleKey,
+      ArtifactStreamingPath lazyZipPath,
+      ProjectFilesystem filesystem,
+      CacheResult cacheResult)
       throws IOException {
 
-    // We only unpack artifacts from hits.
+    // We only unpack artifacts from hits. A streamed payload which the cache then reported as an
+    // error, e.g. because of a checksum mismatch, was only staged and is dropped here.
     if (!cacheResult.getType().isSuccess()) {
       LOG.debug("Cache miss for '%s' with rulekey '%s'", rule, ruleKey);
+      lazyZipPath.discardStagedArchive();
       return cacheResult;
     }
-    onOutputsWillChange.call();
 
     Preconditions.checkState(cacheResult.metadata().isPresent());
     Preconditions.checkArgument(cacheResult.getType() == CacheResultType.HIT);
     LOG.debug("Fetched '%s' from cache with rulekey '%s'", rule, ruleKey);
 
+    if (lazyZipPath.wasStreamed()) {
+      return lazyZipPath.refused
+          ? CacheResult.skipped()
+          : finishStreamedArtifact(ruleKey, lazyZipPath, cacheResult);
+    }
+
     // It should be fine to get the path straight away, since cache already did it's job.
     Path zipPath = lazyZipPath.getUnchecked();
+    if (!onOutputsWillChange.call()) {
+      LOG.debug("Dropping the artifact of '%s', its outputs are provided by something else", rule);
+      Files.deleteIfExists(zipPath);
+      return CacheResult.skipped();
+    }
 
     // We unzip the file in the root of the project directory.
     // Ideally, the following would work:
@@ -253,8 +351,7 @@ public class BuildCacheArtifactFetcher {
           BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
 
       ImmutableSet<Path> extractedFiles =
-          ArchiveFormat.TAR_ZSTD
-              .getUnarchiver()
+          Untar.zstdOrUncompressedUnarchiver()
               .extractArchive(
                   zipPath.toAbsolutePath(),
                   filesystem,
@@ -285,8 +382,220 @@ public class BuildCacheArtifactFetcher {
     return cacheResult;
   }
 
+  /**
+   * Moves an artifact that was unpacked while it was being downloaded, and whose checksum the cache
+   * has verified since, in place, and records its metadata.
+   */
+  private CacheResult finishStreamedArtifact(
+      RuleKey ruleKey, ArtifactStreamingPath lazyZipPath, CacheResult cacheResult)
+      throws IOException {
+    try {
+      lazyZipPath.commitStagedArchive();
+      buildInfoStoreManager
+          .get(rule.getProjectFilesystem())
+          .updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
+    } catch (IOException e) {
+      throw new IOException(
+          String.format(
+              "%s extracting artifact for Rule Key: %s. Suggested fix: try `buck clean`",
+              e.getMessage(), ruleKey),
+          e.getCause());
+    }
+    return cacheResult;
+  }
+
+  /**
+   * Fetch destination that unpacks artifacts as they are downloaded. Falls back to a temporary file
+   * for artifacts that cannot be unpacked directly.
+   *
+   * <p>The payload is unpacked into a staging directory on the executor of the fetcher, while the
+   * fetch thread only hands it the downloaded bytes. The cache verifies the checksum of the payload
+   * once it has been read, so the staged files are only moved over the outputs of the rule when
+   * the fetch is reported as a hit, and are dropped otherwise.
+   */
+  private class ArtifactStreamingPath extends StreamingLazyPath {
+    private final RuleKey ruleKey;
+    private final ProjectFilesystem filesystem;
+
+    /** Whether the outputs were provided by something else, so the payload was not unpacked. */
+    private volatile boolean refused = false;
+
+    @GuardedBy("this")
+    @Nullable
+    private Untar.StagedArchive stagedArchive;
+
+    @GuardedBy("this")
+    @Nullable
+    private ArtifactCompressionEvent.Started decompressionStarted;
+
+    @GuardedBy("this")
+    private long compressedSize;
+
+    ArtifactStreamingPath(RuleKey ruleKey, ProjectFilesystem filesystem) {
+      this.ruleKey = ruleKey;
+      this.filesystem = filesystem;
+    }
+
+    @Override
+    protected Path create() throws IOException {
+      return Files.createTempFile(
+          "buck_artifact_" + MostFiles.sanitize(rule.getBuildTarget().getShortName()), ".zip");
+    }
+
+    @Override
+    protected boolean acceptsPayload(ImmutableMap<String, String> metadata) {
+      // Artifacts without a build id are rejected when unpacked from a file, which reports the
+      // error properly.
+      return metadata.containsKey(BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
+    }
+
+    @Override
+    protected void consumePayload(ImmutableMap<String, String> metadata, InputStream payload)
+        throws IOException {
+      try (Scope ignored = buildRuleScope()) {
+        refused = !onOutputsWillChange.call();
+        if (refused) {
+          return;
+        }
+        // The payload of an earlier attempt of a retried fetch.
+        discardStagedArchive();
+
+        ArtifactCompressionEvent.Started started =
+            ArtifactCompressionEvent.started(
+                ArtifactCompressionEvent.Operation.DECOMPRESS, ImmutableSet.of(ruleKey), rule);
+        eventBus.post(started);
+        CountingInputStream compressed = new CountingInputStream(payload);
+        Untar.StagedArchive staged;
+        try {
+          Path tmpDir = filesystem.getBuckPaths().getTmpDir();
+          filesystem.mkdirs(tmpDir);
+          staged =
+              stageOnExecutor(
+                  compressed, tmpDir.resolve("buck_artifact_" + UUID.randomUUID().toString()));
+        } catch (IOException | RuntimeException e) {
+          eventBus.post(
+              ArtifactCompressionEvent.finished(started, 0L, compressed.getCount(), rule));
+          throw e;
+        }
+        synchronized (this) {
+          stagedArchive = staged;
+          decompressionStarted = started;
+          compressedSize = compressed.getCount();
+        }
+      }
+    }
+
+    /**
+     * Unpacks the payload into {@code stagingPath} on the executor of the fetcher, and feeds it the
+     * payload from this thread.
+     */
+    private Untar.StagedArchive stageOnExecutor(InputStream payload, Path stagingPath)
+        throws IOException {
+      Thread fetchThread = Thread.currentThread();
+      AtomicBoolean stagedOnFetchThread = new AtomicBoolean(false);
+      PipedInputStream pipeIn = new PipedInputStream(STREAMING_PIPE_SIZE);
+      PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+      ListenableFuture<Untar.StagedArchive> staging =
+          executorService.submit(
+              () -> {
+                // A direct executor runs this on the fetch thread, which can't feed the pipe then.
+                if (Thread.currentThread() == fetchThread) {
+                  stagedOnFetchThread.set(true);
+                  return Untar.zstdOrUncompressedUnarchiver()
+                      .stageArchive(payload, filesystem, stagingPath);
+                }
+                try (InputStream in = pipeIn) {
+                  return Untar.zstdOrUncompressedUnarchiver()
+                      .stageArchive(in, filesystem, stagingPath);
+                }
+              });
+      if (!stagedOnFetchThread.get()) {
+        try {
+          feed(payload, pipeOut, staging);
+        } catch (IOException e) {
+          // Let the unpacking see the end of what was downloaded, and drop whatever it staged.
+          pipeOut.close();
+          try {
+            Futures.getChecked(staging, IOException.class).discard();
+          } catch (IOException stagingError) {
+            e.addSuppressed(stagingError);
+          }
+          throw e;
+        }
+      }
+      return Futures.getChecked(staging, IOException.class);
+    }
+
+    /** Copies the payload into the pipe until its end, or until the unpacking stops reading. */
+    private void feed(
+        InputStream payload, OutputStream pipeOut, ListenableFuture<Untar.StagedArchive> staging)
+        throws IOException {
+      try (OutputStream out = pipeOut) {
+        byte[] buffer = new byte[STREAMING_BUFFER_SIZE];
+        int read;
+        while ((read = payload.read(buffer)) != -1) {
+          try {
+            out.write(buffer, 0, read);
+          } catch (IOException e) {
+            // The archive ended, or unpacking it failed, which the staging future reports. The
+            // unpacking closes the pipe before its future completes, so wait for it.
+            try {
+              Futures.getChecked(staging, IOException.class);
+            } catch (IOException | RuntimeException stagingError) {
+              throw e;
+            }
+            return;
+          }
+        }
+      }
+    }
+
+    /** Moves the staged artifact over the outputs of the rule, and validates it. */
+    synchronized void commitStagedArchive() throws IOException {
+      Untar.StagedArchive staged = Objects.requireNonNull(stagedArchive);
+      ArtifactCompressionEvent.Started started = Objects.requireNonNull(decompressionStarted);
+      stagedArchive = null;
+      decompressionStarted = null;
+      long fullSize = 0L;
+      try {
+        ImmutableSet<Path> extractedFiles =
+            staged.commit(ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+        onDiskBuildInfo.validateArtifact(extractedFiles);
+        fullSize =
+            Long.parseLong(onDiskBuildInfo.getValue(BuildInfo.MetadataKey.OUTPUT_SIZE).getLeft());
+      } finally {
+        staged.discard();
+        eventBus.post(ArtifactCompressionEvent.finished(started, fullSize, compressedSize, rule));
+      }
+    }
+
+    /** Drops the staged artifact, if any, without touching the outputs of the rule. */
+    synchronized void discardStagedArchive() {
+      if (stagedArchive == null) {
+        return;
+      }
+      try {
+        stagedArchive.discard();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to delete the staged artifact of %s.", rule.getBuildTarget());
+      } finally {
+        eventBus.post(
+            ArtifactCompressionEvent.finished(
+                Objects.requireNonNull(decompressionStarted), 0L, compressedSize, rule));
+        stagedArchive = null;
+        decompressionStarted = null;
+      }
+    }
+  }
+
+  /** Called before an artifact is unpacked over the outputs of the rule. */
   @FunctionalInterface
   public interface OnOutputsWillChange {
-    void call() throws IOException;
+    /**
+     * @return whether the artifact can be unpacked, false if the outputs of the rule are provided
+     *     by something else, in which case the artifact is dropped and the fetch is reported as
+     *     skipped
+     */
+    boolean call() throws IOException;
   }
 }
@@ -152,6 +152,17 @@ public class BuildRuleScopeManager {
             buildTimestamps);
   }
 
+  /**
+   * Lets a rule marked as finished be resumed again, e.g. to build it after all, so that another
+   * finished event reports the result of that work.
+   */
+  public synchronized void reopen() {
+    Preconditions.checkState(finishedData != null, "Only finished build rules can be reopened.");
+    Preconditions.checkState(
+        currentBuildRuleScopeThread == null, "Build rule reopened within its own scope.");
+    finishedData = null;
+  }
+
   private void post(BuildRuleEvent event) {
     LOG.verbose(event.toString());
     eventBus.post(event);
@@ -63,6 +63,44 @@ public abstract class CachingBuildEngineBuckConfig implements ConfigView<BuckCon
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return whether rules waiting to be run are ordered by the estimated length of the longest
+   *     chain of rules they start, as recorded in the rule history of previous builds, instead of
+   *     the order they got ready in.
+   */
+  public boolean getCriticalPathSchedulingEnabled() {
+    return getDelegate().getBooleanValue("build", "critical_path_scheduling", false);
+  }
+
+  /**
+   * @return whether to keep a history, persisted between builds, of how long rules take to build
+   *     or fetch from the cache, how big their outputs are and how much memory they use.
+   */
+  public boolean getRuleHistoryEnabled() {
+    return getDelegate().getBooleanValue("build", "rule_history", false);
+  }
+
+  /** @return the maximum number of rules to keep in the rule history. */
+  public int getRuleHistoryMaxTargets() {
+    return getDelegate().getInteger("build", "rule_history_max_targets").orElse(50_000);
+  }
+
+  /**
+   * @return how long rule key cache lookups can take before rules start being built locally while
+   *     the lookups keep going, if rules are to be built speculatively at all.
+   */
+  public Optional<Long> getSpeculativeBuildDelayMillis() {
+    return getDelegate().getLong("build", "speculative_build_delay_ms");
+  }
+
+  /**
+   * @return whether deep builds should only check that the artifacts of rules are in the cache,
+   *     and fetch them once a rule built locally or a requested target needs their outputs.
+   */
+  public boolean isLazyCacheMaterializationEnabled() {
+    return getDelegate().getBooleanValue("build", "lazy_cache_materialization", false);
+  }
+
   public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo() {
     ResourcesConfig resourcesConfig = getDelegate().getView(ResourcesConfig.class);
     return ResourceAwareSchedulingInfo.of(
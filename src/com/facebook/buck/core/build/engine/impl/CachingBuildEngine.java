@@ -17,7 +17,9 @@
 package com.facebook.buck.core.build.engine.impl;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactFetchCoalescer;
 import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.core.build.action.resolver.BuildEngineActionToBuildRuleResolver;
 import com.facebook.buck.core.build.buildable.context.BuildableContext;
 import com.facebook.buck.core.build.engine.BuildEngine;
@@ -38,6 +40,7 @@ import com.facebook.buck.core.build.engine.type.DepFiles;
 import com.facebook.buck.core.build.event.BuildRuleEvent;
 import com.facebook.buck.core.build.execution.context.ExecutionContext;
 import com.facebook.buck.core.build.stats.BuildRuleDurationTracker;
+import com.facebook.buck.core.build.stats.CriticalPathEstimates;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.TargetConfigurationSerializer;
 import com.facebook.buck.core.rulekey.RuleKey;
@@ -46,6 +49,7 @@ import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.core.rules.BuildRuleResolver;
 import com.facebook.buck.core.rules.attr.HasRuntimeDeps;
 import com.facebook.buck.core.rules.build.strategy.BuildRuleStrategy;
+import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.rules.keys.RuleKeyDiagnostics;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
@@ -88,6 +92,8 @@ import javax.annotation.Nullable;
  * tries to fetch its output from an {@link ArtifactCache} to avoid doing any computation.
  */
 public class CachingBuildEngine implements BuildEngine, Closeable {
+  private static final Logger LOG = Logger.get(CachingBuildEngine.class);
+
   public static final ResourceAmounts CACHE_CHECK_RESOURCE_AMOUNTS = ResourceAmounts.of(0, 0, 1, 1);
 
   public static final ResourceAmounts RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS =
@@ -95,8 +101,14 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   public static final ResourceAmounts SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS =
       ResourceAmounts.zero();
 
-  static final String BUILD_RULE_TYPE_CONTEXT_KEY = "build_rule_type";
+  /** Context key of the type of the rule whose steps run a process. */
+  public static final String BUILD_RULE_TYPE_CONTEXT_KEY = "build_rule_type";
+
   static final String STEP_TYPE_CONTEXT_KEY = "step_type";
+
+  /** Context key of the target of the rule whose steps run a process. */
+  public static final String BUILD_TARGET_CONTEXT_KEY = "build_target";
+
   private final ConcurrentLinkedQueue<ListenableFuture<Unit>> asyncCallbacks;
 
   enum StepType {
@@ -127,6 +139,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final BuildRuleResolver resolver;
   private final TargetConfigurationSerializer targetConfigurationSerializer;
   private final Optional<Long> artifactCacheSizeLimit;
+  private final ArtifactCompression artifactCompression;
   private final FileHashCache fileHashCache;
   @VisibleForTesting final RuleKeyFactories ruleKeyFactories;
   private final ResourceAwareSchedulingInfo resourceAwareSchedulingInfo;
@@ -144,6 +157,37 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private final Optional<BuildRuleStrategy> customBuildRuleStrategy;
 
+  /**
+   * When present, rules waiting for resources are given them in the order of the estimated length
+   * of the longest chain of rules they start, as estimated from the history of previous builds.
+   */
+  private final Optional<CriticalPathEstimates> criticalPathEstimates;
+
+  /**
+   * When present, local steps of rules need the memory their rules are expected to use, so that
+   * steps are only started while they fit within the memory available to the build.
+   */
+  private final Optional<RuleMemoryFootprints> ruleMemoryFootprints;
+
+  /**
+   * When present, rules whose rule key cache lookups take longer than its delay start being built
+   * locally while the lookups keep going, and whichever of them gets to the outputs first wins.
+   */
+  private final Optional<SpeculativeBuildScheduler> speculativeBuildScheduler;
+
+  /**
+   * When present, rules found in the artifact cache by deep builds don't have their outputs fetched
+   * until a rule built locally or a requested target needs them.
+   */
+  private final Optional<DeferredCacheOutputs> deferredCacheOutputs;
+
+  /**
+   * Coalesces the rule key cache lookups started close together, such as those of the rules which
+   * become ready when a shared dep finishes, into batched fetches from each artifact cache.
+   */
+  private final ConcurrentMap<ArtifactCache, ArtifactFetchCoalescer> ruleKeyFetchCoalescers =
+      new ConcurrentHashMap<>();
+
   public CachingBuildEngine(
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
       Optional<BuildRuleStrategy> customBuildRuleStrategy,
@@ -152,13 +196,18 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      ArtifactCompression artifactCompression,
       BuildRuleResolver resolver,
       BuildEngineActionToBuildRuleResolver actionToBuildRuleResolver,
       TargetConfigurationSerializer targetConfigurationSerializer,
       BuildInfoStoreManager buildInfoStoreManager,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
       boolean consoleLogBuildFailuresInline,
-      RuleKeyFactories ruleKeyFactories) {
+      RuleKeyFactories ruleKeyFactories,
+      Optional<CriticalPathEstimates> criticalPathEstimates,
+      Optional<RuleMemoryFootprints> ruleMemoryFootprints,
+      Optional<Long> speculativeBuildDelayMillis,
+      boolean lazyCacheMaterialization) {
     this(
         cachingBuildEngineDelegate,
         customBuildRuleStrategy,
@@ -167,6 +216,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        artifactCompression,
         resolver,
         buildInfoStoreManager,
         actionToBuildRuleResolver,
@@ -182,7 +232,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                 ruleKeyFactories
                     .getDefaultRuleKeyFactory()
                     .buildForDiagnostics(appendable, new StringRuleKeyHasher())),
-        consoleLogBuildFailuresInline);
+        consoleLogBuildFailuresInline,
+        criticalPathEstimates,
+        ruleMemoryFootprints,
+        speculativeBuildDelayMillis,
+        lazyCacheMaterialization);
   }
 
   /** This constructor MUST ONLY BE USED FOR TESTS. */
@@ -195,6 +249,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      ArtifactCompression artifactCompression,
       BuildRuleResolver resolver,
       BuildInfoStoreManager buildInfoStoreManager,
       BuildEngineActionToBuildRuleResolver actionToBuildRuleResolver,
@@ -202,7 +257,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       RuleKeyFactories ruleKeyFactories,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
       RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics,
-      boolean consoleLogBuildFailuresInline) {
+      boolean consoleLogBuildFailuresInline,
+      Optional<CriticalPathEstimates> criticalPathEstimates,
+      Optional<RuleMemoryFootprints> ruleMemoryFootprints,
+      Optional<Long> speculativeBuildDelayMillis,
+      boolean lazyCacheMaterialization) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
     this.customBuildRuleStrategy = customBuildRuleStrategy;
 
@@ -211,6 +270,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.depFiles = depFiles;
     this.maxDepFileCacheEntries = maxDepFileCacheEntries;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
+    this.artifactCompression = artifactCompression;
     this.resolver = resolver;
     this.targetConfigurationSerializer = targetConfigurationSerializer;
 
@@ -223,6 +283,15 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, resolver);
     this.defaultRuleKeyDiagnostics = defaultRuleKeyDiagnostics;
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
+    this.criticalPathEstimates = criticalPathEstimates;
+    this.ruleMemoryFootprints = ruleMemoryFootprints;
+    this.speculativeBuildScheduler =
+        speculativeBuildDelayMillis.map(SpeculativeBuildScheduler::new);
+    // Other modes either don't visit the deps of rules found in the cache or need their outputs.
+    this.deferredCacheOutputs =
+        lazyCacheMaterialization && buildMode == BuildType.DEEP
+            ? Optional.of(new DeferredCacheOutputs(resolver))
+            : Optional.empty();
     this.asyncCallbacks = new ConcurrentLinkedQueue<>();
     this.ruleKeyCalculator =
         new ParallelRuleKeyCalculator<>(
@@ -245,6 +314,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       }
       terminateBuildWithFailure(new CancellationException("Cancelling due to engine shutdown."));
       Futures.allAsList(asyncCallbacks).get();
+      speculativeBuildScheduler.ifPresent(SpeculativeBuildScheduler::close);
     } catch (InterruptedException e) {
       e.printStackTrace();
     } catch (IOException | ExecutionException e) {
@@ -252,6 +322,18 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     }
   }
 
+  /**
+   * @return the service to run the work of the given rule on, whose waiting jobs go ahead of the
+   *     ones of the rules starting shorter chains if critical path scheduling is enabled
+   */
+  private WeightedListeningExecutorService getServiceForRule(BuildRule rule) {
+    if (!criticalPathEstimates.isPresent()) {
+      return service;
+    }
+    return service.withPriority(
+        criticalPathEstimates.get().getRemainingMillis(rule.getBuildTarget()));
+  }
+
   /// We might want to share rule-key calculation with other parts of code.
   public ParallelRuleKeyCalculator<RuleKey> getRuleKeyCalculator() {
     return ruleKeyCalculator;
@@ -444,11 +526,41 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    criticalPathEstimates.ifPresent(estimates -> estimates.addRequestedRule(rule, ruleDeps::get));
     ListenableFuture<BuildResult> resultFuture =
         getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
+    if (deferredCacheOutputs.isPresent()) {
+      resultFuture =
+          materializeOutputs(
+              rule, resultFuture, deferredCacheOutputs.get(), buildContext.getArtifactCache());
+    }
     return BuildEngine.BuildEngineResult.of(resultFuture);
   }
 
+  // Requested targets are always left with their outputs on disk.
+  private static ListenableFuture<BuildResult> materializeOutputs(
+      BuildRule rule,
+      ListenableFuture<BuildResult> resultFuture,
+      DeferredCacheOutputs deferredCacheOutputs,
+      ArtifactCache artifactCache) {
+    return Futures.transformAsync(
+        resultFuture,
+        result -> {
+          if (!result.isSuccess()) {
+            return Futures.immediateFuture(result);
+          }
+          return Futures.catching(
+              Futures.transform(
+                  deferredCacheOutputs.materialize(artifactCache, ImmutableList.of(rule)),
+                  ignored -> result,
+                  MoreExecutors.directExecutor()),
+              Throwable.class,
+              thrown -> BuildResult.failure(rule, thrown),
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
   @Nullable
   @Override
   public BuildResult getBuildRuleResult(BuildTarget buildTarget)
@@ -484,6 +596,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         new CachingBuildRuleBuilder(
             new DefaultBuildRuleBuilderDelegate(this, buildContext),
             artifactCacheSizeLimit,
+            artifactCompression,
             buildInfoStoreManager,
             buildMode,
             buildRuleDurationTracker,
@@ -496,7 +609,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             targetConfigurationSerializer,
             resourceAwareSchedulingInfo,
             ruleKeyFactories,
-            service,
+            getServiceForRule(rule),
             this.ruleDeps,
             rule,
             buildContext,
@@ -505,7 +618,16 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             buildInfoRecorder,
             buildableContext,
             pipelinesRunner,
-            customBuildRuleStrategy);
+            customBuildRuleStrategy,
+            ruleMemoryFootprints,
+            speculativeBuildScheduler,
+            deferredCacheOutputs,
+            ruleKeyFetchCoalescers.computeIfAbsent(
+                buildContext.getArtifactCache(),
+                artifactCache ->
+                    new ArtifactFetchCoalescer(
+                        artifactCache,
+                        serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS))));
     if (firstFailure.get() != null) {
       cachingBuildRuleBuilder.cancel(firstFailure.get());
     }
@@ -17,10 +17,14 @@
 package com.facebook.buck.core.build.engine.impl;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactFetchBatch;
+import com.facebook.buck.artifact_cache.ArtifactFetchCoalescer;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResult;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResultEvent;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.core.build.buildable.context.BuildableContext;
 import com.facebook.buck.core.build.context.BuildContext;
 import com.facebook.buck.core.build.engine.BuildEngineBuildContext;
@@ -94,6 +98,7 @@ import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.concurrent.MoreFutures;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.facebook.buck.util.concurrent.ResourceAmountsEstimator;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.json.ObjectMappers;
 import com.facebook.buck.util.types.Either;
@@ -102,6 +107,7 @@ import com.facebook.buck.util.types.Unit;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
@@ -120,6 +126,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import javax.annotation.Nonnull;
@@ -134,6 +141,10 @@ class CachingBuildRuleBuilder {
   private final SourcePathResolverAdapter pathResolver;
   private final TargetConfigurationSerializer targetConfigurationSerializer;
   private final ResourceAwareSchedulingInfo resourceAwareSchedulingInfo;
+  private final Optional<RuleMemoryFootprints> ruleMemoryFootprints;
+  private final Optional<SpeculativeBuildScheduler> speculativeBuildScheduler;
+  private final Optional<DeferredCacheOutputs> deferredCacheOutputs;
+  private final ArtifactFetchCoalescer ruleKeyFetchCoalescer;
   private final RuleKeyFactories ruleKeyFactories;
   private final WeightedListeningExecutorService service;
   private final BuildRule rule;
@@ -156,6 +167,8 @@ class CachingBuildRuleBuilder {
 
   private final DependencyFileRuleKeyManager dependencyFileRuleKeyManager;
   private final BuildCacheArtifactFetcher buildCacheArtifactFetcher;
+  private final BuildCacheArtifactFetcher ruleKeyCacheArtifactFetcher;
+  private final BuildCacheArtifactFetcher deferredOutputsArtifactFetcher;
   private final InputBasedRuleKeyManager inputBasedRuleKeyManager;
   private final ManifestRuleKeyManager manifestRuleKeyManager;
   private final BuildCacheArtifactUploader buildCacheArtifactUploader;
@@ -170,6 +183,21 @@ class CachingBuildRuleBuilder {
   // rule has changed.
   private volatile boolean outputsCanChange = false;
 
+  /** Who gets to change the outputs of the rule when its local build races the rule key lookup. */
+  private enum OutputsOwner {
+    RULE_KEY_CACHE_FETCH,
+    LOCAL_BUILD,
+  }
+
+  private final AtomicReference<OutputsOwner> outputsOwner = new AtomicReference<>();
+
+  // Set when the rule was found in the cache without fetching its outputs, which are then only
+  // fetched and finalized if something needs them.
+  private volatile boolean outputsDeferred = false;
+  // Set once the result of the build is reported, which the build of deferred outputs reports
+  // again.
+  private final SettableFuture<Unit> resultHandled = SettableFuture.create();
+
   /**
    * This is used to weakly cache the manifest RuleKeyAndInputs. I
    *
@@ -192,6 +220,7 @@ class CachingBuildRuleBuilder {
   public CachingBuildRuleBuilder(
       BuildRuleBuilderDelegate buildRuleBuilderDelegate,
       Optional<Long> artifactCacheSizeLimit,
+      ArtifactCompression artifactCompression,
       BuildInfoStoreManager buildInfoStoreManager,
       BuildType buildMode,
       BuildRuleDurationTracker buildRuleDurationTracker,
@@ -213,7 +242,11 @@ class CachingBuildRuleBuilder {
       BuildInfoRecorder buildInfoRecorder,
       BuildableContext buildableContext,
       BuildRulePipelinesRunner pipelinesRunner,
-      Optional<BuildRuleStrategy> customBuildRuleStrategy) {
+      Optional<BuildRuleStrategy> customBuildRuleStrategy,
+      Optional<RuleMemoryFootprints> ruleMemoryFootprints,
+      Optional<SpeculativeBuildScheduler> speculativeBuildScheduler,
+      Optional<DeferredCacheOutputs> deferredCacheOutputs,
+      ArtifactFetchCoalescer ruleKeyFetchCoalescer) {
     this.buildRuleBuilderDelegate = buildRuleBuilderDelegate;
     this.buildMode = buildMode;
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
@@ -221,6 +254,10 @@ class CachingBuildRuleBuilder {
     this.pathResolver = pathResolver;
     this.targetConfigurationSerializer = targetConfigurationSerializer;
     this.resourceAwareSchedulingInfo = resourceAwareSchedulingInfo;
+    this.ruleMemoryFootprints = ruleMemoryFootprints;
+    this.speculativeBuildScheduler = speculativeBuildScheduler;
+    this.deferredCacheOutputs = deferredCacheOutputs;
+    this.ruleKeyFetchCoalescer = ruleKeyFetchCoalescer;
     this.ruleKeyFactories = ruleKeyFactories;
     this.service = service;
     this.rule = rule;
@@ -263,9 +300,28 @@ class CachingBuildRuleBuilder {
     this.buildCacheArtifactFetcher =
         new BuildCacheArtifactFetcher(
             rule,
-            buildRuleScopeManager,
+            buildRuleScopeManager::scope,
             serviceByAdjustingDefaultWeightsTo(CachingBuildEngine.CACHE_CHECK_RESOURCE_AMOUNTS),
-            this::onOutputsWillChange,
+            this::onCacheFetchOutputsWillChange,
+            eventBus,
+            buildInfoStoreManager,
+            onDiskBuildInfo);
+    this.ruleKeyCacheArtifactFetcher =
+        new BuildCacheArtifactFetcher(
+            rule,
+            buildRuleScopeManager::scope,
+            serviceByAdjustingDefaultWeightsTo(CachingBuildEngine.CACHE_CHECK_RESOURCE_AMOUNTS),
+            this::onRuleKeyCacheFetchOutputsWillChange,
+            eventBus,
+            buildInfoStoreManager,
+            onDiskBuildInfo);
+    // Deferred outputs are fetched once the rule is finished, outside of its scope.
+    this.deferredOutputsArtifactFetcher =
+        new BuildCacheArtifactFetcher(
+            rule,
+            () -> Scope.NOOP,
+            serviceByAdjustingDefaultWeightsTo(CachingBuildEngine.CACHE_CHECK_RESOURCE_AMOUNTS),
+            this::onCacheFetchOutputsWillChange,
             eventBus,
             buildInfoStoreManager,
             onDiskBuildInfo);
@@ -305,7 +361,8 @@ class CachingBuildRuleBuilder {
             manifestRuleKeyManager,
             eventBus,
             artifactCache,
-            artifactCacheSizeLimit);
+            artifactCacheSizeLimit,
+            artifactCompression);
     this.customBuildRuleStrategy = customBuildRuleStrategy;
   }
 
@@ -421,7 +478,11 @@ class CachingBuildRuleBuilder {
             new FutureCallback<BuildResult>() {
               @Override
               public void onSuccess(BuildResult input) {
-                handleResult(input);
+                try {
+                  handleResult(input);
+                } finally {
+                  resultHandled.set(Unit.UNIT);
+                }
 
                 // Reset interrupted flag once failure has been recorded.
                 if (!input.isSuccess() && input.getFailure() instanceof InterruptedException) {
@@ -486,6 +547,11 @@ class CachingBuildRuleBuilder {
   }
 
   private ListenableFuture<BuildResult> finalizeBuildRule(BuildResult input) throws IOException {
+    // Rules whose outputs weren't fetched are finalized when they are.
+    if (outputsDeferred && input.getStatus() == BuildRuleStatus.SUCCESS) {
+      FinalizingBuildRuleEvent.postEvent(eventBus, rule);
+      return Futures.immediateFuture(input);
+    }
     try {
       // If we weren't successful, exit now.
       if (input.getStatus() != BuildRuleStatus.SUCCESS) {
@@ -777,7 +843,10 @@ class CachingBuildRuleBuilder {
     UploadToCacheResultType shouldUploadToCache = UploadToCacheResultType.UNCACHEABLE;
 
     try (Scope ignored = buildRuleScope()) {
-      if (input.getStatus() == BuildRuleStatus.SUCCESS) {
+      if (input.getStatus() == BuildRuleStatus.SUCCESS && outputsDeferred) {
+        // There is nothing on disk to report or upload yet.
+        successType = Optional.of(input.getSuccess());
+      } else if (input.getStatus() == BuildRuleStatus.SUCCESS) {
         BuildRuleSuccessType success = input.getSuccess();
         successType = Optional.of(success);
 
@@ -984,11 +1053,30 @@ class CachingBuildRuleBuilder {
       }
     }
 
-    AtomicReference<CacheResult> rulekeyCacheResult = new AtomicReference<>();
+    // 2. Rule key cache lookup. When the fetch of the artifact can be deferred, only check that it
+    // is there first, and fetch it as usual if the check doesn't find it.
     ListenableFuture<Optional<BuildResult>> buildResultFuture;
+    if (shouldDeferRuleKeyCacheFetch()) {
+      buildResultFuture =
+          Futures.transformAsync(
+              performRuleKeyCacheContainsCheck(),
+              cacheResult ->
+                  cacheResult.getType() == CacheResultType.CONTAINS
+                      ? Futures.immediateFuture(Optional.of(deferOutputs(cacheResult)))
+                      : fetchFromRuleKeyCacheOrBuild(),
+              MoreExecutors.directExecutor());
+    } else {
+      buildResultFuture = fetchFromRuleKeyCacheOrBuild();
+    }
 
-    // 2. Rule key cache lookup.
-    buildResultFuture =
+    // Unwrap the result.
+    return Futures.transform(buildResultFuture, Optional::get, MoreExecutors.directExecutor());
+  }
+
+  /** Fetches the rule from the cache with its rule key, and builds it if it isn't there. */
+  private ListenableFuture<Optional<BuildResult>> fetchFromRuleKeyCacheOrBuild() {
+    AtomicReference<CacheResult> rulekeyCacheResult = new AtomicReference<>();
+    ListenableFuture<Optional<BuildResult>> buildResultFuture =
         // TODO(cjhopman): This should follow the same, simple pattern as everything else. With a
         // large ui.thread_line_limit, SuperConsole tries to redraw more lines than are available.
         // These cache threads make it more likely to hit that problem when SuperConsole is aware
@@ -998,28 +1086,75 @@ class CachingBuildRuleBuilder {
             cacheResult -> {
               Objects.requireNonNull(cacheResult);
               cacheResult.getType().verifyValidFinalType();
-              rulekeyCacheResult.set(cacheResult);
+              // A local build racing the lookup may have claimed the outputs, and recorded that the
+              // lookup was skipped, already.
+              rulekeyCacheResult.compareAndSet(null, cacheResult);
               return getBuildResultForRuleKeyCacheResult(cacheResult);
             },
             MoreExecutors.directExecutor());
 
+    // 3.-9. Build the rule, racing the lookup if it's allowed to.
+    if (shouldRaceRuleKeyCacheLookup()) {
+      buildResultFuture = raceWithLocalBuild(buildResultFuture, rulekeyCacheResult);
+    } else {
+      buildResultFuture =
+          transformBuildResultAsyncIfNotPresent(
+              buildResultFuture,
+              () -> buildAfterRuleKeyCacheMiss(rulekeyCacheResult, Optional.empty()));
+    }
+    return buildResultFuture;
+  }
+
+  /**
+   * Builds the rule once it wasn't found with its rule key: builds its deps, checks the other
+   * caches and builds it locally if none of them has it.
+   *
+   * @param racingLookup the rule key cache lookup the build races with, if it is still running
+   */
+  private ListenableFuture<Optional<BuildResult>> buildAfterRuleKeyCacheMiss(
+      AtomicReference<CacheResult> rulekeyCacheResult,
+      Optional<ListenableFuture<Optional<BuildResult>>> racingLookup) {
     // 3. Build deps.
-    buildResultFuture =
+    ListenableFuture<Optional<BuildResult>> buildResultFuture =
         transformBuildResultAsyncIfNotPresent(
-            buildResultFuture,
+            Futures.immediateFuture(Optional.empty()),
             () -> {
               if (SupportsPipelining.isSupported(rule)) {
                 addToPipelinesRunner(
                     (SupportsPipelining<?>) rule, Objects.requireNonNull(rulekeyCacheResult.get()));
               }
 
+              ListenableFuture<List<BuildResult>> depResults =
+                  buildRuleBuilderDelegate.getDepResults(rule, executionContext);
+              if (racingLookup.isPresent()) {
+                // The build is cancelled if the lookup provides the outputs, which must not cancel
+                // the builds of the deps, as other rules may be waiting for them too.
+                depResults = Futures.nonCancellationPropagating(depResults);
+              }
               return Futures.transformAsync(
-                  buildRuleBuilderDelegate.getDepResults(rule, executionContext),
-                  (depResults) -> handleDepsResults(depResults),
+                  depResults,
+                  this::handleDepsResults,
                   serviceByAdjustingDefaultWeightsTo(
                       CachingBuildEngine.SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
             });
 
+    // Then fetch the outputs of the deps whose fetch was deferred, as the rule may need them from
+    // here on.
+    if (deferredCacheOutputs.isPresent()) {
+      buildResultFuture =
+          transformBuildResultAsyncIfNotPresent(
+              buildResultFuture,
+              () ->
+                  Futures.transform(
+                      // Also shared with other rules needing the outputs of the same deps.
+                      Futures.nonCancellationPropagating(
+                          deferredCacheOutputs
+                              .get()
+                              .materialize(artifactCache, rule.getBuildDeps())),
+                      ignored -> Optional.empty(),
+                      MoreExecutors.directExecutor()));
+    }
+
     // 4. Return to the current rule and check if it was (or is being) built in a pipeline with
     // one of its dependencies
     if (SupportsPipelining.isSupported(rule)) {
@@ -1034,6 +1169,14 @@ class CachingBuildRuleBuilder {
               });
     }
 
+    // Then, when racing the rule key cache lookup, stop if the lookup is providing the outputs.
+    if (racingLookup.isPresent()) {
+      buildResultFuture =
+          transformBuildResultAsyncIfNotPresent(
+              buildResultFuture,
+              () -> claimOutputsForLocalBuild(racingLookup.get(), rulekeyCacheResult));
+    }
+
     // 5. Return to the current rule and check caches to see if we can avoid building
     if (SupportsInputBasedRuleKey.isSupported(rule)) {
       buildResultFuture =
@@ -1090,8 +1233,225 @@ class CachingBuildRuleBuilder {
           MoreExecutors.directExecutor());
     }
 
-    // Unwrap the result.
-    return Futures.transform(buildResultFuture, Optional::get, MoreExecutors.directExecutor());
+    return buildResultFuture;
+  }
+
+  private boolean shouldRaceRuleKeyCacheLookup() {
+    // Pipelined rules may be built by the pipelines of their deps, without checking whether the
+    // lookup provided their outputs first.
+    return speculativeBuildScheduler.isPresent()
+        && rule.isCacheable()
+        && buildMode != BuildType.POPULATE_FROM_REMOTE_CACHE
+        && !SupportsPipelining.isSupported(rule);
+  }
+
+  /**
+   * Races the rule key cache lookup with building the rule locally, which starts once the lookup
+   * misses or has been running for longer than the speculative build delay.
+   *
+   * <p>Whichever of them starts changing the outputs of the rule first provides them: the lookup
+   * drops the artifact it fetched if the local build got there first, and the local build stops
+   * before checking the other caches or running steps if the lookup is unpacking an artifact. Once
+   * the lookup provided the outputs, the local build is cancelled so that none of its pending work
+   * is done, such as waiting for its deps to check the other caches.
+   */
+  private ListenableFuture<Optional<BuildResult>> raceWithLocalBuild(
+      ListenableFuture<Optional<BuildResult>> lookup,
+      AtomicReference<CacheResult> rulekeyCacheResult) {
+    SettableFuture<Optional<BuildResult>> result = SettableFuture.create();
+    FutureCallback<Optional<BuildResult>> setResult =
+        new FutureCallback<Optional<BuildResult>>() {
+          @Override
+          public void onSuccess(Optional<BuildResult> buildResult) {
+            result.set(buildResult);
+          }
+
+          @Override
+          public void onFailure(Throwable thrown) {
+            result.setException(thrown);
+          }
+        };
+    AtomicBoolean localBuildStarted = new AtomicBoolean();
+    AtomicReference<ListenableFuture<Optional<BuildResult>>> localBuild = new AtomicReference<>();
+    Runnable startLocalBuild =
+        () -> {
+          if (result.isDone() || localBuildStarted.getAndSet(true)) {
+            return;
+          }
+          ListenableFuture<Optional<BuildResult>> localBuildResult =
+              buildAfterRuleKeyCacheMiss(rulekeyCacheResult, Optional.of(lookup));
+          localBuild.set(localBuildResult);
+          Futures.addCallback(localBuildResult, setResult, MoreExecutors.directExecutor());
+          // The lookup may have provided the outputs while the local build was starting.
+          if (result.isDone()) {
+            localBuildResult.cancel(false);
+          }
+        };
+
+    speculativeBuildScheduler.get().schedule(startLocalBuild);
+    Futures.addCallback(
+        lookup,
+        new FutureCallback<Optional<BuildResult>>() {
+          @Override
+          public void onSuccess(Optional<BuildResult> lookupResult) {
+            if (lookupResult.isPresent()) {
+              result.set(lookupResult);
+              ListenableFuture<Optional<BuildResult>> localBuildResult = localBuild.get();
+              if (localBuildResult != null) {
+                localBuildResult.cancel(false);
+              }
+            } else {
+              startLocalBuild.run();
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable thrown) {
+            // The lookup is cancelled once the local build claims the outputs.
+            if (!lookup.isCancelled()) {
+              result.setException(thrown);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return result;
+  }
+
+  /**
+   * Lets the local build racing the rule key cache lookup change the outputs of the rule, unless
+   * the lookup started unpacking an artifact first, in which case its result is waited for.
+   *
+   * @return the result of the lookup if it provided the outputs, empty if the rule must be built
+   */
+  private ListenableFuture<Optional<BuildResult>> claimOutputsForLocalBuild(
+      ListenableFuture<Optional<BuildResult>> lookup,
+      AtomicReference<CacheResult> rulekeyCacheResult) {
+    if (outputsOwner.compareAndSet(null, OutputsOwner.LOCAL_BUILD)) {
+      // The lookup may still be running, and its result isn't going to be used. Fetches which are
+      // still queued never start, and an artifact which is already being downloaded is dropped
+      // instead of being unpacked.
+      rulekeyCacheResult.compareAndSet(null, CacheResult.skipped());
+      lookup.cancel(false);
+      return Futures.immediateFuture(Optional.empty());
+    }
+    return Futures.transform(
+        lookup,
+        lookupResult -> {
+          // The artifact couldn't be unpacked, build the rule over whatever is left of it.
+          if (!lookupResult.isPresent()) {
+            outputsOwner.set(OutputsOwner.LOCAL_BUILD);
+          }
+          return lookupResult;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private boolean shouldDeferRuleKeyCacheFetch() {
+    // Pipelined rules may be built by the pipelines of their deps, which expect them to be built.
+    return deferredCacheOutputs.isPresent()
+        && artifactCache.supportsMultiContains()
+        && rule.isCacheable()
+        && !SupportsPipelining.isSupported(rule);
+  }
+
+  /**
+   * Finishes the rule as fetched from the cache without fetching its outputs, which are only
+   * fetched once a rule built locally or a requested target needs them.
+   */
+  private BuildResult deferOutputs(CacheResult containsResult) {
+    outputsDeferred = true;
+    deferredCacheOutputs.get().defer(rule, this::materializeDeferredOutputs);
+    return success(
+        BuildRuleSuccessType.FETCHED_FROM_CACHE,
+        CacheResult.hit(
+            containsResult.getCacheSource(),
+            containsResult.cacheMode().orElse(ArtifactCacheMode.unknown)));
+  }
+
+  /**
+   * Fetches the deferred outputs of the rule along with the rest of the given batch, and finalizes
+   * it as if they had been fetched when it was looked up. If the cache lost the artifact since it
+   * was checked for, the rule is built locally instead.
+   */
+  private ListenableFuture<Unit> materializeDeferredOutputs(ArtifactFetchBatch fetchBatch) {
+    return Futures.transformAsync(
+        deferredOutputsArtifactFetcher
+            .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+                defaultKey, fetchBatch, rule.getProjectFilesystem()),
+        cacheResult -> {
+          if (!cacheResult.getType().isSuccess()) {
+            LOG.warn(
+                "%s was found in the cache, but fetching its outputs failed (%s), building it.",
+                rule.getBuildTarget(), cacheResult.cacheError().orElse(cacheResult.name()));
+            return buildDeferredOutputsLocally();
+          }
+          try {
+            finalizeFetchedFromCache(BuildRuleSuccessType.FETCHED_FROM_CACHE);
+            if (rule instanceof InitializableFromDisk) {
+              doInitializeFromDisk((InitializableFromDisk<?>) rule);
+            }
+          } finally {
+            buildInfoRecorder.discard();
+          }
+          return Futures.immediateFuture(Unit.UNIT);
+        },
+        serviceByAdjustingDefaultWeightsTo(
+            CachingBuildEngine.RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS));
+  }
+
+  /**
+   * Builds the rule whose deferred outputs couldn't be fetched, once the deferred outputs of its
+   * deps are fetched. The rule has already been reported as fetched from the cache by then, so it
+   * is reopened to build it in its scope and report the result of the local build.
+   */
+  private ListenableFuture<Unit> buildDeferredOutputsLocally() {
+    return Futures.transformAsync(
+        Futures.allAsList(
+            deferredCacheOutputs.get().materialize(artifactCache, rule.getBuildDeps()),
+            resultHandled),
+        ignored ->
+            service.submit(
+                () -> {
+                  buildRuleScopeManager.reopen();
+                  outputsDeferred = false;
+                  BuildResult result =
+                      shouldKeepGoing() ? buildDeferredOutputs() : canceled(firstFailure);
+                  handleResult(result);
+                  if (!result.isSuccess()) {
+                    // Reset interrupted flag once failure has been recorded.
+                    if (result.getFailure() instanceof InterruptedException) {
+                      Threads.interruptCurrentThread();
+                    }
+                    throw getFailedException(result.getFailure());
+                  }
+                  return Unit.UNIT;
+                }),
+        serviceByAdjustingDefaultWeightsTo(
+            CachingBuildEngine.SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+  }
+
+  private BuildResult buildDeferredOutputs() {
+    try (Scope ignored = buildRuleScope()) {
+      // Deep builds only look the rule up once its deps were built.
+      depsAreAvailable = true;
+      onRuleAboutToBeBuilt();
+      long start = System.currentTimeMillis();
+      BuildRuleSteps<RulePipelineState> steps = new BuildRuleSteps<>(CacheResult.miss(), null);
+      steps.executeCommands(steps.ruleExecutionContext, buildRuleBuildContext, buildableContext);
+      buildTimestampsMillis = new Pair<>(start, System.currentTimeMillis());
+      finalizeBuiltLocally();
+      if (rule instanceof InitializableFromDisk) {
+        doInitializeFromDisk((InitializableFromDisk<?>) rule);
+      }
+      return success(BuildRuleSuccessType.BUILT_LOCALLY, CacheResult.miss());
+    } catch (Throwable thrown) {
+      BuildRuleFailedException failedException = getFailedException(thrown);
+      LOG.warn(failedException, "Building rule [%s] failed.", rule.getBuildTarget());
+      recordFailureAndCleanUp(failedException);
+      return failure(thrown);
+    } finally {
+      buildInfoRecorder.discard();
+    }
   }
 
   private boolean shouldKeepGoing() {
@@ -1131,10 +1491,10 @@ class CachingBuildRuleBuilder {
   private ListenableFuture<CacheResult> performRuleKeyCacheCheck(boolean cacheHitExpected) {
     long cacheRequestTimestampMillis = System.currentTimeMillis();
     return Futures.transform(
-        buildCacheArtifactFetcher
+        ruleKeyCacheArtifactFetcher
             .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
                 defaultKey,
-                artifactCache,
+                ruleKeyFetchCoalescer,
                 // TODO(simons): This should be a shared between all tests, not one per cell
                 rule.getProjectFilesystem()),
         cacheResult -> {
@@ -1154,6 +1514,25 @@ class CachingBuildRuleBuilder {
         MoreExecutors.directExecutor());
   }
 
+  private ListenableFuture<CacheResult> performRuleKeyCacheContainsCheck() {
+    long cacheRequestTimestampMillis = System.currentTimeMillis();
+    return Futures.catching(
+        Futures.transform(
+            artifactCache.multiContainsAsync(ImmutableSet.of(defaultKey)),
+            cacheResults -> {
+              ruleKeyCacheCheckTimestampsMillis =
+                  new Pair<>(cacheRequestTimestampMillis, System.currentTimeMillis());
+              return cacheResults.getOrDefault(defaultKey, CacheResult.miss());
+            },
+            MoreExecutors.directExecutor()),
+        Exception.class,
+        e -> {
+          LOG.warn(e, "Failed to check whether the cache contains %s.", rule.getBuildTarget());
+          return CacheResult.skipped();
+        },
+        MoreExecutors.directExecutor());
+  }
+
   private Optional<BuildResult> getBuildResultForRuleKeyCacheResult(CacheResult cacheResult) {
     if (!cacheResult.getType().isSuccess()) {
       return Optional.empty();
@@ -1221,6 +1600,25 @@ class CachingBuildRuleBuilder {
     // TODO(cjhopman): Delete old outputs.
   }
 
+  private boolean onCacheFetchOutputsWillChange() throws IOException {
+    onOutputsWillChange();
+    return true;
+  }
+
+  /**
+   * Claims the outputs of the rule for the rule key cache lookup.
+   *
+   * @return false if the local build racing the lookup claimed them first
+   */
+  private boolean onRuleKeyCacheFetchOutputsWillChange() throws IOException {
+    if (!outputsOwner.compareAndSet(null, OutputsOwner.RULE_KEY_CACHE_FETCH)
+        && outputsOwner.get() != OutputsOwner.RULE_KEY_CACHE_FETCH) {
+      return false;
+    }
+    onOutputsWillChange();
+    return true;
+  }
+
   private void onRuleAboutToBeBuilt() {
     try {
       onOutputsWillChange();
@@ -1245,7 +1643,9 @@ class CachingBuildRuleBuilder {
                       CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY,
                       rule.getType(),
                       CachingBuildEngine.STEP_TYPE_CONTEXT_KEY,
-                      CachingBuildEngine.StepType.POST_BUILD_STEP.toString()))),
+                      CachingBuildEngine.StepType.POST_BUILD_STEP.toString(),
+                      CachingBuildEngine.BUILD_TARGET_CONTEXT_KEY,
+                      rule.getFullyQualifiedName()))),
           step,
           Optional.of(rule.getBuildTarget()));
 
@@ -1278,11 +1678,33 @@ class CachingBuildRuleBuilder {
   }
 
   private ResourceAmounts getRuleResourceAmounts() {
+    ResourceAmounts amounts;
     if (resourceAwareSchedulingInfo.isResourceAwareSchedulingEnabled()) {
-      return resourceAwareSchedulingInfo.getResourceAmountsForRule(rule);
+      amounts = resourceAwareSchedulingInfo.getResourceAmountsForRule(rule);
     } else {
-      return getResourceAmountsForRuleWithCustomScheduleInfo();
+      amounts = getResourceAmountsForRuleWithCustomScheduleInfo();
+    }
+    return withExpectedMemory(amounts);
+  }
+
+  /**
+   * Raises the memory needed to run the steps of the rule to what its processes are expected to
+   * use, rounded up to whole memory units, so that steps are held back while it doesn't fit.
+   */
+  private ResourceAmounts withExpectedMemory(ResourceAmounts amounts) {
+    if (!ruleMemoryFootprints.isPresent() || amounts.equals(ResourceAmounts.zero())) {
+      return amounts;
+    }
+    long footprintBytes = ruleMemoryFootprints.get().getFootprintBytes(rule.getType());
+    int memory =
+        (int)
+            ((footprintBytes + ResourceAmountsEstimator.MEMORY_UNIT_BYTES - 1)
+                / ResourceAmountsEstimator.MEMORY_UNIT_BYTES);
+    if (memory <= amounts.getMemory()) {
+      return amounts;
     }
+    return ResourceAmounts.of(
+        amounts.getCpu(), memory, amounts.getDiskIO(), amounts.getNetworkIO());
   }
 
   private ResourceAmounts getResourceAmountsForRuleWithCustomScheduleInfo() {
@@ -1374,7 +1796,9 @@ class CachingBuildRuleBuilder {
                       CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY,
                       rule.getType(),
                       CachingBuildEngine.STEP_TYPE_CONTEXT_KEY,
-                      StepType.BUILD_STEP.toString())));
+                      StepType.BUILD_STEP.toString(),
+                      CachingBuildEngine.BUILD_TARGET_CONTEXT_KEY,
+                      rule.getFullyQualifiedName())));
     }
 
     public SettableFuture<Optional<BuildResult>> getFuture() {
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactFetchBatch;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.BuildRuleResolver;
+import com.facebook.buck.core.rules.attr.HasRuntimeDeps;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Outputs of rules found in the artifact cache whose fetch is put off until a rule built locally or
+ * a requested target needs them.
+ */
+class DeferredCacheOutputs {
+
+  private final BuildRuleResolver resolver;
+  private final ConcurrentMap<BuildTarget, Materialization> materializations =
+      new ConcurrentHashMap<>();
+
+  DeferredCacheOutputs(BuildRuleResolver resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Records that the outputs of the given rule are only to be fetched when needed, by running
+   * {@code materialize} at most once. {@code materialize} adds the fetch of the outputs to the
+   * batch it is given.
+   */
+  void defer(BuildRule rule, Function<ArtifactFetchBatch, ListenableFuture<Unit>> materialize) {
+    materializations.put(rule.getBuildTarget(), new Materialization(materialize));
+  }
+
+  /**
+   * Fetches the deferred outputs of the given rules and of their runtime deps, which are needed
+   * along with them, with a single batch of fetches from the given cache.
+   *
+   * @return a future that fails if the outputs of any of the rules couldn't be materialized
+   */
+  ListenableFuture<Unit> materialize(ArtifactCache artifactCache, Iterable<BuildRule> rules) {
+    List<ListenableFuture<Unit>> futures = new ArrayList<>();
+    Set<BuildRule> seen = new HashSet<>();
+    ArtifactFetchBatch fetchBatch = new ArtifactFetchBatch(artifactCache);
+    try {
+      for (BuildRule rule : rules) {
+        materializeWithRuntimeDeps(rule, fetchBatch, seen, futures);
+      }
+    } finally {
+      fetchBatch.send();
+    }
+    if (futures.isEmpty()) {
+      return Futures.immediateFuture(Unit.UNIT);
+    }
+    return Futures.transform(
+        Futures.allAsList(futures), ignored -> Unit.UNIT, MoreExecutors.directExecutor());
+  }
+
+  private void materializeWithRuntimeDeps(
+      BuildRule rule,
+      ArtifactFetchBatch fetchBatch,
+      Set<BuildRule> seen,
+      List<ListenableFuture<Unit>> futures) {
+    if (!seen.add(rule)) {
+      return;
+    }
+    Materialization materialization = materializations.get(rule.getBuildTarget());
+    if (materialization != null) {
+      futures.add(materialization.get(fetchBatch));
+    }
+    if (rule instanceof HasRuntimeDeps) {
+      ((HasRuntimeDeps) rule)
+          .getRuntimeDeps(resolver)
+          .map(resolver::getRule)
+          .forEach(dep -> materializeWithRuntimeDeps(dep, fetchBatch, seen, futures));
+    }
+  }
+
+  /** Materialization of the outputs of a rule, started by the first batch that needs them. */
+  private static class Materialization {
+    private final Function<ArtifactFetchBatch, ListenableFuture<Unit>> materialize;
+    @Nullable private ListenableFuture<Unit> future;
+
+    Materialization(Function<ArtifactFetchBatch, ListenableFuture<Unit>> materialize) {
+      this.materialize = materialize;
+    }
+
+    synchronized ListenableFuture<Unit> get(ArtifactFetchBatch fetchBatch) {
+      if (future == null) {
+        future = materialize.apply(fetchBatch);
+      }
+      return future;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.core.build.stats.BuildRuleHistory;
+import com.facebook.buck.core.build.stats.BuildRuleHistory.Metric;
+import com.facebook.buck.core.build.stats.BuildRuleHistory.RollingStats;
+import com.facebook.buck.util.perf.ProcessTracker.ProcessResourceConsumptionEvent;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memory footprints of the rules of each type, i.e. the peak resident memory of the processes run
+ * by their steps, used to only start steps whose memory fits within what is left of a budget.
+ *
+ * <p>Footprints are learned from the processes of the current build as the process tracker
+ * reports them, and start from the ones recorded in the {@link BuildRuleHistory} of previous
+ * builds, if any.
+ */
+public class RuleMemoryFootprints {
+
+  private final BuildRuleHistory history;
+  private final ConcurrentMap<String, Long> peakBytesByRuleType = new ConcurrentHashMap<>();
+
+  public RuleMemoryFootprints(BuildRuleHistory history) {
+    this.history = history;
+  }
+
+  /** Subscribes to {@link ProcessResourceConsumptionEvent} events */
+  @Subscribe
+  public void processResourceConsumption(ProcessResourceConsumptionEvent event) {
+    if (!event.getContext().isPresent() || !event.getResourceConsumption().isPresent()) {
+      return;
+    }
+    ImmutableMap<String, String> context = event.getContext().get();
+    String ruleType = context.get(CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY);
+    if (ruleType != null) {
+      record(ruleType, event.getResourceConsumption().get().getMemResident());
+    }
+  }
+
+  /** Records the peak resident memory of a process run by a rule of the given type. */
+  public void record(String ruleType, long peakBytes) {
+    peakBytesByRuleType.merge(ruleType, peakBytes, Math::max);
+  }
+
+  /**
+   * @return the memory in bytes the processes of a rule of the given type are expected to use, or
+   *     0 if no rule of the type was seen running processes
+   */
+  public long getFootprintBytes(String ruleType) {
+    long historical =
+        history
+            .getRuleTypeStats(ruleType, Metric.PEAK_MEMORY_BYTES)
+            .map(RollingStats::getMean)
+            .map(Double::longValue)
+            .orElse(0L);
+    return Math.max(historical, peakBytesByRuleType.getOrDefault(ruleType, 0L));
+  }
+}
@@ -20,6 +20,7 @@ import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.util.timing.ClockDuration;
 import com.google.common.annotations.VisibleForTesting;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import javax.annotation.concurrent.GuardedBy;
@@ -44,6 +45,15 @@ public class BuildRuleDurationTracker {
     durations.put(rule.getBuildTarget(), new DurationHolder(duration));
   }
 
+  /**
+   * @return the duration of the work spent on the rule with the given target so far, not counting
+   *     the intervals that are still in progress, or empty if no work was spent on it
+   */
+  public Optional<ClockDuration> getDuration(BuildTarget target) {
+    DurationHolder holder = durations.get(target);
+    return holder == null ? Optional.empty() : Optional.of(holder.getCompletedDuration());
+  }
+
   public ClockDuration doBeginning(BuildRule rule, long wallMillisTime, long nanoTime) {
     return durations
         .computeIfAbsent(rule.getBuildTarget(), (key) -> new DurationHolder())
@@ -90,6 +100,10 @@ public class BuildRuleDurationTracker {
       threadUserNanoDuration = initialDuration.getThreadUserNanoDuration();
     }
 
+    public synchronized ClockDuration getCompletedDuration() {
+      return new ClockDuration(wallMillisDuration, nanoDuration, threadUserNanoDuration);
+    }
+
     public synchronized ClockDuration getDurationAt(long wallMillisTime, long nanoTime) {
       return new ClockDuration(
           wallMillisDuration + wallMillisTime - wallMillisStarted,
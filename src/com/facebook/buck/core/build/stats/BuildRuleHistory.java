@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * History of how long rules took to build or fetch from the cache, how big their outputs were and
+ * how much memory their processes used, persisted between builds.
+ *
+ * <p>Samples are recorded both for the rule they were measured on, along with the type of the rule
+ * key it was built or fetched with, and for its type, so that rules never built before can be
+ * estimated from the rules of the same type. Only {@link RollingStats} of the samples are kept, and
+ * the history keeps the most recently updated {@code maxTargets} rules, so that its size does not
+ * grow with the number of builds.
+ *
+ * <p>Builds running at the same time each save the history, so saving merges it with the one on
+ * disk, keeping the most recently updated statistics of each rule and adding the samples recorded
+ * for each rule type since the history was loaded to the ones saved by other builds. The statistics
+ * of rule types are plain means over all their samples so that they can be added up that way.
+ */
+@ThreadSafe
+public class BuildRuleHistory {
+
+  private static final Logger LOG = Logger.get(BuildRuleHistory.class);
+
+  /** Name of the file the history is saved to in the log directory of buck-out. */
+  public static final String FILE_NAME = "build_rule_history";
+
+  private static final int MAGIC = 0xB0C4415D;
+  private static final int VERSION = 3;
+
+  /** The number of samples the rolling means are approximately computed over. */
+  private static final int WINDOW = 8;
+
+  /** Something measured on the rules. */
+  public enum Metric {
+    /** Time spent running the steps of a rule built locally. */
+    EXECUTION_MILLIS,
+    /** Time spent fetching the outputs of a rule from the cache. */
+    CACHE_FETCH_MILLIS,
+    /** Size of the outputs of a rule. */
+    OUTPUT_SIZE_BYTES,
+    /** Peak resident memory of the processes run by a rule. */
+    PEAK_MEMORY_BYTES,
+  }
+
+  /** Rolling statistics of the samples of a metric. */
+  public static final class RollingStats {
+    private final long count;
+    private final double mean;
+    private final long last;
+    private final long max;
+
+    private RollingStats(long count, double mean, long last, long max) {
+      this.count = count;
+      this.mean = mean;
+      this.last = last;
+      this.max = max;
+    }
+
+    private static RollingStats of(long sample) {
+      return new RollingStats(1, sample, sample, sample);
+    }
+
+    private RollingStats add(long sample) {
+      long newCount = count + 1;
+      // A plain mean until the window is full, an exponential moving average afterwards.
+      double newMean = mean + (sample - mean) / Math.min(newCount, WINDOW);
+      return new RollingStats(newCount, newMean, sample, Math.max(max, sample));
+    }
+
+    /** @return the number of samples recorded */
+    public long getCount() {
+      return count;
+    }
+
+    /** @return the mean of the most recent samples */
+    public double getMean() {
+      return mean;
+    }
+
+    /** @return the most recent sample */
+    public long getLast() {
+      return last;
+    }
+
+    /** @return the largest sample ever recorded */
+    public long getMax() {
+      return max;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof RollingStats)) {
+        return false;
+      }
+      RollingStats that = (RollingStats) other;
+      return count == that.count
+          && Double.compare(mean, that.mean) == 0
+          && last == that.last
+          && max == that.max;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(count, mean, last, max);
+    }
+  }
+
+  /** Totals of the samples of a metric, which unlike rolling statistics can be added up. */
+  private static final class Totals {
+    private long count;
+    private double sum;
+    private long last;
+    private long max;
+
+    private Totals() {}
+
+    private Totals(long count, double sum, long last, long max) {
+      this.count = count;
+      this.sum = sum;
+      this.last = last;
+      this.max = max;
+    }
+
+    private void add(long sample) {
+      count++;
+      sum += sample;
+      last = sample;
+      max = count == 1 ? sample : Math.max(max, sample);
+    }
+
+    /** Adds the samples of {@code later}, recorded after the ones of these totals. */
+    private void addAll(Totals later) {
+      max = count == 0 ? later.max : Math.max(max, later.max);
+      count += later.count;
+      sum += later.sum;
+      last = later.last;
+    }
+
+    private RollingStats toRollingStats() {
+      return new RollingStats(count, sum / count, last, max);
+    }
+  }
+
+  /** A rule along with the type of the rule key it was built or fetched with. */
+  private static final class TargetKey {
+    private final String fullyQualifiedName;
+    private final RuleKeyType ruleKeyType;
+
+    private TargetKey(String fullyQualifiedName, RuleKeyType ruleKeyType) {
+      this.fullyQualifiedName = fullyQualifiedName;
+      this.ruleKeyType = ruleKeyType;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof TargetKey)) {
+        return false;
+      }
+      TargetKey that = (TargetKey) other;
+      return fullyQualifiedName.equals(that.fullyQualifiedName)
+          && ruleKeyType == that.ruleKeyType;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fullyQualifiedName, ruleKeyType);
+    }
+  }
+
+  /** The statistics of a rule. */
+  private static final class Entry {
+    private final String ruleType;
+    private final EnumMap<Metric, RollingStats> stats = new EnumMap<>(Metric.class);
+    private long lastUpdateMillis;
+
+    private Entry(String ruleType, long lastUpdateMillis) {
+      this.ruleType = ruleType;
+      this.lastUpdateMillis = lastUpdateMillis;
+    }
+
+    private void add(Metric metric, long sample, long nowMillis) {
+      stats.merge(metric, RollingStats.of(sample), (previous, ignored) -> previous.add(sample));
+      lastUpdateMillis = nowMillis;
+    }
+  }
+
+  private final Path path;
+  private final int maxTargets;
+
+  @GuardedBy("this")
+  private final Map<TargetKey, Entry> targets;
+
+  @GuardedBy("this")
+  private final Map<String, Map<Metric, Totals>> ruleTypes;
+
+  /** Samples recorded for each rule type since the history was last loaded or saved. */
+  @GuardedBy("this")
+  private final Map<String, Map<Metric, Totals>> unsavedRuleTypes = new HashMap<>();
+
+  private BuildRuleHistory(
+      Path path,
+      int maxTargets,
+      Map<TargetKey, Entry> targets,
+      Map<String, Map<Metric, Totals>> ruleTypes) {
+    Preconditions.checkArgument(maxTargets > 0, "maxTargets must be positive");
+    this.path = path;
+    this.maxTargets = maxTargets;
+    this.targets = targets;
+    this.ruleTypes = ruleTypes;
+  }
+
+  /**
+   * Loads the history saved at {@code path}, starting with an empty history if there isn't any or
+   * it cannot be read.
+   *
+   * @param maxTargets the maximum number of rules to keep the statistics of when saving
+   */
+  public static BuildRuleHistory load(Path path, int maxTargets) {
+    Map<TargetKey, Entry> targets = new HashMap<>();
+    Map<String, Map<Metric, Totals>> ruleTypes = new HashMap<>();
+    read(path, targets, ruleTypes);
+    return new BuildRuleHistory(path, maxTargets, targets, ruleTypes);
+  }
+
+  private static void read(
+      Path path, Map<TargetKey, Entry> targets, Map<String, Map<Metric, Totals>> ruleTypes) {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.info("Ignoring build rule history %s from a different version", path);
+      } else {
+        readTargetEntries(in, targets);
+        readRuleTypeEntries(in, ruleTypes);
+      }
+    } catch (NoSuchFileException e) {
+      // No build saved a history yet.
+    } catch (IOException e) {
+      LOG.warn(e, "Could not read build rule history from %s, ignoring it.", path);
+      targets.clear();
+      ruleTypes.clear();
+    }
+  }
+
+  /**
+   * Records a sample of {@code metric} measured on the rule with the given target and type, built
+   * or fetched with a rule key of the given type.
+   */
+  public void record(
+      BuildTarget target, String ruleType, RuleKeyType ruleKeyType, Metric metric, long sample) {
+    record(target.getFullyQualifiedName(), ruleType, ruleKeyType, metric, sample);
+  }
+
+  /**
+   * Records a sample of {@code metric} measured on the rule with the given fully qualified target
+   * name and type, built or fetched with a rule key of the given type.
+   */
+  public synchronized void record(
+      String fullyQualifiedName,
+      String ruleType,
+      RuleKeyType ruleKeyType,
+      Metric metric,
+      long sample) {
+    long nowMillis = System.currentTimeMillis();
+    TargetKey key = new TargetKey(fullyQualifiedName, ruleKeyType);
+    Entry target = targets.get(key);
+    if (target == null || !target.ruleType.equals(ruleType)) {
+      target = new Entry(ruleType, nowMillis);
+      targets.put(key, target);
+    }
+    target.add(metric, sample, nowMillis);
+    addSample(ruleTypes, ruleType, metric, sample);
+    addSample(unsavedRuleTypes, ruleType, metric, sample);
+  }
+
+  private static void addSample(
+      Map<String, Map<Metric, Totals>> ruleTypes, String ruleType, Metric metric, long sample) {
+    ruleTypes
+        .computeIfAbsent(ruleType, type -> new EnumMap<>(Metric.class))
+        .computeIfAbsent(metric, ignored -> new Totals())
+        .add(sample);
+  }
+
+  /**
+   * @return the statistics of {@code metric} for the rule with the given target, built or fetched
+   *     with a rule key of the given type, if any
+   */
+  public synchronized Optional<RollingStats> getStats(
+      BuildTarget target, RuleKeyType ruleKeyType, Metric metric) {
+    Entry entry = targets.get(new TargetKey(target.getFullyQualifiedName(), ruleKeyType));
+    return entry == null ? Optional.empty() : Optional.ofNullable(entry.stats.get(metric));
+  }
+
+  /** @return the statistics of {@code metric} for all the rules of the given type, if any */
+  public synchronized Optional<RollingStats> getRuleTypeStats(String ruleType, Metric metric) {
+    Map<Metric, Totals> totals = ruleTypes.get(ruleType);
+    return totals == null || !totals.containsKey(metric)
+        ? Optional.empty()
+        : Optional.of(totals.get(metric).toRollingStats());
+  }
+
+  /**
+   * @return the statistics of {@code metric} for the rule with the given target, built or fetched
+   *     with a rule key of the given type, or of the rules of its type if it has no statistics of
+   *     its own
+   */
+  public Optional<RollingStats> getStatsOrRuleTypeStats(
+      BuildTarget target, String ruleType, RuleKeyType ruleKeyType, Metric metric) {
+    Optional<RollingStats> stats = getStats(target, ruleKeyType, metric);
+    return stats.isPresent() ? stats : getRuleTypeStats(ruleType, metric);
+  }
+
+  /**
+   * @return the statistics of {@code metric} for the rule with the given target, built or fetched
+   *     with whichever type of rule key it most recently was, or of the rules of its type if it has
+   *     no statistics of its own
+   */
+  public synchronized Optional<RollingStats> getStatsOrRuleTypeStats(
+      BuildTarget target, String ruleType, Metric metric) {
+    Entry mostRecent = null;
+    for (RuleKeyType ruleKeyType : RuleKeyType.values()) {
+      Entry entry = targets.get(new TargetKey(target.getFullyQualifiedName(), ruleKeyType));
+      if (entry != null
+          && entry.stats.containsKey(metric)
+          && (mostRecent == null || entry.lastUpdateMillis > mostRecent.lastUpdateMillis)) {
+        mostRecent = entry;
+      }
+    }
+    return mostRecent == null
+        ? getRuleTypeStats(ruleType, metric)
+        : Optional.of(mostRecent.stats.get(metric));
+  }
+
+  /**
+   * Saves the history so that it can be loaded by next builds, merging it with the one saved by
+   * other builds since it was loaded and dropping the least recently updated rules beyond the
+   * maximum number of rules to keep.
+   */
+  public synchronized void save() throws IOException {
+    Map<TargetKey, Entry> savedTargets = new HashMap<>();
+    Map<String, Map<Metric, Totals>> savedRuleTypes = new HashMap<>();
+    read(path, savedTargets, savedRuleTypes);
+    mergeMostRecentlyUpdated(targets, savedTargets);
+    // The saved totals already account for the samples this history was loaded with, and for the
+    // ones other builds recorded since, so only the samples recorded since are added to them.
+    for (Map.Entry<String, Map<Metric, Totals>> ruleType : unsavedRuleTypes.entrySet()) {
+      Map<Metric, Totals> saved =
+          savedRuleTypes.computeIfAbsent(ruleType.getKey(), type -> new EnumMap<>(Metric.class));
+      for (Map.Entry<Metric, Totals> totals : ruleType.getValue().entrySet()) {
+        saved.computeIfAbsent(totals.getKey(), ignored -> new Totals()).addAll(totals.getValue());
+      }
+    }
+    ruleTypes.clear();
+    ruleTypes.putAll(savedRuleTypes);
+    unsavedRuleTypes.clear();
+
+    if (targets.size() > maxTargets) {
+      List<Map.Entry<TargetKey, Entry>> entries = new ArrayList<>(targets.entrySet());
+      entries.sort(Comparator.comparingLong(entry -> -entry.getValue().lastUpdateMillis));
+      for (Map.Entry<TargetKey, Entry> entry : entries.subList(maxTargets, entries.size())) {
+        targets.remove(entry.getKey());
+      }
+    }
+
+    Files.createDirectories(path.getParent());
+    // Unique so that builds saving at the same time don't write to the same file.
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeTargetEntries(out, targets);
+        writeRuleTypeEntries(out, ruleTypes);
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static void mergeMostRecentlyUpdated(
+      Map<TargetKey, Entry> entries, Map<TargetKey, Entry> saved) {
+    for (Map.Entry<TargetKey, Entry> entry : saved.entrySet()) {
+      entries.merge(
+          entry.getKey(),
+          entry.getValue(),
+          (ours, theirs) -> theirs.lastUpdateMillis > ours.lastUpdateMillis ? theirs : ours);
+    }
+  }
+
+  private static void writeTargetEntries(DataOutputStream out, Map<TargetKey, Entry> entries)
+      throws IOException {
+    out.writeInt(entries.size());
+    for (Map.Entry<TargetKey, Entry> mapEntry : entries.entrySet()) {
+      out.writeUTF(mapEntry.getKey().fullyQualifiedName);
+      out.writeByte(mapEntry.getKey().ruleKeyType.ordinal());
+      writeEntry(out, mapEntry.getValue());
+    }
+  }
+
+  private static void writeRuleTypeEntries(
+      DataOutputStream out, Map<String, Map<Metric, Totals>> entries) throws IOException {
+    out.writeInt(entries.size());
+    for (Map.Entry<String, Map<Metric, Totals>> mapEntry : entries.entrySet()) {
+      out.writeUTF(mapEntry.getKey());
+      out.writeByte(mapEntry.getValue().size());
+      for (Map.Entry<Metric, Totals> totals : mapEntry.getValue().entrySet()) {
+        out.writeByte(totals.getKey().ordinal());
+        out.writeLong(totals.getValue().count);
+        out.writeDouble(totals.getValue().sum);
+        out.writeLong(totals.getValue().last);
+        out.writeLong(totals.getValue().max);
+      }
+    }
+  }
+
+  private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    out.writeUTF(entry.ruleType);
+    out.writeLong(entry.lastUpdateMillis);
+    out.writeByte(entry.stats.size());
+    for (Map.Entry<Metric, RollingStats> stats : entry.stats.entrySet()) {
+      out.writeByte(stats.getKey().ordinal());
+      out.writeLong(stats.getValue().count);
+      out.writeDouble(stats.getValue().mean);
+      out.writeLong(stats.getValue().last);
+      out.writeLong(stats.getValue().max);
+    }
+  }
+
+  private static void readTargetEntries(DataInputStream in, Map<TargetKey, Entry> entries)
+      throws IOException {
+    RuleKeyType[] ruleKeyTypes = RuleKeyType.values();
+    int entryCount = in.readInt();
+    for (int i = 0; i < entryCount; i++) {
+      String fullyQualifiedName = in.readUTF();
+      int ordinal = in.readByte();
+      if (ordinal < 0 || ordinal >= ruleKeyTypes.length) {
+        throw new IOException("Unknown rule key type " + ordinal);
+      }
+      entries.put(new TargetKey(fullyQualifiedName, ruleKeyTypes[ordinal]), readEntry(in));
+    }
+  }
+
+  private static void readRuleTypeEntries(
+      DataInputStream in, Map<String, Map<Metric, Totals>> entries) throws IOException {
+    int entryCount = in.readInt();
+    for (int i = 0; i < entryCount; i++) {
+      String ruleType = in.readUTF();
+      Map<Metric, Totals> totals = new EnumMap<>(Metric.class);
+      int totalsCount = in.readByte();
+      for (int j = 0; j < totalsCount; j++) {
+        totals.put(
+            readMetric(in),
+            new Totals(in.readLong(), in.readDouble(), in.readLong(), in.readLong()));
+      }
+      entries.put(ruleType, totals);
+    }
+  }
+
+  private static Entry readEntry(DataInputStream in) throws IOException {
+    Entry entry = new Entry(in.readUTF(), in.readLong());
+    int statsCount = in.readByte();
+    for (int i = 0; i < statsCount; i++) {
+      entry.stats.put(
+          readMetric(in),
+          new RollingStats(in.readLong(), in.readDouble(), in.readLong(), in.readLong()));
+    }
+    return entry;
+  }
+
+  private static Metric readMetric(DataInputStream in) throws IOException {
+    Metric[] metrics = Metric.values();
+    int ordinal = in.readByte();
+    if (ordinal < 0 || ordinal >= metrics.length) {
+      throw new IOException("Unknown metric " + ordinal);
+    }
+    return metrics[ordinal];
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.core.build.stats.BuildRuleHistory.Metric;
+import com.facebook.buck.core.build.stats.BuildRuleHistory.RollingStats;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rules.BuildRule;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Estimates of how long a build keeps going once each of its rules starts, i.e. the length of the
+ * longest chain of rules starting with the rule and ending with a requested one, so that the rules
+ * heading the longest chains can be started first instead of being found out once everything else
+ * is done.
+ *
+ * <p>The estimates are derived from the execution times recorded in the {@link BuildRuleHistory}
+ * of previous builds as the rules of a build are requested, and are not persisted themselves.
+ */
+public class CriticalPathEstimates {
+
+  private final BuildRuleHistory history;
+  private final ConcurrentMap<BuildTarget, Long> remainingMillisByTarget =
+      new ConcurrentHashMap<>();
+
+  public CriticalPathEstimates(BuildRuleHistory history) {
+    this.history = history;
+  }
+
+  /**
+   * @return the estimated time in milliseconds from the start of the rule with the given target to
+   *     the end of the build, or 0 if it's unknown
+   */
+  public long getRemainingMillis(BuildTarget target) {
+    return remainingMillisByTarget.getOrDefault(target, 0L);
+  }
+
+  /**
+   * Estimates the rules a requested rule depends on, keeping the longest estimate of rules which
+   * are also depended on by other requested rules.
+   *
+   * @param deps the dependencies of each rule
+   */
+  public void addRequestedRule(BuildRule root, Function<BuildRule, Iterable<BuildRule>> deps) {
+    // Walk the rules from the requested one down to the leaves, visiting each rule once all its
+    // dependents are, so that the longest chain starting with a rule is known by then.
+    List<BuildRule> dependentsFirst = new ArrayList<>();
+    Set<BuildRule> seen = new HashSet<>();
+    Deque<Iterator<BuildRule>> stack = new ArrayDeque<>();
+    Deque<BuildRule> path = new ArrayDeque<>();
+    seen.add(root);
+    path.push(root);
+    stack.push(deps.apply(root).iterator());
+    while (!stack.isEmpty()) {
+      Iterator<BuildRule> remainingDeps = stack.peek();
+      if (remainingDeps.hasNext()) {
+        BuildRule dep = remainingDeps.next();
+        if (seen.add(dep)) {
+          path.push(dep);
+          stack.push(deps.apply(dep).iterator());
+        }
+      } else {
+        stack.pop();
+        dependentsFirst.add(path.pop());
+      }
+    }
+
+    Map<BuildRule, Long> executionMillis = new HashMap<>();
+    Map<BuildRule, Long> remainingMillis = new HashMap<>();
+    remainingMillis.put(root, getExecutionMillis(root));
+    for (int i = dependentsFirst.size() - 1; i >= 0; i--) {
+      BuildRule rule = dependentsFirst.get(i);
+      long remaining = remainingMillis.get(rule);
+      remainingMillisByTarget.merge(rule.getBuildTarget(), remaining, Math::max);
+      for (BuildRule dep : deps.apply(rule)) {
+        long depMillis = executionMillis.computeIfAbsent(dep, this::getExecutionMillis);
+        remainingMillis.merge(dep, depMillis + remaining, Math::max);
+      }
+    }
+  }
+
+  private long getExecutionMillis(BuildRule rule) {
+    return history
+        .getStatsOrRuleTypeStats(rule.getBuildTarget(), rule.getType(), Metric.EXECUTION_MILLIS)
+        .map(RollingStats::getMean)
+        .map(Double::longValue)
+        .orElse(0L);
+  }
+}
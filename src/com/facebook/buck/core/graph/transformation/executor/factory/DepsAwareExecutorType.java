@@ -42,6 +42,10 @@ public enum DepsAwareExecutorType implements WithProbability {
    * com.facebook.buck.core.graph.transformation.executor.impl.ToposortBasedDepsAwareExecutor}
    */
   TOPOSORT_BASED(0),
+  /**
+   * use {@link com.facebook.buck.core.graph.transformation.executor.impl.ForkJoinDepsAwareExecutor}
+   */
+  FORK_JOIN_BASED(0),
   ;
 
   private final double probability;
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.executor.impl;
+
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareExecutor;
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareTask.DepsSupplier;
+import com.facebook.buck.core.graph.transformation.executor.impl.AbstractDepsAwareTask.TaskStatus;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.function.ThrowingSupplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link DepsAwareExecutor} which runs tasks on a work-stealing {@link ForkJoinPool}.
+ *
+ * <p>Like {@link ToposortBasedDepsAwareExecutor}, a task whose dependencies aren't done registers
+ * itself as a dependant of them and gives up its thread, and the task completing its last
+ * dependency schedules it again. Waiting tasks thus hold no thread, so the number of pending tasks
+ * isn't limited by the number of threads. Instead of a single shared queue, each thread keeps its
+ * own queue of the tasks it scheduled, stealing from other threads when it runs out, which avoids
+ * contention on the queue when many tasks are scheduled at once.
+ *
+ * <p>Blocking operations that are ran in a task will block its thread.
+ */
+public class ForkJoinDepsAwareExecutor<T>
+    implements DepsAwareExecutor<T, ToposortBasedDepsAwareTask<T>> {
+
+  private static final Logger LOG = Logger.get(ForkJoinDepsAwareExecutor.class);
+
+  private final ForkJoinPool pool;
+  private final ToposortDepsAwareWorker<T> worker;
+  private volatile boolean isShutdown = false;
+
+  private ForkJoinDepsAwareExecutor(int parallelism) {
+    // Tasks are run in the order they were scheduled. Running the most recently scheduled first
+    // makes every dependant reschedule a task still waiting for its dependencies, which then
+    // registers itself again with each of them.
+    this.pool =
+        new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    // The worker only evaluates tasks, its queue is never used as tasks are queued by the pool.
+    this.worker =
+        new ToposortDepsAwareWorker<T>(new LinkedBlockingDeque<>()) {
+          @Override
+          protected void scheduleFirst(ToposortBasedDepsAwareTask<T> task) {
+            schedule(task);
+          }
+        };
+  }
+
+  /** Creates a {@link ForkJoinDepsAwareExecutor} running at most {@code parallelism} threads. */
+  public static <U> ForkJoinDepsAwareExecutor<U> of(int parallelism) {
+    return new ForkJoinDepsAwareExecutor<>(parallelism);
+  }
+
+  @Override
+  public void close() {
+    isShutdown = true;
+    pool.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return isShutdown;
+  }
+
+  @Override
+  public ToposortBasedDepsAwareTask<T> createThrowingTask(
+      Callable<T> callable,
+      ThrowingSupplier<ImmutableSet<ToposortBasedDepsAwareTask<T>>, Exception> prereqSupplier,
+      ThrowingSupplier<ImmutableSet<ToposortBasedDepsAwareTask<T>>, Exception> depsSupplier) {
+    return ToposortBasedDepsAwareTask.of(callable, DepsSupplier.of(prereqSupplier, depsSupplier));
+  }
+
+  @Override
+  public ToposortBasedDepsAwareTask<T> createTask(Callable<T> callable) {
+    return ToposortBasedDepsAwareTask.of(callable);
+  }
+
+  @Override
+  public Future<T> submit(ToposortBasedDepsAwareTask<T> task) {
+    if (isShutdown) {
+      throw new RejectedExecutionException("Executor has already been shutdown");
+    }
+    if (task.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.SCHEDULED)) {
+      schedule(task);
+    }
+    return task.getResultFuture();
+  }
+
+  @Override
+  public ImmutableList<Future<T>> submitAll(Collection<ToposortBasedDepsAwareTask<T>> tasks) {
+    ImmutableList.Builder<Future<T>> futures = ImmutableList.builderWithExpectedSize(tasks.size());
+    for (ToposortBasedDepsAwareTask<T> task : tasks) {
+      futures.add(submit(task));
+    }
+    return futures.build();
+  }
+
+  private void schedule(ToposortBasedDepsAwareTask<T> task) {
+    ForkJoinTask<?> forkJoinTask = ForkJoinTask.adapt(() -> run(task));
+    if (ForkJoinTask.getPool() == pool) {
+      // push onto this thread's own queue, where other threads can steal it from
+      forkJoinTask.fork();
+      return;
+    }
+    try {
+      pool.execute(forkJoinTask);
+    } catch (RejectedExecutionException e) {
+      if (!isShutdown) {
+        throw e;
+      }
+    }
+  }
+
+  private void run(ToposortBasedDepsAwareTask<T> task) {
+    try {
+      worker.eval(task);
+    } catch (InterruptedException e) {
+      LOG.info("Worker was interrupted");
+      Thread.currentThread().interrupt();
+    } catch (Throwable e) {
+      LOG.error(e, "Unexpected Error occurred in DepsAwareExecutor");
+    }
+  }
+}
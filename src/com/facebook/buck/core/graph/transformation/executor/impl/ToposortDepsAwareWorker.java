@@ -139,12 +139,20 @@ class ToposortDepsAwareWorker<T> extends AbstractDepsAwareWorker<ToposortBasedDe
             continue;
           }
         }
-        sharedQueue.putFirst(taskToSchedule);
+        scheduleFirst(taskToSchedule);
       }
     }
     return true;
   }
 
+  /**
+   * Schedules a task whose status was just set to {@link TaskStatus#SCHEDULED} to run before the
+   * other scheduled tasks.
+   */
+  protected void scheduleFirst(ToposortBasedDepsAwareTask<T> task) throws InterruptedException {
+    sharedQueue.putFirst(task);
+  }
+
   private ImmutableList<ToposortBasedDepsAwareTask<T>> checkTasksReadyOrReschedule(
       ImmutableSet<? extends ToposortBasedDepsAwareTask<T>> tasks)
       throws InterruptedException, ExecutionException {
@@ -156,7 +164,7 @@ class ToposortDepsAwareWorker<T> extends AbstractDepsAwareWorker<ToposortBasedDe
       if (status != TaskStatus.DONE) {
         notDoneDepsBuilder.add(task);
         if (task.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.SCHEDULED)) {
-          sharedQueue.putFirst(task);
+          scheduleFirst(task);
         }
       }
       propagateException(task);
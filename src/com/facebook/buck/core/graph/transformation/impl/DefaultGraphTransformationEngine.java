@@ -42,6 +42,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 /**
  * Transformation engine that transforms supplied {@link ComputeKey} into {@link ComputeResult} via
@@ -210,34 +211,55 @@ public final class DefaultGraphTransformationEngine implements GraphTransformati
 
     private <UResultType extends ComputeResult, UKeyType extends ComputeKey<UResultType>>
         TaskType convertKeyToTask(UKeyType key) {
+      // Keys with many dependents are requested by many threads at once, so nothing here runs
+      // under a lock of the index: a new task is created up front, without running any user code,
+      // and published with a single putIfAbsent. A thread losing the race uses the winner's task
+      // and drops its own, which was never submitted.
+      TaskType pendingTask = computationIndex.get(key);
+      if (pendingTask != null) {
+        return pendingTask;
+      }
+      TaskType task = createTaskForKey(key);
+      pendingTask = computationIndex.putIfAbsent(key, task);
+      return pendingTask == null ? task : pendingTask;
+    }
+
+    private <UResultType extends ComputeResult, UKeyType extends ComputeKey<UResultType>>
+        TaskType createTaskForKey(UKeyType key) {
       GraphComputationStage<UKeyType, UResultType> stage = transformationStageMap.get(key);
-      return computationIndex.computeIfAbsent(
-          key,
-          mapKey -> {
-            // recheck the resultCache in event that the cache got populated while we were waiting
-            // to access the computationIndex.
-            Optional<? extends ComputeResult> cachedResult = stage.getCache().get(key);
-            if (cachedResult.isPresent()) {
-              return executor.createTask(
-                  () -> {
-                    computationIndex.remove(key);
-                    return cachedResult.get();
-                  });
-            }
+      // The result may have been cached between the caller's cache lookup and the task being
+      // published, by a task which was then removed from the index. The cache is checked again
+      // once the task runs, which is after it was published, so that key is not transformed twice.
+      Supplier<Optional<UResultType>> cachedResult =
+          MoreSuppliers.memoize(() -> stage.getCache().get(key));
 
-            ImmutableMap.Builder<ComputeKey<?>, Future<ComputeResult>> depResults =
-                ImmutableMap.builder();
-            ThrowingSupplier<ImmutableSet<TaskType>, Exception> preliminaryDepsSupplier =
-                MoreSuppliers.memoize(
-                    () -> computePreliminaryDepForKey(key, stage, depResults), Exception.class);
-            ThrowingSupplier<ImmutableSet<TaskType>, Exception> depsSupplier =
-                MoreSuppliers.memoize(
-                    () -> computeDepsForKey(stage, key, depResults), Exception.class);
-            return executor.createThrowingTask(
-                () -> computeForKey(key, stage, collectDeps(depResults.build())),
-                preliminaryDepsSupplier,
-                depsSupplier);
-          });
+      ImmutableMap.Builder<ComputeKey<?>, Future<ComputeResult>> depResults =
+          ImmutableMap.builder();
+      ThrowingSupplier<ImmutableSet<TaskType>, Exception> preliminaryDepsSupplier =
+          MoreSuppliers.memoize(
+              () ->
+                  cachedResult.get().isPresent()
+                      ? ImmutableSet.of()
+                      : computePreliminaryDepForKey(key, stage, depResults),
+              Exception.class);
+      ThrowingSupplier<ImmutableSet<TaskType>, Exception> depsSupplier =
+          MoreSuppliers.memoize(
+              () ->
+                  cachedResult.get().isPresent()
+                      ? ImmutableSet.of()
+                      : computeDepsForKey(stage, key, depResults),
+              Exception.class);
+      return executor.createThrowingTask(
+          () -> {
+            Optional<UResultType> cached = cachedResult.get();
+            if (cached.isPresent()) {
+              computationIndex.remove(key);
+              return cached.get();
+            }
+            return computeForKey(key, stage, collectDeps(depResults.build()));
+          },
+          preliminaryDepsSupplier,
+          depsSupplier);
     }
 
     private <UResultType extends ComputeResult, UKeyType extends ComputeKey<UResultType>>
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.impl;
+
+import com.facebook.buck.core.graph.transformation.model.ComputeKey;
+import com.facebook.buck.core.graph.transformation.model.ComputeResult;
+import java.io.IOException;
+
+/**
+ * Converts the keys and results of a computation to bytes so that {@link
+ * PersistentGraphEngineCache} can store them.
+ *
+ * @param <Key> Key to the cache
+ * @param <Value> Value stored by Cache
+ */
+public interface GraphEngineCacheSerializer<
+    Key extends ComputeKey<Value>, Value extends ComputeResult> {
+
+  /**
+   * @return the bytes identifying the given key together with the inputs its result is computed
+   *     from, e.g. a hash of the files it reads. Results stored by an earlier daemon are looked up
+   *     by these bytes, so they have to change whenever the result would.
+   */
+  byte[] serializeKey(Key key);
+
+  /** @return the bytes the given result can be restored from by {@link #deserializeValue}. */
+  byte[] serializeValue(Value value);
+
+  /**
+   * Restores a result serialized by {@link #serializeValue}.
+   *
+   * @throws IOException if the bytes can't be read or the result is no longer valid, the entry is
+   *     then dropped from the cache
+   */
+  Value deserializeValue(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.impl;
+
+import com.facebook.buck.core.graph.transformation.GraphEngineCache;
+import com.facebook.buck.core.graph.transformation.model.ComputeKey;
+import com.facebook.buck.core.graph.transformation.model.ComputeResult;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.cache.CacheStats;
+import com.facebook.buck.util.cache.CacheStatsTracker;
+import com.facebook.buck.util.cache.InstrumentingCacheStatsTracker;
+import com.facebook.buck.util.sqlite.RetryBusyHandler;
+import com.facebook.buck.util.sqlite.SQLiteUtils;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import org.sqlite.BusyHandler;
+
+/**
+ * A {@link GraphEngineCache} backed by a SQLite database which outlives the daemon, so that a
+ * fresh daemon can restore results computed by an earlier one instead of recomputing them.
+ *
+ * <p>Results are stored under their {@link GraphEngineCacheSerializer#serializeKey serialized
+ * keys}, which must identify everything the results were computed from, e.g. by including a hash of
+ * their inputs. The serializer may also reject a stored result when it is read back. The database
+ * as a whole is tied to a fingerprint of the settings which affect all results (Buck version,
+ * serialization format, configuration); opening it with a different fingerprint drops all stored
+ * results.
+ *
+ * <p>Results are not kept in memory: every {@link #get} reads the database, so this is meant to
+ * back an in-memory cache on its misses. Writes to the database are buffered and committed in a
+ * single transaction by {@link #flush()}, which then evicts the least recently used entries until
+ * the stored results fit in the configured size.
+ *
+ * <p>A key which is not found is serialized once, and the result computed for it is stored under
+ * the same bytes, i.e. under its inputs as they were when it was looked up. Stored results are not
+ * dropped when their inputs change, since they are then no longer looked up and get evicted.
+ *
+ * @param <Key> Key to the cache
+ * @param <Value> Value stored by Cache
+ */
+public class PersistentGraphEngineCache<Key extends ComputeKey<Value>, Value extends ComputeResult>
+    implements GraphEngineCache<Key, Value>, AutoCloseable {
+
+  private static final Logger LOG = Logger.get(PersistentGraphEngineCache.class);
+
+  /** Marks the keys in {@link #missedKeys} whose inputs changed since they were looked up. */
+  private static final byte[] INVALIDATED = new byte[0];
+
+  private final GraphEngineCacheSerializer<Key, Value> serializer;
+  private final long maxSizeBytes;
+  private final CacheStatsTracker statsTracker;
+
+  private final Connection connection;
+  private final PreparedStatement selectStmt;
+  private final PreparedStatement updateStmt;
+  private final PreparedStatement touchStmt;
+  private final PreparedStatement deleteStmt;
+
+  /** Serialized results stored since the last {@link #flush()}, by serialized key. */
+  private final Map<ByteBuffer, byte[]> pendingWrites = new HashMap<>();
+
+  /**
+   * Serialized keys of the results looked up and not found, until their results are stored, or
+   * {@link #INVALIDATED}.
+   */
+  private final ConcurrentHashMap<Key, byte[]> missedKeys = new ConcurrentHashMap<>();
+
+  /** Serialized keys of results used since the last {@link #flush()}. */
+  private final Set<ByteBuffer> pendingReads = new HashSet<>();
+
+  /** Incremented by every {@link #flush()}, entries with the lowest value are evicted first. */
+  private long accessSequence;
+
+  private PersistentGraphEngineCache(
+      Path dbPath,
+      String fingerprint,
+      GraphEngineCacheSerializer<Key, Value> serializer,
+      long maxSizeBytes)
+      throws IOException {
+    Preconditions.checkArgument(maxSizeBytes >= 0, "maxSizeBytes must not be negative");
+    this.serializer = serializer;
+    this.maxSizeBytes = maxSizeBytes;
+    this.statsTracker = new InstrumentingCacheStatsTracker();
+    SQLiteUtils.initialize();
+    try {
+      Files.createDirectories(dbPath.getParent());
+      Class.forName("org.sqlite.JDBC");
+      connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+        statement.executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+        statement.executeUpdate(
+            "CREATE TABLE IF NOT EXISTS results "
+                + "(key BLOB PRIMARY KEY, value BLOB, size INTEGER, last_used INTEGER) "
+                + "WITHOUT ROWID");
+        statement.executeUpdate(
+            "CREATE TABLE IF NOT EXISTS store_info "
+                + "(key TEXT PRIMARY KEY, value TEXT) "
+                + "WITHOUT ROWID");
+      }
+      selectStmt = connection.prepareStatement("SELECT value FROM results WHERE key = ?");
+      updateStmt =
+          connection.prepareStatement(
+              "INSERT OR REPLACE INTO results (key, value, size, last_used) VALUES (?, ?, ?, ?)");
+      touchStmt = connection.prepareStatement("UPDATE results SET last_used = ? WHERE key = ?");
+      deleteStmt = connection.prepareStatement("DELETE FROM results WHERE key = ?");
+      BusyHandler.setHandler(connection, new RetryBusyHandler());
+      checkFingerprint(fingerprint);
+      try (Statement statement = connection.createStatement();
+          ResultSet rs = statement.executeQuery("SELECT MAX(last_used) FROM results")) {
+        accessSequence = rs.next() ? rs.getLong(1) : 0;
+      }
+    } catch (ClassNotFoundException | SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Opens the cache stored in the given database file, creating it if needed.
+   *
+   * @param fingerprint identifies the settings affecting every result; results stored under
+   *     another fingerprint are dropped.
+   * @param maxSizeBytes the size the serialized results are trimmed to by {@link #flush()}
+   */
+  public static <Key extends ComputeKey<Value>, Value extends ComputeResult>
+      PersistentGraphEngineCache<Key, Value> open(
+          Path dbPath,
+          String fingerprint,
+          GraphEngineCacheSerializer<Key, Value> serializer,
+          long maxSizeBytes)
+          throws IOException {
+    return new PersistentGraphEngineCache<>(dbPath, fingerprint, serializer, maxSizeBytes);
+  }
+
+  private void checkFingerprint(String fingerprint) throws SQLException {
+    String storedFingerprint = null;
+    try (Statement statement = connection.createStatement();
+        ResultSet rs =
+            statement.executeQuery("SELECT value FROM store_info WHERE key = 'fingerprint'")) {
+      if (rs.next()) {
+        storedFingerprint = rs.getString(1);
+      }
+    }
+    if (fingerprint.equals(storedFingerprint)) {
+      return;
+    }
+    LOG.debug("Dropping persisted results stored for different settings.");
+    try (Statement statement = connection.createStatement();
+        PreparedStatement updateInfo =
+            connection.prepareStatement(
+                "INSERT OR REPLACE INTO store_info (key, value) VALUES ('fingerprint', ?)")) {
+      statement.executeUpdate("DELETE FROM results");
+      updateInfo.setString(1, fingerprint);
+      updateInfo.executeUpdate();
+    }
+  }
+
+  @Override
+  public Optional<Value> get(Key key) {
+    CacheStatsTracker.CacheRequest request = statsTracker.startRequest();
+    @Nullable byte[] serializedKey = missedKeys.get(key);
+    if (serializedKey == null || serializedKey == INVALIDATED) {
+      serializedKey = serializer.serializeKey(key);
+    }
+    @Nullable Value value = load(key, ByteBuffer.wrap(serializedKey));
+    if (value == null) {
+      missedKeys.put(key, serializedKey);
+      request.recordMiss();
+      return Optional.empty();
+    }
+    missedKeys.remove(key);
+    request.recordHit();
+    return Optional.of(value);
+  }
+
+  @Nullable
+  private synchronized Value load(Key key, ByteBuffer serializedKey) {
+    @Nullable byte[] bytes = pendingWrites.get(serializedKey);
+    if (bytes == null) {
+      try {
+        selectStmt.setBytes(1, serializedKey.array());
+        try (ResultSet rs = selectStmt.executeQuery()) {
+          if (!rs.next()) {
+            return null;
+          }
+          bytes = rs.getBytes(1);
+        }
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to read the persisted result of %s.", key);
+        return null;
+      }
+    }
+    Value value;
+    try {
+      value = serializer.deserializeValue(bytes);
+    } catch (IOException e) {
+      LOG.debug(e, "Dropping the persisted result of %s.", key);
+      delete(serializedKey);
+      return null;
+    }
+    pendingReads.add(serializedKey);
+    return value;
+  }
+
+  @Override
+  public void put(Key key, Value value) {
+    @Nullable byte[] serializedKey = missedKeys.remove(key);
+    if (serializedKey == INVALIDATED) {
+      return;
+    }
+    if (serializedKey == null) {
+      serializedKey = serializer.serializeKey(key);
+    }
+    byte[] serializedValue = serializer.serializeValue(value);
+    synchronized (this) {
+      pendingWrites.put(ByteBuffer.wrap(serializedKey), serializedValue);
+    }
+  }
+
+  /**
+   * Records that the inputs of the given key changed, so that a result computed since it was last
+   * looked up is not stored under the inputs as they were then.
+   */
+  public void invalidate(Key key) {
+    if (missedKeys.computeIfPresent(key, (k, serializedKey) -> INVALIDATED) != null) {
+      statsTracker.recordInvalidation();
+    }
+  }
+
+  /** Records that the inputs of any key may have changed, see {@link #invalidate}. */
+  public void invalidateLookups() {
+    missedKeys.replaceAll((key, serializedKey) -> INVALIDATED);
+  }
+
+  private synchronized void delete(ByteBuffer serializedKey) {
+    pendingWrites.remove(serializedKey);
+    pendingReads.remove(serializedKey);
+    try {
+      deleteStmt.setBytes(1, serializedKey.array());
+      deleteStmt.executeUpdate();
+    } catch (SQLException e) {
+      LOG.warn(e, "Failed to delete a persisted result.");
+    }
+  }
+
+  /** Drops all results from the database. */
+  public synchronized void invalidateAll() {
+    invalidateLookups();
+    pendingWrites.clear();
+    pendingReads.clear();
+    try (Statement statement = connection.createStatement()) {
+      statsTracker.recordInvalidation(statement.executeUpdate("DELETE FROM results"));
+    } catch (SQLException e) {
+      LOG.warn(e, "Failed to delete the persisted results.");
+    }
+  }
+
+  /**
+   * Commits the results stored since the last call, and evicts the least recently used results
+   * from the database until the rest fit in the configured size.
+   */
+  public synchronized void flush() {
+    if (pendingWrites.isEmpty() && pendingReads.isEmpty()) {
+      return;
+    }
+    accessSequence++;
+    try {
+      connection.setAutoCommit(false);
+      try {
+        for (Map.Entry<ByteBuffer, byte[]> pending : pendingWrites.entrySet()) {
+          updateStmt.setBytes(1, pending.getKey().array());
+          updateStmt.setBytes(2, pending.getValue());
+          updateStmt.setLong(3, pending.getValue().length);
+          updateStmt.setLong(4, accessSequence);
+          updateStmt.addBatch();
+        }
+        updateStmt.executeBatch();
+        for (ByteBuffer read : pendingReads) {
+          touchStmt.setLong(1, accessSequence);
+          touchStmt.setBytes(2, read.array());
+          touchStmt.addBatch();
+        }
+        touchStmt.executeBatch();
+        connection.commit();
+      } finally {
+        connection.setAutoCommit(true);
+      }
+      evict();
+    } catch (SQLException e) {
+      LOG.warn(e, "Failed to persist %d results.", pendingWrites.size());
+    }
+    pendingWrites.clear();
+    pendingReads.clear();
+  }
+
+  private void evict() throws SQLException {
+    long excessBytes;
+    try (Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT SUM(size) FROM results")) {
+      excessBytes = (rs.next() ? rs.getLong(1) : 0) - maxSizeBytes;
+    }
+    if (excessBytes <= 0) {
+      return;
+    }
+    List<byte[]> evicted = new ArrayList<>();
+    try (Statement statement = connection.createStatement();
+        ResultSet rs =
+            statement.executeQuery("SELECT key, size FROM results ORDER BY last_used ASC")) {
+      while (excessBytes > 0 && rs.next()) {
+        evicted.add(rs.getBytes(1));
+        excessBytes -= rs.getLong(2);
+      }
+    }
+    connection.setAutoCommit(false);
+    try {
+      for (byte[] key : evicted) {
+        deleteStmt.setBytes(1, key);
+        deleteStmt.addBatch();
+      }
+      deleteStmt.executeBatch();
+      connection.commit();
+    } finally {
+      connection.setAutoCommit(true);
+    }
+    LOG.debug("Evicted %d persisted results.", evicted.size());
+    statsTracker.recordEviction(evicted.size());
+  }
+
+  /** @return hit, miss, eviction and invalidation counts of this cache since it was opened. */
+  public CacheStats getStats() {
+    return CacheStats.builder()
+        .setHitCount(statsTracker.getTotalHitCount())
+        .setMissCount(statsTracker.getTotalMissCount())
+        .setEvictionCount(statsTracker.getTotalEvictionCount())
+        .setInvalidationCount(statsTracker.getTotalInvalidationCount())
+        .setRetrievalTime(statsTracker.getTotalRetrievalTime())
+        .build();
+  }
+
+  @Override
+  public synchronized void close() {
+    flush();
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
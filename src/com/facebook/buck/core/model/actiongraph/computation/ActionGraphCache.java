@@ -18,14 +18,27 @@ package com.facebook.buck.core.model.actiongraph.computation;
 
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
 import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
 import com.facebook.buck.core.rules.ActionGraphBuilder;
+import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.BuckEventBus;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import java.util.Map;
+import java.util.Optional;
 import javax.annotation.Nullable;
 
-/** Contains cached action graphs. */
+/**
+ * Contains cached action graphs, keyed by the target graph they were created from, and evicted in
+ * least recently used order once there are more than the maximum number of entries.
+ *
+ * <p>When a graph is created incrementally, it takes over the rules of the cached graph which has
+ * the most targets in common with it, so that only that entry becomes unusable and switching
+ * between a few different sets of targets keeps the other entries around.
+ */
 public class ActionGraphCache {
+  private static final Logger LOG = Logger.get(ActionGraphCache.class);
 
   private final Cache<TargetGraph, ActionGraphAndBuilder> previousActionGraphs;
   private final IncrementalActionGraphGenerator incrementalActionGraphGenerator;
@@ -56,9 +69,106 @@ public class ActionGraphCache {
     previousActionGraphs.put(targetGraph, actionGraphAndBuilder);
   }
 
+  /**
+   * @return the sizes of the cached graphs, which is what they retain beyond the target nodes that
+   *     the parser caches anyway.
+   */
+  public ImmutableList<EntrySize> getEntrySizes() {
+    ImmutableList.Builder<EntrySize> sizes = ImmutableList.builder();
+    for (Map.Entry<TargetGraph, ActionGraphAndBuilder> entry :
+        previousActionGraphs.asMap().entrySet()) {
+      sizes.add(
+          new EntrySize(
+              entry.getKey().getNodes().size(),
+              entry.getValue().getActionGraph().getSize()));
+    }
+    return sizes.build();
+  }
+
+  /**
+   * Populates the given builder with the rules of a previous action graph which can be reused for
+   * the given target graph. The cached graph those rules are taken from is dropped from the cache,
+   * as its rules now belong to the new builder.
+   */
   public void populateActionGraphBuilderWithCachedRules(
       BuckEventBus eventBus, TargetGraph targetGraph, ActionGraphBuilder graphBuilder) {
+    Optional<TargetGraph> lastTargetGraph = incrementalActionGraphGenerator.getLastTargetGraph();
+    Optional<Map.Entry<TargetGraph, ActionGraphAndBuilder>> base = findClosestEntry(targetGraph);
+    if (base.isPresent()) {
+      TargetGraph baseTargetGraph = base.get().getKey();
+      LOG.debug(
+          "Reusing rules of the cached action graph of %d targets.",
+          baseTargetGraph.getNodes().size());
+      previousActionGraphs.invalidate(baseTargetGraph);
+      incrementalActionGraphGenerator.setLastActionGraph(
+          baseTargetGraph, base.get().getValue().getActionGraphBuilder());
+    } else if (lastTargetGraph.isPresent() && isCached(lastTargetGraph.get())) {
+      // It has nothing in common with the new graph, leave it usable for cache hits.
+      incrementalActionGraphGenerator.clearLastActionGraph();
+    }
     incrementalActionGraphGenerator.populateActionGraphBuilderWithCachedRules(
         eventBus, targetGraph, graphBuilder);
   }
+
+  /**
+   * Finds the cached entry whose target graph has the most targets in common with the given one,
+   * preferring the last graph rules were reused from on ties.
+   */
+  private Optional<Map.Entry<TargetGraph, ActionGraphAndBuilder>> findClosestEntry(
+      TargetGraph targetGraph) {
+    TargetGraph lastTargetGraph =
+        incrementalActionGraphGenerator.getLastTargetGraph().orElse(null);
+    @Nullable Map.Entry<TargetGraph, ActionGraphAndBuilder> closestEntry = null;
+    int closestCommonTargets = 0;
+    for (Map.Entry<TargetGraph, ActionGraphAndBuilder> entry :
+        previousActionGraphs.asMap().entrySet()) {
+      int commonTargets = 0;
+      for (TargetNode<?> node : targetGraph.getNodes()) {
+        if (entry.getKey().getExactOptional(node.getBuildTarget()).isPresent()) {
+          commonTargets++;
+        }
+      }
+      if (commonTargets > closestCommonTargets
+          || (commonTargets > 0
+              && commonTargets == closestCommonTargets
+              && entry.getKey() == lastTargetGraph)) {
+        closestEntry = entry;
+        closestCommonTargets = commonTargets;
+      }
+    }
+    return Optional.ofNullable(closestEntry);
+  }
+
+  private boolean isCached(TargetGraph targetGraph) {
+    for (TargetGraph cachedTargetGraph : previousActionGraphs.asMap().keySet()) {
+      if (cachedTargetGraph == targetGraph) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The size of a cached action graph and of the target graph it was created from. */
+  public static final class EntrySize {
+    private final int targetNodeCount;
+    private final int buildRuleCount;
+
+    EntrySize(int targetNodeCount, int buildRuleCount) {
+      this.targetNodeCount = targetNodeCount;
+      this.buildRuleCount = buildRuleCount;
+    }
+
+    public int getTargetNodeCount() {
+      return targetNodeCount;
+    }
+
+    public int getBuildRuleCount() {
+      return buildRuleCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d targets, %d rules", targetNodeCount, buildRuleCount);
+    }
+  }
 }
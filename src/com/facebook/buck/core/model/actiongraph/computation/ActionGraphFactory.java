@@ -16,6 +16,7 @@
 
 package com.facebook.buck.core.model.actiongraph.computation;
 
+import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.core.cell.CellProvider;
 import com.facebook.buck.core.config.BuckConfig;
 import com.facebook.buck.core.graph.transformation.GraphComputation;
@@ -38,6 +39,8 @@ import com.facebook.buck.core.rules.analysis.impl.RuleAnalysisGraphImpl;
 import com.facebook.buck.core.rules.resolver.impl.RuleAnalysisCompatibleDelegatingActionGraphBuilder;
 import com.facebook.buck.core.rules.transformer.TargetNodeToBuildRuleTransformer;
 import com.facebook.buck.core.rules.transformer.impl.LegacyRuleAnalysisProviderCompatibleTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.counters.CounterRegistry;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ExperimentEvent;
 import com.facebook.buck.util.CloseableMemoizedSupplier;
@@ -49,6 +52,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import java.util.Map;
 
 public class ActionGraphFactory {
+  private static final Logger LOG = Logger.get(ActionGraphFactory.class);
 
   public static ActionGraphFactory create(
       BuckEventBus eventBus,
@@ -56,10 +60,27 @@ public class ActionGraphFactory {
       ImmutableMap<ExecutorPool, ListeningExecutorService> executorSupplier,
       CloseableMemoizedSupplier<DepsAwareExecutor<? super ComputeResult, ?>> depsAwareExecutor,
       BuckConfig buckConfig) {
+    return create(
+        eventBus,
+        cellProvider,
+        executorSupplier,
+        depsAwareExecutor,
+        buckConfig,
+        buckConfig.getView(BuildBuckConfig.class).getNumThreads());
+  }
+
+  /** @param parallelism number of workers which create the rules of the target graph's nodes */
+  public static ActionGraphFactory create(
+      BuckEventBus eventBus,
+      CellProvider cellProvider,
+      ImmutableMap<ExecutorPool, ListeningExecutorService> executorSupplier,
+      CloseableMemoizedSupplier<DepsAwareExecutor<? super ComputeResult, ?>> depsAwareExecutor,
+      BuckConfig buckConfig,
+      int parallelism) {
     ActionGraphConfig actionGraphConfig = buckConfig.getView(ActionGraphConfig.class);
     return new ActionGraphFactory(
         new ParallelActionGraphFactory(
-            () -> executorSupplier.get(ExecutorPool.GRAPH_CPU), cellProvider),
+            () -> executorSupplier.get(ExecutorPool.GRAPH_CPU), parallelism, cellProvider),
         buckConfig.getView(RuleAnalysisConfig.class).getComputationMode(),
         eventBus,
         actionGraphConfig.getIncrementalActionGraphExperimentGroups(),
@@ -87,10 +108,11 @@ public class ActionGraphFactory {
   }
 
   public ActionGraphAndBuilder createActionGraph(
-      TargetNodeToBuildRuleTransformer transformer,
+      TargetNodeToBuildRuleTransformer nodeTransformer,
       TargetGraph targetGraph,
       IncrementalActionGraphMode incrementalActionGraphMode,
       ActionGraphCreationLifecycleListener actionGraphCreationLifecycleListener) {
+    RuleTypeTimingTransformer transformer = new RuleTypeTimingTransformer(nodeTransformer);
 
     if (incrementalActionGraphMode == IncrementalActionGraphMode.EXPERIMENT) {
       incrementalActionGraphMode =
@@ -146,7 +168,11 @@ public class ActionGraphFactory {
     } else {
       graphBuilderDecorator = builderConstructor -> builderConstructor.apply(transformer);
     }
-    return delegate.create(transformer, targetGraph, listener, graphBuilderDecorator);
+    ActionGraphAndBuilder actionGraphAndBuilder =
+        delegate.create(transformer, targetGraph, listener, graphBuilderDecorator);
+    LOG.debug("Time spent creating rules by rule type: %s", transformer.getTimesMillis());
+    eventBus.post(new CounterRegistry.AsyncCounterRegistrationEvent(transformer.createCounters()));
+    return actionGraphAndBuilder;
   }
 
   interface ActionGraphCreationLifecycleListener {
@@ -145,7 +145,9 @@ public class ActionGraphProvider {
         } else {
           // If we get here, that means the cache is not empty, but the target graph wasn't
           // in the cache.
-          LOG.info("ActionGraph cache miss against " + actionGraphCache.size() + " entries.");
+          LOG.info(
+              "ActionGraph cache miss against %d entries: %s.",
+              actionGraphCache.size(), actionGraphCache.getEntrySizes());
           eventBus.post(ActionGraphEvent.Cache.missWithTargetGraphDifference());
         }
         out =
@@ -211,13 +213,10 @@ public class ActionGraphProvider {
         targetGraph,
         incrementalActionGraphMode,
         graphBuilder -> {
-          // Any previously cached action graphs are no longer valid, as we may use build rules
-          // from those graphs to construct a new graph incrementally, and update those build
-          // rules to use a new BuildRuleResolver.
-          actionGraphCache.invalidateCache();
-
-          // Populate the new build rule graphBuilder with all of the usable rules from the last
-          // build rule graphBuilder for incremental action graph generation.
+          // Populate the new build rule graphBuilder with all of the usable rules from the closest
+          // cached build rule graphBuilder for incremental action graph generation. That cached
+          // action graph is no longer valid, as its build rules are updated to use a new
+          // BuildRuleResolver, and is dropped from the cache.
           actionGraphCache.populateActionGraphBuilderWithCachedRules(
               eventBus, targetGraph, graphBuilder);
         });
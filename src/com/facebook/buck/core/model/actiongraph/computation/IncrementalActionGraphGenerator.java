@@ -50,6 +50,26 @@ public class IncrementalActionGraphGenerator {
   @Nullable private ActionGraphBuilder lastActionGraphBuilder;
   @Nullable private TargetGraph lastTargetGraph;
 
+  /** @return the target graph of the action graph the next one reuses rules from, if any. */
+  Optional<TargetGraph> getLastTargetGraph() {
+    return Optional.ofNullable(lastTargetGraph);
+  }
+
+  /**
+   * Makes the next call to {@link #populateActionGraphBuilderWithCachedRules} reuse the rules of
+   * the given action graph instead of those of the last one it populated.
+   */
+  void setLastActionGraph(TargetGraph targetGraph, ActionGraphBuilder graphBuilder) {
+    lastTargetGraph = targetGraph;
+    lastActionGraphBuilder = graphBuilder;
+  }
+
+  /** Makes the next call to {@link #populateActionGraphBuilderWithCachedRules} reuse no rules. */
+  void clearLastActionGraph() {
+    lastTargetGraph = null;
+    lastActionGraphBuilder = null;
+  }
+
   /**
    * Populates the given {@link ActionGraphBuilder} with the rules from the previously used {@link
    * ActionGraphBuilder} that are deemed usable after checking for invalidations with a target graph
@@ -17,39 +17,47 @@
 package com.facebook.buck.core.model.actiongraph.computation;
 
 import com.facebook.buck.core.cell.CellProvider;
-import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.actiongraph.ActionGraph;
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
 import com.facebook.buck.core.model.actiongraph.computation.ActionGraphFactory.ActionGraphCreationLifecycleListener;
 import com.facebook.buck.core.model.targetgraph.TargetGraph;
 import com.facebook.buck.core.model.targetgraph.TargetNode;
 import com.facebook.buck.core.rules.ActionGraphBuilder;
-import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.core.rules.config.registry.ConfigurationRuleRegistry;
 import com.facebook.buck.core.rules.config.registry.impl.ConfigurationRuleRegistryFactory;
 import com.facebook.buck.core.rules.resolver.impl.MultiThreadedActionGraphBuilder;
 import com.facebook.buck.core.rules.transformer.TargetNodeToBuildRuleTransformer;
-import com.facebook.buck.core.util.graph.AbstractBottomUpTraversal;
+import com.facebook.buck.core.util.graph.CycleException;
+import com.facebook.buck.core.util.graph.ParallelTopologicalTraversal;
 import com.facebook.buck.core.util.log.Logger;
-import com.facebook.buck.util.concurrent.MoreFutures;
-import com.google.common.collect.ImmutableList;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.util.concurrent.ListeningExecutorService;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 
+/**
+ * Creates the rules of an action graph bottom-up with a {@link ParallelTopologicalTraversal}, so
+ * that each rule is created by a worker as soon as the rules of its deps are, rather than by a
+ * chain of futures per rule.
+ */
 public class ParallelActionGraphFactory implements ActionGraphFactoryDelegate {
   private static final Logger LOG = Logger.get(ParallelActionGraphFactory.class);
 
   private final Supplier<ListeningExecutorService> executorSupplier;
+  private final int parallelism;
   private final CellProvider cellProvider;
 
+  /**
+   * @param executorSupplier executor of the {@link MultiThreadedActionGraphBuilder}, which runs the
+   *     rules required through {@link ActionGraphBuilder#requireRuleFuture}
+   * @param parallelism number of workers which create the rules of the target graph's nodes
+   */
   public ParallelActionGraphFactory(
-      Supplier<ListeningExecutorService> executorSupplier, CellProvider cellProvider) {
+      Supplier<ListeningExecutorService> executorSupplier,
+      int parallelism,
+      CellProvider cellProvider) {
     this.executorSupplier = executorSupplier;
+    this.parallelism = parallelism;
     this.cellProvider = cellProvider;
   }
 
@@ -73,38 +81,35 @@ public class ParallelActionGraphFactory implements ActionGraphFactoryDelegate {
                     nodeTransformer,
                     cellProvider));
 
-    HashMap<BuildTarget, ListenableFuture<BuildRule>> futures = new HashMap<>();
-
     actionGraphCreationLifecycleListener.onCreate(graphBuilder);
 
     LOG.debug("start target graph walk");
-    new AbstractBottomUpTraversal<TargetNode<?>, RuntimeException>(targetGraph) {
-      @Override
-      public void visit(TargetNode<?> node) {
-        if (!node.getRuleType().isBuildRule()) {
-          return;
-        }
-        // If we're loading this node from cache, we don't need to wait on our children, as the
-        // entire subgraph will be loaded from cache.
-        List<ListenableFuture<BuildRule>> depFutures =
-            targetGraph.getOutgoingNodesFor(node).stream()
-                .filter(dep -> dep.getRuleType().isBuildRule())
-                .map(dep -> Objects.requireNonNull(futures.get(dep.getBuildTarget())))
-                .collect(ImmutableList.toImmutableList());
-        futures.put(
-            node.getBuildTarget(),
-            Futures.transformAsync(
-                Futures.allAsList(depFutures),
-                ignored -> graphBuilder.requireRuleFuture(node.getBuildTarget()),
-                executorService));
-      }
-    }.traverse();
-
-    // Wait for completion. The results are ignored as we only care about the rules populated in
-    // the graphBuilder, which is a superset of the rules generated directly from target nodes.
-    MoreFutures.getUncheckedInterruptibly(Futures.allAsList(futures.values()));
+    // The rules of the deps of a node are always created before its own, so that creating it only
+    // looks up rules which already exist, unless its description requires rules of its own.
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      new ParallelTopologicalTraversal<TargetNode<?>, Boolean>(
+              pool,
+              ParallelTopologicalTraversal.Order.BOTTOM_UP,
+              (node, ignored) -> {
+                if (!node.getRuleType().isBuildRule()) {
+                  return false;
+                }
+                graphBuilder.requireRule(node.getBuildTarget());
+                return true;
+              })
+          .traverse(targetGraph);
+    } catch (CycleException e) {
+      // Target graphs are checked for cycles when they are created.
+      throw new IllegalStateException(e);
+    } finally {
+      pool.shutdown();
+    }
     LOG.debug("end target graph walk");
 
-    return ActionGraphAndBuilder.of(new ActionGraph(graphBuilder.getBuildRules()), graphBuilder);
+    // Rules are created in whichever order the workers run them, sort them so that the action
+    // graph doesn't depend on it.
+    return ActionGraphAndBuilder.of(
+        new ActionGraph(ImmutableSortedSet.copyOf(graphBuilder.getBuildRules())), graphBuilder);
   }
 }
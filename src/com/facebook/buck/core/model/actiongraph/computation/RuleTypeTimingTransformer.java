@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.model.actiongraph.computation;
+
+import com.facebook.buck.core.cell.CellPathResolver;
+import com.facebook.buck.core.description.arg.BuildRuleArg;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.rules.ActionGraphBuilder;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.config.registry.ConfigurationRuleRegistry;
+import com.facebook.buck.core.rules.providers.collect.ProviderInfoCollection;
+import com.facebook.buck.core.rules.transformer.TargetNodeToBuildRuleTransformer;
+import com.facebook.buck.core.toolchain.ToolchainProvider;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Measures how long it takes to transform the target nodes of each rule type into build rules.
+ *
+ * <p>Times are inclusive, i.e. they contain the time spent creating any rules a node requires
+ * which had not been created yet. The action graph factories wait for the deps of a node before
+ * transforming it, so that's usually limited to the rules a description creates for itself.
+ */
+class RuleTypeTimingTransformer implements TargetNodeToBuildRuleTransformer {
+
+  private static final String COUNTER_CATEGORY = "buck_action_graph";
+  private static final String RULE_COUNT_COUNTER_NAME = "rules_created";
+  private static final String RULE_TIME_COUNTER_NAME = "rule_creation_time_ms";
+
+  private final TargetNodeToBuildRuleTransformer delegate;
+  private final Map<String, Timing> timings = new ConcurrentHashMap<>();
+
+  RuleTypeTimingTransformer(TargetNodeToBuildRuleTransformer delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public <T extends BuildRuleArg> BuildRule transform(
+      ToolchainProvider toolchainProvider,
+      TargetGraph targetGraph,
+      ConfigurationRuleRegistry configurationRuleRegistry,
+      ActionGraphBuilder graphBuilder,
+      TargetNode<T> targetNode,
+      CellPathResolver cellPathResolver) {
+    return time(
+        targetNode,
+        () ->
+            delegate.transform(
+                toolchainProvider,
+                targetGraph,
+                configurationRuleRegistry,
+                graphBuilder,
+                targetNode,
+                cellPathResolver));
+  }
+
+  @Override
+  public <T extends BuildRuleArg> BuildRule transform(
+      ToolchainProvider toolchainProvider,
+      TargetGraph targetGraph,
+      ConfigurationRuleRegistry configurationRuleRegistry,
+      ActionGraphBuilder graphBuilder,
+      TargetNode<T> targetNode,
+      ProviderInfoCollection providerInfoCollection,
+      CellPathResolver cellPathResolver) {
+    return time(
+        targetNode,
+        () ->
+            delegate.transform(
+                toolchainProvider,
+                targetGraph,
+                configurationRuleRegistry,
+                graphBuilder,
+                targetNode,
+                providerInfoCollection,
+                cellPathResolver));
+  }
+
+  private BuildRule time(TargetNode<?> targetNode, Supplier<BuildRule> transform) {
+    long start = System.nanoTime();
+    try {
+      return transform.get();
+    } finally {
+      timings
+          .computeIfAbsent(targetNode.getRuleType().getName(), ignored -> new Timing())
+          .add(System.nanoTime() - start);
+    }
+  }
+
+  /** @return the total time spent creating rules of each rule type so far, in milliseconds. */
+  ImmutableSortedMap<String, Long> getTimesMillis() {
+    ImmutableSortedMap.Builder<String, Long> times = ImmutableSortedMap.naturalOrder();
+    timings.forEach(
+        (ruleType, timing) ->
+            times.put(ruleType, TimeUnit.NANOSECONDS.toMillis(timing.nanos.sum())));
+    return times.build();
+  }
+
+  /** @return counters of the number of rules created and the time it took, per rule type. */
+  ImmutableList<Counter> createCounters() {
+    ImmutableList.Builder<Counter> counters = ImmutableList.builder();
+    timings.forEach(
+        (ruleType, timing) -> {
+          ImmutableMap<String, String> tags = ImmutableMap.of("rule_type", ruleType);
+          IntegerCounter count =
+              new IntegerCounter(COUNTER_CATEGORY, RULE_COUNT_COUNTER_NAME, tags);
+          count.inc(timing.count.sum());
+          IntegerCounter time =
+              new IntegerCounter(COUNTER_CATEGORY, RULE_TIME_COUNTER_NAME, tags);
+          time.inc(TimeUnit.NANOSECONDS.toMillis(timing.nanos.sum()));
+          counters.add(count, time);
+        });
+    return counters.build();
+  }
+
+  private static class Timing {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private void add(long elapsedNanos) {
+      count.increment();
+      nanos.add(elapsedNanos);
+    }
+  }
+}
@@ -29,6 +29,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /** Represents the graph of {@link TargetNode}s constructed by parsing the build files. */
@@ -43,16 +44,33 @@ public class TargetGraph extends DirectedAcyclicGraph<TargetNode<?>> {
 
   public TargetGraph(
       MutableDirectedGraph<TargetNode<?>> graph, ImmutableMap<BuildTarget, TargetNode<?>> index) {
+    this(graph, index, ImmutableSet.of());
+  }
+
+  /**
+   * Creates a graph without checking the visibility of the edges between nodes in {@code
+   * verifiedNodes}, which must have been checked when building a previous graph.
+   *
+   * @param verifiedNodes nodes whose edges among each other have already been verified. Usually an
+   *     identity set, as only the very same node instances are known to have the same deps.
+   */
+  public TargetGraph(
+      MutableDirectedGraph<TargetNode<?>> graph,
+      ImmutableMap<BuildTarget, TargetNode<?>> index,
+      Set<TargetNode<?>> verifiedNodes) {
     super(graph);
     this.targetsToNodes = index;
 
-    verifyVisibilityIntegrity();
+    verifyVisibilityIntegrity(verifiedNodes);
   }
 
-  private void verifyVisibilityIntegrity() {
+  private void verifyVisibilityIntegrity(Set<TargetNode<?>> verifiedNodes) {
     for (TargetNode<?> node : getNodes()) {
+      boolean nodeIsVerified = verifiedNodes.contains(node);
       for (TargetNode<?> dep : getOutgoingNodesFor(node)) {
-        dep.isVisibleToOrThrow(node);
+        if (!nodeIsVerified || !verifiedNodes.contains(dep)) {
+          dep.isVisibleToOrThrow(node);
+        }
       }
     }
   }
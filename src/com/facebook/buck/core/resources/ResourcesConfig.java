@@ -27,6 +27,7 @@ import com.facebook.buck.util.concurrent.ResourceAmountsEstimator;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.Optional;
 import org.immutables.value.Value;
 
 @BuckStyleValue
@@ -118,14 +119,30 @@ public abstract class ResourcesConfig implements ConfigView<BuckConfig> {
             .orElse(ResourceAmountsEstimator.DEFAULT_NETWORK_IO_AMOUNT));
   }
 
+  /**
+   * Memory in bytes the processes of the steps of rules built locally can use together. When set,
+   * steps are held back until the memory their rules are expected to use, learned from the
+   * processes of previous steps, fits within the budget. Steps of previous builds are only known
+   * if build.rule_history is enabled, otherwise only the ones of the current build are.
+   */
+  @Value.Lazy
+  public Optional<Long> getMemoryBudgetBytes() {
+    return getDelegate()
+        .getLong(RESOURCES_SECTION_HEADER, "memory_budget_mb")
+        .map(megabytes -> megabytes * 1024 * 1024);
+  }
+
   @Value.Lazy
   public ResourceAmounts getMaximumResourceAmounts() {
     ResourceAmounts estimated = ResourceAmountsEstimator.getEstimatedAmounts();
     return ResourceAmounts.of(
         getDelegate().getView(BuildBuckConfig.class).getNumThreads(estimated.getCpu()),
-        getDelegate()
-            .getInteger(RESOURCES_SECTION_HEADER, "max_memory_resource")
-            .orElse(estimated.getMemory()),
+        getMemoryBudgetBytes()
+            .map(budget -> (int) Math.max(1, budget / ResourceAmountsEstimator.MEMORY_UNIT_BYTES))
+            .orElse(
+                getDelegate()
+                    .getInteger(RESOURCES_SECTION_HEADER, "max_memory_resource")
+                    .orElse(estimated.getMemory())),
         getDelegate()
             .getInteger(RESOURCES_SECTION_HEADER, "max_disk_io_resource")
             .orElse(estimated.getDiskIO()),
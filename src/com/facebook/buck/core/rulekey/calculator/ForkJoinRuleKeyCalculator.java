@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.rulekey.calculator;
+
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.exceptions.BuckUncheckedExecutionException;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.graph.CycleException;
+import com.facebook.buck.core.util.graph.ParallelTopologicalTraversal;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.rules.keys.RuleKeyFactory;
+import com.facebook.buck.util.Scope;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Calculates {@link RuleKey}s of whole subgraphs, bottom-up, on a work-stealing {@link
+ * ForkJoinPool}.
+ *
+ * <p>{@link ParallelRuleKeyCalculator} chains a handful of futures per rule, which dominates the
+ * cost of computing keys for large graphs. This calculator instead runs a bottom-up {@link
+ * ParallelTopologicalTraversal} of the rules whose keys are missing, which computes each of them as
+ * a single task once its last dependency is done. That task is forked by the worker which finished
+ * the dependency, so it usually runs on the thread that just touched the dependency's data.
+ *
+ * <p>Rules that the {@link RuleKeyFactory} has in its cache are neither scheduled nor traversed:
+ * since an entry is invalidated along with those of all its dependents, the whole subgraph below a
+ * cached rule is cached as well. Keys are only remembered for the duration of a single {@link
+ * #calculate} call, so later calls see the invalidations of the factory's cache.
+ */
+public class ForkJoinRuleKeyCalculator<T> {
+
+  private static final Object NO_KEY = new Object();
+
+  private final ForkJoinPool pool;
+  private final RuleKeyFactory<T> ruleKeyFactory;
+  private final RuleDepsCache ruleDepsCache;
+  private final BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope;
+
+  private final LongAdder keysComputed = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder elapsedNanos = new LongAdder();
+
+  public ForkJoinRuleKeyCalculator(
+      ForkJoinPool pool,
+      RuleKeyFactory<T> ruleKeyFactory,
+      RuleDepsCache ruleDepsCache,
+      BiFunction<BuckEventBus, BuildRule, Scope> ruleKeyCalculationScope) {
+    this.pool = pool;
+    this.ruleKeyFactory = ruleKeyFactory;
+    this.ruleDepsCache = ruleDepsCache;
+    this.ruleKeyCalculationScope = ruleKeyCalculationScope;
+  }
+
+  /**
+   * Calculates the keys of the given rules and of all of their transitive dependencies, blocking
+   * until they are all known.
+   *
+   * <p>Keys calculated by earlier calls are only reused through the factory's cache. Concurrent
+   * calls are allowed, but may compute the keys of rules they have in common twice.
+   *
+   * @return the keys of {@code rules}, in iteration order, leaving out the rules for which the
+   *     factory did not build a key.
+   */
+  public ImmutableMap<BuildTarget, T> calculate(
+      BuckEventBus buckEventBus, Iterable<? extends BuildRule> rules) {
+    // Factories may decline to build a key for some rules (e.g. input-based keys of rules that
+    // don't support them), those are recorded as NO_KEY.
+    ConcurrentMap<BuildTarget, Object> ruleKeys = new ConcurrentHashMap<>();
+    long start = System.nanoTime();
+    try {
+      new ParallelTopologicalTraversal<BuildRule, Object>(
+              pool,
+              ParallelTopologicalTraversal.Order.BOTTOM_UP,
+              (rule, depKeys) -> computeKey(buckEventBus, ruleKeys, rule))
+          .traverse(
+              Iterables.filter(rules, rule -> needsKey(ruleKeys, rule)),
+              rule ->
+                  Iterables.filter(ruleDepsCache.get(rule), dep -> needsKey(ruleKeys, dep))
+                      .iterator());
+    } catch (CycleException e) {
+      // Action graphs are checked for cycles when they are created.
+      throw new IllegalStateException(e);
+    } finally {
+      elapsedNanos.add(System.nanoTime() - start);
+    }
+
+    Map<BuildTarget, T> result = new LinkedHashMap<>();
+    for (BuildRule rule : rules) {
+      Object key = ruleKeys.get(rule.getBuildTarget());
+      if (key != null && key != NO_KEY) {
+        @SuppressWarnings("unchecked")
+        T typedKey = (T) key;
+        result.put(rule.getBuildTarget(), typedKey);
+      }
+    }
+    return ImmutableMap.copyOf(result);
+  }
+
+  public RuleDepsCache getRuleDepsCache() {
+    return ruleDepsCache;
+  }
+
+  /** @return throughput of all the calls to {@link #calculate} so far. */
+  public Metrics getMetrics() {
+    return new Metrics(keysComputed.sum(), cacheHits.sum(), elapsedNanos.sum());
+  }
+
+  /**
+   * @return whether the key of the given rule still has to be calculated, i.e. it was neither
+   *     calculated earlier in this call nor is in the factory's cache
+   */
+  private boolean needsKey(ConcurrentMap<BuildTarget, Object> ruleKeys, BuildRule rule) {
+    BuildTarget target = rule.getBuildTarget();
+    if (ruleKeys.containsKey(target)) {
+      return false;
+    }
+    T fromInternalCache = ruleKeyFactory.getFromCache(rule);
+    if (fromInternalCache != null) {
+      if (ruleKeys.putIfAbsent(target, fromInternalCache) == null) {
+        cacheHits.increment();
+      }
+      return false;
+    }
+    return true;
+  }
+
+  private Object computeKey(
+      BuckEventBus buckEventBus, ConcurrentMap<BuildTarget, Object> ruleKeys, BuildRule rule) {
+    T key;
+    try (Scope scope = ruleKeyCalculationScope.apply(buckEventBus, rule)) {
+      key = ruleKeyFactory.build(rule);
+    } catch (Exception e) {
+      throw new BuckUncheckedExecutionException(
+          e, String.format("When computing rulekey for %s.", rule));
+    }
+    Object value = key == null ? NO_KEY : key;
+    ruleKeys.putIfAbsent(rule.getBuildTarget(), value);
+    keysComputed.increment();
+    return value;
+  }
+
+  /** Throughput of a {@link ForkJoinRuleKeyCalculator}. */
+  public static final class Metrics {
+    private final long keysComputed;
+    private final long cacheHits;
+    private final long elapsedNanos;
+
+    private Metrics(long keysComputed, long cacheHits, long elapsedNanos) {
+      this.keysComputed = keysComputed;
+      this.cacheHits = cacheHits;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /** @return number of keys built by the {@link RuleKeyFactory}. */
+    public long getKeysComputed() {
+      return keysComputed;
+    }
+
+    /** @return number of keys found in the {@link RuleKeyFactory}'s cache. */
+    public long getCacheHits() {
+      return cacheHits;
+    }
+
+    /** @return wall time spent in {@link #calculate}, summed over all calls. */
+    public long getElapsed(TimeUnit unit) {
+      return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** @return keys computed or found in cache per second of wall time. */
+    public double getKeysPerSecond() {
+      return elapsedNanos == 0
+          ? 0
+          : (keysComputed + cacheHits) / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /** @return fraction of the keys which were found in the {@link RuleKeyFactory}'s cache. */
+    public double getCacheHitRate() {
+      long total = keysComputed + cacheHits;
+      return total == 0 ? 0 : cacheHits / (double) total;
+    }
+  }
+}
@@ -42,6 +42,15 @@ public abstract class AbstractBottomUpTraversal<T, E extends Throwable> {
    * @throws E
    */
   public final void traverse(Predicate<T> shouldExploreChildren) throws E {
+    if (graph instanceof CompactDirectedAcyclicGraph) {
+      CompactDirectedAcyclicGraph<T> compactGraph = (CompactDirectedAcyclicGraph<T>) graph;
+      for (T node :
+          AcyclicDepthFirstPostOrderTraversal.traverse(
+              compactGraph, compactGraph.getNodesWithNoIncomingEdges(), shouldExploreChildren)) {
+        visit(node);
+      }
+      return;
+    }
     Iterable<T> roots = graph.getNodesWithNoIncomingEdges();
     GraphTraversable<T> graphTraversable = node -> graph.getOutgoingNodesFor(node).iterator();
     try {
@@ -16,6 +16,9 @@
 
 package com.facebook.buck.core.util.graph;
 
+import com.google.common.base.Preconditions;
+import java.util.function.Consumer;
+
 /** Performs a breadth-first traversal of dependencies of a graph node. */
 public abstract class AbstractBreadthFirstTraversal<Node>
     extends AbstractBreadthFirstThrowingTraversal<Node, RuntimeException> {
@@ -48,4 +51,40 @@ public abstract class AbstractBreadthFirstTraversal<Node>
       Iterable<? extends Node> initialNodes, Visitor<Node, RuntimeException> visitor) {
     new StaticBreadthFirstTraversal<>(initialNodes, visitor).start();
   }
+
+  /**
+   * Visits the given nodes and all nodes reachable from them in a {@link
+   * CompactDirectedAcyclicGraph}, breadth-first. Each node is visited once.
+   *
+   * <p>Unlike the other traversals, this follows the edges of the graph rather than the nodes
+   * returned by a visitor, which lets it keep track of visited nodes in arrays indexed by node id.
+   */
+  public static <Node> void traverse(
+      CompactDirectedAcyclicGraph<Node> graph,
+      Iterable<? extends Node> initialNodes,
+      Consumer<? super Node> visitor) {
+    boolean[] discovered = new boolean[graph.getNodeCount()];
+    int[] queue = new int[graph.getNodeCount()];
+    int tail = 0;
+    for (Node initialNode : initialNodes) {
+      int id = graph.getId(initialNode);
+      Preconditions.checkArgument(id >= 0, "%s is not a node of the graph", initialNode);
+      if (!discovered[id]) {
+        discovered[id] = true;
+        queue[tail++] = id;
+      }
+    }
+
+    for (int head = 0; head < tail; head++) {
+      int id = queue[head];
+      visitor.accept(graph.getNode(id));
+      for (int i = 0, outDegree = graph.getOutDegree(id); i < outDegree; i++) {
+        int dep = graph.getOutgoingNode(id, i);
+        if (!discovered[dep]) {
+          discovered[dep] = true;
+          queue[tail++] = dep;
+        }
+      }
+    }
+  }
 }
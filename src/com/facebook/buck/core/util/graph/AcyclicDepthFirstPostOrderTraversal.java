@@ -19,6 +19,8 @@ package com.facebook.buck.core.util.graph;
 import com.facebook.buck.core.exceptions.DependencyStack;
 import com.facebook.buck.util.types.Pair;
 import com.facebook.buck.util.types.Unit;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import java.util.function.Predicate;
 
@@ -62,4 +64,62 @@ public class AcyclicDepthFirstPostOrderTraversal<T> {
     return Iterables.unmodifiableIterable(
         traversal.traverse(initialNodes, shouldExploreChildren).keySet());
   }
+
+  /**
+   * Performs a depth-first, post-order traversal over a {@link CompactDirectedAcyclicGraph},
+   * visiting nodes in the same order as {@link #traverse(Iterable, Predicate)} would. As the graph
+   * is known to be acyclic, no cycle detection is done.
+   *
+   * @param initialNodes The nodes from which to perform the traversal. All of them must be in the
+   *     graph.
+   * @param shouldExploreChildren Whether or not to explore a particular node's children. Used to
+   *     support short circuiting in the traversal.
+   */
+  public static <T> ImmutableList<T> traverse(
+      CompactDirectedAcyclicGraph<T> graph,
+      Iterable<? extends T> initialNodes,
+      Predicate<T> shouldExploreChildren) {
+    int nodeCount = graph.getNodeCount();
+    // For each node on the stack, the index of the next of its children to explore.
+    int[] nextChild = new int[nodeCount];
+    int[] numChildren = new int[nodeCount];
+    boolean[] explored = new boolean[nodeCount];
+    int[] stack = new int[nodeCount];
+    ImmutableList.Builder<T> result = ImmutableList.builder();
+
+    for (T initialNode : initialNodes) {
+      int root = graph.getId(initialNode);
+      Preconditions.checkArgument(root >= 0, "%s is not a node of the graph", initialNode);
+      if (explored[root]) {
+        continue;
+      }
+      int depth = 0;
+      stack[depth++] = root;
+      numChildren[root] = shouldExploreChildren.test(initialNode) ? graph.getOutDegree(root) : 0;
+
+      while (depth > 0) {
+        int node = stack[depth - 1];
+        int child = -1;
+        while (nextChild[node] < numChildren[node]) {
+          int candidate = graph.getOutgoingNode(node, nextChild[node]++);
+          if (!explored[candidate]) {
+            child = candidate;
+            break;
+          }
+        }
+
+        if (child >= 0) {
+          stack[depth++] = child;
+          numChildren[child] =
+              shouldExploreChildren.test(graph.getNode(child)) ? graph.getOutDegree(child) : 0;
+        } else {
+          depth--;
+          explored[node] = true;
+          result.add(graph.getNode(node));
+        }
+      }
+    }
+
+    return result.build();
+  }
 }
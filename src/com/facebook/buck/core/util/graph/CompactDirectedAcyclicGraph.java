@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * An immutable DAG which assigns each node a dense int id and stores its edges in int arrays, in
+ * compressed sparse row form.
+ *
+ * <p>Compared to {@link DirectedAcyclicGraph}, this uses a couple of ints per edge instead of
+ * multimap entries and sets of references, and lets traversals keep their bookkeeping in int
+ * arrays indexed by node id. {@link TopologicalSort}, {@link AbstractBottomUpTraversal}, {@link
+ * AcyclicDepthFirstPostOrderTraversal} and {@link AbstractBreadthFirstTraversal} have variants that
+ * do so for graphs of this type, without allocating anything per node or edge.
+ *
+ * <p>Ids are assigned in the iteration order of the graph's nodes, and the edges of each node keep
+ * the iteration order of the graph the copy was made from.
+ */
+public final class CompactDirectedAcyclicGraph<T> implements TraversableGraph<T> {
+
+  private final Object[] nodes;
+
+  /**
+   * Open addressing hash table from node to id. Slots hold {@code id + 1}, or 0 if they are empty.
+   */
+  private final int[] index;
+
+  private final int[] outgoingOffsets;
+  private final int[] outgoingEdges;
+  private final int[] incomingOffsets;
+  private final int[] incomingEdges;
+
+  private CompactDirectedAcyclicGraph(
+      Object[] nodes,
+      int[] index,
+      int[] outgoingOffsets,
+      int[] outgoingEdges,
+      int[] incomingOffsets,
+      int[] incomingEdges) {
+    this.nodes = nodes;
+    this.index = index;
+    this.outgoingOffsets = outgoingOffsets;
+    this.outgoingEdges = outgoingEdges;
+    this.incomingOffsets = incomingOffsets;
+    this.incomingEdges = incomingEdges;
+  }
+
+  /**
+   * Copies the given graph.
+   *
+   * @throws IllegalStateException if the graph has a cycle.
+   */
+  public static <T> CompactDirectedAcyclicGraph<T> copyOf(TraversableGraph<T> graph) {
+    List<T> nodeList = ImmutableList.copyOf(graph.getNodes());
+    Object[] nodes = nodeList.toArray();
+    int[] index = new int[tableSize(nodes.length)];
+    for (int id = 0; id < nodes.length; id++) {
+      Preconditions.checkArgument(
+          insert(index, nodes, id), "Graph contains %s more than once", nodes[id]);
+    }
+
+    int[] outgoingOffsets = new int[nodes.length + 1];
+    int[] incomingOffsets = new int[nodes.length + 1];
+    for (int id = 0; id < nodes.length; id++) {
+      T node = nodeList.get(id);
+      outgoingOffsets[id + 1] = outgoingOffsets[id] + size(graph.getOutgoingNodesFor(node));
+      incomingOffsets[id + 1] = incomingOffsets[id] + size(graph.getIncomingNodesFor(node));
+    }
+    Preconditions.checkArgument(
+        outgoingOffsets[nodes.length] == incomingOffsets[nodes.length],
+        "Outgoing and incoming edges of graph do not match");
+
+    int[] outgoingEdges = new int[outgoingOffsets[nodes.length]];
+    int[] incomingEdges = new int[incomingOffsets[nodes.length]];
+    for (int id = 0; id < nodes.length; id++) {
+      T node = nodeList.get(id);
+      int edge = outgoingOffsets[id];
+      for (T sink : graph.getOutgoingNodesFor(node)) {
+        outgoingEdges[edge++] = findExisting(index, nodes, sink);
+      }
+      edge = incomingOffsets[id];
+      for (T source : graph.getIncomingNodesFor(node)) {
+        incomingEdges[edge++] = findExisting(index, nodes, source);
+      }
+    }
+
+    CompactDirectedAcyclicGraph<T> compactGraph =
+        new CompactDirectedAcyclicGraph<>(
+            nodes, index, outgoingOffsets, outgoingEdges, incomingOffsets, incomingEdges);
+    Preconditions.checkState(compactGraph.isAcyclic(), "Graph must by acyclic");
+    return compactGraph;
+  }
+
+  private static int size(Iterable<?> iterable) {
+    if (iterable instanceof Collection) {
+      return ((Collection<?>) iterable).size();
+    }
+    int size = 0;
+    for (Iterator<?> iterator = iterable.iterator(); iterator.hasNext(); iterator.next()) {
+      size++;
+    }
+    return size;
+  }
+
+  private static int tableSize(int nodeCount) {
+    // Keep the table at most half full, so that probe sequences stay short.
+    return Integer.highestOneBit(Math.max(nodeCount, 1) * 2 - 1) << 1;
+  }
+
+  private static int slot(Object node, int mask) {
+    int hash = node.hashCode() * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  private static boolean insert(int[] index, Object[] nodes, int id) {
+    int mask = index.length - 1;
+    for (int slot = slot(nodes[id], mask); ; slot = (slot + 1) & mask) {
+      if (index[slot] == 0) {
+        index[slot] = id + 1;
+        return true;
+      }
+      if (nodes[index[slot] - 1].equals(nodes[id])) {
+        return false;
+      }
+    }
+  }
+
+  private static int find(int[] index, Object[] nodes, Object node) {
+    int mask = index.length - 1;
+    for (int slot = slot(node, mask); index[slot] != 0; slot = (slot + 1) & mask) {
+      if (nodes[index[slot] - 1].equals(node)) {
+        return index[slot] - 1;
+      }
+    }
+    return -1;
+  }
+
+  private static int findExisting(int[] index, Object[] nodes, Object node) {
+    int id = find(index, nodes, node);
+    Preconditions.checkArgument(id >= 0, "%s is not a node of the graph", node);
+    return id;
+  }
+
+  private boolean isAcyclic() {
+    // Kahn's algorithm: the graph is acyclic iff all nodes can be removed sink first.
+    int[] remainingOutDegrees = new int[nodes.length];
+    int[] queue = new int[nodes.length];
+    int tail = 0;
+    for (int id = 0; id < nodes.length; id++) {
+      remainingOutDegrees[id] = getOutDegree(id);
+      if (remainingOutDegrees[id] == 0) {
+        queue[tail++] = id;
+      }
+    }
+    for (int head = 0; head < tail; head++) {
+      int id = queue[head];
+      for (int edge = incomingOffsets[id]; edge < incomingOffsets[id + 1]; edge++) {
+        if (--remainingOutDegrees[incomingEdges[edge]] == 0) {
+          queue[tail++] = incomingEdges[edge];
+        }
+      }
+    }
+    return tail == nodes.length;
+  }
+
+  /** @return the number of nodes in the graph. Node ids range from 0 to this, exclusive. */
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  /** @return the node with the given id. */
+  @SuppressWarnings("unchecked")
+  public T getNode(int id) {
+    return (T) nodes[id];
+  }
+
+  /** @return the id of the given node, or -1 if it is not in the graph. */
+  public int getId(T node) {
+    return find(index, nodes, node);
+  }
+
+  /** @return the number of edges from the node with the given id. */
+  public int getOutDegree(int id) {
+    return outgoingOffsets[id + 1] - outgoingOffsets[id];
+  }
+
+  /** @return the id of the {@code i}th node the node with the given id has an edge to. */
+  public int getOutgoingNode(int id, int i) {
+    Preconditions.checkElementIndex(i, getOutDegree(id));
+    return outgoingEdges[outgoingOffsets[id] + i];
+  }
+
+  /** @return the number of edges to the node with the given id. */
+  public int getInDegree(int id) {
+    return incomingOffsets[id + 1] - incomingOffsets[id];
+  }
+
+  /** @return the id of the {@code i}th node which has an edge to the node with the given id. */
+  public int getIncomingNode(int id, int i) {
+    Preconditions.checkElementIndex(i, getInDegree(id));
+    return incomingEdges[incomingOffsets[id] + i];
+  }
+
+  @Override
+  public ImmutableList<T> getNodesWithNoIncomingEdges() {
+    ImmutableList.Builder<T> roots = ImmutableList.builder();
+    for (int id = 0; id < nodes.length; id++) {
+      if (getInDegree(id) == 0) {
+        roots.add(getNode(id));
+      }
+    }
+    return roots.build();
+  }
+
+  @Override
+  public ImmutableList<T> getNodesWithNoOutgoingEdges() {
+    ImmutableList.Builder<T> sinks = ImmutableList.builder();
+    for (int id = 0; id < nodes.length; id++) {
+      if (getOutDegree(id) == 0) {
+        sinks.add(getNode(id));
+      }
+    }
+    return sinks.build();
+  }
+
+  @Override
+  public Collection<T> getIncomingNodesFor(T sink) {
+    int id = findExisting(index, nodes, sink);
+    return new Adjacency(incomingEdges, incomingOffsets[id], incomingOffsets[id + 1]);
+  }
+
+  @Override
+  public Collection<T> getOutgoingNodesFor(T source) {
+    int id = findExisting(index, nodes, source);
+    return new Adjacency(outgoingEdges, outgoingOffsets[id], outgoingOffsets[id + 1]);
+  }
+
+  @Override
+  public List<T> getNodes() {
+    return new NodeList();
+  }
+
+  /** A read-only view of the nodes of the graph, in id order. */
+  private class NodeList extends AbstractList<T> implements RandomAccess {
+    @Override
+    public T get(int id) {
+      return getNode(id);
+    }
+
+    @Override
+    public int size() {
+      return nodes.length;
+    }
+  }
+
+  /** A read-only view of the nodes at one end of a range of edges. */
+  private class Adjacency extends AbstractCollection<T> {
+    private final int[] edges;
+    private final int start;
+    private final int end;
+
+    Adjacency(int[] edges, int start, int end) {
+      this.edges = edges;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return new Iterator<T>() {
+        private int edge = start;
+
+        @Override
+        public boolean hasNext() {
+          return edge < end;
+        }
+
+        @Override
+        public T next() {
+          if (edge >= end) {
+            throw new NoSuchElementException();
+          }
+          return getNode(edges[edge++]);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+  }
+}
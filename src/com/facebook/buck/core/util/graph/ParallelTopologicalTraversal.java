@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import com.facebook.buck.util.types.Pair;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Visits the nodes of a DAG in parallel on a {@link ForkJoinPool}, in topological order.
+ *
+ * <p>Each node is visited exactly once, as soon as the nodes it waits for have been visited: its
+ * children for a {@link Order#BOTTOM_UP} traversal, or its parents for a {@link Order#TOP_DOWN}
+ * one. Every node keeps a counter of the nodes it is still waiting for, and the worker which visits
+ * the last of them forks the node's task, so there is no central scheduler to contend on.
+ *
+ * <p>The visitor computes a payload for each node from the payloads of the nodes it waited for,
+ * which makes it easy to propagate information along the edges of the graph. Cycles are detected
+ * before any node is visited. If a visitor throws, or the traversal is {@link #cancel()}ed, no more
+ * nodes are visited and {@code traverse} throws, rethrowing the visitor's exception as is.
+ *
+ * @param <T> the type of node in the graph
+ * @param <P> the type of payload computed for each node
+ */
+public class ParallelTopologicalTraversal<T, P> {
+
+  /** The direction in which payloads flow through the graph. */
+  public enum Order {
+    /** Visit nodes after all of their children, like {@link AbstractBottomUpTraversal}. */
+    BOTTOM_UP,
+    /** Visit nodes after all of their parents which are part of the traversal. */
+    TOP_DOWN,
+  }
+
+  /** Computes the payload of a node. Called concurrently for independent nodes. */
+  @FunctionalInterface
+  public interface Visitor<T, P> {
+
+    /**
+     * @param node the node being visited
+     * @param inputs the payloads of the nodes {@code node} waited for, in the order of its edges
+     * @return the payload of {@code node}, which must not be {@code null}
+     */
+    P visit(T node, ImmutableList<P> inputs);
+  }
+
+  private final ForkJoinPool pool;
+  private final Order order;
+  private final Visitor<T, P> visitor;
+
+  private volatile boolean cancelled = false;
+  @Nullable private volatile Root<T, P> running;
+
+  public ParallelTopologicalTraversal(ForkJoinPool pool, Order order, Visitor<T, P> visitor) {
+    this.pool = pool;
+    this.order = order;
+    this.visitor = visitor;
+  }
+
+  /**
+   * Visits all nodes of the given graph.
+   *
+   * @return the payloads of all nodes, in an order in which a sequential traversal could have
+   *     visited them.
+   * @throws CycleException if the graph is not acyclic.
+   */
+  public ImmutableMap<T, P> traverse(TraversableGraph<T> graph) throws CycleException {
+    // Start from all nodes rather than from the roots, so that cycles without roots are found too.
+    return traverse(graph.getNodes(), node -> graph.getOutgoingNodesFor(node).iterator());
+  }
+
+  /**
+   * Visits the given nodes and all of their transitive children.
+   *
+   * @return the payloads of all visited nodes, in an order in which a sequential traversal could
+   *     have visited them.
+   * @throws CycleException if a cycle is reachable from {@code initialNodes}.
+   */
+  public ImmutableMap<T, P> traverse(
+      Iterable<? extends T> initialNodes, GraphTraversable<T> traversable) throws CycleException {
+    Map<T, Node<T, P>> nodes = discover(initialNodes, traversable);
+
+    Root<T, P> root = new Root<>(this, nodes.values());
+    running = root;
+    try {
+      if (cancelled) {
+        throw new CancellationException("Traversal was cancelled");
+      }
+      if (!nodes.isEmpty()) {
+        pool.invoke(root);
+      }
+    } catch (RuntimeException | Error e) {
+      // The pool may rethrow a copy of exceptions thrown by other threads, which wraps the original
+      // and so changes its message.
+      Throwable failure = root.failure;
+      if (failure != null) {
+        Throwables.throwIfUnchecked(failure);
+      }
+      throw e;
+    } finally {
+      running = null;
+    }
+
+    ImmutableMap.Builder<T, P> payloads = ImmutableMap.builderWithExpectedSize(nodes.size());
+    for (Node<T, P> node : nodes.values()) {
+      payloads.put(node.value, node.getPayload());
+    }
+    return payloads.build();
+  }
+
+  /**
+   * Stops the current and all future traversals. Nodes which are being visited are allowed to
+   * finish, but no new ones are started and {@code traverse} throws a {@link
+   * CancellationException}.
+   */
+  public void cancel() {
+    cancelled = true;
+    Root<T, P> root = running;
+    if (root != null) {
+      root.cancel(false);
+    }
+  }
+
+  /**
+   * Finds all nodes reachable from {@code initialNodes} and links them up. Returns the nodes in
+   * post-order, i.e. children before their parents.
+   */
+  private Map<T, Node<T, P>> discover(
+      Iterable<? extends T> initialNodes, GraphTraversable<T> traversable) throws CycleException {
+    Iterable<Pair<T, ImmutableList<T>>> postOrder =
+        new AcyclicDepthFirstPostOrderTraversalWithPayload<T, ImmutableList<T>>(
+                node -> {
+                  ImmutableList<T> children = ImmutableList.copyOf(traversable.findChildren(node));
+                  return new Pair<>(children, children.iterator());
+                })
+            .traverse(initialNodes);
+
+    Map<T, Node<T, P>> nodes = new LinkedHashMap<>();
+    for (Pair<T, ImmutableList<T>> nodeAndChildren : postOrder) {
+      ImmutableList<T> children = nodeAndChildren.getSecond();
+      Node<T, P> node = new Node<>(nodeAndChildren.getFirst(), children.size());
+      for (T childValue : children) {
+        // Children always precede their parents in post-order.
+        Node<T, P> child = Preconditions.checkNotNull(nodes.get(childValue));
+        node.children.add(child);
+        child.parents.add(node);
+      }
+      nodes.put(node.value, node);
+    }
+
+    for (Node<T, P> node : nodes.values()) {
+      node.waitingFor.set(order == Order.BOTTOM_UP ? node.children.size() : node.parents.size());
+    }
+    return nodes;
+  }
+
+  private void visit(Root<T, P> root, Node<T, P> node) {
+    List<Node<T, P>> inputNodes = order == Order.BOTTOM_UP ? node.children : node.parents;
+    ImmutableList.Builder<P> inputs = ImmutableList.builderWithExpectedSize(inputNodes.size());
+    for (Node<T, P> inputNode : inputNodes) {
+      inputs.add(inputNode.getPayload());
+    }
+    node.payload =
+        Preconditions.checkNotNull(
+            visitor.visit(node.value, inputs.build()), "Visitor returned null for %s", node.value);
+
+    List<Node<T, P>> waitingNodes = order == Order.BOTTOM_UP ? node.parents : node.children;
+    for (Node<T, P> waitingNode : waitingNodes) {
+      if (waitingNode.waitingFor.decrementAndGet() == 0) {
+        new NodeTask<>(root, waitingNode).fork();
+      }
+    }
+  }
+
+  /** A node of the traversed graph, along with the bookkeeping to schedule it. */
+  private static final class Node<T, P> {
+    private final T value;
+    private final List<Node<T, P>> children;
+    private final List<Node<T, P>> parents = new ArrayList<>();
+    private final AtomicInteger waitingFor = new AtomicInteger();
+
+    /**
+     * Written before {@link #waitingFor} of the nodes which read it is decremented, and read after
+     * it reached zero, or after the traversal completed.
+     */
+    @Nullable private P payload;
+
+    private Node(T value, int childCount) {
+      this.value = value;
+      this.children = new ArrayList<>(childCount);
+    }
+
+    private P getPayload() {
+      return Preconditions.checkNotNull(payload);
+    }
+  }
+
+  /**
+   * Completes once every node has been visited. Its pending count starts at the number of nodes and
+   * is decremented by each {@link NodeTask}; a failure of any task completes it exceptionally.
+   */
+  private static final class Root<T, P> extends CountedCompleter<Void> {
+    private final ParallelTopologicalTraversal<T, P> traversal;
+    private final Iterable<Node<T, P>> nodes;
+
+    /** The first exception thrown by a visitor, as opposed to the copy the pool rethrows. */
+    @Nullable private volatile Throwable failure;
+
+    private Root(ParallelTopologicalTraversal<T, P> traversal, Iterable<Node<T, P>> nodes) {
+      this.traversal = traversal;
+      this.nodes = nodes;
+    }
+
+    @Override
+    public void compute() {
+      int count = 0;
+      List<Node<T, P>> ready = new ArrayList<>();
+      for (Node<T, P> node : nodes) {
+        count++;
+        if (node.waitingFor.get() == 0) {
+          ready.add(node);
+        }
+      }
+      setPendingCount(count);
+      for (Node<T, P> node : ready) {
+        new NodeTask<>(this, node).fork();
+      }
+      tryComplete();
+    }
+  }
+
+  private static final class NodeTask<T, P> extends CountedCompleter<Void> {
+    private final Root<T, P> root;
+    private final Node<T, P> node;
+
+    private NodeTask(Root<T, P> root, Node<T, P> node) {
+      super(root);
+      this.root = root;
+      this.node = node;
+    }
+
+    @Override
+    public void compute() {
+      if (root.isDone()) {
+        // A sibling failed or the traversal was cancelled, nobody is waiting for the payloads.
+        return;
+      }
+      root.traversal.visit(root, node);
+      tryComplete();
+    }
+
+    @Override
+    public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+      // Called before the failure propagates to the root, i.e. before traverse() returns.
+      if (root.failure == null) {
+        root.failure = ex;
+      }
+      return true;
+    }
+  }
+}
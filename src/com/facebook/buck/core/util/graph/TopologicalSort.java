@@ -44,6 +44,9 @@ public class TopologicalSort {
 
   /** Returns a topologically sorted list of the nodes in the graph. */
   public static <T> ImmutableList<T> sort(TraversableGraph<T> graph) {
+    if (graph instanceof CompactDirectedAcyclicGraph) {
+      return sortCompact((CompactDirectedAcyclicGraph<T>) graph);
+    }
     return sortImpl(graph, LinkedHashSet::new);
   }
 
@@ -143,4 +146,35 @@ public class TopologicalSort {
 
     return toReturn.build();
   }
+
+  /**
+   * Same as {@link #sortImpl(TraversableGraph, Supplier)} with insertion ordered levels, but keeps
+   * its bookkeeping in arrays indexed by node id. As every level is appended in the order its nodes
+   * were discovered, the levels are simply consecutive ranges of a single queue.
+   */
+  private static <T> ImmutableList<T> sortCompact(CompactDirectedAcyclicGraph<T> graph) {
+    int nodeCount = graph.getNodeCount();
+    int[] effectiveOutDegrees = new int[nodeCount];
+    int[] queue = new int[nodeCount];
+    int tail = 0;
+    for (int id = 0; id < nodeCount; id++) {
+      effectiveOutDegrees[id] = graph.getOutDegree(id);
+      if (effectiveOutDegrees[id] == 0) {
+        queue[tail++] = id;
+      }
+    }
+
+    ImmutableList.Builder<T> toReturn = ImmutableList.builderWithExpectedSize(nodeCount);
+    for (int head = 0; head < tail; head++) {
+      int id = queue[head];
+      toReturn.add(graph.getNode(id));
+      for (int i = 0, inDegree = graph.getInDegree(id); i < inDegree; i++) {
+        int exploreCandidate = graph.getIncomingNode(id, i);
+        if (--effectiveOutDegrees[exploreCandidate] == 0) {
+          queue[tail++] = exploreCandidate;
+        }
+      }
+    }
+    return toReturn.build();
+  }
 }
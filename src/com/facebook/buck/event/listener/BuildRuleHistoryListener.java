@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.event.listener;
+
+import com.facebook.buck.core.build.engine.BuildRuleStatus;
+import com.facebook.buck.core.build.engine.impl.CachingBuildEngine;
+import com.facebook.buck.core.build.event.BuildRuleEvent;
+import com.facebook.buck.core.build.stats.BuildRuleHistory;
+import com.facebook.buck.core.build.stats.BuildRuleHistory.Metric;
+import com.facebook.buck.core.rulekey.BuildRuleKeys;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.event.BuckEventListener;
+import com.facebook.buck.event.CommandEvent;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import com.facebook.buck.util.ProcessResourceConsumption;
+import com.facebook.buck.util.perf.ProcessTracker.ProcessResourceConsumptionEvent;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link BuckEventListener} recording how long the rules of a command took to build or fetch from
+ * the cache, how big their outputs were and how much memory their processes used into a {@link
+ * BuildRuleHistory}, which is saved once the command finishes.
+ */
+public class BuildRuleHistoryListener implements BuckEventListener {
+
+  private static final Logger LOG = Logger.get(BuildRuleHistoryListener.class);
+
+  private final BuildRuleHistory history;
+
+  /**
+   * Rule type and peak memory of the processes of each rule. Processes are only reported once the
+   * process tracker notices they are done, which may be after their rule is, so peaks are recorded
+   * at the end of the command.
+   */
+  private final ConcurrentMap<String, Pair<String, Long>> peakMemoryByTarget =
+      new ConcurrentHashMap<>();
+
+  /** Type of the rule key each rule built locally was built with, to record its peak memory for. */
+  private final ConcurrentMap<String, RuleKeyType> builtLocallyRuleKeyTypes =
+      new ConcurrentHashMap<>();
+
+  public BuildRuleHistoryListener(BuildRuleHistory history) {
+    this.history = history;
+  }
+
+  /** Subscribes to {@link BuildRuleEvent.Finished} events */
+  @Subscribe
+  public void buildRuleFinished(BuildRuleEvent.Finished event) {
+    if (event.getStatus() != BuildRuleStatus.SUCCESS || !event.getSuccessType().isPresent()) {
+      return;
+    }
+    BuildRule rule = event.getBuildRule();
+    RuleKeyType ruleKeyType;
+    switch (event.getSuccessType().get()) {
+      case BUILT_LOCALLY:
+        ruleKeyType = getMostSpecificRuleKeyType(event.getRuleKeys());
+        builtLocallyRuleKeyTypes.put(rule.getFullyQualifiedName(), ruleKeyType);
+        record(rule, ruleKeyType, Metric.EXECUTION_MILLIS, event.getBuildTimestamps());
+        break;
+      case FETCHED_FROM_CACHE:
+        ruleKeyType = RuleKeyType.DEFAULT;
+        record(
+            rule, ruleKeyType, Metric.CACHE_FETCH_MILLIS, event.getRuleKeyCacheCheckTimestamps());
+        break;
+      case FETCHED_FROM_CACHE_INPUT_BASED:
+        ruleKeyType = RuleKeyType.INPUT;
+        record(
+            rule,
+            ruleKeyType,
+            Metric.CACHE_FETCH_MILLIS,
+            event.getInputRuleKeyCacheCheckTimestamps());
+        break;
+      case FETCHED_FROM_CACHE_MANIFEST_BASED:
+        ruleKeyType = RuleKeyType.MANIFEST;
+        record(
+            rule,
+            ruleKeyType,
+            Metric.CACHE_FETCH_MILLIS,
+            event.getManifestRuleKeyCacheCheckTimestamps());
+        break;
+        // $CASES-OMITTED$
+      default:
+        // Rules found up to date tell nothing about how long they take.
+        return;
+    }
+    event
+        .getOutputSize()
+        .ifPresent(
+            size ->
+                history.record(
+                    rule.getBuildTarget(),
+                    rule.getType(),
+                    ruleKeyType,
+                    Metric.OUTPUT_SIZE_BYTES,
+                    size));
+  }
+
+  /**
+   * @return the type of the most specific rule key of a rule built locally, i.e. the one which
+   *     changes the least often, as it is the one telling builds of the rule apart the best.
+   */
+  private static RuleKeyType getMostSpecificRuleKeyType(BuildRuleKeys ruleKeys) {
+    if (ruleKeys.getDepFileRuleKey().isPresent()) {
+      return RuleKeyType.DEP_FILE;
+    }
+    if (ruleKeys.getManifestRuleKey().isPresent()) {
+      return RuleKeyType.MANIFEST;
+    }
+    if (ruleKeys.getInputRuleKey().isPresent()) {
+      return RuleKeyType.INPUT;
+    }
+    return RuleKeyType.DEFAULT;
+  }
+
+  private void record(
+      BuildRule rule,
+      RuleKeyType ruleKeyType,
+      Metric metric,
+      Optional<Pair<Long, Long>> timestamps) {
+    if (timestamps.isPresent()) {
+      history.record(
+          rule.getBuildTarget(),
+          rule.getType(),
+          ruleKeyType,
+          metric,
+          timestamps.get().getSecond() - timestamps.get().getFirst());
+    }
+  }
+
+  /** Subscribes to {@link ProcessResourceConsumptionEvent} events */
+  @Subscribe
+  public void processResourceConsumption(ProcessResourceConsumptionEvent event) {
+    if (!event.getContext().isPresent() || !event.getResourceConsumption().isPresent()) {
+      return;
+    }
+    ImmutableMap<String, String> context = event.getContext().get();
+    String target = context.get(CachingBuildEngine.BUILD_TARGET_CONTEXT_KEY);
+    String ruleType = context.get(CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY);
+    if (target == null || ruleType == null) {
+      return;
+    }
+    ProcessResourceConsumption consumption = event.getResourceConsumption().get();
+    peakMemoryByTarget.merge(
+        target,
+        new Pair<>(ruleType, consumption.getMemResident()),
+        (previous, current) -> current.getSecond() > previous.getSecond() ? current : previous);
+  }
+
+  /** Saves the history once the command is done */
+  @Subscribe
+  public void commandFinished(CommandEvent.Finished event) {
+    for (Map.Entry<String, Pair<String, Long>> entry : peakMemoryByTarget.entrySet()) {
+      // Processes are only run by rules built locally.
+      history.record(
+          entry.getKey(),
+          entry.getValue().getFirst(),
+          builtLocallyRuleKeyTypes.getOrDefault(entry.getKey(), RuleKeyType.DEFAULT),
+          Metric.PEAK_MEMORY_BYTES,
+          entry.getValue().getSecond());
+    }
+    peakMemoryByTarget.clear();
+    builtLocallyRuleKeyTypes.clear();
+    try {
+      history.save();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save the build rule history of command %s.", event.getCommandName());
+    }
+  }
+}
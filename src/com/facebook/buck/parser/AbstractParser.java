@@ -32,6 +32,7 @@ import com.facebook.buck.core.util.graph.GraphTraversableWithPayloadAndDependenc
 import com.facebook.buck.core.util.graph.MutableDirectedGraph;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
 import com.facebook.buck.parser.spec.TargetNodeSpec;
@@ -43,11 +44,13 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
@@ -176,6 +179,23 @@ abstract class AbstractParser implements Parser {
       return TargetGraphCreationResult.of(TargetGraph.EMPTY, toExplore);
     }
 
+    boolean incremental =
+        state
+            .getParsingContext()
+            .getCell()
+            .getBuckConfigView(ParserConfig.class)
+            .getIncrementalTargetGraph();
+    TargetGraph previousGraph =
+        incremental
+            ? permState
+                .getLastTargetGraph()
+                .map(TargetGraphCreationResult::getTargetGraph)
+                .orElse(TargetGraph.EMPTY)
+            : TargetGraph.EMPTY;
+    // Nodes which are the very same instances as in the previous graph. Their deps and the
+    // visibility of those deps have been checked when building it.
+    Set<TargetNode<?>> unchangedNodes = Sets.newIdentityHashSet();
+
     MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
     Map<BuildTarget, TargetNode<?>> index = new HashMap<>();
     TemporaryUnconfiguredTargetToTargetUniquenessChecker checker =
@@ -197,6 +217,13 @@ abstract class AbstractParser implements Parser {
             throw e;
           }
 
+          if (previousGraph.getExactOptional(target).orElse(null) == node) {
+            // The deps of this node could all be found when the previous graph was built, those
+            // which changed since are looked up when they are visited.
+            unchangedNodes.add(node);
+            return new Pair<>(node, node.getTotalDeps().iterator());
+          }
+
           // this second lookup loop may *seem* pointless, but it allows us to report which node is
           // referring to a node we can't find - something that's very difficult in this Traversable
           // visitor pattern otherwise.
@@ -226,8 +253,15 @@ abstract class AbstractParser implements Parser {
 
     TargetGraph targetGraph = null;
     try {
+      Map<BuildTarget, Pair<TargetNode<?>, DependencyStack>> targetsAndNodes =
+          targetNodeTraversal.traverse(toExplore);
+      if (isPreviousGraphUpToDate(state, previousGraph, targetsAndNodes, unchangedNodes)) {
+        targetGraph = previousGraph;
+        return TargetGraphCreationResult.of(targetGraph, toExplore);
+      }
+
       for (Map.Entry<BuildTarget, Pair<TargetNode<?>, DependencyStack>> targetAndNode :
-          targetNodeTraversal.traverse(toExplore).entrySet()) {
+          targetsAndNodes.entrySet()) {
         BuildTarget target = targetAndNode.getKey();
         TargetNode<?> targetNode = targetAndNode.getValue().getFirst();
         DependencyStack dependencyStack = targetAndNode.getValue().getSecond();
@@ -244,24 +278,63 @@ abstract class AbstractParser implements Parser {
           // NOTE: do not used uniqueness checked for unflavored target
           // because `target.withoutFlavors()` does not switch unconfigured target
         }
+        if (unchangedNodes.contains(targetNode)
+            && unchangedNodes.containsAll(previousGraph.getOutgoingNodesFor(targetNode))) {
+          for (TargetNode<?> dep : previousGraph.getOutgoingNodesFor(targetNode)) {
+            graph.addEdge(targetNode, dep);
+          }
+          continue;
+        }
         for (BuildTarget dep : targetNode.getParseDeps()) {
           graph.addEdge(
               targetNode, state.getTargetNodeAssertCompatible(dep, dependencyStack.child(dep)));
         }
       }
 
-      targetGraph = new TargetGraph(graph, ImmutableMap.copyOf(index));
+      targetGraph = new TargetGraph(graph, ImmutableMap.copyOf(index), unchangedNodes);
       return TargetGraphCreationResult.of(targetGraph, toExplore);
     } catch (CycleException e) {
       throw new HumanReadableException(e.getMessage());
     } catch (RuntimeException e) {
       throw propagateRuntimeCause(e);
     } finally {
+      if (incremental && targetGraph != null) {
+        permState.setLastTargetGraph(TargetGraphCreationResult.of(targetGraph, toExplore));
+      }
       eventBus.post(
           ParseEvent.finished(parseStart, processedBytes.get(), Optional.ofNullable(targetGraph)));
     }
   }
 
+  /**
+   * @return whether the previous graph consists of exactly the nodes which were just traversed, in
+   *     which case it has the same edges and index too.
+   */
+  private static boolean isPreviousGraphUpToDate(
+      PerBuildState state,
+      TargetGraph previousGraph,
+      Map<BuildTarget, Pair<TargetNode<?>, DependencyStack>> targetsAndNodes,
+      Set<TargetNode<?>> unchangedNodes) {
+    if (unchangedNodes.size() != targetsAndNodes.size()
+        || previousGraph.getNodes().size() != targetsAndNodes.size()) {
+      return false;
+    }
+    for (Map.Entry<BuildTarget, Pair<TargetNode<?>, DependencyStack>> targetAndNode :
+        targetsAndNodes.entrySet()) {
+      BuildTarget target = targetAndNode.getKey();
+      if (target.isFlavored()) {
+        BuildTarget unflavoredTarget = target.withoutFlavors();
+        TargetNode<?> unflavoredNode =
+            state.getTargetNodeAssertCompatible(
+                unflavoredTarget, targetAndNode.getValue().getSecond());
+        if (previousGraph.getExactOptional(unflavoredTarget).orElse(null) != unflavoredNode) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   @Override
   public synchronized TargetGraphCreationResult buildTargetGraphWithoutTopLevelConfigurationTargets(
       ParsingContext parsingContext,
@@ -38,6 +38,7 @@ import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,8 +46,11 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 class DaemonicCellState {
@@ -88,7 +92,11 @@ class DaemonicCellState {
 
     public Optional<T> lookupComputedNode(K target) throws BuildTargetException {
       try (AutoCloseableLock readLock = cachesLock.readLock()) {
-        return Optional.ofNullable(allComputedNodes.getIfPresent(target));
+        T node = allComputedNodes.getIfPresent(target);
+        if (node != null && weighPackages) {
+          touch(packageUsagesByTarget.get(type.keyToUnflavoredBuildTargetView.apply(target)));
+        }
+        return Optional.ofNullable(node);
       }
     }
 
@@ -100,7 +108,15 @@ class DaemonicCellState {
             "Added %s to computed nodes, which isn't present in raw nodes",
             target);
         if (updatedNode.equals(targetNode)) {
-          targetsCornucopia.put(type.keyToUnflavoredBuildTargetView.apply(target), target);
+          UnflavoredBuildTarget unflavoredTarget =
+              type.keyToUnflavoredBuildTargetView.apply(target);
+          if (targetsCornucopia.put(unflavoredTarget, target) && weighPackages) {
+            PackageUsage usage = packageUsagesByTarget.get(unflavoredTarget);
+            if (usage != null) {
+              usage.computedNodes++;
+              estimatedWeight.addAndGet(usage.getComputedNodeWeight());
+            }
+          }
         }
         return updatedNode;
       }
@@ -156,6 +172,51 @@ class DaemonicCellState {
   @GuardedBy("cachesLock")
   private final Set<UnflavoredBuildTarget> allRawNodeTargets;
 
+  /**
+   * Whether the content cached for each build file is weighed and its last use recorded, so that
+   * the least recently used build files can be evicted to bound the size of the state.
+   */
+  private final boolean weighPackages;
+
+  /** Estimated weight and last use of the content cached for each build file. */
+  @GuardedBy("cachesLock")
+  private final Map<AbsPath, PackageUsage> packageUsages;
+
+  /** Usages of the build files defining each target, to record uses of cached nodes. */
+  @GuardedBy("cachesLock")
+  private final Map<UnflavoredBuildTarget, PackageUsage> packageUsagesByTarget;
+
+  /** Sum of the estimated weights in {@link #packageUsages}. */
+  private final AtomicLong estimatedWeight = new AtomicLong();
+
+  /**
+   * Estimated weight and last use of the content cached for a build file: its manifest and the
+   * nodes computed from it, each of which is assumed to weigh as much as an average raw node of the
+   * manifest.
+   */
+  private static class PackageUsage {
+    private final long manifestWeight;
+    private final int targetCount;
+
+    @GuardedBy("cachesLock")
+    private int computedNodes = 0;
+
+    private volatile long lastUse = System.nanoTime();
+
+    PackageUsage(long manifestWeight, int targetCount) {
+      this.manifestWeight = manifestWeight;
+      this.targetCount = targetCount;
+    }
+
+    long getComputedNodeWeight() {
+      return manifestWeight / Math.max(1, targetCount);
+    }
+
+    long getWeight() {
+      return manifestWeight + computedNodes * getComputedNodeWeight();
+    }
+  }
+
   /** Type-safe accessor to one of state caches */
   static class CellCacheType<K, T> {
     private final Function<DaemonicCellState, Cache<K, T>> getCache;
@@ -201,6 +262,10 @@ class DaemonicCellState {
   private final int parsingThreads;
 
   DaemonicCellState(Cell cell, int parsingThreads) {
+    this(cell, parsingThreads, false);
+  }
+
+  DaemonicCellState(Cell cell, int parsingThreads, boolean weighPackages) {
     this.cell = new AtomicReference<>(cell);
     this.parsingThreads = parsingThreads;
     this.cellRoot = cell.getRoot();
@@ -214,6 +279,9 @@ class DaemonicCellState {
     this.cachesLock = new AutoCloseableReadWriteUpdateLock();
     this.targetNodeCache = new Cache<>(TARGET_NODE_CACHE_TYPE);
     this.rawTargetNodeCache = new Cache<>(RAW_TARGET_NODE_CACHE_TYPE);
+    this.weighPackages = weighPackages;
+    this.packageUsages = new ConcurrentHashMap<>();
+    this.packageUsagesByTarget = new HashMap<>();
   }
 
   // TODO(mzlee): Only needed for invalidateBasedOn which does not have access to cell metadata
@@ -231,7 +299,17 @@ class DaemonicCellState {
 
   Optional<BuildFileManifest> lookupBuildFileManifest(AbsPath buildFile) {
     try (AutoCloseableLock readLock = cachesLock.readLock()) {
-      return Optional.ofNullable(allBuildFileManifests.getIfPresent(buildFile));
+      BuildFileManifest manifest = allBuildFileManifests.getIfPresent(buildFile);
+      if (manifest != null && weighPackages) {
+        touch(packageUsages.get(buildFile));
+      }
+      return Optional.ofNullable(manifest);
+    }
+  }
+
+  private static void touch(@Nullable PackageUsage usage) {
+    if (usage != null) {
+      usage.lastUse = System.nanoTime();
     }
   }
 
@@ -243,10 +321,20 @@ class DaemonicCellState {
     try (AutoCloseableLock writeLock = cachesLock.writeLock()) {
       BuildFileManifest updated =
           allBuildFileManifests.putIfAbsentAndGet(buildFile, buildFileManifest);
+      @Nullable PackageUsage usage = null;
+      if (weighPackages && !packageUsages.containsKey(buildFile)) {
+        usage = new PackageUsage(estimateWeight(updated.getTargets()), updated.getTargets().size());
+        packageUsages.put(buildFile, usage);
+        estimatedWeight.addAndGet(usage.getWeight());
+      }
       for (Map<String, Object> node : updated.getTargets().values()) {
-        allRawNodeTargets.add(
+        UnflavoredBuildTarget target =
             UnflavoredBuildTargetFactory.createFromRawNode(
-                cellRoot.getPath(), cellCanonicalName, node, buildFile.getPath()));
+                cellRoot.getPath(), cellCanonicalName, node, buildFile.getPath());
+        allRawNodeTargets.add(target);
+        if (usage != null) {
+          packageUsagesByTarget.put(target, usage);
+        }
       }
       buildFileEnv.put(buildFile, env);
       if (updated == buildFileManifest) {
@@ -296,6 +384,11 @@ class DaemonicCellState {
     try (AutoCloseableLock writeLock = cachesLock.writeLock()) {
       int invalidatedRawNodes = 0;
       BuildFileManifest buildFileManifest = allBuildFileManifests.getIfPresent(path);
+      @Nullable PackageUsage usage = packageUsages.get(path);
+      if (usage != null) {
+        estimatedWeight.addAndGet(-usage.computedNodes * usage.getComputedNodeWeight());
+        usage.computedNodes = 0;
+      }
       if (buildFileManifest != null) {
         ImmutableMap<String, ImmutableMap<String, Object>> rawNodes =
             buildFileManifest.getTargets();
@@ -311,6 +404,7 @@ class DaemonicCellState {
           }
           if (invalidateBuildTargets) {
             allRawNodeTargets.remove(target);
+            packageUsagesByTarget.remove(target);
           }
         }
       }
@@ -343,6 +437,10 @@ class DaemonicCellState {
 
       allBuildFileManifests.invalidate(path);
       allPackageFileManifests.invalidate(path);
+      @Nullable PackageUsage usage = packageUsages.remove(path);
+      if (usage != null) {
+        estimatedWeight.addAndGet(-usage.getWeight());
+      }
 
       // We may have been given a file that other build files depend on. Invalidate accordingly.
       Set<AbsPath> dependents = buildFileDependents.get(path);
@@ -412,6 +510,48 @@ class DaemonicCellState {
     return Optional.empty();
   }
 
+  /** @return the estimated weight of the content cached for build files in this cell. */
+  long getEstimatedWeight() {
+    return estimatedWeight.get();
+  }
+
+  /**
+   * @return the build files with cached content, mapped to the time their content was last used,
+   *     as given by {@link System#nanoTime()}.
+   */
+  ImmutableMap<AbsPath, Long> getBuildFileLastUses() {
+    try (AutoCloseableLock readLock = cachesLock.readLock()) {
+      ImmutableMap.Builder<AbsPath, Long> lastUses =
+          ImmutableMap.builderWithExpectedSize(packageUsages.size());
+      for (Map.Entry<AbsPath, PackageUsage> entry : packageUsages.entrySet()) {
+        lastUses.put(entry.getKey(), entry.getValue().lastUse);
+      }
+      return lastUses.build();
+    }
+  }
+
+  /** Roughly estimates the number of bytes retained by a raw node or one of its attributes. */
+  private static long estimateWeight(@Nullable Object value) {
+    if (value instanceof String) {
+      return 40 + 2L * ((String) value).length();
+    }
+    if (value instanceof Map) {
+      long weight = 48;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        weight += 32 + estimateWeight(entry.getKey()) + estimateWeight(entry.getValue());
+      }
+      return weight;
+    }
+    if (value instanceof Collection) {
+      long weight = 32;
+      for (Object element : (Collection<?>) value) {
+        weight += 8 + estimateWeight(element);
+      }
+      return weight;
+    }
+    return 16;
+  }
+
   /** @return {@code true} if the given path has dependencies that are present in the given set. */
   boolean pathDependentPresentIn(Path path, Set<AbsPath> buildFiles) {
     return !Collections.disjoint(buildFileDependents.get(cellRoot.resolve(path)), buildFiles);
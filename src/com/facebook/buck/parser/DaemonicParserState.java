@@ -25,11 +25,13 @@ import com.facebook.buck.core.model.BuildFileTree;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.UnconfiguredBuildTarget;
 import com.facebook.buck.core.model.impl.FilesystemBackedBuildFileTree;
+import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
 import com.facebook.buck.core.model.targetgraph.TargetNodeMaybeIncompatible;
 import com.facebook.buck.core.model.targetgraph.raw.UnconfiguredTargetNode;
 import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.counters.Counter;
 import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
 import com.facebook.buck.counters.TagSetCounter;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ParsingEvent;
@@ -41,8 +43,10 @@ import com.facebook.buck.parser.api.PackageFileManifest;
 import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
+import com.facebook.buck.skylark.io.impl.GlobIndex;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
 import com.facebook.buck.util.concurrent.AutoCloseableReadWriteLock;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
@@ -57,14 +61,20 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.MapDifference;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -96,6 +106,10 @@ public class DaemonicParserState {
       "rules_invalidated_by_watch_events";
   private static final String PATHS_ADDED_OR_REMOVED_INVALIDATING_BUILD_FILES =
       "paths_added_or_removed_invalidating_build_files";
+  private static final String ESTIMATED_SIZE_BYTES_COUNTER_NAME = "estimated_size_bytes";
+  private static final String BUILD_FILES_EVICTED_COUNTER_NAME = "build_files_evicted";
+
+  private static final long DEFAULT_GLOB_INDEX_MAX_SIZE_BYTES = 64L * 1024 * 1024;
   // pattern all implicit include paths from build file includes should match
   // this should be kept in sync with pattern used in buck.py
   private static final Pattern INCLUDE_PATH_PATTERN = Pattern.compile("^([A-Za-z0-9_]*)//(.*)$");
@@ -181,6 +195,7 @@ public class DaemonicParserState {
     public Optional<BuildFileManifest> lookupComputedNode(
         Cell cell, AbsPath buildFile, BuckEventBus eventBus) throws BuildTargetException {
       invalidateIfProjectBuildFileParserStateChanged(cell);
+      restoreSnapshotIfNeeded(cell);
       invalidateIfBuckConfigOrEnvHasChanged(cell, buildFile, eventBus);
 
       DaemonicCellState state = getCellState(cell);
@@ -212,27 +227,42 @@ public class DaemonicParserState {
       // invalidated mid-way through the parse).
       invalidateIfProjectBuildFileParserStateChanged(cell);
 
-      ImmutableSet.Builder<AbsPath> dependentsOfEveryNode = ImmutableSet.builder();
-
-      addAllIncludes(dependentsOfEveryNode, manifest.getIncludes(), cell);
-
-      if (cell.getBuckConfig().getView(ParserConfig.class).getEnablePackageFiles()) {
-        // Add the PACKAGE file in the build file's directory and parent directory as dependents,
-        // regardless of whether they currently exist. If a PACKAGE file is added, we need to
-        // invalidate all relevant nodes.
-        AbsPath packageFile = PackagePipeline.getPackageFileFromBuildFile(cell, buildFile);
-        ImmutableSet<AbsPath> parentPackageFiles =
-            PackagePipeline.getAllParentPackageFiles(cell, packageFile);
-        dependentsOfEveryNode.add(packageFile).addAll(parentPackageFiles);
+      ImmutableSet<AbsPath> dependentsOfEveryNode =
+          getDependentsOfEveryNode(cell, buildFile, manifest);
+      BuildFileManifest updated =
+          getOrCreateCellState(cell)
+              .putBuildFileManifestIfNotPresent(
+                  buildFile,
+                  manifest,
+                  dependentsOfEveryNode,
+                  manifest.getEnv().orElse(ImmutableMap.of()));
+      if (snapshotFingerprint.isPresent() && updated == manifest) {
+        recordSnapshotCandidate(
+            cell,
+            buildFile,
+            new SnapshotCandidate(manifest, dependentsOfEveryNode, System.currentTimeMillis()));
       }
+      return updated;
+    }
+  }
 
-      return getOrCreateCellState(cell)
-          .putBuildFileManifestIfNotPresent(
-              buildFile,
-              manifest,
-              dependentsOfEveryNode.build(),
-              manifest.getEnv().orElse(ImmutableMap.of()));
+  /** Files that all nodes of {@code buildFile} have to be invalidated on. */
+  private static ImmutableSet<AbsPath> getDependentsOfEveryNode(
+      Cell cell, AbsPath buildFile, BuildFileManifest manifest) {
+    ImmutableSet.Builder<AbsPath> dependentsOfEveryNode = ImmutableSet.builder();
+
+    addAllIncludes(dependentsOfEveryNode, manifest.getIncludes(), cell);
+
+    if (cell.getBuckConfig().getView(ParserConfig.class).getEnablePackageFiles()) {
+      // Add the PACKAGE file in the build file's directory and parent directory as dependents,
+      // regardless of whether they currently exist. If a PACKAGE file is added, we need to
+      // invalidate all relevant nodes.
+      AbsPath packageFile = PackagePipeline.getPackageFileFromBuildFile(cell, buildFile);
+      ImmutableSet<AbsPath> parentPackageFiles =
+          PackagePipeline.getAllParentPackageFiles(cell, packageFile);
+      dependentsOfEveryNode.add(packageFile).addAll(parentPackageFiles);
     }
+    return dependentsOfEveryNode.build();
   }
 
   /** Stateless view of caches on object that conforms to {@link PipelineNodeCache.Cache}. */
@@ -324,6 +354,8 @@ public class DaemonicParserState {
   private final IntegerCounter filesChangedCounter;
   private final IntegerCounter rulesInvalidatedByWatchEventsCounter;
   private final TagSetCounter pathsAddedOrRemovedInvalidatingBuildFiles;
+  private final SamplingCounter estimatedSizeBytesCounter;
+  private final IntegerCounter buildFilesEvictedCounter;
 
   /**
    * The set of {@link Cell} instances that have been seen by this state. This information is used
@@ -355,6 +387,14 @@ public class DaemonicParserState {
 
   private final DaemonicPackageCache packageFileCache;
 
+  /**
+   * Glob results kept up to date with file system changes, see {@link
+   * ParserConfig#getEnableGlobIndex()}. Its results count towards the size of this state, and are
+   * bounded to a quarter of its maximum size, or {@link #DEFAULT_GLOB_INDEX_MAX_SIZE_BYTES} if the
+   * size of this state is not bounded.
+   */
+  private final GlobIndex globIndex;
+
   private final int parsingThreads;
 
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
@@ -369,8 +409,61 @@ public class DaemonicParserState {
   private final AutoCloseableReadWriteLock cachedStateLock;
   private final AutoCloseableReadWriteLock cellStateLock;
 
+  /**
+   * Identifies the Buck version and configuration of this daemon when build file manifests should
+   * be persisted across daemon restarts, see {@link DaemonicParserStateSnapshot}.
+   */
+  private final Optional<String> snapshotFingerprint;
+
+  /**
+   * Manifests parsed or restored by this daemon, keyed by cell root. Candidates may outlive the
+   * manifests in {@link #cellPathToDaemonicState}, they are matched against the live state when
+   * saved.
+   */
+  private final ConcurrentMap<AbsPath, ConcurrentMap<AbsPath, SnapshotCandidate>>
+      snapshotCandidates = new ConcurrentHashMap<>();
+
+  /** Whether manifests were parsed since snapshots were last saved. */
+  private final AtomicBoolean snapshotsOutdated = new AtomicBoolean(false);
+
+  /**
+   * Estimated size in bytes above which the content cached for the least recently used build files
+   * is evicted, see {@link ParserConfig#getDaemonStateMaxSizeBytes()}. Unbounded when empty.
+   */
+  private final Optional<Long> maxEstimatedSize;
+
+  /**
+   * Number of {@link PerBuildState}s parsing on top of this state. Content is only evicted while
+   * there are none, since nodes evicted while being parsed would be missing from the caches.
+   */
+  @GuardedBy("cellStateLock")
+  private int livePerBuildStates = 0;
+
+  /** Cells for which restoring a snapshot has already been attempted. */
+  private final Set<AbsPath> restoredCells = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The last target graph built on top of this state, used to build the next one incrementally,
+   * see {@link ParserConfig#getIncrementalTargetGraph()}. Dropped along with all caches.
+   */
+  @Nullable private volatile TargetGraphCreationResult lastTargetGraph;
+
   public DaemonicParserState(int parsingThreads) {
+    this(parsingThreads, Optional.empty());
+  }
+
+  public DaemonicParserState(int parsingThreads, Optional<String> snapshotFingerprint) {
+    this(parsingThreads, snapshotFingerprint, Optional.empty());
+  }
+
+  public DaemonicParserState(
+      int parsingThreads, Optional<String> snapshotFingerprint, Optional<Long> maxEstimatedSize) {
     this.parsingThreads = parsingThreads;
+    this.snapshotFingerprint = snapshotFingerprint;
+    this.maxEstimatedSize = maxEstimatedSize;
+    this.globIndex =
+        new GlobIndex(
+            maxEstimatedSize.map(size -> size / 4).orElse(DEFAULT_GLOB_INDEX_MAX_SIZE_BYTES));
     this.cacheInvalidatedByEnvironmentVariableChangeCounter =
         new TagSetCounter(
             COUNTER_CATEGORY, INVALIDATED_BY_ENV_VARS_COUNTER_NAME, ImmutableMap.of());
@@ -393,6 +486,10 @@ public class DaemonicParserState {
     this.pathsAddedOrRemovedInvalidatingBuildFiles =
         new TagSetCounter(
             COUNTER_CATEGORY, PATHS_ADDED_OR_REMOVED_INVALIDATING_BUILD_FILES, ImmutableMap.of());
+    this.estimatedSizeBytesCounter =
+        new SamplingCounter(COUNTER_CATEGORY, ESTIMATED_SIZE_BYTES_COUNTER_NAME, ImmutableMap.of());
+    this.buildFilesEvictedCounter =
+        new IntegerCounter(COUNTER_CATEGORY, BUILD_FILES_EVICTED_COUNTER_NAME, ImmutableMap.of());
     this.buildFileTrees =
         CacheBuilder.newBuilder()
             .build(
@@ -443,6 +540,14 @@ public class DaemonicParserState {
     return cacheType.getCacheView.apply(this);
   }
 
+  Optional<TargetGraphCreationResult> getLastTargetGraph() {
+    return Optional.ofNullable(lastTargetGraph);
+  }
+
+  void setLastTargetGraph(TargetGraphCreationResult targetGraph) {
+    lastTargetGraph = targetGraph;
+  }
+
   public PipelineNodeCache.Cache<AbsPath, BuildFileManifest> getRawNodeCache() {
     return rawNodeCache;
   }
@@ -451,6 +556,10 @@ public class DaemonicParserState {
     return packageFileCache;
   }
 
+  public GlobIndex getGlobIndex() {
+    return globIndex;
+  }
+
   @VisibleForTesting
   PipelineNodeCache.Cache<BuildTarget, TargetNodeMaybeIncompatible> getTargetNodeCache() {
     return targetNodeCache;
@@ -467,18 +576,149 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
       if (state == null) {
-        state = new DaemonicCellState(cell, parsingThreads);
+        state = new DaemonicCellState(cell, parsingThreads, maxEstimatedSize.isPresent());
         cellPathToDaemonicState.put(cell.getRoot(), state);
       }
       return state;
     }
   }
 
+  private void recordSnapshotCandidate(Cell cell, AbsPath buildFile, SnapshotCandidate candidate) {
+    snapshotCandidates
+        .computeIfAbsent(cell.getRoot(), ignored -> new ConcurrentHashMap<>())
+        .put(buildFile, candidate);
+    if (candidate.entry == null) {
+      snapshotsOutdated.set(true);
+    }
+  }
+
+  /**
+   * Populates the state of {@code cell} with the manifests saved by a previous daemon that are
+   * still up to date. This is only done once per cell and has to happen after the invalidation
+   * triggered by the first Watchman query of this daemon.
+   */
+  private void restoreSnapshotIfNeeded(Cell cell) {
+    if (!snapshotFingerprint.isPresent() || !restoredCells.add(cell.getRoot())) {
+      return;
+    }
+    ImmutableMap<AbsPath, DaemonicParserStateSnapshot.Entry> restored =
+        DaemonicParserStateSnapshot.load(
+            DaemonicParserStateSnapshot.getSnapshotPath(cell.getFilesystem()),
+            snapshotFingerprint.get());
+    if (restored.isEmpty()) {
+      return;
+    }
+    DaemonicCellState state = getOrCreateCellState(cell);
+    for (Map.Entry<AbsPath, DaemonicParserStateSnapshot.Entry> entry : restored.entrySet()) {
+      BuildFileManifest manifest = entry.getValue().getManifest();
+      state.putBuildFileManifestIfNotPresent(
+          entry.getKey(),
+          manifest,
+          getDependentsOfEveryNode(cell, entry.getKey(), manifest),
+          manifest.getEnv().orElse(ImmutableMap.of()));
+      recordSnapshotCandidate(cell, entry.getKey(), new SnapshotCandidate(entry.getValue()));
+    }
+  }
+
+  /**
+   * Persists the build file manifests currently held by this state, so that the next daemon can
+   * start with them. Does nothing unless snapshots are enabled and manifests were parsed since the
+   * last time they were saved.
+   *
+   * <p>Manifests parsed by this daemon are stamped here rather than when they are parsed, since
+   * stamping walks the directories of their packages. This is meant to run in the background after
+   * a command.
+   */
+  public void saveSnapshots() {
+    if (!snapshotFingerprint.isPresent() || !snapshotsOutdated.getAndSet(false)) {
+      return;
+    }
+    List<DaemonicCellState> states;
+    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+      states = new ArrayList<>(cellPathToDaemonicState.values());
+    }
+    for (DaemonicCellState state : states) {
+      Cell cell = state.getCell();
+      Map<AbsPath, SnapshotCandidate> candidates =
+          snapshotCandidates.getOrDefault(cell.getRoot(), new ConcurrentHashMap<>());
+      String buildFileName = cell.getBuckConfigView(ParserConfig.class).getBuildFileName();
+      Map<AbsPath, DaemonicParserStateSnapshot.Entry> live = new HashMap<>();
+      for (Map.Entry<AbsPath, SnapshotCandidate> candidate : candidates.entrySet()) {
+        // Only manifests still cached are known to be up to date with watched file changes.
+        Optional<BuildFileManifest> cached = state.lookupBuildFileManifest(candidate.getKey());
+        if (!cached.isPresent() || cached.get() != candidate.getValue().manifest) {
+          continue;
+        }
+        candidate
+            .getValue()
+            .getEntry(cell, buildFileName, candidate.getKey())
+            .ifPresent(entry -> live.put(candidate.getKey(), entry));
+      }
+      Path snapshotPath = DaemonicParserStateSnapshot.getSnapshotPath(cell.getFilesystem());
+      try {
+        DaemonicParserStateSnapshot.save(snapshotPath, snapshotFingerprint.get(), live);
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to save parser state snapshot to %s", snapshotPath);
+      }
+    }
+  }
+
+  /**
+   * A manifest held by this state that may be saved to a snapshot. Manifests restored from a
+   * snapshot come with their stamps, manifests parsed by this daemon are stamped when first saved.
+   */
+  private static final class SnapshotCandidate {
+    private final BuildFileManifest manifest;
+    private final ImmutableSet<AbsPath> dependentsOfEveryNode;
+    private final long parsedAtMillis;
+    @Nullable private volatile DaemonicParserStateSnapshot.Entry entry;
+
+    private SnapshotCandidate(
+        BuildFileManifest manifest,
+        ImmutableSet<AbsPath> dependentsOfEveryNode,
+        long parsedAtMillis) {
+      this.manifest = manifest;
+      this.dependentsOfEveryNode = dependentsOfEveryNode;
+      this.parsedAtMillis = parsedAtMillis;
+      this.entry = null;
+    }
+
+    private SnapshotCandidate(DaemonicParserStateSnapshot.Entry restored) {
+      this.manifest = restored.getManifest();
+      this.dependentsOfEveryNode = ImmutableSet.of();
+      this.parsedAtMillis = 0;
+      this.entry = restored;
+    }
+
+    private Optional<DaemonicParserStateSnapshot.Entry> getEntry(
+        Cell cell, String buildFileName, AbsPath buildFile) {
+      DaemonicParserStateSnapshot.Entry stamped = entry;
+      if (stamped == null) {
+        Optional<DaemonicParserStateSnapshot.Entry> unchanged =
+            DaemonicParserStateSnapshot.stampIfUnchangedSince(
+                manifest,
+                cell.getFilesystem(),
+                buildFileName,
+                buildFile,
+                dependentsOfEveryNode,
+                parsedAtMillis);
+        if (!unchanged.isPresent()) {
+          return Optional.empty();
+        }
+        stamped = unchanged.get();
+        entry = stamped;
+      }
+      return Optional.of(stamped);
+    }
+  }
+
   @Subscribe
   public void invalidateBasedOn(WatchmanOverflowEvent event) {
     // Non-path change event, likely an overflow due to many change events: invalidate everything.
     LOG.debug("Received non-path change event %s, assuming overflow and checking caches.", event);
 
+    globIndex.onFileSystemChange(event);
+
     if (invalidateAllCaches()) {
       LOG.warn("Invalidated cache on watch event %s.", event);
       cacheInvalidatedByWatchOverflowCounter.inc();
@@ -491,6 +731,10 @@ public class DaemonicParserState {
 
     filesChangedCounter.inc();
 
+    // Update glob results before invalidating the build files, so that they are up to date when the
+    // build files are parsed again.
+    globIndex.onFileSystemChange(event);
+
     RelPath path = event.getPath();
     AbsPath fullPath = event.getCellPath().resolve(event.getPath());
 
@@ -634,6 +878,73 @@ public class DaemonicParserState {
     rulesInvalidatedByWatchEventsCounter.inc(invalidatedNodes);
   }
 
+  /**
+   * Records that a {@link PerBuildState} starts parsing on top of this state. If no other one is
+   * parsing, the content cached for the least recently used build files is evicted first.
+   */
+  void perBuildStateCreated() {
+    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
+      if (livePerBuildStates == 0) {
+        evictLeastRecentlyUsedIfNeeded();
+      }
+      livePerBuildStates++;
+    }
+  }
+
+  /** Records that a {@link PerBuildState} created on top of this state was closed. */
+  void perBuildStateClosed() {
+    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
+      Preconditions.checkState(livePerBuildStates > 0, "No PerBuildState is live.");
+      livePerBuildStates--;
+    }
+  }
+
+  /**
+   * Evicts the content cached for the least recently used build files, as if they were changed,
+   * until the estimated size of this state is back to three quarters of its maximum size. Does
+   * nothing unless the size of this state is bounded.
+   */
+  @GuardedBy("cellStateLock")
+  private void evictLeastRecentlyUsedIfNeeded() {
+    if (!maxEstimatedSize.isPresent()) {
+      return;
+    }
+    long estimatedSize = globIndex.getEstimatedWeight();
+    for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+      estimatedSize += state.getEstimatedWeight();
+    }
+    estimatedSizeBytesCounter.addSample(estimatedSize);
+    if (estimatedSize <= maxEstimatedSize.get()) {
+      return;
+    }
+
+    List<Pair<DaemonicCellState, Map.Entry<AbsPath, Long>>> buildFiles = new ArrayList<>();
+    for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+      for (Map.Entry<AbsPath, Long> lastUse : state.getBuildFileLastUses().entrySet()) {
+        buildFiles.add(new Pair<>(state, lastUse));
+      }
+    }
+    buildFiles.sort(Comparator.comparing(buildFile -> buildFile.getSecond().getValue()));
+
+    long targetSize = maxEstimatedSize.get() / 4 * 3;
+    int evicted = 0;
+    for (Pair<DaemonicCellState, Map.Entry<AbsPath, Long>> buildFile : buildFiles) {
+      if (estimatedSize <= targetSize) {
+        break;
+      }
+      DaemonicCellState state = buildFile.getFirst();
+      long before = state.getEstimatedWeight();
+      state.invalidatePath(buildFile.getSecond().getKey());
+      estimatedSize -= before - state.getEstimatedWeight();
+      evicted++;
+    }
+    LOG.info(
+        "Evicted %d build files to bring the parser state to %d bytes", evicted, estimatedSize);
+    buildFilesEvictedCounter.inc(evicted);
+    // The last target graph would otherwise keep the evicted nodes alive.
+    lastTargetGraph = null;
+  }
+
   public static boolean isPathCreateOrDeleteEvent(WatchmanPathEvent event) {
     return event.getKind() == Kind.CREATE || event.getKind() == Kind.DELETE;
   }
@@ -709,6 +1020,7 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
       cellPathToDaemonicState.remove(cell.getRoot());
+      snapshotCandidates.remove(cell.getRoot());
       if (invalidated) {
         LOG.debug("Cell cache data invalidated.");
       } else {
@@ -724,8 +1036,11 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = !cellPathToDaemonicState.isEmpty();
       cellPathToDaemonicState.clear();
+      snapshotCandidates.clear();
       buildFileTrees.invalidateAll();
       configurationBuildFiles.clear();
+      globIndex.invalidateAll();
+      lastTargetGraph = null;
       if (invalidated) {
         LOG.debug("Cache data invalidated.");
       } else {
@@ -743,7 +1058,9 @@ public class DaemonicParserState {
         buildFilesInvalidatedByFileAddOrRemoveCounter,
         filesChangedCounter,
         rulesInvalidatedByWatchEventsCounter,
-        pathsAddedOrRemovedInvalidatingBuildFiles);
+        pathsAddedOrRemovedInvalidatingBuildFiles,
+        estimatedSizeBytesCounter,
+        buildFilesEvictedCounter);
   }
 
   @Override
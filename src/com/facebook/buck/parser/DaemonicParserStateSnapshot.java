@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.filesystems.RelPath;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.cache.json.BuildFileManifestSerializer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Saves and restores the build file manifests held by {@link DaemonicParserState} so that a new
+ * daemon does not have to re-parse build files that have not changed since the previous daemon
+ * exited.
+ *
+ * <p>A fresh daemon cannot rely on Watchman to tell it what changed while no daemon was running
+ * (the first query after startup reports a fresh instance), so every manifest is stored together
+ * with stamps (mtime and size) of all files it depends on: the build file itself, its includes and
+ * PACKAGE files, and every directory of the package. The latter catches files added to or removed
+ * from the package, which may change glob results. A manifest is only restored if all of its
+ * stamps still match.
+ *
+ * <p>Manifests of files modified within {@link #RACY_WINDOW_NANOS} of their parse are not saved:
+ * an edit made just after the parse may leave the mtime unchanged on filesystems with a coarse
+ * timestamp granularity, so the stamps would keep matching a stale manifest.
+ */
+final class DaemonicParserStateSnapshot {
+
+  private static final Logger LOG = Logger.get(DaemonicParserStateSnapshot.class);
+
+  private static final int MAGIC = 0xB0C4DA75;
+  private static final int VERSION = 1;
+
+  private static final String SNAPSHOT_FILE_NAME = ".parser_state_snapshot";
+
+  /** Coarsest modification time granularity we expect (FAT has two seconds). */
+  @VisibleForTesting static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  /** Marker for a stamped path that did not exist. */
+  private static final long MISSING = -1;
+
+  private DaemonicParserStateSnapshot() {}
+
+  /** A build file manifest together with the stamps of everything it was computed from. */
+  static final class Entry {
+    private final BuildFileManifest manifest;
+    private final ImmutableList<Stamp> stamps;
+
+    Entry(BuildFileManifest manifest, ImmutableList<Stamp> stamps) {
+      this.manifest = manifest;
+      this.stamps = stamps;
+    }
+
+    BuildFileManifest getManifest() {
+      return manifest;
+    }
+
+    ImmutableList<Stamp> getStamps() {
+      return stamps;
+    }
+
+    private boolean isUpToDate() {
+      return stamps.stream().allMatch(Stamp::isUpToDate);
+    }
+  }
+
+  /** The modification time and size a file or directory had at some point. */
+  static final class Stamp {
+    private final Path path;
+    private final long lastModified;
+    private final long size;
+
+    private Stamp(Path path, long lastModified, long size) {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+
+    static Stamp of(Path path) {
+      BasicFileAttributes attributes = readAttributesIfExists(path);
+      if (attributes == null) {
+        return new Stamp(path, MISSING, MISSING);
+      }
+      return new Stamp(path, lastModified(attributes), size(attributes));
+    }
+
+    private boolean isUpToDate() {
+      BasicFileAttributes attributes = readAttributesIfExists(path);
+      if (attributes == null) {
+        return lastModified == MISSING;
+      }
+      return lastModified == lastModified(attributes) && size == size(attributes);
+    }
+
+    private static long lastModified(BasicFileAttributes attributes) {
+      return attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    private static long size(BasicFileAttributes attributes) {
+      // Directory sizes are filesystem specific and carry no extra information over mtime.
+      return attributes.isDirectory() ? 0 : attributes.size();
+    }
+  }
+
+  /** @return location of the snapshot for the cell with the given filesystem. */
+  static Path getSnapshotPath(ProjectFilesystem cellFilesystem) {
+    return cellFilesystem.resolve(
+        cellFilesystem.getBuckPaths().getBuckOut().resolve(SNAPSHOT_FILE_NAME));
+  }
+
+  /**
+   * Stamps the build file, its dependents and all directories of its package, i.e. the directories
+   * under the build file's directory that do not belong to a nested package.
+   */
+  static ImmutableList<Stamp> stamp(
+      ProjectFilesystem cellFilesystem,
+      String buildFileName,
+      AbsPath buildFile,
+      ImmutableSet<AbsPath> dependents) {
+    ImmutableList.Builder<Stamp> stamps = ImmutableList.builder();
+    stamps.add(Stamp.of(buildFile.getPath()));
+    for (AbsPath dependent : dependents) {
+      stamps.add(Stamp.of(dependent.getPath()));
+    }
+    Path cellRoot = cellFilesystem.getRootPath().getPath();
+    Path packageRoot = buildFile.getPath().getParent();
+    try {
+      Files.walkFileTree(
+          packageRoot,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+              if (!dir.equals(packageRoot)) {
+                if (Files.exists(dir.resolve(buildFileName))) {
+                  return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (dir.startsWith(cellRoot)
+                    && cellFilesystem.isIgnored(RelPath.of(cellRoot.relativize(dir)))) {
+                  return FileVisitResult.SKIP_SUBTREE;
+                }
+              }
+              stamps.add(new Stamp(dir, Stamp.lastModified(attrs), Stamp.size(attrs)));
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      // Stamping the package directory itself failed, make sure the entry never validates.
+      stamps.add(new Stamp(packageRoot, Long.MIN_VALUE, Long.MIN_VALUE));
+    }
+    return stamps.build();
+  }
+
+  /**
+   * Stamps a manifest like {@link #stamp}, some time after it was computed.
+   *
+   * @param computedAtMillis when {@code manifest} was computed.
+   * @return the stamped manifest, or empty if any of the stamped files or directories changed after
+   *     the manifest was computed, or so shortly before that a later change may not show in their
+   *     stamps, so that the manifest may not reflect them.
+   */
+  static Optional<Entry> stampIfUnchangedSince(
+      BuildFileManifest manifest,
+      ProjectFilesystem cellFilesystem,
+      String buildFileName,
+      AbsPath buildFile,
+      ImmutableSet<AbsPath> dependents,
+      long computedAtMillis) {
+    ImmutableList<Stamp> stamps = stamp(cellFilesystem, buildFileName, buildFile, dependents);
+    long computedAt = TimeUnit.MILLISECONDS.toNanos(computedAtMillis);
+    if (stamps.stream().anyMatch(stamp -> stamp.lastModified >= computedAt - RACY_WINDOW_NANOS)) {
+      return Optional.empty();
+    }
+    return Optional.of(new Entry(manifest, stamps));
+  }
+
+  /**
+   * Writes {@code entries} that are still up to date to {@code snapshotPath}, replacing any
+   * previous snapshot.
+   *
+   * @param fingerprint identifies the Buck version and configuration the manifests were produced
+   *     with. Snapshots with a different fingerprint are never restored.
+   */
+  static void save(Path snapshotPath, String fingerprint, Map<AbsPath, Entry> entries)
+      throws IOException {
+    Files.createDirectories(snapshotPath.getParent());
+    Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+    int written = 0;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(fingerprint);
+      for (Map.Entry<AbsPath, Entry> mapEntry : entries.entrySet()) {
+        AbsPath buildFile = mapEntry.getKey();
+        Entry entry = mapEntry.getValue();
+        if (!entry.manifest.getErrors().isEmpty() || !entry.isUpToDate()) {
+          // Build files with errors are always re-parsed so that the errors are reported again.
+          // Files changed after parsing may not have been processed by the parser state yet.
+          continue;
+        }
+        byte[] serialized;
+        try {
+          serialized = BuildFileManifestSerializer.serialize(entry.manifest);
+        } catch (IOException e) {
+          LOG.debug(e, "Not saving manifest of %s", buildFile);
+          continue;
+        }
+        out.writeBoolean(true);
+        out.writeUTF(buildFile.toString());
+        out.writeInt(serialized.length);
+        out.write(serialized);
+        out.writeInt(entry.stamps.size());
+        for (Stamp stamp : entry.stamps) {
+          out.writeUTF(stamp.path.toString());
+          out.writeLong(stamp.lastModified);
+          out.writeLong(stamp.size);
+        }
+        written++;
+      }
+      out.writeBoolean(false);
+    }
+    Files.move(
+        tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("Saved %d build file manifests to %s", written, snapshotPath);
+  }
+
+  /**
+   * Reads entries from {@code snapshotPath} whose stamps still match the filesystem.
+   *
+   * @return restored entries keyed by build file, or an empty map if there is no usable snapshot.
+   */
+  static ImmutableMap<AbsPath, Entry> load(Path snapshotPath, String fingerprint) {
+    ImmutableMap.Builder<AbsPath, Entry> restored = ImmutableMap.builder();
+    int stale = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(fingerprint)) {
+        LOG.info("Ignoring parser state snapshot %s from a different version", snapshotPath);
+        return ImmutableMap.of();
+      }
+      while (in.readBoolean()) {
+        AbsPath buildFile = AbsPath.of(Paths.get(in.readUTF()));
+        byte[] serialized = new byte[in.readInt()];
+        in.readFully(serialized);
+        int stampCount = in.readInt();
+        ImmutableList.Builder<Stamp> stamps = ImmutableList.builderWithExpectedSize(stampCount);
+        for (int i = 0; i < stampCount; i++) {
+          stamps.add(new Stamp(Paths.get(in.readUTF()), in.readLong(), in.readLong()));
+        }
+        Entry entry =
+            new Entry(BuildFileManifestSerializer.deserialize(serialized), stamps.build());
+        if (entry.isUpToDate()) {
+          restored.put(buildFile, entry);
+        } else {
+          stale++;
+        }
+      }
+    } catch (NoSuchFileException e) {
+      return ImmutableMap.of();
+    } catch (IOException e) {
+      LOG.warn(e, "Ignoring unreadable parser state snapshot %s", snapshotPath);
+      return ImmutableMap.of();
+    }
+    ImmutableMap<AbsPath, Entry> result = restored.build();
+    LOG.info(
+        "Restored %d build file manifests from %s, %d were out of date",
+        result.size(), snapshotPath, stale);
+    return result;
+  }
+
+  @Nullable
+  private static BasicFileAttributes readAttributesIfExists(Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
@@ -42,6 +42,7 @@ import com.facebook.buck.parser.options.UserDefinedRulesState;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.skylark.function.SkylarkBuildModule;
 import com.facebook.buck.skylark.io.GlobberFactory;
+import com.facebook.buck.skylark.io.impl.GlobIndex;
 import com.facebook.buck.skylark.io.impl.HybridGlobberFactory;
 import com.facebook.buck.skylark.io.impl.NativeGlobber;
 import com.facebook.buck.skylark.io.impl.SyncCookieState;
@@ -68,6 +69,7 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
   private final KnownRuleTypesProvider knownRuleTypesProvider;
   private final boolean enableProfiling;
   private final Optional<AtomicLong> processedBytes;
+  private final Optional<GlobIndex> globIndex;
 
   public DefaultProjectBuildFileParserFactory(
       TypeCoercerFactory typeCoercerFactory,
@@ -75,13 +77,15 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       KnownRuleTypesProvider knownRuleTypesProvider,
       boolean enableProfiling,
-      Optional<AtomicLong> processedBytes) {
+      Optional<AtomicLong> processedBytes,
+      Optional<GlobIndex> globIndex) {
     this.typeCoercerFactory = typeCoercerFactory;
     this.console = console;
     this.pythonInterpreterProvider = pythonInterpreterProvider;
     this.knownRuleTypesProvider = knownRuleTypesProvider;
     this.enableProfiling = enableProfiling;
     this.processedBytes = processedBytes;
+    this.globIndex = globIndex;
   }
 
   public DefaultProjectBuildFileParserFactory(
@@ -89,14 +93,16 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       boolean enableProfiling,
       Optional<AtomicLong> processedBytes,
-      KnownRuleTypesProvider knownRuleTypesProvider) {
+      KnownRuleTypesProvider knownRuleTypesProvider,
+      Optional<GlobIndex> globIndex) {
     this(
         typeCoercerFactory,
         Console.createNullConsole(),
         pythonInterpreterProvider,
         knownRuleTypesProvider,
         enableProfiling,
-        processedBytes);
+        processedBytes,
+        globIndex);
   }
 
   public DefaultProjectBuildFileParserFactory(
@@ -110,6 +116,7 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
         pythonInterpreterProvider,
         knownRuleTypesProvider,
         false,
+        Optional.empty(),
         Optional.empty());
   }
 
@@ -201,7 +208,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
               knownRuleTypesProvider.getUserDefinedRuleTypes(cell),
               eventBus,
               buildFileParserOptions,
-              parserConfig.getSkylarkGlobHandler());
+              parserConfig.getSkylarkGlobHandler(),
+              getGlobIndex(parserConfig));
       Optional<UserDefinedRuleLoader> udrLoader = Optional.empty();
       if (parserConfig.getUserDefinedRulesState() == UserDefinedRulesState.ENABLED) {
         udrLoader = Optional.of(skylark);
@@ -231,7 +239,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
                   knownRuleTypesProvider.getUserDefinedRuleTypes(cell),
                   eventBus,
                   buildFileParserOptions,
-                  parserConfig.getSkylarkGlobHandler());
+                  parserConfig.getSkylarkGlobHandler(),
+                  getGlobIndex(parserConfig));
           break;
         case PYTHON_DSL:
           parser =
@@ -288,7 +297,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       KnownUserDefinedRuleTypes knownUserDefinedRuleTypes,
       BuckEventBus eventBus,
       ProjectBuildFileParserOptions buildFileParserOptions,
-      SkylarkGlobHandler skylarkGlobHandler) {
+      SkylarkGlobHandler skylarkGlobHandler,
+      Optional<GlobIndex> globIndex) {
     GlobberFactory globberFactory;
     try {
       globberFactory = getSkylarkGlobberFactory(buildFileParserOptions, skylarkGlobHandler);
@@ -296,6 +306,9 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       throw new RuntimeException(
           "Watchman glob handler was requested, but Watchman client cannot be created", e);
     }
+    if (globIndex.isPresent()) {
+      globberFactory = globIndex.get().wrap(globberFactory);
+    }
 
     BuckGlobals buckGlobals =
         BuckGlobals.of(
@@ -354,6 +367,11 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
     }
   }
 
+  /** @return the index to answer Skylark globs from, if it's enabled. */
+  private Optional<GlobIndex> getGlobIndex(ParserConfig parserConfig) {
+    return parserConfig.getEnableGlobIndex() ? globIndex : Optional.empty();
+  }
+
   private static GlobberFactory getSkylarkGlobberFactory(
       ProjectBuildFileParserOptions buildFileParserOptions, SkylarkGlobHandler skylarkGlobHandler)
       throws IOException {
@@ -35,9 +35,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PerBuildState implements AutoCloseable {
 
+  private final DaemonicParserState daemonicParserState;
   private final CellManager cellManager;
   private final BuildFileRawNodeParsePipeline buildFileRawNodeParsePipeline;
   private final UnconfiguredTargetNodeToTargetNodeParsePipeline targetNodeParsePipeline;
@@ -45,8 +47,10 @@ public class PerBuildState implements AutoCloseable {
   private final SelectorListResolver selectorListResolver;
   private final SelectorListFactory selectorListFactory;
   private final ConfigurationRuleRegistry configurationRuleRegistry;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
 
   PerBuildState(
+      DaemonicParserState daemonicParserState,
       CellManager cellManager,
       BuildFileRawNodeParsePipeline buildFileRawNodeParsePipeline,
       UnconfiguredTargetNodeToTargetNodeParsePipeline targetNodeParsePipeline,
@@ -54,6 +58,7 @@ public class PerBuildState implements AutoCloseable {
       SelectorListResolver selectorListResolver,
       SelectorListFactory selectorListFactory,
       ConfigurationRuleRegistry configurationRuleRegistry) {
+    this.daemonicParserState = daemonicParserState;
     this.cellManager = cellManager;
     this.buildFileRawNodeParsePipeline = buildFileRawNodeParsePipeline;
     this.targetNodeParsePipeline = targetNodeParsePipeline;
@@ -146,5 +151,8 @@ public class PerBuildState implements AutoCloseable {
     targetNodeParsePipeline.close();
     buildFileRawNodeParsePipeline.close();
     cellManager.close();
+    if (closed.compareAndSet(false, true)) {
+      daemonicParserState.perBuildStateClosed();
+    }
   }
 }
@@ -116,7 +116,8 @@ public class PerBuildStateFactory {
             parserPythonInterpreterProvider,
             parsingContext.isProfilingEnabled(),
             parseProcessedBytes,
-            knownRuleTypesProvider);
+            knownRuleTypesProvider,
+            Optional.of(daemonicParserState.getGlobIndex()));
     ProjectBuildFileParserPool projectBuildFileParserPool =
         new ProjectBuildFileParserPool(
             numParsingThreads, // Max parsers to create per cell.
@@ -290,7 +291,9 @@ public class PerBuildStateFactory {
           }
         };
 
+    daemonicParserState.perBuildStateCreated();
     return new PerBuildState(
+        daemonicParserState,
         cellManager,
         buildFileRawNodeParsePipeline,
         targetNodeParsePipeline,
@@ -299,6 +299,16 @@ public abstract class ParserConfig implements ConfigView<BuckConfig> {
     return getDelegate().getInteger("parser", "target_threshold").orElse(TARGET_PARSER_THRESHOLD);
   }
 
+  /**
+   * When set, the parser keeps the last target graph it built and reuses the nodes, edges and
+   * visibility checks of the targets whose nodes were not invalidated since, instead of rebuilding
+   * the whole graph.
+   */
+  @Value.Lazy
+  public boolean getIncrementalTargetGraph() {
+    return getDelegate().getBooleanValue("parser", "incremental_target_graph", false);
+  }
+
   @Value.Lazy
   public boolean getEnableTargetCompatibilityChecks() {
     return getDelegate().getBooleanValue("parser", "enable_target_compatibility_checks", true);
@@ -471,6 +481,58 @@ public abstract class ParserConfig implements ConfigView<BuckConfig> {
     return getDelegate().getBooleanValue("parser", "enable_package_files", false);
   }
 
+  /**
+   * @return Whether build file manifests should be saved when the daemon shuts down and restored
+   *     by the next daemon, so that unchanged build files do not have to be parsed again.
+   */
+  @Value.Lazy
+  public boolean getEnableDaemonStateSnapshot() {
+    return getDelegate().getBooleanValue("parser", "daemon_state_snapshot", false);
+  }
+
+  /**
+   * @return The estimated size in bytes above which the daemon evicts the build file manifests and
+   *     nodes of the least recently used build files. A quarter of it bounds the glob index, see
+   *     {@link #getEnableGlobIndex()}. The size is not bounded when empty.
+   */
+  @Value.Lazy
+  public Optional<Long> getDaemonStateMaxSizeBytes() {
+    return getDelegate()
+        .getLong("parser", "daemon_state_max_size_mb")
+        .map(megabytes -> megabytes * 1024 * 1024);
+  }
+
+  /**
+   * @return Whether the build file manifests computed by the graph engine should be stored in
+   *     buck-out, so that later daemons can restore the manifests of unchanged build files.
+   */
+  @Value.Lazy
+  public boolean getEnablePersistentManifestCache() {
+    return getDelegate().getBooleanValue("parser", "persistent_manifest_cache", false);
+  }
+
+  /**
+   * @return The size in bytes the build file manifests stored for later daemons are trimmed to, by
+   *     evicting the least recently used ones.
+   */
+  @Value.Lazy
+  public long getPersistentManifestCacheMaxSizeBytes() {
+    return getDelegate()
+            .getLong("parser", "persistent_manifest_cache_max_size_mb")
+            .orElse(256L)
+        * 1024
+        * 1024;
+  }
+
+  /**
+   * @return Whether Skylark globs should be answered from a daemon-wide index of glob results,
+   *     which is updated as files are added or removed instead of globbing again.
+   */
+  @Value.Lazy
+  public boolean getEnableGlobIndex() {
+    return getDelegate().getBooleanValue("parser", "glob_index", false);
+  }
+
   @Value.Lazy
   public int getMissingTargetLevenshteinDistance() {
     return getDelegate().getInteger("parser", "missing_target_levenshtein_distance").orElse(5);
@@ -18,6 +18,8 @@ package com.facebook.buck.parser.manifest;
 
 import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.core.graph.transformation.GraphEngineCache;
+import com.facebook.buck.core.graph.transformation.impl.PersistentGraphEngineCache;
+import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.FileHashCacheEvent;
 import com.facebook.buck.io.file.MorePaths;
 import com.facebook.buck.io.filesystem.ProjectFilesystemView;
@@ -25,7 +27,10 @@ import com.facebook.buck.io.watchman.WatchmanEvent.Kind;
 import com.facebook.buck.io.watchman.WatchmanOverflowEvent;
 import com.facebook.buck.io.watchman.WatchmanPathEvent;
 import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.util.cache.CacheStats;
 import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashSet;
@@ -34,10 +39,19 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
-/** Stores {@link BuildFileManifest} for each parsed build file */
+/**
+ * Stores {@link BuildFileManifest} for each parsed build file
+ *
+ * <p>Manifests which are not in memory may be restored from a {@link PersistentGraphEngineCache}
+ * filled by earlier daemons, whose keys include a hash of the build file and the files it depends
+ * on, see {@link BuildFileManifestCacheSerializer}. Stored manifests are not dropped as the files
+ * change, as they are then no longer looked up.
+ */
 public class BuildFileManifestCache
     implements GraphEngineCache<BuildPackagePathToBuildFileManifestKey, BuildFileManifest> {
 
+  private static final Logger LOG = Logger.get(BuildFileManifestCache.class);
+
   /**
    * Main cache storage. Key is a path to a folder that is a package root (i.e. a folder that has
    * build file), relative to a cell path (rootPath, not superRootPath). Value is parsed {@link
@@ -47,9 +61,21 @@ public class BuildFileManifestCache
 
   private final Invalidator invalidator;
 
+  private final Optional<
+          PersistentGraphEngineCache<BuildPackagePathToBuildFileManifestKey, BuildFileManifest>>
+      persistentCache;
+
   private BuildFileManifestCache(
-      Path superRootPath, Path rootPath, Path buildFileName, ProjectFilesystemView fileSystemView) {
+      Path superRootPath,
+      Path rootPath,
+      Path buildFileName,
+      ProjectFilesystemView fileSystemView,
+      Optional<
+              PersistentGraphEngineCache<
+                  BuildPackagePathToBuildFileManifestKey, BuildFileManifest>>
+          persistentCache) {
     invalidator = new Invalidator(this, superRootPath, rootPath, buildFileName, fileSystemView);
+    this.persistentCache = persistentCache;
   }
 
   /**
@@ -67,16 +93,74 @@ public class BuildFileManifestCache
    */
   public static BuildFileManifestCache of(
       Path superRootPath, Path rootPath, Path buildFileName, ProjectFilesystemView fileSystemView) {
-    return new BuildFileManifestCache(superRootPath, rootPath, buildFileName, fileSystemView);
+    return new BuildFileManifestCache(
+        superRootPath, rootPath, buildFileName, fileSystemView, Optional.empty());
+  }
+
+  /**
+   * Create a new instance of {@link BuildFileManifestCache} which also stores manifests in a
+   * database, so that they can be restored by later daemons.
+   *
+   * @param dbPath Path to the database file
+   * @param fingerprint Identifies the Buck version and configuration the manifests are parsed with,
+   *     manifests stored with a different fingerprint are dropped
+   * @param maxSizeBytes Size the stored manifests are trimmed to by {@link #flush()}
+   * @see #of(Path, Path, Path, ProjectFilesystemView)
+   */
+  public static BuildFileManifestCache persistent(
+      Path superRootPath,
+      Path rootPath,
+      Path buildFileName,
+      ProjectFilesystemView fileSystemView,
+      Path dbPath,
+      String fingerprint,
+      long maxSizeBytes)
+      throws IOException {
+    return new BuildFileManifestCache(
+        superRootPath,
+        rootPath,
+        buildFileName,
+        fileSystemView,
+        Optional.of(
+            PersistentGraphEngineCache.open(
+                dbPath,
+                fingerprint,
+                new BuildFileManifestCacheSerializer(superRootPath, buildFileName, fileSystemView),
+                maxSizeBytes)));
   }
 
   @Override
   public Optional<BuildFileManifest> get(BuildPackagePathToBuildFileManifestKey key) {
-    return Optional.ofNullable(cache.get(key.getPath()));
+    @Nullable BuildFileManifest manifest = cache.get(key.getPath());
+    if (manifest != null || !persistentCache.isPresent()) {
+      return Optional.ofNullable(manifest);
+    }
+    Optional<BuildFileManifest> restored;
+    try {
+      restored = persistentCache.get().get(key);
+    } catch (UncheckedIOException e) {
+      LOG.debug(e, "Failed to look up the stored manifest of %s.", key.getPath());
+      return Optional.empty();
+    }
+    restored.ifPresent(restoredManifest -> putInMemory(key, restoredManifest));
+    return restored;
   }
 
   @Override
   public void put(BuildPackagePathToBuildFileManifestKey key, BuildFileManifest buildFileManifest) {
+    putInMemory(key, buildFileManifest);
+    // Build files with errors are always re-parsed so that the errors are reported again.
+    if (persistentCache.isPresent() && buildFileManifest.getErrors().isEmpty()) {
+      try {
+        persistentCache.get().put(key, buildFileManifest);
+      } catch (UncheckedIOException e) {
+        LOG.debug(e, "Failed to store the manifest of %s.", key.getPath());
+      }
+    }
+  }
+
+  private void putInMemory(
+      BuildPackagePathToBuildFileManifestKey key, BuildFileManifest buildFileManifest) {
     @Nullable BuildFileManifest prevManifest = cache.put(key.getPath(), buildFileManifest);
 
     if (buildFileManifest.equals(prevManifest)) {
@@ -92,6 +176,30 @@ public class BuildFileManifestCache
     invalidator.addToIndex(key.getPath(), buildFileManifest);
   }
 
+  /**
+   * Keeps the manifest of a package whose files changed from being stored if it is being parsed,
+   * as its key was computed from the files as they were before.
+   */
+  private void invalidateLookup(Path packagePath) {
+    persistentCache.ifPresent(
+        cache -> cache.invalidate(BuildPackagePathToBuildFileManifestKey.of(packagePath)));
+  }
+
+  /** Commits the manifests stored since the last call to the database, if there is one. */
+  public void flush() {
+    persistentCache.ifPresent(PersistentGraphEngineCache::flush);
+  }
+
+  /** @return hit and miss counts of the manifests stored by earlier daemons, if they are used. */
+  public Optional<CacheStats> getPersistentCacheStats() {
+    return persistentCache.map(PersistentGraphEngineCache::getStats);
+  }
+
+  /** Commits the manifests stored since the last flush and closes the database, if any. */
+  public void close() {
+    persistentCache.ifPresent(PersistentGraphEngineCache::close);
+  }
+
   /** @return class that listens to watchman events and invalidates internal cache state */
   public Invalidator getInvalidator() {
     return invalidator;
@@ -222,6 +330,8 @@ public class BuildFileManifestCache
      * @return True if package was actually removed from cache, false otherwise
      */
     private boolean invalidatePackage(Path path) {
+      // The package may be being parsed, in which case it is not in the cache yet
+      buildFileManifestCache.invalidateLookup(path);
       BuildFileManifest manifest = buildFileManifestCache.cache.remove(path);
       if (manifest == null) {
         return false;
@@ -332,6 +442,7 @@ public class BuildFileManifestCache
       if (affectedPackages != null) {
         for (Path key : affectedPackages) {
           buildFileManifestCache.cache.remove(key);
+          buildFileManifestCache.invalidateLookup(key);
         }
       }
     }
@@ -344,6 +455,8 @@ public class BuildFileManifestCache
     @SuppressWarnings("unused")
     public void onFileSystemChange(WatchmanOverflowEvent event) {
       buildFileManifestCache.cache = new ConcurrentHashMap<>();
+      buildFileManifestCache.persistentCache.ifPresent(
+          PersistentGraphEngineCache::invalidateLookups);
       dependentIndex = new ConcurrentHashMap<>();
     }
   }
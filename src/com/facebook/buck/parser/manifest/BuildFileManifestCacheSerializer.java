@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.manifest;
+
+import com.facebook.buck.core.graph.transformation.impl.GraphEngineCacheSerializer;
+import com.facebook.buck.io.filesystem.ProjectFilesystemView;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.cache.json.BuildFileManifestSerializer;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Serializes build file manifests so that they can be restored by a later daemon from a {@link
+ * com.facebook.buck.core.graph.transformation.impl.PersistentGraphEngineCache}.
+ *
+ * <p>Package paths alone do not identify manifests, so a key is serialized together with a hash of
+ * the contents of the build file and of the list of files in its package, which may change the
+ * results of globs. The includes of a manifest are only known once it is parsed, so their content
+ * hashes are stored with the manifest and checked when it is read back.
+ */
+public class BuildFileManifestCacheSerializer
+    implements GraphEngineCacheSerializer<BuildPackagePathToBuildFileManifestKey, BuildFileManifest> {
+
+  /** Changes whenever the serialized form changes, so that older entries are never matched. */
+  private static final int VERSION = 1;
+
+  private final Path superRootPath;
+  private final Path buildFileName;
+  private final ProjectFilesystemView fileSystemView;
+
+  /**
+   * @param superRootPath Absolute path to the cell root folder which contains all other cells,
+   *     includes which are not absolute are relative to it
+   * @param buildFileName File name of the build file (for example, BUCK) in a form of a {@link
+   *     Path}
+   * @param fileSystemView {@link ProjectFilesystemView} of the cell, used to read build files and
+   *     list the files of packages
+   */
+  public BuildFileManifestCacheSerializer(
+      Path superRootPath, Path buildFileName, ProjectFilesystemView fileSystemView) {
+    this.superRootPath = superRootPath;
+    this.buildFileName = buildFileName;
+    this.fileSystemView = fileSystemView;
+  }
+
+  @Override
+  public byte[] serializeKey(BuildPackagePathToBuildFileManifestKey key) {
+    Path packagePath = key.getPath();
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(VERSION);
+    hasher.putString(packagePath.toString(), StandardCharsets.UTF_8);
+    hasher.putBytes(hashFile(fileSystemView.resolve(packagePath.resolve(buildFileName))));
+    try {
+      for (Path file : listPackage(packagePath)) {
+        hasher.putString(file.toString(), StandardCharsets.UTF_8);
+        hasher.putByte((byte) 0);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return hasher.hash().asBytes();
+  }
+
+  @Override
+  public byte[] serializeValue(BuildFileManifest manifest) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(manifest.getIncludes().size());
+      for (String include : manifest.getIncludes()) {
+        out.writeUTF(include);
+        out.write(hashFile(superRootPath.resolve(include)));
+      }
+      out.write(BuildFileManifestSerializer.serialize(manifest));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public BuildFileManifest deserializeValue(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int includeCount = in.readInt();
+    byte[] expectedHash = new byte[Hashing.sha1().bits() / Byte.SIZE];
+    for (int i = 0; i < includeCount; i++) {
+      String include = in.readUTF();
+      in.readFully(expectedHash);
+      if (!HashCode.fromBytes(expectedHash)
+          .equals(HashCode.fromBytes(hashFile(superRootPath.resolve(include))))) {
+        throw new IOException(include + " changed since the manifest was stored");
+      }
+    }
+    return BuildFileManifestSerializer.deserialize(ByteStreams.toByteArray(in));
+  }
+
+  /** @return the hash of the file's contents, or of nothing if it can't be read. */
+  private static byte[] hashFile(Path file) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    try {
+      hasher.putBoolean(true).putBytes(MoreFiles.asByteSource(file).hash(Hashing.sha1()).asBytes());
+    } catch (IOException e) {
+      hasher.putBoolean(false);
+    }
+    return hasher.hash().asBytes();
+  }
+
+  /**
+   * @return paths of the files in the package, i.e. under its root and not under a nested package,
+   *     relative to the cell root
+   */
+  private SortedSet<Path> listPackage(Path packagePath) throws IOException {
+    SortedSet<Path> files = new TreeSet<>();
+    if (!Files.isDirectory(fileSystemView.resolve(packagePath))) {
+      return files;
+    }
+    fileSystemView.walkRelativeFileTree(
+        packagePath,
+        EnumSet.noneOf(FileVisitOption.class),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (!dir.equals(packagePath) && fileSystemView.isFile(dir.resolve(buildFileName))) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            files.add(file);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    return files;
+  }
+}
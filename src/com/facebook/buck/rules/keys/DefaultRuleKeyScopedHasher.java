@@ -20,6 +20,7 @@ import com.facebook.buck.rules.keys.hasher.CountingRuleKeyHasher;
 import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
 import com.facebook.buck.util.Scope;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 /**
  * A wrapper of {@link RuleKeyHasher} that provides scoped hashing facilities.
@@ -27,10 +28,27 @@ import java.nio.file.Path;
  * <p>Important: Container, wrapper and key signatures only get hashed if their scope was non-empty.
  * I.e. if at least one thing gets hashed under their scope. This is to support rule key builders
  * that ignore some fields.
+ *
+ * <p>Scopes are opened for every field and element hashed, so rather than allocating a scope for
+ * each of them, the state of open key, wrapper and element scopes is kept on a stack and closed by
+ * shared {@link Scope} instances. This relies on scopes being closed in the reverse order they are
+ * opened, which try-with-resources blocks guarantee.
  */
 public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
   private final CountingRuleKeyHasher<HASH> hasher;
 
+  /** Hasher counts at the time each open scope was opened. */
+  private long[] counts = new long[16];
+  /** The key, path or wrapper of each open scope, or the container of element scopes. */
+  private Object[] values = new Object[16];
+
+  private int depth = 0;
+
+  private final Scope keyScopeCloser = this::closeKeyScope;
+  private final Scope pathKeyScopeCloser = this::closePathKeyScope;
+  private final Scope wrapperScopeCloser = this::closeWrapperScope;
+  private final Scope elementScopeCloser = this::closeElementScope;
+
   DefaultRuleKeyScopedHasher(CountingRuleKeyHasher<HASH> hasher) {
     this.hasher = hasher;
   }
@@ -39,37 +57,76 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
     return hasher;
   }
 
+  private Scope push(Object value, Scope closer) {
+    if (depth == counts.length) {
+      counts = Arrays.copyOf(counts, depth * 2);
+      values = Arrays.copyOf(values, depth * 2);
+    }
+    counts[depth] = hasher.getCount();
+    values[depth] = value;
+    depth++;
+    return closer;
+  }
+
+  /**
+   * Closes the innermost scope.
+   *
+   * @return whether anything was hashed while it was open.
+   */
+  private boolean pop() {
+    depth--;
+    values[depth] = null;
+    return hasher.getCount() > counts[depth];
+  }
+
+  private Object peek() {
+    return values[depth - 1];
+  }
+
+  private void closeKeyScope() {
+    String key = (String) peek();
+    if (pop()) {
+      hasher.putKey(key);
+    }
+  }
+
+  private void closePathKeyScope() {
+    Path key = (Path) peek();
+    if (pop()) {
+      hasher.putKeyPath(key);
+    }
+  }
+
+  private void closeWrapperScope() {
+    RuleKeyHasher.Wrapper wrapper = (RuleKeyHasher.Wrapper) peek();
+    if (pop()) {
+      hasher.putWrapper(wrapper);
+    }
+  }
+
+  private void closeElementScope() {
+    DefaultContainerScope container = (DefaultContainerScope) peek();
+    if (pop()) {
+      container.elementCount++;
+    }
+  }
+
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   @Override
   public Scope keyScope(String key) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKey(key);
-      }
-    };
+    return push(key, keyScopeCloser);
   }
 
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   @Override
   public Scope pathKeyScope(Path key) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKeyPath(key);
-      }
-    };
+    return push(key, pathKeyScopeCloser);
   }
 
   /** Hashes the wrapper iff non-empty (i.e. if any element gets hashed during its scope). */
   @Override
   public Scope wrapperScope(RuleKeyHasher.Wrapper wrapper) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putWrapper(wrapper);
-      }
-    };
+    return push(wrapper, wrapperScopeCloser);
   }
 
   /**
@@ -79,36 +136,31 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
    */
   @Override
   public ContainerScope containerScope(RuleKeyHasher.Container container) {
-    return new DefaultContainerScope(hasher, container);
+    return new DefaultContainerScope(this, container);
   }
 
   public static class DefaultContainerScope implements ContainerScope {
-    private final CountingRuleKeyHasher<?> hasher;
+    private final DefaultRuleKeyScopedHasher<?> scopedHasher;
     private final RuleKeyHasher.Container container;
     private int elementCount = 0;
 
     private DefaultContainerScope(
-        CountingRuleKeyHasher<?> hasher, RuleKeyHasher.Container container) {
-      this.hasher = hasher;
+        DefaultRuleKeyScopedHasher<?> scopedHasher, RuleKeyHasher.Container container) {
+      this.scopedHasher = scopedHasher;
       this.container = container;
     }
 
     /** Increases element count if anything gets hashed during the element scope. */
     @Override
     public Scope elementScope() {
-      long hasherCount = hasher.getCount();
-      return () -> {
-        if (hasher.getCount() > hasherCount) {
-          elementCount++;
-        }
-      };
+      return scopedHasher.push(this, scopedHasher.elementScopeCloser);
     }
 
     /** Hashes the container iff non-empty (i.e. if any element gets hashed during this scope). */
     @Override
     public void close() {
       if (elementCount > 0) {
-        hasher.putContainer(container, elementCount);
+        scopedHasher.hasher.putContainer(container, elementCount);
       }
     }
   }
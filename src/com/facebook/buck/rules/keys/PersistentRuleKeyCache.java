@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.build.action.BuildEngineAction;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.cache.CacheStatsTracker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link TrackableRuleKeyCache} of default rule keys which falls back to a {@link
+ * PersistentRuleKeyStore} before computing a key, so that a fresh daemon doesn't have to recompute
+ * the keys of rules whose inputs didn't change since they were last built.
+ *
+ * <p>Keys are only reused for rules which have a {@link RuleKeyInputsFingerprint}. Keys taken from
+ * the store are recorded in the delegate as depending on the rule's build deps and own input files,
+ * so that they are invalidated like computed keys would be.
+ *
+ * <p>A computed key is only persisted if all the inputs it was transitively computed from are
+ * covered by fingerprints, i.e. none of them comes from a tool, a toolchain or another filesystem
+ * the rule's fingerprint doesn't hash. Keys are stored once the cache is done with, and only for
+ * the filesystems which stay watched, since keys from unwatched filesystems are dropped then.
+ */
+public class PersistentRuleKeyCache implements TrackableRuleKeyCache<RuleKey> {
+
+  private final TrackableRuleKeyCache<RuleKey> delegate;
+  private final PersistentRuleKeyStore store;
+  private final Function<BuildRule, Optional<RuleKeyInputsFingerprint>> fingerprints;
+
+  /**
+   * For each rule or appendable whose key was computed or reused, the inputs of its key which are
+   * not yet covered by a fingerprint, or nothing if they can't be, e.g. as it depends on a rule
+   * whose key can't be persisted.
+   */
+  private final Map<Object, Optional<ImmutableSet<RuleKeyInput>>> uncoveredInputs =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+
+  /** Keys waiting to be stored once it's known which filesystems stay watched. */
+  private final Map<BuildRule, PendingKey> pendingKeys = new ConcurrentHashMap<>();
+
+  public PersistentRuleKeyCache(
+      TrackableRuleKeyCache<RuleKey> delegate,
+      PersistentRuleKeyStore store,
+      Function<BuildRule, Optional<RuleKeyInputsFingerprint>> fingerprints) {
+    this.delegate = delegate;
+    this.store = store;
+    this.fingerprints = fingerprints;
+  }
+
+  @Nullable
+  @Override
+  public RuleKey get(BuildEngineAction action, CacheStatsTracker statsTracker) {
+    return delegate.get(action, statsTracker);
+  }
+
+  @Override
+  public RuleKey get(
+      BuildEngineAction action,
+      Function<? super BuildEngineAction, RuleKeyResult<RuleKey>> create,
+      CacheStatsTracker statsTracker) {
+    if (!(action instanceof BuildRule)) {
+      return delegate.get(action, create, statsTracker);
+    }
+    return delegate.get(action, a -> loadOrCreate((BuildRule) action, create), statsTracker);
+  }
+
+  private RuleKeyResult<RuleKey> loadOrCreate(
+      BuildRule rule, Function<? super BuildEngineAction, RuleKeyResult<RuleKey>> create) {
+    Optional<RuleKeyInputsFingerprint> fingerprint = fingerprints.apply(rule);
+    if (!fingerprint.isPresent()) {
+      RuleKeyResult<RuleKey> result = create.apply(rule);
+      uncoveredInputs.put(rule, Optional.empty());
+      return result;
+    }
+    RuleKey persisted = store.get(rule.getBuildTarget(), fingerprint.get().getHash());
+    if (persisted != null) {
+      ProjectFilesystem filesystem = fingerprint.get().getFilesystem();
+      uncoveredInputs.put(rule, Optional.of(ImmutableSet.of()));
+      return new RuleKeyResult<>(
+          persisted,
+          rule.getBuildDeps(),
+          fingerprint.get().getInputs().stream()
+              .map(path -> ImmutableRuleKeyInput.of(filesystem, path))
+              .collect(ImmutableList.toImmutableList()));
+    }
+    RuleKeyResult<RuleKey> result = create.apply(rule);
+    boolean covered =
+        collectUncoveredInputs(result)
+            .map(
+                inputs ->
+                    inputs.stream()
+                        .allMatch(
+                            input ->
+                                input.getFilesystem().equals(fingerprint.get().getFilesystem())
+                                    && fingerprint.get().getInputs().contains(input.getPath())))
+            .orElse(false);
+    uncoveredInputs.put(rule, covered ? Optional.of(ImmutableSet.of()) : Optional.empty());
+    if (covered) {
+      pendingKeys.put(rule, new PendingKey(fingerprint.get(), result.result));
+    }
+    return result;
+  }
+
+  /**
+   * @return the inputs of {@code result} and those of its deps which are not covered by a
+   *     fingerprint yet, or nothing if some of them can't be.
+   */
+  private Optional<ImmutableSet<RuleKeyInput>> collectUncoveredInputs(
+      RuleKeyResult<RuleKey> result) {
+    ImmutableSet.Builder<RuleKeyInput> inputs = ImmutableSet.builder();
+    inputs.addAll(result.inputs);
+    for (Object dep : result.deps) {
+      // Deps whose keys were recycled from an earlier command were never seen by this cache.
+      Optional<ImmutableSet<RuleKeyInput>> depInputs = uncoveredInputs.get(dep);
+      if (depInputs == null || !depInputs.isPresent()) {
+        return Optional.empty();
+      }
+      inputs.addAll(depInputs.get());
+    }
+    return Optional.of(inputs.build());
+  }
+
+  @Override
+  public RuleKey get(
+      AddsToRuleKey appendable,
+      Function<? super AddsToRuleKey, RuleKeyResult<RuleKey>> create,
+      CacheStatsTracker statsTracker) {
+    return delegate.get(
+        appendable,
+        a -> {
+          RuleKeyResult<RuleKey> result = create.apply(a);
+          uncoveredInputs.put(appendable, collectUncoveredInputs(result));
+          return result;
+        },
+        statsTracker);
+  }
+
+  @Override
+  public void invalidateInputs(Iterable<RuleKeyInput> inputs, CacheStatsTracker statsTracker) {
+    delegate.invalidateInputs(inputs, statsTracker);
+    ImmutableSet<RuleKeyInput> invalidated = ImmutableSet.copyOf(inputs);
+    synchronized (uncoveredInputs) {
+      uncoveredInputs
+          .values()
+          .removeIf(
+              entry ->
+                  entry.isPresent() && entry.get().stream().anyMatch(invalidated::contains));
+    }
+    // The fingerprints were taken when the command started, so a pending key computed since one
+    // of its inputs changed doesn't match its fingerprint, nor do the keys computed from it.
+    Set<BuildRule> dropped = new HashSet<>();
+    boolean droppedMore;
+    do {
+      droppedMore =
+          pendingKeys
+              .entrySet()
+              .removeIf(
+                  entry -> {
+                    BuildRule rule = entry.getKey();
+                    RuleKeyInputsFingerprint fingerprint = entry.getValue().fingerprint;
+                    if (invalidated.stream()
+                            .noneMatch(
+                                input ->
+                                    input.getFilesystem().equals(fingerprint.getFilesystem())
+                                        && fingerprint.getInputs().contains(input.getPath()))
+                        && rule.getBuildDeps().stream().noneMatch(dropped::contains)) {
+                      return false;
+                    }
+                    dropped.add(rule);
+                    return true;
+                  });
+    } while (droppedMore);
+    dropped.forEach(uncoveredInputs::remove);
+  }
+
+  @Override
+  public void invalidateAllExceptFilesystems(
+      ImmutableSet<ProjectFilesystem> filesystems, CacheStatsTracker statsTracker) {
+    delegate.invalidateAllExceptFilesystems(filesystems, statsTracker);
+    pendingKeys.forEach(
+        (rule, pending) -> {
+          if (filesystems.contains(pending.fingerprint.getFilesystem())) {
+            store.put(rule.getBuildTarget(), pending.fingerprint.getHash(), pending.ruleKey);
+          }
+        });
+    pendingKeys.clear();
+    // Keys recycled into the next command are seen as not coverable, see collectUncoveredInputs.
+    uncoveredInputs.clear();
+  }
+
+  @Override
+  public void invalidateFilesystem(ProjectFilesystem filesystem, CacheStatsTracker statsTracker) {
+    delegate.invalidateFilesystem(filesystem, statsTracker);
+  }
+
+  @Override
+  public void invalidateAll(CacheStatsTracker statsTracker) {
+    delegate.invalidateAll(statsTracker);
+    uncoveredInputs.clear();
+    pendingKeys.clear();
+  }
+
+  @Override
+  public ImmutableList<Map.Entry<BuildRule, RuleKey>> getCachedBuildRules() {
+    return delegate.getCachedBuildRules();
+  }
+
+  private static class PendingKey {
+    private final RuleKeyInputsFingerprint fingerprint;
+    private final RuleKey ruleKey;
+
+    private PendingKey(RuleKeyInputsFingerprint fingerprint, RuleKey ruleKey) {
+      this.fingerprint = fingerprint;
+      this.ruleKey = ruleKey;
+    }
+  }
+}
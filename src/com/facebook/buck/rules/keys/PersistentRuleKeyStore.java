@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.sqlite.RetryBusyHandler;
+import com.facebook.buck.util.sqlite.SQLiteUtils;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.sqlite.BusyHandler;
+
+/**
+ * A SQLite database of default rule keys which outlives the daemon.
+ *
+ * <p>Every key is stored with the hash of the inputs it was computed from (see {@link
+ * PersistentRuleKeyCache}), and is only handed out again for the same inputs hash. The store as a
+ * whole is tied to a fingerprint of the settings which affect all keys (Buck version, rule key
+ * seed, configuration); opening it with a different fingerprint drops all stored keys.
+ *
+ * <p>Writes are buffered and committed in a single transaction by {@link #flush()}.
+ */
+public class PersistentRuleKeyStore implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyStore.class);
+
+  static final String DB_FILE_NAME = "rule_keys.db";
+
+  private final Connection connection;
+  private final PreparedStatement selectStmt;
+  private final PreparedStatement updateStmt;
+
+  /** Keys which were stored since the last {@link #flush()}, by target. */
+  private final Map<String, Entry> pendingWrites = new HashMap<>();
+
+  PersistentRuleKeyStore(Path dbPath, String fingerprint) throws IOException {
+    SQLiteUtils.initialize();
+    try {
+      Files.createDirectories(dbPath.getParent());
+      Class.forName("org.sqlite.JDBC");
+      connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+        statement.executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+        statement.executeUpdate(
+            "CREATE TABLE IF NOT EXISTS rule_keys "
+                + "(target TEXT PRIMARY KEY, inputs_hash BLOB, rule_key BLOB) "
+                + "WITHOUT ROWID");
+        statement.executeUpdate(
+            "CREATE TABLE IF NOT EXISTS store_info "
+                + "(key TEXT PRIMARY KEY, value TEXT) "
+                + "WITHOUT ROWID");
+      }
+      selectStmt =
+          connection.prepareStatement(
+              "SELECT inputs_hash, rule_key FROM rule_keys WHERE target = ?");
+      updateStmt =
+          connection.prepareStatement(
+              "INSERT OR REPLACE INTO rule_keys (target, inputs_hash, rule_key) VALUES (?, ?, ?)");
+      BusyHandler.setHandler(connection, new RetryBusyHandler());
+      checkFingerprint(fingerprint);
+    } catch (ClassNotFoundException | SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Opens the store of the given filesystem's scratch directory.
+   *
+   * @param fingerprint identifies the settings affecting every key; keys stored under another
+   *     fingerprint are dropped.
+   */
+  public static PersistentRuleKeyStore open(ProjectFilesystem filesystem, String fingerprint)
+      throws IOException {
+    return new PersistentRuleKeyStore(
+        filesystem.resolve(filesystem.getBuckPaths().getScratchDir().resolve(DB_FILE_NAME)),
+        fingerprint);
+  }
+
+  private void checkFingerprint(String fingerprint) throws SQLException {
+    String storedFingerprint = null;
+    try (Statement statement = connection.createStatement();
+        ResultSet rs =
+            statement.executeQuery("SELECT value FROM store_info WHERE key = 'fingerprint'")) {
+      if (rs.next()) {
+        storedFingerprint = rs.getString(1);
+      }
+    }
+    if (fingerprint.equals(storedFingerprint)) {
+      return;
+    }
+    LOG.debug("Dropping persisted rule keys stored for different settings.");
+    try (Statement statement = connection.createStatement();
+        PreparedStatement updateInfo =
+            connection.prepareStatement(
+                "INSERT OR REPLACE INTO store_info (key, value) VALUES ('fingerprint', ?)")) {
+      statement.executeUpdate("DELETE FROM rule_keys");
+      updateInfo.setString(1, fingerprint);
+      updateInfo.executeUpdate();
+    }
+  }
+
+  /**
+   * @return the key stored for {@code target}, if it was stored with the given inputs hash, or
+   *     null.
+   */
+  @Nullable
+  public synchronized RuleKey get(BuildTarget target, HashCode inputsHash) {
+    String name = target.toStringWithConfiguration();
+    Entry entry = pendingWrites.get(name);
+    if (entry == null) {
+      try {
+        selectStmt.setString(1, name);
+        try (ResultSet rs = selectStmt.executeQuery()) {
+          if (!rs.next()) {
+            return null;
+          }
+          entry =
+              new Entry(
+                  HashCode.fromBytes(rs.getBytes(1)),
+                  new RuleKey(HashCode.fromBytes(rs.getBytes(2))));
+        }
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to read the persisted rule key of %s.", target);
+        return null;
+      }
+    }
+    return entry.inputsHash.equals(inputsHash) ? entry.ruleKey : null;
+  }
+
+  /** Stores the key of {@code target}, replacing any key stored before. */
+  public synchronized void put(BuildTarget target, HashCode inputsHash, RuleKey ruleKey) {
+    pendingWrites.put(target.toStringWithConfiguration(), new Entry(inputsHash, ruleKey));
+  }
+
+  /** Commits the keys stored since the last call. */
+  public synchronized void flush() {
+    if (pendingWrites.isEmpty()) {
+      return;
+    }
+    try {
+      connection.setAutoCommit(false);
+      try {
+        for (Map.Entry<String, Entry> pending : pendingWrites.entrySet()) {
+          updateStmt.setString(1, pending.getKey());
+          updateStmt.setBytes(2, pending.getValue().inputsHash.asBytes());
+          updateStmt.setBytes(3, pending.getValue().ruleKey.getHashCode().asBytes());
+          updateStmt.addBatch();
+        }
+        updateStmt.executeBatch();
+        connection.commit();
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      LOG.warn(e, "Failed to persist %d rule keys.", pendingWrites.size());
+    }
+    pendingWrites.clear();
+  }
+
+  @Override
+  public synchronized void close() {
+    flush();
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class Entry {
+    private final HashCode inputsHash;
+    private final RuleKey ruleKey;
+
+    private Entry(HashCode inputsHash, RuleKey ruleKey) {
+      this.inputsHash = inputsHash;
+      this.ruleKey = ruleKey;
+    }
+  }
+}
@@ -33,7 +33,9 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
 
@@ -44,13 +46,17 @@ public class RuleKeyCacheRecycler<V> {
 
   private final TrackableRuleKeyCache<V> cache;
   private final ImmutableSet<ProjectFilesystem> watchedFilesystems;
+  private final Optional<PersistentRuleKeyStore> persistentStore;
 
   @Nullable private SettingsAffectingCache previousSettings = null;
 
   private RuleKeyCacheRecycler(
-      TrackableRuleKeyCache<V> cache, ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+      TrackableRuleKeyCache<V> cache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyStore> persistentStore) {
     this.cache = cache;
     this.watchedFilesystems = watchedFilesystems;
+    this.persistentStore = persistentStore;
   }
 
   /**
@@ -63,8 +69,23 @@ public class RuleKeyCacheRecycler<V> {
       EventBus eventBus,
       TrackableRuleKeyCache<V> ruleKeyCache,
       ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+    return createAndRegister(eventBus, ruleKeyCache, watchedFilesystems, Optional.empty());
+  }
+
+  /**
+   * @param persistentStore keys which outlive the daemon, available to caches which start out
+   *     empty (see {@link #withRecycledCacheWrapping}).
+   *     It's flushed after every build and closed by {@link #close()}.
+   * @return a new {@link RuleKeyCacheRecycler}.
+   */
+  public static <V> RuleKeyCacheRecycler<V> createAndRegister(
+      EventBus eventBus,
+      TrackableRuleKeyCache<V> ruleKeyCache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyStore> persistentStore) {
 
-    RuleKeyCacheRecycler<V> recycler = new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems);
+    RuleKeyCacheRecycler<V> recycler =
+        new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems, persistentStore);
 
     // Subscribe the recycler to receive filesystem watch events.
     eventBus.register(recycler);
@@ -73,7 +94,12 @@ public class RuleKeyCacheRecycler<V> {
   }
 
   public static <V> RuleKeyCacheRecycler<V> create(TrackableRuleKeyCache<V> ruleKeyCache) {
-    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of());
+    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of(), Optional.empty());
+  }
+
+  /** @return the store of keys which outlive the daemon, if enabled. */
+  public Optional<PersistentRuleKeyStore> getPersistentStore() {
+    return persistentStore;
   }
 
   @Subscribe
@@ -119,8 +145,25 @@ public class RuleKeyCacheRecycler<V> {
    */
   public RuleKeyCacheScope<V> withRecycledCache(
       BuckEventBus buckEventBus, SettingsAffectingCache currentSettings) {
+    return withRecycledCacheWrapping(
+        buckEventBus, currentSettings, recycledCache -> recycledCache);
+  }
+
+  /**
+   * Like {@link #withRecycledCache(BuckEventBus, SettingsAffectingCache)}, but if there is no
+   * previous cache to recycle, i.e. this is the first scope handed out by this recycler, the cache
+   * is first wrapped with {@code emptyCacheWrapper}. This allows filling the cache from somewhere
+   * cheaper than computing the keys again, e.g. a {@link PersistentRuleKeyCache}. Later settings
+   * changes don't apply the wrapper, as setting it up may cost more than the keys it would save.
+   */
+  public RuleKeyCacheScope<V> withRecycledCacheWrapping(
+      BuckEventBus buckEventBus,
+      SettingsAffectingCache currentSettings,
+      Function<TrackableRuleKeyCache<V>, TrackableRuleKeyCache<V>> emptyCacheWrapper) {
+    TrackableRuleKeyCache<V> scopeCache =
+        previousSettings == null ? emptyCacheWrapper.apply(cache) : cache;
     return new EventPostingRuleKeyCacheScope<V>(
-        buckEventBus, new TrackedRuleKeyCache<>(cache, new InstrumentingCacheStatsTracker())) {
+        buckEventBus, new TrackedRuleKeyCache<>(scopeCache, new InstrumentingCacheStatsTracker())) {
 
       // Cache setup which is run before the caller gets access to the cache, at the time the scope
       // is allocated.
@@ -152,6 +195,8 @@ public class RuleKeyCacheRecycler<V> {
         LOG.verbose(
             "invalidating unwatched filesystems (everything except %s)", watchedFilesystems);
         getCache().invalidateAllExceptFilesystems(watchedFilesystems);
+
+        persistentStore.ifPresent(PersistentRuleKeyStore::flush);
       }
     };
   }
@@ -174,6 +219,11 @@ public class RuleKeyCacheRecycler<V> {
     return cache.getCachedBuildRules();
   }
 
+  /** Releases the persistent store, if any. */
+  public void close() {
+    persistentStore.ifPresent(PersistentRuleKeyStore::close);
+  }
+
   /** Any external settings which, if changed, will cause the entire cache to be invalidated. */
   public static class SettingsAffectingCache {
 
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.util.immutables.BuckStyleValue;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+
+/**
+ * Everything a rule's default key is computed from, hashed: its description, the contents of its
+ * input files and, transitively, the same for all of its deps. Two rules with the same fingerprint
+ * have the same key.
+ */
+@BuckStyleValue
+public interface RuleKeyInputsFingerprint {
+
+  /** @return the hash identifying the inputs of the rule. */
+  HashCode getHash();
+
+  /** @return the {@link ProjectFilesystem} the rule's own input files are from. */
+  ProjectFilesystem getFilesystem();
+
+  /**
+   * @return the paths of the rule's own input files, which invalidate its key once they change.
+   */
+  ImmutableSet<Path> getInputs();
+
+  static RuleKeyInputsFingerprint of(
+      HashCode hash, ProjectFilesystem filesystem, ImmutableSet<Path> inputs) {
+    return ImmutableRuleKeyInputsFingerprint.of(hash, filesystem, inputs);
+  }
+}
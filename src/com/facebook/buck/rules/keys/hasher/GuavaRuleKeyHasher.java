@@ -26,28 +26,90 @@ import com.facebook.buck.io.file.FastPaths;
 import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.regex.Pattern;
 
-/** An implementation of {@link RuleKeyHasher} that wraps Guava's {@link Hasher}. */
+/**
+ * An implementation of {@link RuleKeyHasher} that wraps Guava's {@link Hasher}.
+ *
+ * <p>Strings and hash codes are copied into a buffer owned by the hasher before being hashed, so
+ * that hashing them doesn't allocate. The bytes hashed are the same as those of {@link
+ * String#getBytes} and {@link HashCode#asBytes()}.
+ */
 public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   private final Hasher hasher;
+  private byte[] buffer = new byte[256];
 
   public GuavaRuleKeyHasher(Hasher hasher) {
     this.hasher = hasher;
   }
 
   private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes) {
-    hasher.putBytes(bytes);
-    hasher.putInt(bytes.length);
+    return putBytes(type, bytes, bytes.length);
+  }
+
+  private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes, int length) {
+    hasher.putBytes(bytes, 0, length);
+    hasher.putInt(length);
     hasher.putByte(type);
     return this;
   }
 
+  private GuavaRuleKeyHasher putHashCode(byte type, HashCode hash) {
+    byte[] bytes = ensureBuffer(hash.bits() / Byte.SIZE);
+    return putBytes(type, bytes, hash.writeBytesTo(bytes, 0, bytes.length));
+  }
+
   private GuavaRuleKeyHasher putStringified(byte type, String val) {
-    return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    int length = encodeUtf8(val);
+    return putBytes(type, buffer, length);
+  }
+
+  /**
+   * Encodes {@code val} into {@link #buffer} the way {@code val.getBytes(UTF_8)} would, replacing
+   * unpaired surrogates with {@code '?'}.
+   *
+   * @return the number of bytes written.
+   */
+  private int encodeUtf8(String val) {
+    int length = val.length();
+    // Every char takes at most 3 bytes, surrogate pairs take 4 bytes for 2 chars.
+    byte[] out = ensureBuffer(length * 3);
+    int pos = 0;
+    for (int i = 0; i < length; i++) {
+      char c = val.charAt(i);
+      if (c < 0x80) {
+        out[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        out[pos++] = (byte) (0xc0 | (c >> 6));
+        out[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c)
+            && i + 1 < length
+            && Character.isLowSurrogate(val.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, val.charAt(++i));
+          out[pos++] = (byte) (0xf0 | (codePoint >> 18));
+          out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          out[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+          out[pos++] = '?';
+        }
+      } else {
+        out[pos++] = (byte) (0xe0 | (c >> 12));
+        out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        out[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return pos;
+  }
+
+  private byte[] ensureBuffer(int size) {
+    if (buffer.length < size) {
+      buffer = new byte[Math.max(size, buffer.length * 2)];
+    }
+    return buffer;
   }
 
   private GuavaRuleKeyHasher putPathFast(byte type, Path path) {
@@ -139,7 +201,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
   @Override
   public GuavaRuleKeyHasher putPath(Path path, HashCode hash) {
     this.putPathFast(RuleKeyHasherTypes.PATH, path);
-    this.putBytes(RuleKeyHasherTypes.PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.PATH, hash);
     return this;
   }
 
@@ -148,7 +210,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
       Path relativeArchivePath, Path archiveMemberPath, HashCode hash) {
     putPathFast(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, relativeArchivePath);
     putPathFast(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, archiveMemberPath);
-    this.putBytes(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash);
     return this;
   }
 
@@ -159,7 +221,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putRuleKey(RuleKey ruleKey) {
-    return this.putBytes(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode().asBytes());
+    return this.putHashCode(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode());
   }
 
   @Override
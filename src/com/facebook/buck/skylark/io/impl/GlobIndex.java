@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import com.facebook.buck.io.pathformat.PathFormatter;
+import com.facebook.buck.io.watchman.WatchmanEvent.Kind;
+import com.facebook.buck.io.watchman.WatchmanOverflowEvent;
+import com.facebook.buck.io.watchman.WatchmanPathEvent;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.Globber;
+import com.facebook.buck.skylark.io.GlobberFactory;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Daemon-wide index of glob results, which unlike {@link CachingGlobber} outlives the parsing of a
+ * single build file.
+ *
+ * <p>Results are keyed by the directory globs are resolved from and their {@link GlobSpec}, and are
+ * updated from Watchman path events instead of being dropped: a created file is added to the
+ * results of the globs it matches and a deleted one is removed from the results containing it. This
+ * way a build file reparsed because files were added to or removed from its package gets its globs
+ * from memory. Results that cannot be reliably updated, like the ones including directories, which
+ * Watchman does not report, are dropped and computed again on their next use.
+ *
+ * <p>The estimated size of the results is bounded: once it is exceeded, the results of the least
+ * recently used directories are dropped.
+ */
+public class GlobIndex {
+
+  private static final Splitter PATH_SPLITTER = Splitter.on('/');
+
+  /** Results by the directory they are resolved from, in the order the directories were used. */
+  @GuardedBy("this")
+  private final LinkedHashMap<String, Map<GlobSpec, ImmutableSet<String>>> resultsByBaseDir =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+
+  private final Map<String, Pattern> patternCache = new ConcurrentHashMap<>();
+
+  private final long maxEstimatedWeight;
+
+  /** Estimated size in bytes of the results in {@link #resultsByBaseDir}. */
+  @GuardedBy("this")
+  private long estimatedWeight = 0;
+
+  /**
+   * Incremented on every change to the file system, so that results computed while a change is
+   * processed are not stored, as they may not include it.
+   */
+  @GuardedBy("this")
+  private long generation = 0;
+
+  /**
+   * @param maxEstimatedWeight estimated size in bytes above which the results of the least
+   *     recently used directories are dropped
+   */
+  public GlobIndex(long maxEstimatedWeight) {
+    this.maxEstimatedWeight = maxEstimatedWeight;
+  }
+
+  /**
+   * @return a {@link GlobberFactory} whose globbers answer from this index, and resolve the globs
+   *     it does not have results for using globbers created by {@code delegate}.
+   */
+  public GlobberFactory wrap(GlobberFactory delegate) {
+    return basePath -> new IndexedGlobber(basePath.getPathString(), delegate.create(basePath));
+  }
+
+  /** @return the estimated size in bytes of the results held by this index. */
+  public synchronized long getEstimatedWeight() {
+    return estimatedWeight;
+  }
+
+  private Set<String> run(
+      String baseDir,
+      Globber delegate,
+      Collection<String> include,
+      Collection<String> exclude,
+      boolean excludeDirectories)
+      throws IOException, InterruptedException {
+    GlobSpec spec = GlobSpec.of(include, exclude, excludeDirectories);
+    long generationBefore;
+    synchronized (this) {
+      @Nullable Map<GlobSpec, ImmutableSet<String>> results = resultsByBaseDir.get(baseDir);
+      @Nullable ImmutableSet<String> paths = results == null ? null : results.get(spec);
+      if (paths != null) {
+        return paths;
+      }
+      generationBefore = generation;
+    }
+
+    ImmutableSet<String> paths =
+        ImmutableSet.copyOf(delegate.run(include, exclude, excludeDirectories));
+    synchronized (this) {
+      if (generation == generationBefore) {
+        put(resultsByBaseDir.computeIfAbsent(baseDir, dir -> new HashMap<>()), spec, paths);
+        evictLeastRecentlyUsedIfNeeded();
+      }
+    }
+    return paths;
+  }
+
+  /** Updates the results of the globs resolved from the directories containing the changed path */
+  public synchronized void onFileSystemChange(WatchmanPathEvent event) {
+    if (event.getKind() == Kind.MODIFY) {
+      // modifications do not change which files exist, so they do not affect glob results
+      return;
+    }
+    generation++;
+
+    String path =
+        PathFormatter.pathWithUnixSeparators(
+            event.getCellPath().resolve(event.getPath()).getPath());
+    boolean created = event.getKind() == Kind.CREATE;
+    for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+      String baseDir = path.substring(0, i);
+      @Nullable Map<GlobSpec, ImmutableSet<String>> results = resultsByBaseDir.get(baseDir);
+      if (results != null) {
+        update(results, path.substring(i + 1), created);
+        if (results.isEmpty()) {
+          resultsByBaseDir.remove(baseDir);
+        }
+      }
+    }
+  }
+
+  /** Drops all results, as Watchman could not tell which files changed */
+  public void onFileSystemChange(@SuppressWarnings("unused") WatchmanOverflowEvent event) {
+    invalidateAll();
+  }
+
+  /** Drops all results. */
+  public synchronized void invalidateAll() {
+    generation++;
+    resultsByBaseDir.clear();
+    estimatedWeight = 0;
+  }
+
+  @GuardedBy("this")
+  private void update(
+      Map<GlobSpec, ImmutableSet<String>> results, String relativePath, boolean created) {
+    List<String> segments = PATH_SPLITTER.splitToList(relativePath);
+    // Whether wildcards match hidden files depends on the globber, so don't guess.
+    boolean hidden = segments.stream().anyMatch(segment -> segment.startsWith("."));
+    for (Map.Entry<GlobSpec, ImmutableSet<String>> entry : new ArrayList<>(results.entrySet())) {
+      GlobSpec spec = entry.getKey();
+      ImmutableSet<String> paths = entry.getValue();
+      if (!spec.getExcludeDirectories() || (created && hidden)) {
+        results.remove(spec);
+        estimatedWeight -= estimateWeight(paths);
+      } else if (!created) {
+        if (paths.contains(relativePath)) {
+          put(results, spec, ImmutableSet.copyOf(Sets.filter(paths, p -> !p.equals(relativePath))));
+        }
+      } else if (matchesAny(spec.getInclude(), segments)
+          && !matchesAny(spec.getExclude(), segments)) {
+        put(results, spec, ImmutableSet.<String>builder().addAll(paths).add(relativePath).build());
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void put(
+      Map<GlobSpec, ImmutableSet<String>> results, GlobSpec spec, ImmutableSet<String> paths) {
+    @Nullable ImmutableSet<String> previous = results.put(spec, paths);
+    estimatedWeight += estimateWeight(paths) - (previous == null ? 0 : estimateWeight(previous));
+  }
+
+  @GuardedBy("this")
+  private void evictLeastRecentlyUsedIfNeeded() {
+    Iterator<Map<GlobSpec, ImmutableSet<String>>> leastRecentlyUsed =
+        resultsByBaseDir.values().iterator();
+    while (estimatedWeight > maxEstimatedWeight && leastRecentlyUsed.hasNext()) {
+      for (ImmutableSet<String> paths : leastRecentlyUsed.next().values()) {
+        estimatedWeight -= estimateWeight(paths);
+      }
+      leastRecentlyUsed.remove();
+    }
+  }
+
+  /** @return the estimated size in bytes of a glob result, including its key. */
+  private static long estimateWeight(ImmutableSet<String> paths) {
+    long weight = 128;
+    for (String path : paths) {
+      weight += 40 + 2L * path.length();
+    }
+    return weight;
+  }
+
+  private boolean matchesAny(Collection<String> patterns, List<String> pathSegments) {
+    for (String pattern : patterns) {
+      if (matches(PATH_SPLITTER.splitToList(pattern), 0, pathSegments, 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Matches path segments against pattern segments the way {@link UnixGlob} does, where {@code **}
+   * matches any number of segments and other segments match a single one.
+   */
+  private boolean matches(
+      List<String> patternSegments, int patternIndex, List<String> pathSegments, int pathIndex) {
+    if (patternIndex == patternSegments.size()) {
+      return pathIndex == pathSegments.size();
+    }
+    String patternSegment = patternSegments.get(patternIndex);
+    if (patternSegment.equals("**")) {
+      for (int i = pathIndex; i <= pathSegments.size(); i++) {
+        if (matches(patternSegments, patternIndex + 1, pathSegments, i)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return pathIndex < pathSegments.size()
+        && UnixGlob.matches(patternSegment, pathSegments.get(pathIndex), patternCache)
+        && matches(patternSegments, patternIndex + 1, pathSegments, pathIndex + 1);
+  }
+
+  /** Globber resolving globs from a single directory using the index. */
+  private class IndexedGlobber implements Globber {
+
+    private final String baseDir;
+    private final Globber delegate;
+
+    private IndexedGlobber(String baseDir, Globber delegate) {
+      this.baseDir = baseDir;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Set<String> run(
+        Collection<String> include, Collection<String> exclude, boolean excludeDirectories)
+        throws IOException, InterruptedException {
+      return GlobIndex.this.run(baseDir, delegate, include, exclude, excludeDirectories);
+    }
+  }
+}
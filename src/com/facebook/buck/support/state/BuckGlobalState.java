@@ -34,6 +34,9 @@ import com.facebook.buck.parser.DaemonicParserState;
 import com.facebook.buck.parser.manifest.BuildFileManifestCache;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.support.bgtasks.BackgroundTask;
+import com.facebook.buck.support.bgtasks.TaskAction;
+import com.facebook.buck.support.bgtasks.TaskManagerCommandScope;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
 import com.facebook.buck.util.timing.Clock;
@@ -46,6 +49,7 @@ import com.google.common.eventbus.EventBus;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentMap;
 
@@ -244,10 +248,66 @@ public final class BuckGlobalState implements Closeable {
     return usesWatchman;
   }
 
+  /**
+   * Schedules saving the parts of this state that are persisted across daemons, once the current
+   * command has finished. A daemon is usually killed rather than closed, so this has to be done
+   * after every command rather than in {@link #close()} only.
+   */
+  public void scheduleSnapshotSave(TaskManagerCommandScope managerScope) {
+    managerScope.schedule(
+        BackgroundTask.of(
+            "BuckGlobalState_saveSnapshots",
+            new SaveSnapshotsAction(),
+            this,
+            Optional.empty(),
+            /* shouldCancelOnRepeat */ true));
+  }
+
+  /** {@link TaskAction} saving the snapshots of a {@link BuckGlobalState}. */
+  static class SaveSnapshotsAction implements TaskAction<BuckGlobalState> {
+    @Override
+    public void run(BuckGlobalState buckGlobalState) {
+      buckGlobalState.saveSnapshots();
+    }
+  }
+
+  private void saveSnapshots() {
+    daemonicParserState.saveSnapshots();
+    for (BuildFileManifestCache manifestCache : buildFileManifestCachePerRoot.asMap().values()) {
+      manifestCache.flush();
+    }
+  }
+
   @Override
   public void close() {
     shutdownPersistentWorkerPools();
     shutdownWebServer();
+    closeFileHashCaches();
+    closeBuildFileManifestCaches();
+    defaultRuleKeyFactoryCacheRecycler.close();
+    daemonicParserState.saveSnapshots();
+  }
+
+  private void closeBuildFileManifestCaches() {
+    for (Map.Entry<Path, BuildFileManifestCache> entry :
+        buildFileManifestCachePerRoot.asMap().entrySet()) {
+      entry
+          .getValue()
+          .getPersistentCacheStats()
+          .ifPresent(
+              stats ->
+                  LOG.info(
+                      "Persistent build file manifest cache of %s: %s", entry.getKey(), stats));
+      entry.getValue().close();
+    }
+  }
+
+  private void closeFileHashCaches() {
+    for (ProjectFileHashCache hashCache : hashCaches) {
+      if (hashCache instanceof WatchedFileHashCache) {
+        ((WatchedFileHashCache) hashCache).close();
+      }
+    }
   }
 
   private void shutdownPersistentWorkerPools() {
@@ -45,7 +45,9 @@ import com.facebook.buck.parser.manifest.BuildFileManifestCache;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.rules.keys.config.impl.BuckVersion;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
@@ -59,7 +61,15 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.EventBus;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.concurrent.ConcurrentHashMap;
@@ -70,6 +80,8 @@ public class BuckGlobalStateFactory {
 
   private static final Logger LOG = Logger.get(BuckGlobalStateFactory.class);
 
+  private static final String PERSISTENT_MANIFEST_CACHE_FILE_NAME = "build_file_manifests.db";
+
   /** @return a new instance of {@link BuckGlobalState} for execution of buck */
   public static BuckGlobalState create(
       Cells rootCell,
@@ -90,7 +102,10 @@ public class BuckGlobalStateFactory {
         ImmutableList.builderWithExpectedSize(allCells.size() + 1);
     for (Cell subCell : allCells) {
       WatchedFileHashCache watchedCache =
-          new WatchedFileHashCache(subCell.getFilesystem(), buildBuckConfig.getFileHashCacheMode());
+          new WatchedFileHashCache(
+              subCell.getFilesystem(),
+              buildBuckConfig.getFileHashCacheMode(),
+              buildBuckConfig.isPersistentFileHashCacheEnabled());
       fileEventBus.register(watchedCache);
       hashCachesBuilder.add(watchedCache);
     }
@@ -104,17 +119,39 @@ public class BuckGlobalStateFactory {
         createDirectoryListCachePerCellMap(fileEventBus);
     LoadingCache<Path, FileTreeCache> fileTreeCachePerRoot =
         createFileTreeCachePerCellMap(fileEventBus);
+    TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory();
+    BuckConfig rootBuckConfig = rootCell.getRootCell().getBuckConfig();
+    ParserConfig parserConfig = rootBuckConfig.getView(ParserConfig.class);
+
+    // Manifests stored by a daemon of a different version or with a different config of any cell
+    // are dropped.
+    Optional<String> persistentManifestCacheFingerprint =
+        parserConfig.getEnablePersistentManifestCache()
+            ? Optional.of(BuckVersion.getVersion() + ":" + hashConfigsOfAllCells(allCells))
+            : Optional.empty();
     LoadingCache<Path, BuildFileManifestCache> buildFileManifestCachePerRoot =
         createBuildFileManifestCachePerCellMap(
-            fileEventBus, rootCell.getCellProvider(), rootCell.getSuperRootPath());
+            fileEventBus,
+            rootCell.getCellProvider(),
+            rootCell.getSuperRootPath(),
+            persistentManifestCacheFingerprint,
+            parserConfig.getPersistentManifestCacheMaxSizeBytes());
     ActionGraphCache actionGraphCache =
         new ActionGraphCache(buildBuckConfig.getMaxActionGraphCacheEntries());
     VersionedTargetGraphCache versionedTargetGraphCache = new VersionedTargetGraphCache();
-
-    TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory();
-    ParserConfig parserConfig = rootCell.getRootCell().getBuckConfig().getView(ParserConfig.class);
+    // The parser state snapshot only stamps the files build files were parsed from. Parser changes
+    // between versions and config values read while parsing, e.g. by read_config, can change the
+    // resulting nodes without touching those files, so snapshots are only restored by daemons of
+    // the same version and with the same config of every cell.
+    Optional<String> parserStateSnapshotFingerprint =
+        parserConfig.getEnableDaemonStateSnapshot()
+            ? Optional.of(BuckVersion.getVersion() + ":" + hashConfigsOfAllCells(allCells))
+            : Optional.empty();
     DaemonicParserState daemonicParserState =
-        new DaemonicParserState(parserConfig.getNumParsingThreads());
+        new DaemonicParserState(
+            parserConfig.getNumParsingThreads(),
+            parserStateSnapshotFingerprint,
+            parserConfig.getDaemonStateMaxSizeBytes());
     fileEventBus.register(daemonicParserState);
 
     // Build the the rule key cache recycler.
@@ -122,7 +159,8 @@ public class BuckGlobalStateFactory {
         RuleKeyCacheRecycler.createAndRegister(
             fileEventBus,
             new DefaultRuleKeyCache<>(),
-            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet());
+            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet(),
+            openPersistentRuleKeyStore(rootCell.getRootCell(), allCells, buildBuckConfig));
 
     Optional<WebServer> webServer;
     if (webServerToReuse.isPresent()) {
@@ -209,29 +247,102 @@ public class BuckGlobalStateFactory {
             });
   }
 
-  /** Create a number of instances of {@link BuildFileManifestCache}, one per each cell */
+  /**
+   * Create a number of instances of {@link BuildFileManifestCache}, one per each cell. If a
+   * fingerprint is given, manifests are also stored in the buck-out of each cell.
+   */
   private static LoadingCache<Path, BuildFileManifestCache> createBuildFileManifestCachePerCellMap(
-      EventBus fileEventBus, CellProvider cellProvider, AbsPath superRootPath) {
+      EventBus fileEventBus,
+      CellProvider cellProvider,
+      AbsPath superRootPath,
+      Optional<String> persistentCacheFingerprint,
+      long persistentCacheMaxSizeBytes) {
     return CacheBuilder.newBuilder()
         .build(
             new CacheLoader<Path, BuildFileManifestCache>() {
               @Override
               public BuildFileManifestCache load(Path path) {
                 Cell cell = cellProvider.getCellByPath(path);
-                String buildFileName =
-                    cell.getBuckConfigView(ParserConfig.class).getBuildFileName();
                 BuildFileManifestCache cache =
-                    BuildFileManifestCache.of(
-                        superRootPath.getPath(),
+                    createBuildFileManifestCache(
+                        cell,
                         path,
-                        cell.getFilesystem().getPath(buildFileName),
-                        cell.getFilesystemViewForSourceFiles());
+                        superRootPath,
+                        persistentCacheFingerprint,
+                        persistentCacheMaxSizeBytes);
                 fileEventBus.register(cache.getInvalidator());
                 return cache;
               }
             });
   }
 
+  /**
+   * Creates the manifest cache of one cell, which only keeps manifests in memory if the database
+   * of the persistent cache can't be opened.
+   */
+  private static BuildFileManifestCache createBuildFileManifestCache(
+      Cell cell,
+      Path path,
+      AbsPath superRootPath,
+      Optional<String> persistentCacheFingerprint,
+      long persistentCacheMaxSizeBytes) {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    Path buildFileName =
+        filesystem.getPath(cell.getBuckConfigView(ParserConfig.class).getBuildFileName());
+    if (persistentCacheFingerprint.isPresent()) {
+      try {
+        return BuildFileManifestCache.persistent(
+            superRootPath.getPath(),
+            path,
+            buildFileName,
+            cell.getFilesystemViewForSourceFiles(),
+            filesystem.resolve(
+                filesystem
+                    .getBuckPaths()
+                    .getScratchDir()
+                    .resolve(PERSISTENT_MANIFEST_CACHE_FILE_NAME)),
+            persistentCacheFingerprint.get(),
+            persistentCacheMaxSizeBytes);
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to open the persistent build file manifest cache.");
+      }
+    }
+    return BuildFileManifestCache.of(
+        superRootPath.getPath(), path, buildFileName, cell.getFilesystemViewForSourceFiles());
+  }
+
+  /**
+   * Opens the store of rule keys persisted by previous daemons, if enabled. Keys stored by a daemon
+   * of a different version or with a different config of any cell are dropped.
+   */
+  private static Optional<PersistentRuleKeyStore> openPersistentRuleKeyStore(
+      Cell rootCell, ImmutableList<Cell> allCells, BuildBuckConfig buildBuckConfig) {
+    if (!buildBuckConfig.isPersistentRuleKeyCacheEnabled()) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(
+          PersistentRuleKeyStore.open(
+              rootCell.getFilesystem(),
+              BuckVersion.getVersion() + ":" + hashConfigsOfAllCells(allCells)));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to open the persistent rule key store.");
+      return Optional.empty();
+    }
+  }
+
+  /** @return a hash of the configs of {@code cells} that does not depend on their order. */
+  private static HashCode hashConfigsOfAllCells(ImmutableList<Cell> cells) {
+    List<Cell> sortedCells = new ArrayList<>(cells);
+    sortedCells.sort(Comparator.comparing(cell -> cell.getRoot().toString()));
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (Cell cell : sortedCells) {
+      hasher.putString(cell.getRoot().toString(), StandardCharsets.UTF_8);
+      hasher.putBytes(cell.getBuckConfig().getConfig().getOrderIndependentHashCode().asBytes());
+    }
+    return hasher.hash();
+  }
+
   private static Optional<WebServer> createWebServer(
       BuckConfig config, ProjectFilesystem filesystem, Clock clock) {
     OptionalInt port = getValidWebServerPort(config);
@@ -45,7 +45,13 @@ public class DirectoryCleaner {
     this.args = args;
   }
 
-  public void clean(Path pathToClean) throws IOException {
+  /**
+   * Deletes the candidates of the path selector that are over the limits, in the order of the path
+   * selector.
+   *
+   * @return the stats of the candidates that were kept.
+   */
+  public List<PathStats> clean(Path pathToClean) throws IOException {
 
     List<PathStats> pathStats = new ArrayList<>();
     long totalSizeBytes = 0;
@@ -55,6 +61,7 @@ public class DirectoryCleaner {
       pathStats.add(stats);
     }
 
+    int deleted = 0;
     if (shouldDeleteOldestLog(pathStats.size(), totalSizeBytes, args.getMaxTotalSizeBytes())) {
       Collections.sort(
           pathStats, (stats1, stats2) -> args.getPathSelector().comparePaths(stats1, stats2));
@@ -77,8 +84,10 @@ public class DirectoryCleaner {
         MostFiles.deleteRecursivelyIfExists(currentPath.getPath());
         --remainingLogDirectories;
         totalSizeBytes -= currentPath.getTotalSizeBytes();
+        ++deleted;
       }
     }
+    return pathStats.subList(deleted, pathStats.size());
   }
 
   private boolean shouldDeleteOldestLog(
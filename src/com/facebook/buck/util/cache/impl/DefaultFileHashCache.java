@@ -20,6 +20,7 @@ import com.facebook.buck.core.cell.name.CanonicalCellName;
 import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.core.io.ArchiveMemberPath;
+import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.AbstractBuckEvent;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.ProjectFilesystemFactory;
@@ -39,6 +40,7 @@ import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.AbstractMap;
 import java.util.List;
 import java.util.Map;
@@ -49,11 +51,14 @@ import java.util.stream.Stream;
 
 public class DefaultFileHashCache implements ProjectFileHashCache {
 
+  private static final Logger LOG = Logger.get(DefaultFileHashCache.class);
+
   private static final boolean SHOULD_CHECK_IGNORED_PATHS =
       Boolean.getBoolean("buck.DefaultFileHashCache.check_ignored_paths");
 
   private final ProjectFilesystem projectFilesystem;
   private final Predicate<Path> ignoredPredicate;
+  protected final Optional<PersistentFileHashStore> persistentFileHashStore;
 
   @VisibleForTesting FileHashCacheEngine fileHashCacheEngine;
 
@@ -61,8 +66,17 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       ProjectFilesystem projectFilesystem,
       Predicate<Path> ignoredPredicate,
       FileHashCacheMode fileHashCacheMode) {
+    this(projectFilesystem, ignoredPredicate, fileHashCacheMode, Optional.empty());
+  }
+
+  protected DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Predicate<Path> ignoredPredicate,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<PersistentFileHashStore> persistentFileHashStore) {
     this.projectFilesystem = projectFilesystem;
     this.ignoredPredicate = ignoredPredicate;
+    this.persistentFileHashStore = persistentFileHashStore;
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> hashLoader =
         path -> {
           try {
@@ -212,7 +226,20 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   }
 
   private HashCode getFileHashCode(Path path) throws IOException {
-    return projectFilesystem.computeSha1(path).asHashCode();
+    if (!persistentFileHashStore.isPresent()) {
+      return projectFilesystem.computeSha1(path).asHashCode();
+    }
+    // Stat before hashing so that a concurrent modification leaves a stale (and therefore
+    // never matching) stamp rather than a fresh stamp next to an outdated hash.
+    long statTimeMillis = System.currentTimeMillis();
+    BasicFileAttributes attributes =
+        projectFilesystem.readAttributes(path, BasicFileAttributes.class);
+    HashCode hashCode = persistentFileHashStore.get().get(path, attributes);
+    if (hashCode == null) {
+      hashCode = projectFilesystem.computeSha1(path).asHashCode();
+      persistentFileHashStore.get().put(path, attributes, statTimeMillis, hashCode);
+    }
+    return hashCode;
   }
 
   private long getPathSize(Path path) throws IOException {
@@ -252,6 +279,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   @Override
   public void invalidate(Path relativePath) {
     fileHashCacheEngine.invalidate(relativePath);
+    persistentFileHashStore.ifPresent(store -> store.invalidate(relativePath));
   }
 
   @Override
@@ -345,4 +373,15 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   public List<AbstractBuckEvent> getStatsEvents() {
     return fileHashCacheEngine.getStatsEvents();
   }
+
+  /** Flushes the persistent store of file hashes, if this cache has one. */
+  public void close() {
+    if (persistentFileHashStore.isPresent()) {
+      try {
+        persistentFileHashStore.get().close();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to flush persistent file hash store for %s", projectFilesystem);
+      }
+    }
+  }
 }
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * An append-only on-disk store of file content hashes that survives daemon restarts.
+ *
+ * <p>Every entry is keyed by the path relative to the project root and is stamped with the size,
+ * modification time and file key (inode) the file had when it was hashed. A stored hash is only
+ * returned when all three still match the file on disk, so entries written by a previous daemon
+ * are revalidated lazily on first access instead of being trusted blindly. Paths reported as
+ * changed by Watchman are dropped explicitly via {@link #invalidate(Path)}.
+ *
+ * <p>Hashes of files modified within {@link #RACY_WINDOW_NANOS} of the moment they were stat'ed
+ * are not stored: a same-size edit in that window can leave the modification time unchanged on
+ * filesystems with a coarse timestamp granularity, so the stamp would keep matching a stale hash.
+ *
+ * <p>The store is loaded on first access and rewritten (compacted) on load and on {@link
+ * #close()} when the log contains too many superseded or invalidated records.
+ */
+public class PersistentFileHashStore implements Closeable {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashStore.class);
+
+  private static final int MAGIC = 0xB0C4F11E;
+  private static final int VERSION = 2;
+
+  private static final byte RECORD_ENTRY = 1;
+  private static final byte RECORD_INVALIDATION = 2;
+
+  /** Number of appended records after which the log is flushed to disk. */
+  private static final int FLUSH_EVERY_RECORDS = 512;
+
+  /**
+   * Coarsest modification time granularity we expect (FAT has two seconds, HFS+ and ext3 one), so
+   * that any later edit of a file stat'ed outside this window is guaranteed to bump its mtime.
+   */
+  @VisibleForTesting static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  /** Location of the store relative to buck-out. */
+  private static final String STORE_FILE_NAME = ".file_hash_cache";
+
+  private final Path storePath;
+  private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+  private volatile boolean loaded = false;
+  private boolean writeFailed = false;
+  private boolean truncatedTail = false;
+  @Nullable private DataOutputStream log = null;
+  private int recordsInLog = 0;
+  private int unflushedRecords = 0;
+
+  @VisibleForTesting
+  PersistentFileHashStore(Path storePath) {
+    this.storePath = storePath;
+  }
+
+  /** Creates a store kept in buck-out of the given filesystem. */
+  public static PersistentFileHashStore forFilesystem(ProjectFilesystem projectFilesystem) {
+    return new PersistentFileHashStore(
+        projectFilesystem.resolve(
+            projectFilesystem.getBuckPaths().getBuckOut().resolve(STORE_FILE_NAME)));
+  }
+
+  /**
+   * @return the stored hash for {@code path} if the file still has the given attributes, or
+   *     {@code null} if nothing valid is stored.
+   */
+  @Nullable
+  public HashCode get(Path path, BasicFileAttributes attributes) {
+    ensureLoaded();
+    Entry entry = entries.get(path);
+    if (entry == null || !entry.matches(attributes)) {
+      return null;
+    }
+    return entry.hashCode;
+  }
+
+  /**
+   * Records the hash of {@code path} computed while the file had the given attributes.
+   *
+   * @param statTimeMillis wall clock time, taken before {@code attributes} were read.
+   */
+  public void put(
+      Path path, BasicFileAttributes attributes, long statTimeMillis, HashCode hashCode) {
+    ensureLoaded();
+    long lastModifiedNanos = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    if (lastModifiedNanos > TimeUnit.MILLISECONDS.toNanos(statTimeMillis) - RACY_WINDOW_NANOS) {
+      // The file may still change without its stamp changing, so the hash can't be trusted later.
+      invalidate(path);
+      return;
+    }
+    Entry entry = new Entry(attributes.size(), lastModifiedNanos, fileKeyHash(attributes), hashCode);
+    // Updated along with the log, so that both end up with the same last entry of the path.
+    synchronized (this) {
+      entries.put(path, entry);
+      if (writeFailed) {
+        return;
+      }
+      try {
+        DataOutputStream out = getLog();
+        writeEntry(out, path, entry);
+        recordAppended(out);
+      } catch (IOException e) {
+        disableLog(e);
+      }
+    }
+  }
+
+  /** Drops the stored hash of {@code path}, e.g. because Watchman reported it as changed. */
+  public void invalidate(Path path) {
+    ensureLoaded();
+    synchronized (this) {
+      if (entries.remove(path) == null || writeFailed) {
+        return;
+      }
+      try {
+        DataOutputStream out = getLog();
+        out.writeByte(RECORD_INVALIDATION);
+        out.writeUTF(path.toString());
+        recordAppended(out);
+      } catch (IOException e) {
+        disableLog(e);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    ensureLoaded();
+    return entries.size();
+  }
+
+  @VisibleForTesting
+  synchronized void flush() throws IOException {
+    if (log != null) {
+      log.flush();
+    }
+  }
+
+  /** Flushes pending records and compacts the log if it is mostly made of stale records. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!loaded) {
+      return;
+    }
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+    if (!writeFailed && hasTooManyDeadRecords()) {
+      compact();
+    }
+  }
+
+  private boolean hasTooManyDeadRecords() {
+    return recordsInLog > 2 * entries.size() + FLUSH_EVERY_RECORDS;
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    synchronized (this) {
+      if (loaded) {
+        return;
+      }
+      try {
+        load();
+      } catch (NoSuchFileException e) {
+        // Nothing was persisted yet.
+      } catch (IOException e) {
+        LOG.warn(e, "Discarding unreadable file hash store %s", storePath);
+        entries.clear();
+        recordsInLog = 0;
+        try {
+          Files.deleteIfExists(storePath);
+        } catch (IOException deleteException) {
+          LOG.warn(deleteException, "Unable to delete %s", storePath);
+        }
+      }
+      if (truncatedTail || hasTooManyDeadRecords()) {
+        // Superseded and invalidated records would otherwise accumulate across daemons, since
+        // a daemon that is killed never gets to compact the log on close().
+        try {
+          compact();
+        } catch (IOException e) {
+          disableLog(e);
+        }
+        truncatedTail = false;
+      }
+      loaded = true;
+    }
+  }
+
+  private void load() throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(storePath)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unexpected file hash store header");
+      }
+      while (true) {
+        byte type;
+        try {
+          type = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+        try {
+          Path path = Paths.get(in.readUTF());
+          if (type == RECORD_ENTRY) {
+            long size = in.readLong();
+            long lastModifiedNanos = in.readLong();
+            int fileKeyHash = in.readInt();
+            byte[] bytes = new byte[in.readUnsignedByte()];
+            in.readFully(bytes);
+            entries.put(
+                path,
+                new Entry(size, lastModifiedNanos, fileKeyHash, HashCode.fromBytes(bytes)));
+          } else if (type == RECORD_INVALIDATION) {
+            entries.remove(path);
+          } else {
+            throw new IOException("Unexpected record type " + type);
+          }
+        } catch (EOFException e) {
+          // A truncated trailing record means the previous daemon died mid-write; everything
+          // before it is still valid, but it has to be rewritten before anything is appended.
+          truncatedTail = true;
+          break;
+        }
+        recordsInLog++;
+      }
+    }
+    LOG.debug("Loaded %d file hashes from %s", entries.size(), storePath);
+  }
+
+  private DataOutputStream getLog() throws IOException {
+    if (log == null) {
+      Files.createDirectories(storePath.getParent());
+      boolean isNew = !Files.exists(storePath) || recordsInLog == 0;
+      log =
+          new DataOutputStream(
+              new BufferedOutputStream(
+                  Files.newOutputStream(
+                      storePath,
+                      StandardOpenOption.CREATE,
+                      isNew ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND,
+                      StandardOpenOption.WRITE)));
+      if (isNew) {
+        log.writeInt(MAGIC);
+        log.writeInt(VERSION);
+      }
+    }
+    return log;
+  }
+
+  private void recordAppended(DataOutputStream out) throws IOException {
+    recordsInLog++;
+    if (++unflushedRecords >= FLUSH_EVERY_RECORDS) {
+      out.flush();
+      unflushedRecords = 0;
+    }
+  }
+
+  private void disableLog(IOException e) {
+    // A partially written record would corrupt everything appended after it, so stop writing
+    // and let the next daemon start from whatever made it to disk intact.
+    LOG.warn(e, "Unable to write file hash store %s", storePath);
+    writeFailed = true;
+    if (log != null) {
+      try {
+        log.close();
+      } catch (IOException closeException) {
+        LOG.warn(closeException, "Unable to close %s", storePath);
+      }
+      log = null;
+    }
+  }
+
+  private void compact() throws IOException {
+    Path tmp = storePath.resolveSibling(storePath.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (Map.Entry<Path, Entry> mapEntry : entries.entrySet()) {
+        writeEntry(out, mapEntry.getKey(), mapEntry.getValue());
+      }
+    }
+    Files.move(tmp, storePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    recordsInLog = entries.size();
+  }
+
+  private static void writeEntry(DataOutputStream out, Path path, Entry entry)
+      throws IOException {
+    out.writeByte(RECORD_ENTRY);
+    out.writeUTF(path.toString());
+    out.writeLong(entry.size);
+    out.writeLong(entry.lastModifiedNanos);
+    out.writeInt(entry.fileKeyHash);
+    byte[] bytes = entry.hashCode.asBytes();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static int fileKeyHash(BasicFileAttributes attributes) {
+    Object fileKey = attributes.fileKey();
+    return fileKey == null ? 0 : fileKey.hashCode();
+  }
+
+  private static final class Entry {
+    private final long size;
+    private final long lastModifiedNanos;
+    private final int fileKeyHash;
+    private final HashCode hashCode;
+
+    private Entry(long size, long lastModifiedNanos, int fileKeyHash, HashCode hashCode) {
+      this.size = size;
+      this.lastModifiedNanos = lastModifiedNanos;
+      this.fileKeyHash = fileKeyHash;
+      this.hashCode = hashCode;
+    }
+
+    private boolean matches(BasicFileAttributes attributes) {
+      return size == attributes.size()
+          && lastModifiedNanos == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+          && fileKeyHash == fileKeyHash(attributes);
+    }
+  }
+}
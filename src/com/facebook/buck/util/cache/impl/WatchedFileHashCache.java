@@ -24,6 +24,7 @@ import com.facebook.buck.io.watchman.WatchmanPathEvent;
 import com.facebook.buck.util.cache.FileHashCacheMode;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
+import java.util.Optional;
 
 public class WatchedFileHashCache extends DefaultFileHashCache {
 
@@ -31,7 +32,24 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
 
   public WatchedFileHashCache(
       ProjectFilesystem projectFilesystem, FileHashCacheMode fileHashCacheMode) {
-    super(projectFilesystem, getDefaultPathPredicate(projectFilesystem), fileHashCacheMode);
+    this(projectFilesystem, fileHashCacheMode, false);
+  }
+
+  /**
+   * @param persistent whether to keep computed file hashes in buck-out so that they can be reused
+   *     (after revalidation against the file's size, mtime and inode) by the next daemon.
+   */
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCacheMode fileHashCacheMode,
+      boolean persistent) {
+    super(
+        projectFilesystem,
+        getDefaultPathPredicate(projectFilesystem),
+        fileHashCacheMode,
+        persistent
+            ? Optional.of(PersistentFileHashStore.forFilesystem(projectFilesystem))
+            : Optional.empty());
   }
 
   /**
@@ -45,12 +63,14 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
     RelPath path = event.getPath().normalize();
     LOG.verbose("Invalidating %s", path);
     fileHashCacheEngine.invalidateWithParents(path.getPath());
+    persistentFileHashStore.ifPresent(store -> store.invalidate(path.getPath()));
   }
 
   @SuppressWarnings("unused")
   @Subscribe
   public synchronized void onFileSystemChange(WatchmanOverflowEvent event) {
     // Non-path change event, likely an overflow due to many change events: invalidate everything.
+    // The persistent store is kept, since its entries are revalidated against file attributes.
     LOG.debug("Invalidating all");
     invalidateAll();
   }
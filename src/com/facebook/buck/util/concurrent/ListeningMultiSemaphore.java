@@ -22,9 +22,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types rather
@@ -34,7 +35,12 @@ public class ListeningMultiSemaphore {
 
   private ResourceAmounts usedValues;
   private final ResourceAmounts maximumValues;
-  private final List<ListeningSemaphoreArrayPendingItem> pending = new LinkedList<>();
+  private final PriorityQueue<ListeningSemaphoreArrayPendingItem> pending =
+      new PriorityQueue<>(
+          Comparator.comparingLong(ListeningSemaphoreArrayPendingItem::getPriority)
+              .reversed()
+              .thenComparingLong(ListeningSemaphoreArrayPendingItem::getSequence));
+  private long nextSequence = 0;
   private final ResourceAllocationFairness fairness;
 
   public ListeningMultiSemaphore(
@@ -54,7 +60,20 @@ public class ListeningMultiSemaphore {
    *     amounts, they will be capped to them.
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Unit> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Unit> acquire(ResourceAmounts resources) {
+    return acquire(resources, 0);
+  }
+
+  /**
+   * Same as {@link #acquire(ResourceAmounts)}, but if the resources have to be waited for, the
+   * acquisition is queued ahead of the pending ones with a lower priority. Pending acquisitions
+   * with the same priority are processed in the order they were requested.
+   *
+   * @param resources Resource amounts that need to be acquired.
+   * @param priority Priority of the acquisition, higher values are processed first.
+   * @return Future that will be completed once resource will be acquired.
+   */
+  public synchronized ListenableFuture<Unit> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.zero())) {
       return Futures.immediateFuture(Unit.UNIT);
     }
@@ -62,7 +81,9 @@ public class ListeningMultiSemaphore {
     resources = capResourceAmounts(resources);
     if (!checkIfResourcesAvailable(resources)) {
       SettableFuture<Unit> pendingFuture = SettableFuture.create();
-      pending.add(ImmutableListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
+      pending.add(
+          ImmutableListeningSemaphoreArrayPendingItem.of(
+              pendingFuture, resources, priority, nextSequence++));
       return pendingFuture;
     }
     increaseUsedResources(resources);
@@ -89,17 +110,21 @@ public class ListeningMultiSemaphore {
       getPendingItemsThatCanBeProcessed() {
     ImmutableList.Builder<ListeningSemaphoreArrayPendingItem> builder = ImmutableList.builder();
 
-    Iterator<ListeningSemaphoreArrayPendingItem> iterator = pending.iterator();
-    while (!getAvailableResources().equals(ResourceAmounts.zero()) && iterator.hasNext()) {
-      ListeningSemaphoreArrayPendingItem item = iterator.next();
+    // Items skipped over when reordering is allowed, put back once done.
+    List<ListeningSemaphoreArrayPendingItem> skipped = new ArrayList<>();
+    while (!getAvailableResources().equals(ResourceAmounts.zero()) && !pending.isEmpty()) {
+      ListeningSemaphoreArrayPendingItem item = pending.peek();
       if (checkIfResourcesAvailable(item.getResources())) {
         builder.add(item);
         increaseUsedResources(item.getResources());
-        iterator.remove();
-      } else if (!fairnessAllowsReordering()) {
+        pending.poll();
+      } else if (fairnessAllowsReordering()) {
+        skipped.add(pending.poll());
+      } else {
         break;
       }
     }
+    pending.addAll(skipped);
     return builder.build();
   }
 
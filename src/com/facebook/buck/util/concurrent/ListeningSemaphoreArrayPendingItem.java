@@ -25,4 +25,9 @@ interface ListeningSemaphoreArrayPendingItem {
   SettableFuture<Unit> getFuture();
 
   ResourceAmounts getResources();
+
+  long getPriority();
+
+  /** Order in which the item was queued, used to keep items with the same priority in order. */
+  long getSequence();
 }
@@ -24,17 +24,26 @@ import com.facebook.buck.util.PatternsMatcher;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.io.ByteStreams;
 import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,14 +56,25 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.apache.commons.compress.utils.CloseShieldFilterInputStream;
 
 /** Utility class to extract a .tar.* file */
 public class Untar extends Unarchiver {
 
+  /** Number of bytes needed to tell a zstd frame from the start of a tar archive. */
+  private static final int ZSTD_SIGNATURE_LENGTH = 4;
+
   private final Optional<String> compressorType;
+  private final boolean detectZstd;
 
   private Untar(Optional<String> compressorType) {
+    this(compressorType, false);
+  }
+
+  private Untar(Optional<String> compressorType, boolean detectZstd) {
     this.compressorType = compressorType;
+    this.detectZstd = detectZstd;
   }
 
   public static Untar tarUnarchiver() {
@@ -77,6 +97,11 @@ public class Untar extends Unarchiver {
     return new Untar(Optional.of(CompressorStreamFactory.ZSTANDARD));
   }
 
+  /** @return an unarchiver for tar archives that may or may not be compressed with zstd. */
+  public static Untar zstdOrUncompressedUnarchiver() {
+    return new Untar(Optional.empty(), true);
+  }
+
   @Override
   public ImmutableSet<Path> extractArchive(
       Path archiveFile,
@@ -107,8 +132,83 @@ public class Untar extends Unarchiver {
       boolean writeSymlinksAfterCreatingFiles)
       throws IOException {
 
+    try (TarArchiveInputStream archiveStream =
+        getArchiveInputStream(new BufferedInputStream(Files.newInputStream(archiveFile)))) {
+      return extractArchive(
+          archiveStream,
+          filesystem,
+          filesystemRelativePath,
+          stripPath,
+          existingFileMode,
+          entriesToExclude,
+          writeSymlinksAfterCreatingFiles);
+    } catch (CompressorException e) {
+      throw new IOException(
+          String.format("Could not get decompressor for archive at %s", archiveFile), e);
+    }
+  }
+
+  /**
+   * Extracts an archive into the root of {@code filesystem} as it is read from {@code
+   * archiveStream}, e.g. while it is being downloaded, without storing it in a file first. The
+   * stream is not closed and may have unread bytes left after the end of the archive.
+   *
+   * @param archiveStream The stream the archive is read from
+   * @param filesystem The filesystem that will be extracted into
+   * @param existingFileMode How to handle existing files
+   * @return A set of paths to files that were created (not directories)
+   * @throws IOException If the archive could not be extracted for any reason
+   */
+  public ImmutableSet<Path> extractArchive(
+      InputStream archiveStream, ProjectFilesystem filesystem, ExistingFileMode existingFileMode)
+      throws IOException {
+    try (TarArchiveInputStream tarStream =
+        getArchiveInputStream(new CloseShieldFilterInputStream(archiveStream))) {
+      return extractArchive(
+          tarStream,
+          filesystem,
+          filesystem.getPath(""),
+          Optional.empty(),
+          existingFileMode,
+          PatternsMatcher.NONE,
+          Platform.detect() == Platform.WINDOWS);
+    } catch (CompressorException e) {
+      throw new IOException("Could not get decompressor for archive stream", e);
+    }
+  }
+
+  private ImmutableSet<Path> extractArchive(
+      TarArchiveInputStream archiveStream,
+      ProjectFilesystem filesystem,
+      Path filesystemRelativePath,
+      Optional<Path> stripPath,
+      ExistingFileMode existingFileMode,
+      PatternsMatcher entriesToExclude,
+      boolean writeSymlinksAfterCreatingFiles)
+      throws IOException {
+    return extractArchive(
+        archiveStream,
+        filesystem,
+        filesystemRelativePath,
+        stripPath,
+        existingFileMode,
+        entriesToExclude,
+        writeSymlinksAfterCreatingFiles,
+        new HashSet<>());
+  }
+
+  private ImmutableSet<Path> extractArchive(
+      TarArchiveInputStream archiveStream,
+      ProjectFilesystem filesystem,
+      Path filesystemRelativePath,
+      Optional<Path> stripPath,
+      ExistingFileMode existingFileMode,
+      PatternsMatcher entriesToExclude,
+      boolean writeSymlinksAfterCreatingFiles,
+      Set<Path> dirsToTidy)
+      throws IOException {
+
     ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
-    HashSet<Path> dirsToTidy = new HashSet<>();
     TreeMap<Path, Long> dirCreationTimes = new TreeMap<>();
     DirectoryCreator creator = new DirectoryCreator(filesystem);
 
@@ -117,50 +217,44 @@ public class Untar extends Unarchiver {
     // all files are extracted, and /then/ try to do the links
     Map<Path, Path> windowsSymlinkMap = new HashMap<>();
 
-    try (TarArchiveInputStream archiveStream = getArchiveInputStream(archiveFile)) {
-      TarArchiveEntry entry;
-      while ((entry = archiveStream.getNextTarEntry()) != null) {
-        String entryName = entry.getName();
-        if (entriesToExclude.matches(entryName)) {
+    TarArchiveEntry entry;
+    while ((entry = archiveStream.getNextTarEntry()) != null) {
+      String entryName = entry.getName();
+      if (entriesToExclude.matches(entryName)) {
+        continue;
+      }
+      Path destFile = Paths.get(entryName);
+      Path destPath;
+      if (stripPath.isPresent()) {
+        if (!destFile.startsWith(stripPath.get())) {
           continue;
         }
-        Path destFile = Paths.get(entryName);
-        Path destPath;
-        if (stripPath.isPresent()) {
-          if (!destFile.startsWith(stripPath.get())) {
-            continue;
-          }
-          destPath =
-              filesystemRelativePath.resolve(stripPath.get().relativize(destFile)).normalize();
-        } else {
-          destPath = filesystemRelativePath.resolve(destFile).normalize();
-        }
+        destPath =
+            filesystemRelativePath.resolve(stripPath.get().relativize(destFile)).normalize();
+      } else {
+        destPath = filesystemRelativePath.resolve(destFile).normalize();
+      }
 
-        if (entry.isDirectory()) {
-          dirsToTidy.add(destPath);
-          mkdirs(creator, destPath);
-          dirCreationTimes.put(destPath, entry.getModTime().getTime());
-        } else if (entry.isSymbolicLink()) {
-          if (writeSymlinksAfterCreatingFiles) {
-            recordSymbolicLinkForWindows(creator, destPath, entry, windowsSymlinkMap);
-          } else {
-            writeSymbolicLink(creator, destPath, entry);
-          }
-          paths.add(destPath);
-          setAttributes(filesystem, destPath, entry);
-        } else if (entry.isFile()) {
-          writeFile(creator, archiveStream, destPath);
-          paths.add(destPath);
-          setAttributes(filesystem, destPath, entry);
+      if (entry.isDirectory()) {
+        dirsToTidy.add(destPath);
+        mkdirs(creator, destPath);
+        dirCreationTimes.put(destPath, entry.getModTime().getTime());
+      } else if (entry.isSymbolicLink()) {
+        if (writeSymlinksAfterCreatingFiles) {
+          recordSymbolicLinkForWindows(creator, destPath, entry, windowsSymlinkMap);
+        } else {
+          writeSymbolicLink(creator, destPath, entry);
         }
+        paths.add(destPath);
+        setAttributes(filesystem, destPath, entry);
+      } else if (entry.isFile()) {
+        writeFile(creator, archiveStream, entry, destPath);
+        paths.add(destPath);
+        setAttributes(filesystem, destPath, entry);
       }
-
-      writeWindowsSymlinks(creator, windowsSymlinkMap);
-    } catch (CompressorException e) {
-      throw new IOException(
-          String.format("Could not get decompressor for archive at %s", archiveFile), e);
     }
 
+    writeWindowsSymlinks(creator, windowsSymlinkMap);
     setDirectoryModificationTimes(filesystem, dirCreationTimes);
 
     ImmutableSet<Path> filePaths = paths.build();
@@ -171,9 +265,109 @@ public class Untar extends Unarchiver {
     return filePaths;
   }
 
-  private TarArchiveInputStream getArchiveInputStream(Path tarFile)
+  /**
+   * Extracts an archive read from {@code archiveStream} into {@code stagingPath}, a directory of
+   * {@code filesystem} that does not exist yet, instead of its root. Nothing outside of the staging
+   * directory is changed until {@link StagedArchive#commit} is called, so that the archive can be
+   * checked before it replaces any existing files. The stream is not closed and may have unread
+   * bytes left after the end of the archive.
+   */
+  public StagedArchive stageArchive(
+      InputStream archiveStream, ProjectFilesystem filesystem, Path stagingPath)
+      throws IOException {
+    Set<Path> directories = new HashSet<>();
+    ImmutableSet<Path> files;
+    try (TarArchiveInputStream tarStream =
+        getArchiveInputStream(new CloseShieldFilterInputStream(archiveStream))) {
+      files =
+          extractArchive(
+              tarStream,
+              filesystem,
+              stagingPath,
+              Optional.empty(),
+              ExistingFileMode.OVERWRITE,
+              PatternsMatcher.NONE,
+              Platform.detect() == Platform.WINDOWS,
+              directories);
+    } catch (CompressorException e) {
+      filesystem.deleteRecursivelyIfExists(stagingPath);
+      throw new IOException("Could not get decompressor for archive stream", e);
+    } catch (IOException e) {
+      filesystem.deleteRecursivelyIfExists(stagingPath);
+      throw e;
+    }
+    return new StagedArchive(
+        filesystem,
+        stagingPath,
+        files.stream().map(stagingPath::relativize).collect(ImmutableSet.toImmutableSet()),
+        directories.stream()
+            .map(stagingPath::relativize)
+            .collect(ImmutableSortedSet.toImmutableSortedSet(Comparator.naturalOrder())));
+  }
+
+  /** An archive extracted into a staging directory by {@link #stageArchive}. */
+  public class StagedArchive {
+    private final ProjectFilesystem filesystem;
+    private final Path stagingPath;
+    private final ImmutableSet<Path> files;
+    private final ImmutableSortedSet<Path> directories;
+
+    private StagedArchive(
+        ProjectFilesystem filesystem,
+        Path stagingPath,
+        ImmutableSet<Path> files,
+        ImmutableSortedSet<Path> directories) {
+      this.filesystem = filesystem;
+      this.stagingPath = stagingPath;
+      this.files = files;
+      this.directories = directories;
+    }
+
+    /**
+     * Moves the extracted files from the staging directory to where they would have been extracted
+     * to in the root of the filesystem, and deletes the staging directory.
+     *
+     * @return the paths of the files that were moved, relative to the root of the filesystem
+     */
+    public ImmutableSet<Path> commit(ExistingFileMode existingFileMode) throws IOException {
+      DirectoryCreator creator = new DirectoryCreator(filesystem);
+      for (Path directory : directories) {
+        mkdirs(creator, directory);
+      }
+      for (Path file : files) {
+        prepareForFile(creator, file);
+        filesystem.move(stagingPath.resolve(file), file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      if (existingFileMode == ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES) {
+        tidyDirectories(filesystem, directories, files);
+      }
+      discard();
+      return files;
+    }
+
+    /** Deletes the staging directory without touching anything else. */
+    public void discard() throws IOException {
+      filesystem.deleteRecursivelyIfExists(stagingPath);
+    }
+  }
+
+  private TarArchiveInputStream getArchiveInputStream(InputStream inputStream)
       throws IOException, CompressorException {
-    BufferedInputStream inputStream = new BufferedInputStream(Files.newInputStream(tarFile));
+    if (detectZstd) {
+      // Peek at the start of the archive without reading past it, so that streams which are
+      // not closed by us are left where the archive ends.
+      PushbackInputStream pushbackStream =
+          new PushbackInputStream(inputStream, ZSTD_SIGNATURE_LENGTH);
+      byte[] signature = new byte[ZSTD_SIGNATURE_LENGTH];
+      int length = ByteStreams.read(pushbackStream, signature, 0, signature.length);
+      pushbackStream.unread(signature, 0, length);
+      if (ZstdUtils.matches(signature, length)) {
+        return new TarArchiveInputStream(
+            new CompressorStreamFactory()
+                .createCompressorInputStream(CompressorStreamFactory.ZSTANDARD, pushbackStream));
+      }
+      return new TarArchiveInputStream(pushbackStream);
+    }
     if (compressorType.isPresent()) {
       return new TarArchiveInputStream(
           new CompressorStreamFactory()
@@ -220,13 +414,34 @@ public class Untar extends Unarchiver {
   }
 
   /** Writes a regular file from an archive */
-  private void writeFile(DirectoryCreator creator, TarArchiveInputStream inputStream, Path target)
+  private void writeFile(
+      DirectoryCreator creator,
+      TarArchiveInputStream inputStream,
+      TarArchiveEntry entry,
+      Path target)
       throws IOException {
     ProjectFilesystem filesystem = creator.getFilesystem();
     prepareForFile(creator, target);
 
-    try (OutputStream outputStream = filesystem.newFileOutputStream(target)) {
-      ByteStreams.copy(inputStream, outputStream);
+    // Let the channel pull the entry straight from the archive instead of copying it through an
+    // intermediate buffer and a buffered output stream.
+    long size = entry.getSize();
+    try (FileChannel channel =
+        FileChannel.open(
+            filesystem.resolve(target),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      ReadableByteChannel source = Channels.newChannel(inputStream);
+      long position = 0;
+      while (position < size) {
+        long transferred = channel.transferFrom(source, position, size - position);
+        if (transferred <= 0) {
+          throw new EOFException(
+              String.format("Archive entry %s ended after %d bytes", entry.getName(), position));
+        }
+        position += transferred;
+      }
     }
   }
 
@@ -216,6 +216,47 @@ public class AbstractAsynchronousCacheTest {
     }
   }
 
+  @Test
+  public void testMultiFetchAsyncChecksAndFetchesInBatches() throws Exception {
+    ExplicitRunExecutorService service = new ExplicitRunExecutorService();
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    List<ImmutableList<RuleKey>> requestedRuleKeys = new ArrayList<>();
+    List<ImmutableSet<RuleKey>> checkedRuleKeys = new ArrayList<>();
+
+    try (AbstractAsynchronousCache cache =
+        new RequestedKeyRecordingAsynchronousCache(
+            service, filesystem, requestedRuleKeys, checkedRuleKeys, 3, 1, true)) {
+
+      ImmutableList.Builder<ArtifactFetchRequest> requests = ImmutableList.builder();
+      List<RuleKey> keys = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        RuleKey key = new RuleKey(HashCode.fromInt(i));
+        keys.add(key);
+        requests.add(
+            ArtifactFetchRequest.of(
+                null, key, LazyPath.ofInstance(filesystem.getPath("path" + i))));
+      }
+
+      ImmutableList<ListenableFuture<CacheResult>> results =
+          cache.multiFetchAsync(requests.build());
+
+      service.run();
+
+      for (int i = 0; i < results.size(); i++) {
+        ListenableFuture<CacheResult> future = results.get(i);
+        assertTrue(future.isDone());
+        assertEquals(i < 6, future.get().getType().isSuccess());
+      }
+
+      // The whole batch is checked at once, and only the present keys are fetched, in batches.
+      assertEquals(1, checkedRuleKeys.size());
+      MoreAsserts.assertIterablesEquals(keys, checkedRuleKeys.get(0));
+      MoreAsserts.assertIterablesEquals(
+          ImmutableList.of(keys.get(0), keys.get(1), keys.get(2)), requestedRuleKeys.get(0));
+    }
+  }
+
   private static class NoOpEventListener implements AbstractAsynchronousCache.CacheEventListener {
     @Override
     public AbstractAsynchronousCache.StoreEvents storeScheduled(
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertThat;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig.Executor;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.artifact_cache.config.DirCacheEntry;
 import com.facebook.buck.artifact_cache.config.HttpCacheEntry;
@@ -190,6 +191,26 @@ public class ArtifactCacheBuckConfigTest {
     assertThat(dirCacheConfig.getMaxSizeBytes(), Matchers.equalTo(Optional.of(1022L)));
   }
 
+  @Test
+  public void testChunkedDirCacheSetting() throws IOException {
+    assertThat(
+        createFromText("[cache]", "dir = cache_dir")
+            .getCacheEntries()
+            .getDirCacheEntries()
+            .asList()
+            .get(0)
+            .isChunked(),
+        Matchers.is(false));
+    assertThat(
+        createFromText("[cache]", "dir = cache_dir", "dir_chunked = true")
+            .getCacheEntries()
+            .getDirCacheEntries()
+            .asList()
+            .get(0)
+            .isChunked(),
+        Matchers.is(true));
+  }
+
   @Test
   public void testMultipleDirCacheSettings() throws IOException {
     ArtifactCacheBuckConfig config =
@@ -236,6 +257,29 @@ public class ArtifactCacheBuckConfigTest {
     config.getCacheEntries();
   }
 
+  @Test
+  public void testArtifactCompression() throws IOException {
+    assertThat(
+        createFromText("[cache]").getArtifactCompression(),
+        Matchers.equalTo(ArtifactCompression.DEFAULT));
+    assertThat(
+        createFromText("[cache]", "artifact_compression_level = 19").getArtifactCompression(),
+        Matchers.equalTo(ArtifactCompression.of(ArtifactCompression.Codec.ZSTD, 19)));
+    assertThat(
+        createFromText("[cache]", "artifact_compression = none")
+            .getArtifactCompression()
+            .getCodec(),
+        Matchers.equalTo(ArtifactCompression.Codec.NONE));
+  }
+
+  @Test
+  public void testMalformedArtifactCompressionLevel() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]", "artifact_compression_level = 30");
+
+    expectedException.expect(HumanReadableException.class);
+    config.getArtifactCompression();
+  }
+
   @Test
   public void testServedCacheAbsentByDefault() throws IOException {
     ArtifactCacheBuckConfig config = createFromText("[cache]", "dir = ~/cache_dir");
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.facebook.buck.util.unarchive.Untar;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Compares the time it takes to pack and unpack a rule's outputs with the supported {@link
+ * ArtifactCompression} settings.
+ */
+public class ArtifactCompressionBenchmark {
+  @Rule public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  @Param({"ZSTD", "NONE"})
+  private ArtifactCompression.Codec codec = ArtifactCompression.Codec.ZSTD;
+
+  @Param({"1", "3", "9", "19"})
+  private int level = ArtifactCompression.DEFAULT_ZSTD_LEVEL;
+
+  @Param({"100"})
+  private int fileCount = 100;
+
+  @Param({"65536"})
+  private int fileSize = 64 * 1024;
+
+  private static final Random random = new Random(12345);
+
+  private ProjectFilesystem filesystem;
+  private ProjectFilesystem extractFilesystem;
+  private List<Path> outputs;
+  private Path archive;
+  private Path packedArchive;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmpDir.newFolder("outputs"));
+    extractFilesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmpDir.newFolder("extracted"));
+    archive = tmpDir.getRoot().resolve("archive");
+    packedArchive = tmpDir.getRoot().resolve("packed");
+
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  private void setUpBenchmark() throws IOException {
+    // Build outputs are neither random nor uniform: mix a small vocabulary of "tokens" so that
+    // each codec setting gets something to work with, like it would with class files.
+    byte[][] tokens = new byte[256][];
+    for (int i = 0; i < tokens.length; i++) {
+      tokens[i] = new byte[4 + random.nextInt(12)];
+      random.nextBytes(tokens[i]);
+    }
+
+    outputs = new ArrayList<>(fileCount);
+    for (int i = 0; i < fileCount; i++) {
+      Path output = Paths.get("out", "file" + i);
+      byte[] contents = new byte[fileSize];
+      int offset = 0;
+      while (offset < fileSize) {
+        byte[] token = tokens[random.nextInt(tokens.length)];
+        int length = Math.min(token.length, fileSize - offset);
+        System.arraycopy(token, 0, contents, offset, length);
+        offset += length;
+      }
+      filesystem.mkdirs(output.getParent());
+      filesystem.writeBytesToPath(contents, output);
+      outputs.add(output);
+    }
+
+    ArtifactUploader.compress(filesystem, outputs, packedArchive, compression());
+  }
+
+  private ArtifactCompression compression() {
+    return ArtifactCompression.of(codec, level);
+  }
+
+  @Test
+  public void compressAndExtractCorrectness() throws IOException {
+    for (ArtifactCompression.Codec codec : ArtifactCompression.Codec.values()) {
+      this.codec = codec;
+      setUpBenchmark();
+      benchCompress();
+      benchExtract();
+      for (Path output : outputs) {
+        assertArrayEquals(
+            compression().toString(),
+            Files.readAllBytes(filesystem.resolve(output)),
+            Files.readAllBytes(extractFilesystem.resolve(output)));
+      }
+    }
+  }
+
+  @Benchmark
+  private void benchCompress() throws IOException {
+    ArtifactUploader.compress(filesystem, outputs, archive, compression());
+  }
+
+  @Benchmark
+  private void benchExtract() throws IOException {
+    Untar.zstdOrUncompressedUnarchiver()
+        .extractArchive(
+            packedArchive, extractFilesystem, ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ArtifactFetchCoalescerTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private final List<ImmutableList<RuleKey>> batches = new ArrayList<>();
+  private final List<Runnable> tasks = new ArrayList<>();
+
+  private final ArtifactCache cache =
+      new InMemoryArtifactCache() {
+        @Override
+        public ListenableFuture<CacheResult> fetchAsync(
+            @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+          batches.add(ImmutableList.of(ruleKey));
+          return Futures.immediateFuture(CacheResult.miss());
+        }
+
+        @Override
+        public ImmutableList<ListenableFuture<CacheResult>> multiFetchAsync(
+            ImmutableList<ArtifactFetchRequest> requests) {
+          batches.add(
+              requests.stream()
+                  .map(ArtifactFetchRequest::getRuleKey)
+                  .collect(ImmutableList.toImmutableList()));
+          return requests.stream()
+              .map(request -> Futures.immediateFuture(CacheResult.miss()))
+              .collect(ImmutableList.toImmutableList());
+        }
+      };
+
+  @Test
+  public void fetchesStartedBeforeTheBatchIsSentShareIt() {
+    ArtifactFetchCoalescer coalescer = new ArtifactFetchCoalescer(cache, tasks::add);
+    RuleKey first = new RuleKey("aaaa");
+    RuleKey second = new RuleKey("bbbb");
+    RuleKey third = new RuleKey("cccc");
+
+    coalescer.fetchAsync(null, first, output("first"));
+    coalescer.fetchAsync(null, second, output("second"));
+    assertEquals(1, tasks.size());
+    assertEquals(ImmutableList.of(), batches);
+    runTasks();
+    assertEquals(ImmutableList.of(ImmutableList.of(first, second)), batches);
+
+    coalescer.fetchAsync(null, third, output("third"));
+    runTasks();
+    assertEquals(
+        ImmutableList.of(ImmutableList.of(first, second), ImmutableList.of(third)), batches);
+  }
+
+  @Test
+  public void cancelledFetchesAreNotSent() {
+    ArtifactFetchCoalescer coalescer = new ArtifactFetchCoalescer(cache, tasks::add);
+    RuleKey first = new RuleKey("aaaa");
+    RuleKey second = new RuleKey("bbbb");
+
+    ListenableFuture<CacheResult> cancelled = coalescer.fetchAsync(null, first, output("first"));
+    coalescer.fetchAsync(null, second, output("second"));
+    cancelled.cancel(false);
+    runTasks();
+
+    assertEquals(ImmutableList.of(ImmutableList.of(second)), batches);
+  }
+
+  private LazyPath output(String name) {
+    return LazyPath.ofInstance(tmp.getRoot().resolve(name));
+  }
+
+  private void runTasks() {
+    List<Runnable> toRun = new ArrayList<>(tasks);
+    tasks.clear();
+    toRun.forEach(Runnable::run);
+  }
+}
@@ -18,6 +18,7 @@ package com.facebook.buck.artifact_cache;
 
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.BuildTargetFactory;
 import com.facebook.buck.core.rulekey.RuleKey;
@@ -53,7 +54,8 @@ public class ArtifactUploaderIntegrationTest {
         ImmutableMap.of(),
         ImmutableSortedSet.of(),
         new FakeBuildRule(BUILD_TARGET, ImmutableSortedSet.of()),
-        1000);
+        1000,
+        ArtifactCompression.DEFAULT);
 
     assertTrue(
         cacheDir
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.model.BuildTarget;
@@ -33,9 +34,13 @@ import com.facebook.buck.event.BuckEventBusForTests;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.MorePosixFilePermissions;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TemporaryPaths;
 import com.facebook.buck.testutil.integration.TarInspector;
 import com.facebook.buck.util.types.Unit;
+import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.facebook.buck.util.unarchive.Untar;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -48,15 +53,18 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
 import org.hamcrest.Matchers;
+import org.junit.Rule;
 import org.junit.Test;
 
 public class ArtifactUploaderTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
 
   private static final BuildTarget BUILD_TARGET = BuildTargetFactory.newInstance("//foo:bar");
 
@@ -133,7 +141,8 @@ public class ArtifactUploaderTest {
         ImmutableMap.of("metadata", "metadata", "build-metadata", "build-metadata"),
         ImmutableSortedSet.of(dir, file, dirFile, metadataFile),
         new FakeBuildRule(BUILD_TARGET, filesystem, TestBuildRuleParams.create()),
-        1000);
+        1000,
+        ArtifactCompression.DEFAULT);
 
     assertTrue(stored.get());
   }
@@ -151,7 +160,8 @@ public class ArtifactUploaderTest {
         ImmutableSet.of(PosixFilePermission.OWNER_EXECUTE));
 
     // Compress
-    ArtifactUploader.compress(fs, ImmutableList.of(file.getPath()), out.getPath());
+    ArtifactUploader.compress(
+        fs, ImmutableList.of(file.getPath()), out.getPath(), ArtifactCompression.DEFAULT);
 
     // Decompress+unarchive, and check that the only file is an executable.
     try (TarArchiveInputStream fin =
@@ -170,4 +180,33 @@ public class ArtifactUploaderTest {
               .contains(PosixFilePermission.OWNER_EXECUTE));
     }
   }
+
+  @Test
+  public void compressedArtifactsAreExtractedRegardlessOfCodec() throws Exception {
+    ProjectFilesystem fs = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path file = Paths.get("dir", "file");
+    fs.mkdirs(file.getParent());
+    fs.writeContentsToPath("contents", file);
+
+    for (ArtifactCompression compression :
+        ImmutableList.of(
+            ArtifactCompression.DEFAULT,
+            ArtifactCompression.of(ArtifactCompression.Codec.ZSTD, 19),
+            ArtifactCompression.of(ArtifactCompression.Codec.NONE, 1))) {
+      Path out = tmp.getRoot().resolve("out");
+      ArtifactUploader.compress(fs, ImmutableList.of(file), out, compression);
+
+      Path extracted = Paths.get("extracted");
+      ImmutableSet<Path> paths =
+          Untar.zstdOrUncompressedUnarchiver()
+              .extractArchive(
+                  out,
+                  fs,
+                  extracted,
+                  Optional.empty(),
+                  ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      assertEquals(compression.toString(), ImmutableSet.of(extracted.resolve(file)), paths);
+      assertEquals(Optional.of("contents"), fs.readFileIfItExists(extracted.resolve(file)));
+    }
+  }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+
+  @Test
+  public void chunksConcatenateToInput() throws IOException {
+    byte[] input = randomBytes(3 * 1024 * 1024 + 17, 0);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    ContentDefinedChunker.split(
+        new ByteArrayInputStream(input),
+        (buffer, length) -> {
+          assertTrue(length <= ContentDefinedChunker.MAX_CHUNK_SIZE);
+          output.write(buffer, 0, length);
+        });
+
+    assertArrayEquals(input, output.toByteArray());
+  }
+
+  @Test
+  public void chunkBoundariesResynchronizeAfterInsertion() throws IOException {
+    byte[] input = randomBytes(2 * 1024 * 1024, 0);
+    byte[] edited = new byte[input.length + 1];
+    System.arraycopy(input, 0, edited, 0, 1000);
+    edited[1000] = 42;
+    System.arraycopy(input, 1000, edited, 1001, input.length - 1000);
+
+    List<HashCode> original = chunkHashes(input);
+    Set<HashCode> shared = new HashSet<>(chunkHashes(edited));
+    shared.retainAll(original);
+
+    // Only the first chunk differs.
+    assertEquals(original.size() - 1, shared.size());
+  }
+
+  @Test
+  public void emptyInputHasNoChunks() throws IOException {
+    assertTrue(chunkHashes(new byte[0]).isEmpty());
+  }
+
+  private static List<HashCode> chunkHashes(byte[] input) throws IOException {
+    List<HashCode> hashes = new ArrayList<>();
+    ContentDefinedChunker.split(
+        new ByteArrayInputStream(input),
+        (buffer, length) -> hashes.add(Hashing.sha1().hashBytes(buffer, 0, length)));
+    return hashes;
+  }
+
+  private static byte[] randomBytes(int size, long seed) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
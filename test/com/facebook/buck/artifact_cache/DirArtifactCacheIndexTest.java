@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.DirectoryCleaner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DirArtifactCacheIndexTest {
+  @Rule public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private Path cacheRoot;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheRoot = tmpDir.newFolder("cache");
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws IOException {
+    DirArtifactCacheIndex index = newIndex();
+    writeEntry("aa/aa/a", 10);
+    index.recordStore("aa/aa/a", 20);
+    writeEntry("bb/bb/b", 10);
+    index.recordStore("bb/bb/b", 20);
+    writeEntry("cc/cc/c", 10);
+    index.recordStore("cc/cc/c", 20);
+    index.recordAccess("aa/aa/a");
+
+    assertEquals(0, index.evict(60, 40));
+    assertEquals(40, index.evict(50, 30));
+
+    assertEquals(20, index.getTotalBytes());
+    assertTrue(Files.exists(cacheRoot.resolve("aa/aa/a")));
+    assertTrue(Files.exists(cacheRoot.resolve("aa/aa/a.metadata")));
+    assertFalse(Files.exists(cacheRoot.resolve("bb/bb/b")));
+    assertFalse(Files.exists(cacheRoot.resolve("bb/bb/b.metadata")));
+    assertFalse(Files.exists(cacheRoot.resolve("cc/cc/c")));
+    index.close();
+  }
+
+  @Test
+  public void isBuiltFromCacheDirectoryWhenMissing() throws IOException {
+    writeEntry("11/11/w", 1);
+    writeEntry("22/22/x", 1);
+    writeEntry("33/33/y", 1);
+    setLastAccessTime("11/11/w", 9000);
+    setLastAccessTime("22/22/x", 0);
+    setLastAccessTime("33/33/y", 1000);
+
+    DirArtifactCacheIndex index = newIndex();
+    assertEquals(3, index.size());
+    assertEquals(6, index.getTotalBytes());
+
+    assertEquals(4, index.evict(2, 2));
+    assertTrue(Files.exists(cacheRoot.resolve("11/11/w")));
+    assertFalse(Files.exists(cacheRoot.resolve("22/22/x")));
+    assertFalse(Files.exists(cacheRoot.resolve("33/33/y")));
+    index.close();
+  }
+
+  @Test
+  public void isReloadedFromDiskWithoutWalkingTheCache() throws IOException {
+    DirArtifactCacheIndex index = newIndex();
+    index.recordStore("aa/aa/a", 100);
+    index.recordStore("bb/bb/b", 200);
+    index.recordRemoval("aa/aa/a");
+    index.close();
+
+    // Entries not known to the index are not picked up once it exists.
+    writeEntry("cc/cc/c", 10);
+
+    DirArtifactCacheIndex reloaded = newIndex();
+    assertEquals(1, reloaded.size());
+    assertEquals(200, reloaded.getTotalBytes());
+    reloaded.close();
+  }
+
+  @Test
+  public void seesRecordsOfOtherInstances() throws IOException {
+    DirArtifactCacheIndex first = newIndex();
+    DirArtifactCacheIndex second = newIndex();
+    first.recordStore("aa/aa/a", 100);
+    second.recordStore("bb/bb/b", 200);
+    first.recordStore("cc/cc/c", 300);
+
+    assertEquals(0, second.evict(1000, 500));
+    assertEquals(3, second.size());
+    assertEquals(600, second.getTotalBytes());
+
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void keepsRecordsOfInstancesOpenWhileAnotherCompacts() throws IOException {
+    DirArtifactCacheIndex first = newIndex();
+    DirArtifactCacheIndex second = newIndex();
+    first.recordStore("aa/aa/a", 100);
+    second.recordStore("bb/bb/b", 200);
+    // Enough stale records for the first index to compact the log on close.
+    for (int i = 0; i < 2000; i++) {
+      first.recordAccess("aa/aa/a");
+    }
+    first.close();
+
+    second.recordStore("cc/cc/c", 300);
+    second.close();
+
+    DirArtifactCacheIndex reloaded = newIndex();
+    assertEquals(3, reloaded.size());
+    assertEquals(600, reloaded.getTotalBytes());
+    reloaded.close();
+  }
+
+  @Test
+  public void isResetToTheFilesLeftByTheDirectoryCleaner() throws IOException {
+    DirArtifactCacheIndex index = newIndex();
+    writeEntry("aa/aa/a", 10);
+    index.recordStore("aa/aa/a", 20);
+    writeEntry("bb/bb/b", 10);
+    index.recordStore("bb/bb/b", 20);
+
+    // Deleted without the index knowing, by the directory cleaner.
+    Files.delete(cacheRoot.resolve("aa/aa/a"));
+    Files.delete(cacheRoot.resolve("aa/aa/a.metadata"));
+    index.reset(
+        ImmutableList.of(
+            new DirectoryCleaner.PathStats(cacheRoot.resolve("bb/bb/b"), 10, 0, 0),
+            new DirectoryCleaner.PathStats(cacheRoot.resolve("bb/bb/b.metadata"), 10, 0, 0)));
+
+    assertEquals(1, index.size());
+    assertEquals(20, index.getTotalBytes());
+    index.close();
+
+    DirArtifactCacheIndex reloaded = newIndex();
+    assertEquals(1, reloaded.size());
+    reloaded.close();
+  }
+
+  @Test
+  public void bufferedAccessesAreLoggedOnClose() throws IOException {
+    DirArtifactCacheIndex index = newIndex();
+    writeEntry("aa/aa/a", 10);
+    index.recordStore("aa/aa/a", 20);
+    writeEntry("bb/bb/b", 10);
+    index.recordStore("bb/bb/b", 20);
+    index.recordAccess("aa/aa/a");
+    index.close();
+
+    DirArtifactCacheIndex reloaded = newIndex();
+    assertEquals(20, reloaded.evict(30, 20));
+    assertTrue(Files.exists(cacheRoot.resolve("aa/aa/a")));
+    assertFalse(Files.exists(cacheRoot.resolve("bb/bb/b")));
+    reloaded.close();
+  }
+
+  @Test
+  public void evictsChunksWithTheLastEntryReferringToThem() throws IOException {
+    DirArtifactCacheIndex index =
+        new DirArtifactCacheIndex(cacheRoot, cacheRoot.resolve("tmp"), /* chunked */ true);
+    String shared = writeChunk("shared", 100);
+    String onlyA = writeChunk("a", 100);
+    String onlyB = writeChunk("b", 100);
+    writeChunkedEntry("aa/aa/a", 10);
+    index.recordChunkedStore(
+        ImmutableMap.of(shared, 100L, onlyA, 100L),
+        ImmutableMap.of("aa/aa/a", 20L),
+        ImmutableList.of(shared, onlyA));
+    writeChunkedEntry("bb/bb/b", 10);
+    index.recordChunkedStore(
+        ImmutableMap.of(onlyB, 100L),
+        ImmutableMap.of("bb/bb/b", 20L),
+        ImmutableList.of(shared, onlyB));
+    index.recordAccess("bb/bb/b");
+    assertEquals(340, index.getTotalBytes());
+
+    assertEquals(120, index.evict(300, 250));
+    assertFalse(Files.exists(cacheRoot.resolve("aa/aa/a.chunks")));
+    assertFalse(Files.exists(cacheRoot.resolve(onlyA)));
+    assertTrue(Files.exists(cacheRoot.resolve(shared)));
+    assertTrue(Files.exists(cacheRoot.resolve(onlyB)));
+    index.close();
+
+    DirArtifactCacheIndex reloaded =
+        new DirArtifactCacheIndex(cacheRoot, cacheRoot.resolve("tmp"), /* chunked */ true);
+    assertEquals(220, reloaded.getTotalBytes());
+    assertEquals(220, reloaded.evict(200, 0));
+    assertFalse(Files.exists(cacheRoot.resolve(shared)));
+    reloaded.close();
+  }
+
+  @Test
+  public void isRebuiltWhenCorrupt() throws IOException {
+    writeEntry("aa/aa/a", 5);
+    Files.write(cacheRoot.resolve(DirArtifactCacheIndex.INDEX_FILE_NAME), new byte[] {1, 2, 3});
+
+    DirArtifactCacheIndex index = newIndex();
+    assertEquals(1, index.size());
+    assertEquals(10, index.getTotalBytes());
+    index.close();
+  }
+
+  private DirArtifactCacheIndex newIndex() {
+    return new DirArtifactCacheIndex(cacheRoot, cacheRoot.resolve("tmp"));
+  }
+
+  private void writeEntry(String key, int size) throws IOException {
+    Path artifact = cacheRoot.resolve(key);
+    Files.createDirectories(artifact.getParent());
+    Files.write(artifact, new byte[size]);
+    Files.write(cacheRoot.resolve(key + ".metadata"), new byte[size]);
+  }
+
+  private String writeChunk(String contents, int size) throws IOException {
+    byte[] bytes = Arrays.copyOf(contents.getBytes(StandardCharsets.UTF_8), size);
+    String key = DirArtifactChunkStore.getChunkKey(Hashing.sha1().hashBytes(bytes));
+    Path chunk = cacheRoot.resolve(key);
+    Files.createDirectories(chunk.getParent());
+    Files.write(chunk, bytes);
+    return key;
+  }
+
+  private void writeChunkedEntry(String key, int size) throws IOException {
+    Path manifest = cacheRoot.resolve(key + DirArtifactChunkStore.MANIFEST_EXTENSION);
+    Files.createDirectories(manifest.getParent());
+    Files.write(manifest, new byte[size]);
+    Files.write(cacheRoot.resolve(key + ".metadata"), new byte[size]);
+  }
+
+  private void setLastAccessTime(String key, long millis) throws IOException {
+    Files.setAttribute(cacheRoot.resolve(key), "lastAccessTime", FileTime.fromMillis(millis));
+    Files.setAttribute(
+        cacheRoot.resolve(key + ".metadata"), "lastAccessTime", FileTime.fromMillis(millis));
+  }
+}
@@ -18,7 +18,9 @@ package com.facebook.buck.artifact_cache;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -33,6 +35,8 @@ import com.facebook.buck.core.rules.impl.FakeBuildRule;
 import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
 import com.facebook.buck.core.sourcepath.FakeSourcePath;
 import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
@@ -57,8 +61,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -709,6 +716,30 @@ public class DirArtifactCacheTest {
     assertEquals(ImmutableSet.of(fileZ, fileW), ImmutableSet.copyOf(filesInCache));
   }
 
+  @Test
+  public void testDeleteSomeReportsCounters() throws IOException {
+    Path fileX = cacheDir.resolve("22").resolve("22").resolve("x");
+    Path fileY = cacheDir.resolve("33").resolve("33").resolve("y");
+    Files.createDirectories(fileX.getParent());
+    Files.createDirectories(fileY.getParent());
+
+    dirArtifactCache = newDirArtifactCache(Optional.of(2L), CacheReadMode.READWRITE);
+
+    Files.write(fileX, "xx".getBytes(UTF_8));
+    Files.write(fileY, "y".getBytes(UTF_8));
+    Files.setAttribute(fileX, "lastAccessTime", FileTime.fromMillis(0));
+    Files.setAttribute(fileY, "lastAccessTime", FileTime.fromMillis(1000));
+
+    dirArtifactCache.deleteOldFiles();
+
+    assertEquals(
+        ImmutableSet.of(fileY), ImmutableSet.copyOf(dirArtifactCache.getAllFilesInCache()));
+    IntegerCounter evictedBytes = (IntegerCounter) dirArtifactCache.getCounters().get(0);
+    SamplingCounter evictionTimeMs = (SamplingCounter) dirArtifactCache.getCounters().get(1);
+    assertEquals(2, evictedBytes.get());
+    assertEquals(1, evictionTimeMs.getCount());
+  }
+
   private DirectoryCleaner.PathStats fakePathStats(long creationTime, long lastAccessTime) {
     return new DirectoryCleaner.PathStats(null, 0, creationTime, lastAccessTime);
   }
@@ -897,6 +928,218 @@ public class DirArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testChunkedCacheStoreAndFetch() throws IOException {
+    DirArtifactCache cache = newChunkedDirArtifactCache(Optional.empty());
+
+    RuleKey ruleKey = new RuleKey("0000");
+    ImmutableMap<String, String> metadata = ImmutableMap.of("some", "metadata");
+    Path data = Paths.get("data");
+    byte[] contents = randomBytes(1024 * 1024, 0);
+    projectFilesystem.writeBytesToPath(contents, data);
+
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).setMetadata(metadata).build(),
+        BorrowablePath.borrowablePath(data));
+    assertThat(
+        Futures.getUnchecked(cache.multiContainsAsync(ImmutableSet.of(ruleKey)))
+            .get(ruleKey)
+            .getType(),
+        Matchers.equalTo(CacheResultType.CONTAINS));
+
+    Path out = Paths.get("out-data");
+    CacheResult result =
+        Futures.getUnchecked(cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(out)));
+    assertThat(result.getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(result.getMetadata(), Matchers.equalTo(metadata));
+    assertThat(result.getArtifactSizeBytes(), Matchers.equalTo((long) contents.length));
+    assertTrue(Arrays.equals(contents, Files.readAllBytes(projectFilesystem.resolve(out))));
+
+    cache.close();
+  }
+
+  @Test
+  public void testChunkedCacheDeduplicatesSimilarArtifacts() throws IOException {
+    DirArtifactCache cache = newChunkedDirArtifactCache(Optional.empty());
+
+    byte[] contents = randomBytes(1024 * 1024, 0);
+    Path data1 = Paths.get("data1");
+    projectFilesystem.writeBytesToPath(contents, data1);
+    // Same content with a few bytes inserted in the middle.
+    byte[] edited = new byte[contents.length + 3];
+    System.arraycopy(contents, 0, edited, 0, 500000);
+    System.arraycopy(contents, 500000, edited, 500003, contents.length - 500000);
+    Path data2 = Paths.get("data2");
+    projectFilesystem.writeBytesToPath(edited, data2);
+
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(new RuleKey("aaaa")).build(),
+        BorrowablePath.notBorrowablePath(data1));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(new RuleKey("bbbb")).build(),
+        BorrowablePath.notBorrowablePath(data2));
+
+    long chunkBytes = 0;
+    for (Path file : cache.getAllFilesInCache()) {
+      if (file.getParent().getParent().getFileName().toString().equals("chunks")) {
+        chunkBytes += Files.size(file);
+      }
+    }
+    // Only the chunk containing the edit is stored twice.
+    assertThat(chunkBytes, Matchers.lessThan(contents.length + 300L * 1024));
+
+    Path out = Paths.get("out");
+    assertThat(
+        Futures.getUnchecked(cache.fetchAsync(null, new RuleKey("bbbb"), LazyPath.ofInstance(out)))
+            .getType(),
+        Matchers.equalTo(CacheResultType.HIT));
+    assertTrue(Arrays.equals(edited, Files.readAllBytes(projectFilesystem.resolve(out))));
+
+    cache.close();
+  }
+
+  @Test
+  public void testChunkedCacheStoreTouchesReusedChunks() throws IOException {
+    DirArtifactCache cache = newChunkedDirArtifactCache(Optional.empty());
+
+    Path data = Paths.get("data");
+    projectFilesystem.writeBytesToPath(randomBytes(1024 * 1024, 0), data);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(new RuleKey("aaaa")).build(),
+        BorrowablePath.notBorrowablePath(data));
+    List<Path> chunks = new ArrayList<>();
+    for (Path file : cache.getAllFilesInCache()) {
+      if (file.getParent().getParent().getFileName().toString().equals("chunks")) {
+        chunks.add(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+      }
+    }
+    assertFalse(chunks.isEmpty());
+
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(new RuleKey("bbbb")).build(),
+        BorrowablePath.notBorrowablePath(data));
+
+    for (Path chunk : chunks) {
+      assertThat(Files.getLastModifiedTime(chunk).toMillis(), Matchers.greaterThan(0L));
+    }
+
+    cache.close();
+  }
+
+  @Test
+  public void testChunkedCacheDoesNotServeCorruptChunks() throws IOException {
+    DirArtifactCache cache = newChunkedDirArtifactCache(Optional.empty());
+
+    RuleKey ruleKey = new RuleKey("aaaa");
+    Path data = Paths.get("data");
+    byte[] contents = randomBytes(1024 * 1024, 0);
+    projectFilesystem.writeBytesToPath(contents, data);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+        BorrowablePath.notBorrowablePath(data));
+    Path chunk = null;
+    for (Path file : cache.getAllFilesInCache()) {
+      if (file.getParent().getParent().getFileName().toString().equals("chunks")) {
+        chunk = file;
+      }
+    }
+    assertNotNull(chunk);
+    Files.write(chunk, new byte[] {1, 2, 3});
+
+    Path out = Paths.get("out");
+    assertEquals(
+        CacheResultType.ERROR,
+        Futures.getUnchecked(cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(out))).getType());
+    assertFalse(Files.exists(chunk));
+
+    // The corrupt chunk is written again by the next store containing it.
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(new RuleKey("bbbb")).build(),
+        BorrowablePath.notBorrowablePath(data));
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(out))).getType());
+    assertTrue(Arrays.equals(contents, Files.readAllBytes(projectFilesystem.resolve(out))));
+
+    cache.close();
+  }
+
+  @Test
+  public void testChunkedCacheEvictionKeepsSharedChunks() throws IOException {
+    DirArtifactCache cache = newChunkedDirArtifactCache(Optional.empty());
+
+    byte[] shared = randomBytes(1024 * 1024, 0);
+    Path data1 = Paths.get("data1");
+    projectFilesystem.writeBytesToPath(shared, data1);
+    Path data2 = Paths.get("data2");
+    projectFilesystem.writeBytesToPath(shared, data2);
+    Path data3 = Paths.get("data3");
+    projectFilesystem.writeBytesToPath(randomBytes(1024 * 1024, 1), data3);
+
+    RuleKey ruleKey1 = new RuleKey("aaaa");
+    RuleKey ruleKey2 = new RuleKey("bbbb");
+    RuleKey ruleKey3 = new RuleKey("cccc");
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey1).build(),
+        BorrowablePath.notBorrowablePath(data1));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey2).build(),
+        BorrowablePath.notBorrowablePath(data2));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey3).build(),
+        BorrowablePath.notBorrowablePath(data3));
+    setLastAccessTime(cache, ruleKey1, 0);
+    setLastAccessTime(cache, ruleKey3, 1000);
+    cache.close();
+
+    // Evicting the least recently used entry frees none of its chunks, they are still used by the
+    // second entry, so the third entry has to be evicted as well.
+    cache = newChunkedDirArtifactCache(Optional.of(1700L * 1024));
+    cache.deleteOldFiles();
+
+    ImmutableMap<RuleKey, CacheResult> contains =
+        Futures.getUnchecked(
+            cache.multiContainsAsync(ImmutableSet.of(ruleKey1, ruleKey2, ruleKey3)));
+    assertEquals(CacheResultType.MISS, contains.get(ruleKey1).getType());
+    assertEquals(CacheResultType.MISS, contains.get(ruleKey3).getType());
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(
+                cache.fetchAsync(null, ruleKey2, LazyPath.ofInstance(Paths.get("out"))))
+            .getType());
+
+    cache.close();
+  }
+
+  private void setLastAccessTime(DirArtifactCache cache, RuleKey ruleKey, long millis)
+      throws IOException {
+    for (String extension : ImmutableList.of(".chunks", ".metadata")) {
+      Files.setAttribute(
+          projectFilesystem.resolve(cache.getPathForRuleKey(ruleKey, Optional.of(extension))),
+          "lastAccessTime",
+          FileTime.fromMillis(millis));
+    }
+  }
+
+  private static byte[] randomBytes(int size, long seed) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private DirArtifactCache newChunkedDirArtifactCache(Optional<Long> maxCacheSizeBytes)
+      throws IOException {
+    return new DirArtifactCache(
+        "dir",
+        projectFilesystem,
+        Paths.get("cache"),
+        CacheReadMode.READWRITE,
+        maxCacheSizeBytes,
+        MoreExecutors.newDirectExecutorService(),
+        /* chunked */ true);
+  }
+
   private static class BuildRuleForTest extends FakeBuildRule {
 
     @SuppressWarnings("PMD.UnusedPrivateField")
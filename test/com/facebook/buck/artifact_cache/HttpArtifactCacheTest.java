@@ -49,6 +49,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -57,6 +58,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -295,6 +297,69 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testFetchStreamsPayloadToConsumer() throws Exception {
+    Path output = Paths.get("output/file");
+    String data = "test";
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    List<Response> responseList = new ArrayList<>();
+    argsBuilder.setProjectFilesystem(filesystem);
+    argsBuilder.setStreamingFetchEnabled(true);
+    argsBuilder.setFetchClient(
+        withMakeRequest(
+            (path, requestBuilder) -> {
+              Request request = requestBuilder.url(SERVER + path).build();
+              Response response =
+                  new Response.Builder()
+                      .request(request)
+                      .protocol(Protocol.HTTP_1_1)
+                      .code(HttpURLConnection.HTTP_OK)
+                      .body(
+                          createResponseBody(
+                              ImmutableSet.of(ruleKey),
+                              ImmutableMap.of("key", "value"),
+                              ByteSource.wrap(data.getBytes(Charsets.UTF_8)),
+                              data))
+                      .message("")
+                      .build();
+              responseList.add(response);
+              return new OkHttpResponseWrapper(response);
+            }));
+
+    List<String> consumed = new ArrayList<>();
+    StreamingLazyPath streamingOutput =
+        new StreamingLazyPath() {
+          @Override
+          protected Path create() {
+            return output;
+          }
+
+          @Override
+          protected boolean acceptsPayload(ImmutableMap<String, String> metadata) {
+            return metadata.containsKey("key");
+          }
+
+          @Override
+          protected void consumePayload(
+              ImmutableMap<String, String> metadata, InputStream payload) throws IOException {
+            // Only read part of the payload, the rest has to be drained by the cache.
+            byte[] start = new byte[2];
+            ByteStreams.readFully(payload, start);
+            consumed.add(new String(start, Charsets.UTF_8));
+          }
+        };
+
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build());
+    CacheResult result = Futures.getUnchecked(cache.fetchAsync(null, ruleKey, streamingOutput));
+    assertEquals(result.cacheError().orElse(""), CacheResultType.HIT, result.getType());
+    assertTrue(streamingOutput.wasStreamed());
+    assertEquals(ImmutableList.of("te"), consumed);
+    assertEquals(Optional.empty(), filesystem.readFileIfItExists(output));
+    assertTrue("response wasn't fully read!", responseList.get(0).body().source().exhausted());
+    cache.close();
+  }
+
   @Test
   public void testFetchBadChecksum() throws Exception {
     FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
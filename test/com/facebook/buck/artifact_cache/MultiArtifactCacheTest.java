@@ -17,8 +17,10 @@
 package com.facebook.buck.artifact_cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
@@ -40,6 +42,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -166,6 +169,41 @@ public class MultiArtifactCacheTest {
     multiArtifactCache.close();
   }
 
+  @Test
+  public void testCacheMultiContainsSkipsCachesThatCannotCheckForArtifacts() throws IOException {
+    DummyArtifactCache dummyArtifactCache1 =
+        new DummyArtifactCache() {
+          @Override
+          public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+              ImmutableSet<RuleKey> ruleKeys) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public boolean supportsMultiContains() {
+            return false;
+          }
+        };
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.of(dummyArtifactCache1, dummyArtifactCache2));
+    assertTrue(multiArtifactCache.supportsMultiContains());
+
+    dummyArtifactCache2.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        BorrowablePath.notBorrowablePath(dummyFile.get()));
+    Map<RuleKey, CacheResult> results =
+        Futures.getUnchecked(
+            multiArtifactCache.multiContainsAsync(ImmutableSet.of(dummyRuleKey, dummyRuleKey2)));
+    assertEquals(CacheResultType.CONTAINS, results.get(dummyRuleKey).getType());
+    assertEquals(CacheResultType.MISS, results.get(dummyRuleKey2).getType());
+
+    assertFalse(
+        new MultiArtifactCache(ImmutableList.of(dummyArtifactCache1)).supportsMultiContains());
+
+    multiArtifactCache.close();
+  }
+
   @Test
   public void testPropagateOnlyCacheStore()
       throws InterruptedException, IOException, ExecutionException {
@@ -429,4 +467,48 @@ public class MultiArtifactCacheTest {
 
     multiArtifactCache.close();
   }
+
+  @Test
+  public void multiFetchPassesMissesToNextCacheInOneBatch() throws Exception {
+    RuleKey missingRuleKey = new RuleKey("11111111ae69428db2d1befb31cf743a11111111");
+    List<ImmutableList<RuleKey>> batchesSentToCache2 = new ArrayList<>();
+    InMemoryArtifactCache cache1 = new InMemoryArtifactCache();
+    InMemoryArtifactCache cache2 =
+        new InMemoryArtifactCache() {
+          @Override
+          public ImmutableList<ListenableFuture<CacheResult>> multiFetchAsync(
+              ImmutableList<ArtifactFetchRequest> requests) {
+            batchesSentToCache2.add(
+                requests.stream()
+                    .map(ArtifactFetchRequest::getRuleKey)
+                    .collect(ImmutableList.toImmutableList()));
+            return super.multiFetchAsync(requests);
+          }
+        };
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.of(cache1, cache2));
+
+    cache1.store(ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(), new byte[0]);
+    cache2.store(ArtifactInfo.builder().addRuleKeys(dummyRuleKey2).build(), new byte[0]);
+
+    ImmutableList<ListenableFuture<CacheResult>> results =
+        multiArtifactCache.multiFetchAsync(
+            ImmutableList.of(
+                ArtifactFetchRequest.of(null, dummyRuleKey, LazyPath.ofInstance(tmp.newFile())),
+                ArtifactFetchRequest.of(null, dummyRuleKey2, LazyPath.ofInstance(tmp.newFile())),
+                ArtifactFetchRequest.of(
+                    null, missingRuleKey, LazyPath.ofInstance(tmp.newFile()))));
+
+    assertEquals(CacheResultType.HIT, Futures.getUnchecked(results.get(0)).getType());
+    assertEquals(CacheResultType.HIT, Futures.getUnchecked(results.get(1)).getType());
+    assertEquals(CacheResultType.MISS, Futures.getUnchecked(results.get(2)).getType());
+    assertEquals(
+        ImmutableList.of(ImmutableList.of(dummyRuleKey2, missingRuleKey)), batchesSentToCache2);
+    assertThat(
+        "Hits from the second cache should be propagated to the first one.",
+        cache1.hasArtifact(dummyRuleKey2),
+        Matchers.is(true));
+
+    multiArtifactCache.close();
+  }
 }
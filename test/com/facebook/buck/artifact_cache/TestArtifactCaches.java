@@ -18,9 +18,12 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.Optional;
 
@@ -42,4 +45,15 @@ public class TestArtifactCaches {
       throws IOException {
     return createDirCacheForTest(filesystemRoot.getPath(), cacheDir);
   }
+
+  /**
+   * Hands the payload of a hit to {@code output} as a network cache streaming its fetches does.
+   *
+   * @return true if the payload was consumed, false if it still has to be written to {@code output}
+   */
+  public static boolean streamPayloadForTest(
+      LazyPath output, ImmutableMap<String, String> metadata, InputStream payload)
+      throws IOException {
+    return StreamingLazyPath.tryStream(output, metadata, payload);
+  }
 }
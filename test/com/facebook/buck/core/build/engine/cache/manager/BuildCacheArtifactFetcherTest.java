@@ -16,20 +16,58 @@
 
 package com.facebook.buck.core.build.engine.cache.manager;
 
+import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.NoopArtifactCache;
+import com.facebook.buck.artifact_cache.TestArtifactCaches;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
+import com.facebook.buck.core.build.engine.buildinfo.OnDiskBuildInfo;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
 import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.concurrent.FakeWeightedListeningExecutorService;
+import com.facebook.buck.util.types.Either;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.easymock.EasyMock;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
 
 public class BuildCacheArtifactFetcherTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
   private static final RuleKey RULE_KEY = new RuleKey(HashCode.fromLong(42));
   private static final BuildCacheArtifactFetcher FAKE_FETCHER =
       new BuildCacheArtifactFetcher(
@@ -67,4 +105,141 @@ public class BuildCacheArtifactFetcherTest {
     CacheResult actual = Futures.getUnchecked(cacheResultListenableFuture);
     Assert.assertEquals(expected, actual);
   }
+
+  @Test
+  public void testArtifactIsDroppedWhenOutputsAreProvidedBySomethingElse() throws Exception {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    AtomicReference<Path> fetchedTo = new AtomicReference<>();
+    ArtifactCache cache =
+        new NoopArtifactCache() {
+          @Override
+          public ListenableFuture<CacheResult> fetchAsync(
+              BuildTarget target, RuleKey ruleKey, LazyPath output) {
+            try {
+              fetchedTo.set(output.get());
+              Files.write(fetchedTo.get(), new byte[] {1, 2, 3});
+            } catch (IOException e) {
+              return Futures.immediateFailedFuture(e);
+            }
+            return Futures.immediateFuture(
+                CacheResult.hit(
+                    "dir",
+                    ArtifactCacheMode.dir,
+                    ImmutableMap.of(BuildInfo.MetadataKey.RULE_KEY, ruleKey.toString()),
+                    3));
+          }
+        };
+    BuildCacheArtifactFetcher fetcher =
+        new BuildCacheArtifactFetcher(
+            new FakeBuildRule(BuildTargetFactory.newInstance("//:rule"), filesystem),
+            () -> Scope.NOOP,
+            new FakeWeightedListeningExecutorService(MoreExecutors.newDirectExecutorService()),
+            () -> false,
+            BuckEventBusForTests.newInstance(),
+            null,
+            null);
+
+    CacheResult result =
+        fetcher
+            .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+                RULE_KEY, cache, filesystem)
+            .get();
+    Assert.assertEquals(CacheResultType.SKIPPED, result.getType());
+    Assert.assertFalse(Files.exists(fetchedTo.get()));
+  }
+
+  @Test
+  public void testStreamedArtifactIsKeptWhenTheArchiveEndsBeforeThePayload() throws Exception {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path output = Paths.get("output/file");
+    byte[] contents = "contents".getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+    // Written in whole blocks, so that the unpacking stops reading where the archive ends.
+    try (TarArchiveOutputStream archive = new TarArchiveOutputStream(archiveBytes, 10240)) {
+      TarArchiveEntry entry = new TarArchiveEntry(output.toString());
+      entry.setSize(contents.length);
+      archive.putArchiveEntry(entry);
+      archive.write(contents);
+      archive.closeArchiveEntry();
+    }
+    // Padding which only arrives once the unpacking stopped reading at the end of the archive.
+    CountDownLatch unpacked = new CountDownLatch(1);
+    byte[] padding = new byte[1024];
+    InputStream trailingPadding =
+        new FilterInputStream(new ByteArrayInputStream(padding)) {
+          @Override
+          public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+              unpacked.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException();
+            }
+            return super.read(buffer, offset, length);
+          }
+        };
+    InputStream payload =
+        new SequenceInputStream(
+            new ByteArrayInputStream(archiveBytes.toByteArray()), trailingPadding);
+    long payloadSize = archiveBytes.size() + padding.length;
+    ImmutableMap<String, String> metadata =
+        ImmutableMap.of(
+            BuildInfo.MetadataKey.RULE_KEY,
+            RULE_KEY.toString(),
+            BuildInfo.MetadataKey.ORIGIN_BUILD_ID,
+            "build");
+    ArtifactCache cache =
+        new NoopArtifactCache() {
+          @Override
+          public ListenableFuture<CacheResult> fetchAsync(
+              BuildTarget target, RuleKey ruleKey, LazyPath output) {
+            try {
+              Assert.assertTrue(
+                  TestArtifactCaches.streamPayloadForTest(output, metadata, payload));
+            } catch (IOException e) {
+              return Futures.immediateFailedFuture(e);
+            }
+            return Futures.immediateFuture(
+                CacheResult.hit("dir", ArtifactCacheMode.dir, metadata, payloadSize));
+          }
+        };
+    OnDiskBuildInfo onDiskBuildInfo = EasyMock.createNiceMock(OnDiskBuildInfo.class);
+    EasyMock.expect(onDiskBuildInfo.getValue(BuildInfo.MetadataKey.OUTPUT_SIZE))
+        .andReturn(Either.ofLeft(String.valueOf(contents.length)));
+    EasyMock.replay(onDiskBuildInfo);
+    ListeningExecutorService service =
+        MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    try (BuildInfoStoreManager buildInfoStoreManager = new BuildInfoStoreManager()) {
+      BuildCacheArtifactFetcher fetcher =
+          new BuildCacheArtifactFetcher(
+              new FakeBuildRule(BuildTargetFactory.newInstance("//:rule"), filesystem),
+              () -> Scope.NOOP,
+              new FakeWeightedListeningExecutorService(service) {
+                @Override
+                public <T> ListenableFuture<T> submit(Callable<T> task) {
+                  // Completes the unpacking well after it stopped reading the payload.
+                  return super.submit(
+                      () -> {
+                        T result = task.call();
+                        unpacked.countDown();
+                        Thread.sleep(500);
+                        return result;
+                      });
+                }
+              },
+              () -> true,
+              BuckEventBusForTests.newInstance(),
+              buildInfoStoreManager,
+              onDiskBuildInfo);
+
+      CacheResult result =
+          fetcher
+              .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+                  RULE_KEY, cache, filesystem)
+              .get();
+      Assert.assertEquals(result.cacheError().orElse(""), CacheResultType.HIT, result.getType());
+      Assert.assertEquals("contents", filesystem.readFileIfItExists(output).orElse(""));
+    } finally {
+      service.shutdownNow();
+    }
+  }
 }
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.core.build.engine.impl;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCompression;
 import com.facebook.buck.core.build.action.resolver.BuildEngineActionToBuildRuleResolver;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
 import com.facebook.buck.core.build.engine.config.ResourceAwareSchedulingInfo;
@@ -23,6 +24,7 @@ import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.delegate.LocalCachingBuildEngineDelegate;
 import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.engine.type.DepFiles;
+import com.facebook.buck.core.build.stats.CriticalPathEstimates;
 import com.facebook.buck.core.cell.TestCellPathResolver;
 import com.facebook.buck.core.model.TargetConfigurationSerializer;
 import com.facebook.buck.core.model.TargetConfigurationSerializerForTests;
@@ -60,6 +62,10 @@ public class CachingBuildEngineFactory {
   private boolean logBuildRuleFailuresInline = true;
   private BuildInfoStoreManager buildInfoStoreManager;
   private Optional<BuildRuleStrategy> customBuildRuleStrategy = Optional.empty();
+  private Optional<CriticalPathEstimates> criticalPathEstimates = Optional.empty();
+  private Optional<RuleMemoryFootprints> ruleMemoryFootprints = Optional.empty();
+  private Optional<Long> speculativeBuildDelayMillis = Optional.empty();
+  private boolean lazyCacheMaterialization = false;
 
   public CachingBuildEngineFactory(
       BuildRuleResolver buildRuleResolver,
@@ -132,6 +138,28 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setCriticalPathEstimates(
+      CriticalPathEstimates criticalPathEstimates) {
+    this.criticalPathEstimates = Optional.of(criticalPathEstimates);
+    return this;
+  }
+
+  public CachingBuildEngineFactory setRuleMemoryFootprints(
+      RuleMemoryFootprints ruleMemoryFootprints) {
+    this.ruleMemoryFootprints = Optional.of(ruleMemoryFootprints);
+    return this;
+  }
+
+  public CachingBuildEngineFactory setSpeculativeBuildDelayMillis(long delayMillis) {
+    this.speculativeBuildDelayMillis = Optional.of(delayMillis);
+    return this;
+  }
+
+  public CachingBuildEngineFactory setLazyCacheMaterialization(boolean lazyCacheMaterialization) {
+    this.lazyCacheMaterialization = lazyCacheMaterialization;
+    return this;
+  }
+
   public CachingBuildEngine build() {
     TargetConfigurationSerializer targetConfigurationSerializer =
         TargetConfigurationSerializerForTests.create(
@@ -145,6 +173,7 @@ public class CachingBuildEngineFactory {
           depFiles,
           maxDepFileCacheEntries,
           artifactCacheSizeLimit,
+          ArtifactCompression.DEFAULT,
           buildRuleResolver,
           buildInfoStoreManager,
           actionToBuildRuleResolver,
@@ -152,7 +181,11 @@ public class CachingBuildEngineFactory {
           ruleKeyFactories.get(),
           resourceAwareSchedulingInfo,
           RuleKeyDiagnostics.nop(),
-          logBuildRuleFailuresInline);
+          logBuildRuleFailuresInline,
+          criticalPathEstimates,
+          ruleMemoryFootprints,
+          speculativeBuildDelayMillis,
+          lazyCacheMaterialization);
     }
 
     return new CachingBuildEngine(
@@ -163,6 +196,7 @@ public class CachingBuildEngineFactory {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        ArtifactCompression.DEFAULT,
         buildRuleResolver,
         actionToBuildRuleResolver,
         targetConfigurationSerializer,
@@ -174,7 +208,11 @@ public class CachingBuildEngineFactory {
             cachingBuildEngineDelegate.getFileHashCache(),
             buildRuleResolver,
             inputFileSizeLimit,
-            new TrackedRuleKeyCache<>(new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker())));
+            new TrackedRuleKeyCache<>(new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker())),
+        criticalPathEstimates,
+        ruleMemoryFootprints,
+        speculativeBuildDelayMillis,
+        lazyCacheMaterialization);
   }
 
   private static WeightedListeningExecutorService toWeighted(ListeningExecutorService service) {
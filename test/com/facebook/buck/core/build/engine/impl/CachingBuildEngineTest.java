@@ -36,6 +36,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactFetchRequest;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheDeleteResult;
 import com.facebook.buck.artifact_cache.CacheResult;
@@ -178,6 +179,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -189,6 +191,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -205,6 +208,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
@@ -1688,6 +1692,532 @@ public class CachingBuildEngineTest {
         assertTrue(fakeFileHashCache.contains(filesystem.resolve(output)));
       }
     }
+
+    @Test
+    public void speculativeBuildDoesNotWaitForSlowCacheLookup() throws Exception {
+      SettableFuture<CacheResult> pendingFetch = SettableFuture.create();
+      ArtifactCache cache =
+          new NoopArtifactCache() {
+            @Override
+            public ListenableFuture<CacheResult> fetchAsync(
+                BuildTarget target, RuleKey ruleKey, LazyPath output) {
+              return pendingFetch;
+            }
+          };
+      BuildEngineBuildContext buildContext = this.buildContext.withArtifactCache(cache);
+
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      Path output = filesystem.getPath("output/path");
+      BuildRule rule =
+          new WriteFile(target, filesystem, "contents", output, /* executable */ false);
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setSpeculativeBuildDelayMillis(0).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+        assertEquals(
+            Optional.of(CacheResultType.SKIPPED),
+            result.getCacheResult().map(CacheResult::getType));
+        assertEquals("contents", filesystem.readFileIfItExists(output).get());
+      } finally {
+        pendingFetch.set(CacheResult.miss());
+      }
+    }
+
+    @Test
+    public void cacheHitWinsOverSpeculativeBuild() throws Exception {
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      Path output = filesystem.getPath("output/path");
+      BuildRule rule =
+          new WriteFile(target, filesystem, "contents", output, /* executable */ false);
+
+      // Run an initial build to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory().build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+
+        // Clear the file system.
+        filesystem.deleteRecursivelyIfExists(Paths.get(""));
+        buildInfoStore.deleteMetadata(target);
+      }
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setSpeculativeBuildDelayMillis(60_000).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+        assertEquals("contents", filesystem.readFileIfItExists(output).get());
+      }
+    }
+
+    @Test
+    public void cacheHitCancelsSpeculativeBuildWithoutCancellingItsDeps() throws Exception {
+      CountDownLatch depStarted = new CountDownLatch(1);
+      CountDownLatch finishDep = new CountDownLatch(1);
+      AtomicBoolean blockDep = new AtomicBoolean(false);
+      BuildRule dep =
+          new RuleWithSteps(
+              BuildTargetFactory.newInstance("//:dep"),
+              filesystem,
+              TestBuildRuleParams.create(),
+              ImmutableList.of(
+                  new AbstractExecutionStep("wait") {
+                    @Override
+                    public StepExecutionResult execute(ExecutionContext context)
+                        throws InterruptedException {
+                      if (blockDep.get()) {
+                        depStarted.countDown();
+                        finishDep.await(10, TimeUnit.SECONDS);
+                      }
+                      return StepExecutionResults.SUCCESS;
+                    }
+                  }),
+              /* output */ null);
+      Path ruleOutput = filesystem.getPath("rule_output");
+      BuildRule rule = createRuleWritingFile("//:rule", dep, ruleOutput);
+
+      // Run an initial build to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory().build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+        clearOutputsAndMetadata(rule, dep);
+      }
+
+      // Only the rule is found in the cache, once the speculative build waits for its dep.
+      SettableFuture<Void> releaseFetch = SettableFuture.create();
+      ArtifactCache slowCache =
+          new NoopArtifactCache() {
+            @Override
+            public ListenableFuture<CacheResult> fetchAsync(
+                BuildTarget target, RuleKey ruleKey, LazyPath output) {
+              if (!rule.getBuildTarget().equals(target)) {
+                return Futures.immediateFuture(CacheResult.miss());
+              }
+              return Futures.transformAsync(
+                  releaseFetch,
+                  ignored -> cache.fetchAsync(target, ruleKey, output),
+                  MoreExecutors.directExecutor());
+            }
+          };
+      BuildEngineBuildContext buildContext = this.buildContext.withArtifactCache(slowCache);
+      blockDep.set(true);
+      ListeningExecutorService service = listeningDecorator(Executors.newFixedThreadPool(4));
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setExecutorService(service)
+              .setSpeculativeBuildDelayMillis(0)
+              .build()) {
+        ListenableFuture<BuildResult> result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult();
+        assertTrue(depStarted.await(10, TimeUnit.SECONDS));
+        releaseFetch.set(null);
+
+        assertEquals(
+            BuildRuleSuccessType.FETCHED_FROM_CACHE,
+            getSuccess(result.get(10, TimeUnit.SECONDS)));
+        assertEquals("rule\n", filesystem.readFileIfItExists(ruleOutput).get());
+        // Other rules may still need the dep, so it keeps building.
+        finishDep.countDown();
+        assertEquals(
+            BuildRuleSuccessType.BUILT_LOCALLY,
+            getSuccess(cachingBuildEngine.getBuildRuleResult(dep.getBuildTarget())));
+      } finally {
+        finishDep.countDown();
+        service.shutdownNow();
+      }
+    }
+
+    @Test
+    public void cacheLookupFinishingAfterSpeculativeBuildClaimedOutputsIsCancelled()
+        throws Exception {
+      SettableFuture<CacheResult> pendingFetch = SettableFuture.create();
+      ArtifactCache cache =
+          new NoopArtifactCache() {
+            @Override
+            public ListenableFuture<CacheResult> fetchAsync(
+                BuildTarget target, RuleKey ruleKey, LazyPath output) {
+              return pendingFetch;
+            }
+          };
+      BuildEngineBuildContext buildContext = this.buildContext.withArtifactCache(cache);
+
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      Path output = filesystem.getPath("output/path");
+      BuildRule rule =
+          new WriteFile(target, filesystem, "contents", output, /* executable */ false);
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setSpeculativeBuildDelayMillis(0).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+        assertTrue(pendingFetch.isCancelled());
+        // The lookup is reported as skipped rather than as the error of a cancelled fetch.
+        assertEquals(
+            Optional.of(CacheResultType.SKIPPED),
+            result.getCacheResult().map(CacheResult::getType));
+        assertFalse(pendingFetch.set(CacheResult.hit("dir", ArtifactCacheMode.dir)));
+        assertEquals("contents", filesystem.readFileIfItExists(output).get());
+      }
+    }
+
+    @Test
+    public void speculativeBuildWaitsForCacheLookupAlreadyUnpackingOutputs() throws Exception {
+      String output = "output/file";
+      List<Step> buildSteps = new ArrayList<>();
+      buildSteps.add(
+          new AbstractExecutionStep("write_output") {
+            @Override
+            public StepExecutionResult execute(ExecutionContext context) throws IOException {
+              filesystem.mkdirs(filesystem.getPath(output).getParent());
+              filesystem.writeContentsToPath("contents", filesystem.getPath(output));
+              return StepExecutionResults.SUCCESS;
+            }
+          });
+      CountDownLatch unpackingStarted = new CountDownLatch(1);
+      CountDownLatch finishUnpacking = new CountDownLatch(1);
+      AtomicBoolean blockUnpacking = new AtomicBoolean(false);
+      BuildRule rule =
+          new BuildableAbstractCachingBuildRule(
+              BUILD_TARGET,
+              filesystem,
+              ImmutableSortedSet.of(),
+              output,
+              buildSteps,
+              ImmutableList.of()) {
+            @Override
+            public BuildOutputInitializer<Object> getBuildOutputInitializer() {
+              // Invalidated by the lookup once it owns the outputs and is about to unpack them.
+              if (blockUnpacking.getAndSet(false)) {
+                unpackingStarted.countDown();
+                try {
+                  finishUnpacking.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+              return super.getBuildOutputInitializer();
+            }
+          };
+      graphBuilder.addToIndex(rule);
+
+      // Run an initial build to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory().build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+
+        // Clear the file system.
+        filesystem.deleteRecursivelyIfExists(Paths.get(""));
+        buildInfoStore.deleteMetadata(rule.getBuildTarget());
+      }
+
+      // Building the rule locally would fail from now on.
+      buildSteps.set(0, new FailingStep());
+      blockUnpacking.set(true);
+      ListeningExecutorService service = listeningDecorator(Executors.newFixedThreadPool(2));
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setExecutorService(service)
+              .setSpeculativeBuildDelayMillis(500)
+              .build()) {
+        ListenableFuture<BuildResult> result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult();
+        assertTrue(unpackingStarted.await(10, TimeUnit.SECONDS));
+        // Let the speculative build start and find the lookup unpacking the outputs.
+        Thread.sleep(1000);
+        assertFalse(result.isDone());
+        finishUnpacking.countDown();
+
+        assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, getSuccess(result.get()));
+        assertEquals("contents", filesystem.readFileIfItExists(Paths.get(output)).get());
+      } finally {
+        service.shutdownNow();
+      }
+    }
+
+    @Test
+    public void lazyCacheMaterializationOnlyFetchesOutputsOfRequestedTargets() throws Exception {
+      Path depOutput = filesystem.getPath("dep/output");
+      BuildRule dep =
+          new WriteFile(
+              BuildTargetFactory.newInstance("//:dep"),
+              filesystem,
+              "dep",
+              depOutput,
+              /* executable */ false);
+      Path ruleOutput = filesystem.getPath("rule_output");
+      BuildRule rule = createRuleWritingFile("//:rule", dep, ruleOutput);
+
+      // Run an initial build to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setBuildMode(BuildType.DEEP).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      }
+      clearOutputsAndMetadata(dep, rule);
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setBuildMode(BuildType.DEEP)
+              .setLazyCacheMaterialization(true)
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+        assertEquals(
+            BuildRuleSuccessType.FETCHED_FROM_CACHE,
+            Objects.requireNonNull(cachingBuildEngine.getBuildRuleResult(dep.getBuildTarget()))
+                .getSuccess());
+        assertTrue(filesystem.exists(ruleOutput));
+        assertFalse(filesystem.exists(depOutput));
+      }
+    }
+
+    @Test
+    public void lazyCacheMaterializationFetchesOutputsOfDepsOfRulesBuiltLocally()
+        throws Exception {
+      Path depOutput = filesystem.getPath("dep/output");
+      BuildRule dep =
+          new WriteFile(
+              BuildTargetFactory.newInstance("//:dep"),
+              filesystem,
+              "dep",
+              depOutput,
+              /* executable */ false);
+      Path ruleOutput = filesystem.getPath("rule_output");
+      BuildRule rule = createRuleWritingFile("//:rule", dep, ruleOutput);
+
+      // Run an initial build of only the dep to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory().build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), dep)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      }
+      clearOutputsAndMetadata(dep);
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setBuildMode(BuildType.DEEP)
+              .setLazyCacheMaterialization(true)
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+        assertEquals(
+            BuildRuleSuccessType.FETCHED_FROM_CACHE,
+            Objects.requireNonNull(cachingBuildEngine.getBuildRuleResult(dep.getBuildTarget()))
+                .getSuccess());
+        assertTrue(filesystem.exists(ruleOutput));
+        assertEquals("dep", filesystem.readFileIfItExists(depOutput).get());
+      }
+    }
+
+    @Test
+    public void lazyCacheMaterializationFetchesOutputsOfDepsInOneBatch() throws Exception {
+      Path firstDepOutput = filesystem.getPath("dep1/output");
+      BuildRule firstDep =
+          new WriteFile(
+              BuildTargetFactory.newInstance("//:dep1"),
+              filesystem,
+              "dep1",
+              firstDepOutput,
+              /* executable */ false);
+      Path secondDepOutput = filesystem.getPath("dep2/output");
+      BuildRule secondDep =
+          new WriteFile(
+              BuildTargetFactory.newInstance("//:dep2"),
+              filesystem,
+              "dep2",
+              secondDepOutput,
+              /* executable */ false);
+      Path ruleOutput = filesystem.getPath("rule_output");
+      BuildRule rule =
+          new RuleWithSteps(
+              BuildTargetFactory.newInstance("//:rule"),
+              filesystem,
+              TestBuildRuleParams.create()
+                  .withDeclaredDeps(ImmutableSortedSet.of(firstDep, secondDep)),
+              ImmutableList.of(
+                  new WriteFileStep(filesystem, "rule", ruleOutput, /* executable */ false)),
+              ruleOutput);
+
+      List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+      InMemoryArtifactCache batchRecordingCache =
+          new InMemoryArtifactCache() {
+            @Override
+            public ImmutableList<ListenableFuture<CacheResult>> multiFetchAsync(
+                ImmutableList<ArtifactFetchRequest> requests) {
+              batchSizes.add(requests.size());
+              return super.multiFetchAsync(requests);
+            }
+          };
+      BuildEngineBuildContext buildContext =
+          this.buildContext.withArtifactCache(batchRecordingCache);
+
+      // Run an initial build of only the deps to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory().build()) {
+        for (BuildRule dep : ImmutableList.of(firstDep, secondDep)) {
+          BuildResult result =
+              cachingBuildEngine
+                  .build(buildContext, TestExecutionContext.newInstance(), dep)
+                  .getResult()
+                  .get();
+          assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+        }
+      }
+      clearOutputsAndMetadata(firstDep, secondDep);
+
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setBuildMode(BuildType.DEEP)
+              .setLazyCacheMaterialization(true)
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+        assertEquals("dep1", filesystem.readFileIfItExists(firstDepOutput).get());
+        assertEquals("dep2", filesystem.readFileIfItExists(secondDepOutput).get());
+      }
+      assertEquals(ImmutableList.of(2), ImmutableList.copyOf(batchSizes));
+    }
+
+    @Test
+    public void lazyCacheMaterializationBuildsRulesWhoseOutputsCannotBeFetched() throws Exception {
+      Path depOutput = filesystem.getPath("dep/output");
+      BuildRule dep =
+          new WriteFile(
+              BuildTargetFactory.newInstance("//:dep"),
+              filesystem,
+              "dep",
+              depOutput,
+              /* executable */ false);
+      Path ruleOutput = filesystem.getPath("rule_output");
+      BuildRule rule = createRuleWritingFile("//:rule", dep, ruleOutput);
+
+      // A cache that loses its artifacts once it was checked for them.
+      AtomicBoolean artifactsLost = new AtomicBoolean(false);
+      InMemoryArtifactCache lossyCache =
+          new InMemoryArtifactCache() {
+            @Override
+            public ListenableFuture<CacheResult> fetchAsync(
+                BuildTarget target, RuleKey ruleKey, LazyPath output) {
+              if (artifactsLost.get()) {
+                return Futures.immediateFuture(CacheResult.miss());
+              }
+              return super.fetchAsync(target, ruleKey, output);
+            }
+          };
+      BuildEngineBuildContext buildContext = this.buildContext.withArtifactCache(lossyCache);
+
+      // Run an initial build to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setBuildMode(BuildType.DEEP).build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      }
+      clearOutputsAndMetadata(dep, rule);
+
+      artifactsLost.set(true);
+      int firstEvent = listener.getEvents().size();
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory()
+              .setBuildMode(BuildType.DEEP)
+              .setLazyCacheMaterialization(true)
+              .build()) {
+        BuildResult result =
+            cachingBuildEngine
+                .build(buildContext, TestExecutionContext.newInstance(), rule)
+                .getResult()
+                .get();
+        assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+        assertEquals("rule\n", filesystem.readFileIfItExists(ruleOutput).get());
+        assertEquals("dep", filesystem.readFileIfItExists(depOutput).get());
+        OnDiskBuildInfo onDiskBuildInfo =
+            buildContext.createOnDiskBuildInfoFor(
+                rule.getBuildTarget(), filesystem, buildInfoStore);
+        assertThat(
+            onDiskBuildInfo.getRuleKey(BuildInfo.MetadataKey.RULE_KEY),
+            equalTo(Optional.of(defaultRuleKeyFactory.build(rule))));
+        // The rule is reported again once built.
+        assertEquals(
+            ImmutableList.of(
+                Optional.of(BuildRuleSuccessType.FETCHED_FROM_CACHE),
+                Optional.of(BuildRuleSuccessType.BUILT_LOCALLY)),
+            listener.getEvents().subList(firstEvent, listener.getEvents().size()).stream()
+                .filter(BuildRuleEvent.Finished.class::isInstance)
+                .map(BuildRuleEvent.Finished.class::cast)
+                .filter(event -> event.getBuildRule().equals(rule))
+                .map(BuildRuleEvent.Finished::getSuccessType)
+                .collect(Collectors.toList()));
+      }
+    }
+
+    private BuildRule createRuleWritingFile(String target, BuildRule dep, Path output) {
+      return new RuleWithSteps(
+          BuildTargetFactory.newInstance(target),
+          filesystem,
+          TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep)),
+          ImmutableList.of(new WriteFileStep(filesystem, "rule", output, /* executable */ false)),
+          output) {
+        @Override
+        public ImmutableList<Step> getBuildSteps(
+            BuildContext context, BuildableContext buildableContext) {
+          buildableContext.recordArtifact(output);
+          return super.getBuildSteps(context, buildableContext);
+        }
+      };
+    }
+
+    private void clearOutputsAndMetadata(BuildRule... rules) throws IOException {
+      filesystem.deleteRecursivelyIfExists(Paths.get(""));
+      for (BuildRule rule : rules) {
+        buildInfoStore.deleteMetadata(rule.getBuildTarget());
+      }
+    }
   }
 
   public static class InputBasedRuleKeyTests extends CommonFixture {
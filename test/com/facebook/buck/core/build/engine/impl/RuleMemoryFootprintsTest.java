@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.build.stats.BuildRuleHistory;
+import com.facebook.buck.core.build.stats.BuildRuleHistory.Metric;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import com.facebook.buck.util.ProcessResourceConsumption;
+import com.facebook.buck.util.perf.ProcessTracker.ProcessResourceConsumptionEvent;
+import com.google.common.collect.ImmutableMap;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RuleMemoryFootprintsTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private BuildRuleHistory history;
+
+  @Before
+  public void setUp() {
+    history =
+        BuildRuleHistory.load(tmp.getRoot().toPath().resolve(BuildRuleHistory.FILE_NAME), 10);
+  }
+
+  @Test
+  public void footprintsAreThePeaksOfTheProcessesOfEachRuleType() {
+    RuleMemoryFootprints footprints = new RuleMemoryFootprints(history);
+    footprints.processResourceConsumption(event("java_library", 300));
+    footprints.processResourceConsumption(event("java_library", 500));
+    footprints.processResourceConsumption(event("java_library", 400));
+    footprints.processResourceConsumption(event("genrule", 10));
+
+    assertEquals(500, footprints.getFootprintBytes("java_library"));
+    assertEquals(10, footprints.getFootprintBytes("genrule"));
+    assertEquals(0, footprints.getFootprintBytes("android_binary"));
+  }
+
+  @Test
+  public void processesNotRunByRulesAreIgnored() {
+    RuleMemoryFootprints footprints = new RuleMemoryFootprints(history);
+    footprints.processResourceConsumption(
+        new ProcessResourceConsumptionEvent(
+            "watchman", Optional.empty(), Optional.of(ImmutableMap.of()), consumption(1000)));
+
+    assertEquals(0, footprints.getFootprintBytes("java_library"));
+  }
+
+  @Test
+  public void footprintsStartFromTheHistoryOfPreviousBuilds() {
+    history.record(
+        "//lib:library", "java_library", RuleKeyType.DEFAULT, Metric.PEAK_MEMORY_BYTES, 2000);
+    RuleMemoryFootprints footprints = new RuleMemoryFootprints(history);
+    assertEquals(2000, footprints.getFootprintBytes("java_library"));
+
+    footprints.record("java_library", 1000);
+    assertEquals(2000, footprints.getFootprintBytes("java_library"));
+    footprints.record("java_library", 3000);
+    assertEquals(3000, footprints.getFootprintBytes("java_library"));
+  }
+
+  private static ProcessResourceConsumptionEvent event(String ruleType, long memResident) {
+    return new ProcessResourceConsumptionEvent(
+        "javac",
+        Optional.empty(),
+        Optional.of(ImmutableMap.of(CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY, ruleType)),
+        consumption(memResident));
+  }
+
+  private static Optional<ProcessResourceConsumption> consumption(long memResident) {
+    return Optional.of(
+        ProcessResourceConsumption.of(memResident, memResident, 0, 0, 0, 0, 0, 0, 0));
+  }
+}
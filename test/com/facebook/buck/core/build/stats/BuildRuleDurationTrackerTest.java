@@ -21,6 +21,7 @@ import static org.junit.Assert.assertEquals;
 import com.facebook.buck.core.rules.BuildRule;
 import com.facebook.buck.core.rules.impl.FakeBuildRule;
 import com.facebook.buck.util.timing.ClockDuration;
+import java.util.Optional;
 import org.junit.Test;
 
 public class BuildRuleDurationTrackerTest {
@@ -54,4 +55,17 @@ public class BuildRuleDurationTrackerTest {
     assertEquals(new ClockDuration(12, 12000, 42), tracker.doEnding(rule2, 35, 35000, 42));
     assertEquals(new ClockDuration(22, 22000, 1900), tracker.doEnding(rule1, 37, 37000, 400));
   }
+
+  @Test
+  public void durationOnlyCountsCompletedIntervals() {
+    BuildRuleDurationTracker tracker = new BuildRuleDurationTracker();
+    BuildRule rule = new FakeBuildRule("//fake:rule");
+
+    assertEquals(Optional.empty(), tracker.getDuration(rule.getBuildTarget()));
+    tracker.doBeginning(rule, 10, 10000);
+    tracker.doEnding(rule, 15, 15000, 900);
+    tracker.doBeginning(rule, 20, 20000);
+    assertEquals(
+        Optional.of(new ClockDuration(5, 5000, 900)), tracker.getDuration(rule.getBuildTarget()));
+  }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import static com.facebook.buck.rules.keys.RuleKeyType.DEFAULT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.core.build.stats.BuildRuleHistory.Metric;
+import com.facebook.buck.core.build.stats.BuildRuleHistory.RollingStats;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildRuleHistoryTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final BuildTarget LIBRARY = BuildTargetFactory.newInstance("//lib:library");
+  private static final BuildTarget OTHER_LIBRARY = BuildTargetFactory.newInstance("//lib:other");
+  private static final BuildTarget BINARY = BuildTargetFactory.newInstance("//app:binary");
+
+  private Path path;
+
+  @Before
+  public void setUp() {
+    path = tmp.getRoot().toPath().resolve("log").resolve(BuildRuleHistory.FILE_NAME);
+  }
+
+  @Test
+  public void statsAreRecordedForRulesAndRuleTypes() {
+    BuildRuleHistory history = BuildRuleHistory.load(path, 10);
+    history.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    history.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 200);
+    history.record(OTHER_LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 600);
+
+    RollingStats library = history.getStats(LIBRARY, DEFAULT, Metric.EXECUTION_MILLIS).get();
+    assertEquals(2, library.getCount());
+    assertEquals(150, library.getMean(), 0);
+    assertEquals(200, library.getLast());
+    assertEquals(200, library.getMax());
+
+    RollingStats javaLibrary =
+        history.getRuleTypeStats("java_library", Metric.EXECUTION_MILLIS).get();
+    assertEquals(3, javaLibrary.getCount());
+    assertEquals(300, javaLibrary.getMean(), 0);
+    assertEquals(600, javaLibrary.getMax());
+
+    assertFalse(history.getStats(LIBRARY, DEFAULT, Metric.CACHE_FETCH_MILLIS).isPresent());
+    assertEquals(
+        javaLibrary,
+        history
+            .getStatsOrRuleTypeStats(BINARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS)
+            .get());
+  }
+
+  @Test
+  public void meansOnlyAccountForRecentSamples() {
+    BuildRuleHistory history = BuildRuleHistory.load(path, 10);
+    for (int i = 0; i < 100; i++) {
+      history.record(LIBRARY, "java_library", DEFAULT, Metric.OUTPUT_SIZE_BYTES, 1000);
+    }
+    for (int i = 0; i < 100; i++) {
+      history.record(LIBRARY, "java_library", DEFAULT, Metric.OUTPUT_SIZE_BYTES, 2000);
+    }
+
+    RollingStats stats = history.getStats(LIBRARY, DEFAULT, Metric.OUTPUT_SIZE_BYTES).get();
+    assertEquals(200, stats.getCount());
+    assertEquals(2000, stats.getMean(), 1);
+  }
+
+  @Test
+  public void historyIsSavedBetweenBuilds() throws IOException {
+    BuildRuleHistory history = BuildRuleHistory.load(path, 10);
+    history.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    history.record(LIBRARY, "java_library", DEFAULT, Metric.PEAK_MEMORY_BYTES, 1 << 30);
+    history.save();
+
+    BuildRuleHistory loaded = BuildRuleHistory.load(path, 10);
+    assertEquals(100, loaded.getStats(LIBRARY, DEFAULT, Metric.EXECUTION_MILLIS).get().getLast());
+    assertEquals(
+        1 << 30, loaded.getStats(LIBRARY, DEFAULT, Metric.PEAK_MEMORY_BYTES).get().getLast());
+    assertEquals(
+        1, loaded.getRuleTypeStats("java_library", Metric.EXECUTION_MILLIS).get().getCount());
+  }
+
+  @Test
+  public void leastRecentlyUpdatedRulesAreDroppedWhenSaving() throws Exception {
+    BuildRuleHistory history = BuildRuleHistory.load(path, 2);
+    history.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    Thread.sleep(5);
+    history.record(OTHER_LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    Thread.sleep(5);
+    history.record(BINARY, "android_binary", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    history.save();
+
+    BuildRuleHistory loaded = BuildRuleHistory.load(path, 2);
+    assertFalse(loaded.getStats(LIBRARY, DEFAULT, Metric.EXECUTION_MILLIS).isPresent());
+    assertEquals(
+        100, loaded.getStats(OTHER_LIBRARY, DEFAULT, Metric.EXECUTION_MILLIS).get().getLast());
+    assertEquals(100, loaded.getStats(BINARY, DEFAULT, Metric.EXECUTION_MILLIS).get().getLast());
+    // Rule types are kept, as there are only so many of them.
+    assertEquals(
+        2, loaded.getRuleTypeStats("java_library", Metric.EXECUTION_MILLIS).get().getCount());
+  }
+
+  @Test
+  public void statsAreKeptPerRuleKeyType() {
+    BuildRuleHistory history = BuildRuleHistory.load(path, 10);
+    history.record(LIBRARY, "java_library", DEFAULT, Metric.CACHE_FETCH_MILLIS, 100);
+    history.record(LIBRARY, "java_library", RuleKeyType.INPUT, Metric.CACHE_FETCH_MILLIS, 300);
+
+    assertEquals(
+        100, history.getStats(LIBRARY, DEFAULT, Metric.CACHE_FETCH_MILLIS).get().getLast());
+    assertEquals(
+        300,
+        history.getStats(LIBRARY, RuleKeyType.INPUT, Metric.CACHE_FETCH_MILLIS).get().getLast());
+    assertFalse(
+        history.getStats(LIBRARY, RuleKeyType.MANIFEST, Metric.CACHE_FETCH_MILLIS).isPresent());
+  }
+
+  @Test
+  public void savingMergesWithHistorySavedByOtherBuilds() throws Exception {
+    BuildRuleHistory first = BuildRuleHistory.load(path, 10);
+    BuildRuleHistory second = BuildRuleHistory.load(path, 10);
+    first.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    Thread.sleep(5);
+    second.record(BINARY, "android_binary", DEFAULT, Metric.EXECUTION_MILLIS, 200);
+    first.save();
+    second.save();
+
+    BuildRuleHistory loaded = BuildRuleHistory.load(path, 10);
+    assertEquals(100, loaded.getStats(LIBRARY, DEFAULT, Metric.EXECUTION_MILLIS).get().getLast());
+    assertEquals(200, loaded.getStats(BINARY, DEFAULT, Metric.EXECUTION_MILLIS).get().getLast());
+    assertEquals(
+        1, loaded.getRuleTypeStats("java_library", Metric.EXECUTION_MILLIS).get().getCount());
+    try (Stream<Path> files = Files.list(path.getParent())) {
+      assertEquals(ImmutableList.of(path), files.collect(ImmutableList.toImmutableList()));
+    }
+  }
+
+  @Test
+  public void savingAddsUpTheRuleTypeSamplesOfAllBuilds() throws IOException {
+    BuildRuleHistory previous = BuildRuleHistory.load(path, 10);
+    previous.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    previous.save();
+
+    BuildRuleHistory first = BuildRuleHistory.load(path, 10);
+    BuildRuleHistory second = BuildRuleHistory.load(path, 10);
+    first.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 200);
+    second.record(OTHER_LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 600);
+    first.save();
+    second.save();
+    // Saving again only adds what was recorded since.
+    second.save();
+
+    RollingStats javaLibrary =
+        BuildRuleHistory.load(path, 10)
+            .getRuleTypeStats("java_library", Metric.EXECUTION_MILLIS)
+            .get();
+    assertEquals(3, javaLibrary.getCount());
+    assertEquals(300, javaLibrary.getMean(), 0);
+    assertEquals(600, javaLibrary.getLast());
+    assertEquals(600, javaLibrary.getMax());
+    assertEquals(
+        javaLibrary, second.getRuleTypeStats("java_library", Metric.EXECUTION_MILLIS).get());
+  }
+
+  @Test
+  public void statsOfTheMostRecentRuleKeyTypeAreUsedWhenItIsNotGiven() throws Exception {
+    BuildRuleHistory history = BuildRuleHistory.load(path, 10);
+    history.record(LIBRARY, "java_library", DEFAULT, Metric.EXECUTION_MILLIS, 100);
+    Thread.sleep(5);
+    history.record(LIBRARY, "java_library", RuleKeyType.DEP_FILE, Metric.EXECUTION_MILLIS, 300);
+
+    assertEquals(
+        300,
+        history
+            .getStatsOrRuleTypeStats(LIBRARY, "java_library", Metric.EXECUTION_MILLIS)
+            .get()
+            .getLast());
+    assertEquals(
+        200,
+        history
+            .getStatsOrRuleTypeStats(BINARY, "java_library", Metric.EXECUTION_MILLIS)
+            .get()
+            .getMean(),
+        0);
+  }
+
+  @Test
+  public void unreadableHistoryIsIgnored() throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.write(path, new byte[] {1, 2, 3});
+
+    BuildRuleHistory history = BuildRuleHistory.load(path, 10);
+    assertFalse(history.getStats(LIBRARY, DEFAULT, Metric.EXECUTION_MILLIS).isPresent());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.build.stats.BuildRuleHistory.Metric;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.rules.keys.RuleKeyType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CriticalPathEstimatesTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private BuildRuleHistory history;
+
+  // resources -> library -> dex -> binary, and a shorter chain library -> binary
+  private final FakeBuildRule resources = new FakeBuildRule("//lib:resources");
+  private final FakeBuildRule library = new FakeBuildRule("//lib:library", resources);
+  private final FakeBuildRule dex = new FakeBuildRule("//app:dex", library);
+  private final FakeBuildRule binary = new FakeBuildRule("//app:binary", dex, library);
+
+  @Before
+  public void setUp() {
+    history =
+        BuildRuleHistory.load(tmp.getRoot().toPath().resolve(BuildRuleHistory.FILE_NAME), 10);
+  }
+
+  @Test
+  public void estimatesAreTheLongestChainsStartingWithEachRule() {
+    record(binary, 5);
+    record(dex, 100);
+    record(library, 30);
+    record(resources, 10);
+    CriticalPathEstimates estimates = new CriticalPathEstimates(history);
+    estimates.addRequestedRule(binary, BuildRule::getBuildDeps);
+
+    assertEquals(5, estimates.getRemainingMillis(binary.getBuildTarget()));
+    assertEquals(5 + 100, estimates.getRemainingMillis(dex.getBuildTarget()));
+    assertEquals(5 + 100 + 30, estimates.getRemainingMillis(library.getBuildTarget()));
+    assertEquals(5 + 100 + 30 + 10, estimates.getRemainingMillis(resources.getBuildTarget()));
+  }
+
+  @Test
+  public void estimatesAreUnknownForRulesNotRequested() {
+    record(binary, 5);
+    CriticalPathEstimates estimates = new CriticalPathEstimates(history);
+
+    assertEquals(0, estimates.getRemainingMillis(binary.getBuildTarget()));
+  }
+
+  @Test
+  public void rulesNotBuiltBeforeAreEstimatedFromTheirRuleType() {
+    record(dex, 100);
+    record(resources, 20);
+    CriticalPathEstimates estimates = new CriticalPathEstimates(history);
+    estimates.addRequestedRule(binary, BuildRule::getBuildDeps);
+
+    assertEquals(60, estimates.getRemainingMillis(binary.getBuildTarget()));
+    assertEquals(60 + 100 + 60 + 20, estimates.getRemainingMillis(resources.getBuildTarget()));
+  }
+
+  @Test
+  public void rulesDependedOnByManyRequestedRulesKeepTheLongestEstimate() {
+    record(binary, 5);
+    record(dex, 100);
+    record(library, 30);
+    record(resources, 10);
+    CriticalPathEstimates estimates = new CriticalPathEstimates(history);
+    estimates.addRequestedRule(binary, BuildRule::getBuildDeps);
+    estimates.addRequestedRule(library, BuildRule::getBuildDeps);
+
+    assertEquals(5 + 100 + 30, estimates.getRemainingMillis(library.getBuildTarget()));
+    assertEquals(5 + 100 + 30 + 10, estimates.getRemainingMillis(resources.getBuildTarget()));
+  }
+
+  private void record(BuildRule rule, long millis) {
+    history.record(
+        rule.getBuildTarget(),
+        rule.getType(),
+        RuleKeyType.DEFAULT,
+        Metric.EXECUTION_MILLIS,
+        millis);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareExecutor;
+import com.facebook.buck.core.graph.transformation.executor.factory.DepsAwareExecutorFactory;
+import com.facebook.buck.core.graph.transformation.executor.factory.DepsAwareExecutorType;
+import com.facebook.buck.core.graph.transformation.impl.ChildrenAdder.LongNode;
+import com.facebook.buck.core.graph.transformation.model.ComputeResult;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.graph.GraphBuilder;
+import com.google.common.graph.MutableGraph;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how fast {@link DefaultGraphTransformationEngine} computes graphs made of layers of
+ * diamonds, where every node depends on every node of the next layer. Every node but the leaves is
+ * thus requested by {@code width} dependents at once. Each iteration uses a fresh engine, so that
+ * every node is computed rather than looked up.
+ */
+public class DefaultGraphTransformationEngineBenchmark {
+
+  @Param({"DEFAULT", "TOPOSORT_BASED", "FORK_JOIN_BASED"})
+  private DepsAwareExecutorType executorType = DepsAwareExecutorType.DEFAULT;
+
+  @Param({"20"})
+  private int layers = 20;
+
+  @Param({"50"})
+  private int width = 50;
+
+  @Param({"4"})
+  private int threads = 4;
+
+  private MutableGraph<LongNode> graph;
+  private ImmutableSet<LongNode> roots;
+  private DepsAwareExecutor<? super ComputeResult, ?> executor;
+
+  @Before
+  public void setUp() {
+    setUpBenchmark();
+  }
+
+  @After
+  public void tearDown() {
+    tearDownBenchmark();
+  }
+
+  @BeforeExperiment
+  private void setUpBenchmark() {
+    graph = GraphBuilder.directed().build();
+    for (int layer = 0; layer < layers - 1; layer++) {
+      for (int i = 0; i < width; i++) {
+        for (int j = 0; j < width; j++) {
+          graph.putEdge(node(layer, i), node(layer + 1, j));
+        }
+      }
+    }
+    ImmutableSet.Builder<LongNode> rootsBuilder = ImmutableSet.builder();
+    for (int i = 0; i < width; i++) {
+      rootsBuilder.add(node(0, i));
+    }
+    roots = rootsBuilder.build();
+    executor = DepsAwareExecutorFactory.create(executorType, threads);
+  }
+
+  @AfterExperiment
+  private void tearDownBenchmark() {
+    executor.close();
+  }
+
+  private LongNode node(int layer, int index) {
+    return LongNode.of((long) layer * width + index);
+  }
+
+  @Test
+  public void computeGraphCorrectness() {
+    for (DepsAwareExecutorType type :
+        ImmutableList.of(
+            DepsAwareExecutorType.DEFAULT,
+            DepsAwareExecutorType.TOPOSORT_BASED,
+            DepsAwareExecutorType.FORK_JOIN_BASED)) {
+      tearDownBenchmark();
+      executorType = type;
+      setUpBenchmark();
+      assertEquals(type.toString(), expectedSumOfRoots(), benchComputeGraph(1));
+    }
+  }
+
+  /** @return the sum {@link ChildrenAdder} computes for the roots, which overflows like it does. */
+  private long expectedSumOfRoots() {
+    long sumOfNextLayer = 0;
+    for (int layer = layers - 1; layer >= 0; layer--) {
+      long sumOfLayer = 0;
+      for (int i = 0; i < width; i++) {
+        sumOfLayer += node(layer, i).get() + sumOfNextLayer;
+      }
+      sumOfNextLayer = sumOfLayer;
+    }
+    return sumOfNextLayer;
+  }
+
+  @Benchmark
+  private long benchComputeGraph(int reps) {
+    long dummy = 0;
+    for (int rep = 0; rep < reps; rep++) {
+      try (DefaultGraphTransformationEngine engine =
+          new DefaultGraphTransformationEngine(
+              ImmutableList.of(new GraphComputationStage<>(new ChildrenAdder(graph))),
+              layers * width,
+              executor)) {
+        for (LongNode result : engine.computeAllUnchecked(roots).values()) {
+          dummy += result.get();
+        }
+      }
+    }
+    return dummy;
+  }
+}
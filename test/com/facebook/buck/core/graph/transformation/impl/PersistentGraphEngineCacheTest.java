@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.core.graph.transformation.impl.ChildrenAdder.LongNode;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.primitives.Longs;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentGraphEngineCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path dbPath;
+
+  @Before
+  public void setUp() {
+    dbPath = tmp.getRoot().resolve("cache/results.db");
+  }
+
+  @Test
+  public void resultsAreRestoredAfterReopening() throws IOException {
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      cache.put(LongNode.of(1), LongNode.of(10));
+      cache.put(LongNode.of(2), LongNode.of(20));
+    }
+
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      assertEquals(Optional.of(LongNode.of(10)), cache.get(LongNode.of(1)));
+      assertEquals(Optional.of(LongNode.of(20)), cache.get(LongNode.of(2)));
+      assertEquals(Optional.empty(), cache.get(LongNode.of(3)));
+      assertEquals(Optional.of(2L), cache.getStats().getHitCount());
+      assertEquals(Optional.of(1L), cache.getStats().getMissCount());
+    }
+  }
+
+  @Test
+  public void resultsAreDroppedForADifferentFingerprint() throws IOException {
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      cache.put(LongNode.of(1), LongNode.of(10));
+    }
+
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v2", 1024)) {
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+    }
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+    }
+  }
+
+  @Test
+  public void resultsComputedBeforeTheirInputsChangedAreNotStored() throws IOException {
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+      assertFalse(cache.get(LongNode.of(2)).isPresent());
+      cache.invalidate(LongNode.of(1));
+      cache.put(LongNode.of(1), LongNode.of(10));
+      cache.put(LongNode.of(2), LongNode.of(20));
+      assertEquals(Optional.of(1L), cache.getStats().getInvalidationCount());
+    }
+
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+      assertEquals(Optional.of(LongNode.of(20)), cache.get(LongNode.of(2)));
+    }
+  }
+
+  @Test
+  public void keysAreSerializedOncePerComputation() throws IOException {
+    AtomicInteger serialized = new AtomicInteger();
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache =
+        PersistentGraphEngineCache.open(
+            dbPath,
+            "v1",
+            new LongNodeSerializer() {
+              @Override
+              public byte[] serializeKey(LongNode key) {
+                serialized.incrementAndGet();
+                return super.serializeKey(key);
+              }
+            },
+            1024)) {
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+      cache.put(LongNode.of(1), LongNode.of(10));
+      assertEquals(1, serialized.get());
+
+      // The inputs may have changed since the result was stored.
+      assertEquals(Optional.of(LongNode.of(10)), cache.get(LongNode.of(1)));
+      assertEquals(2, serialized.get());
+    }
+  }
+
+  @Test
+  public void leastRecentlyUsedResultsAreEvicted() throws IOException {
+    // Each result takes 8 bytes, so two of them fit.
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 16)) {
+      cache.put(LongNode.of(1), LongNode.of(10));
+      cache.flush();
+      cache.put(LongNode.of(2), LongNode.of(20));
+      cache.flush();
+      cache.get(LongNode.of(1));
+      cache.flush();
+      cache.put(LongNode.of(3), LongNode.of(30));
+      cache.flush();
+      assertEquals(Optional.of(1L), cache.getStats().getEvictionCount());
+    }
+
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 16)) {
+      assertEquals(Optional.of(LongNode.of(10)), cache.get(LongNode.of(1)));
+      assertFalse(cache.get(LongNode.of(2)).isPresent());
+      assertEquals(Optional.of(LongNode.of(30)), cache.get(LongNode.of(3)));
+    }
+  }
+
+  @Test
+  public void unreadableResultsAreDropped() throws IOException {
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      cache.put(LongNode.of(1), LongNode.of(10));
+    }
+
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache =
+        PersistentGraphEngineCache.open(
+            dbPath,
+            "v1",
+            new LongNodeSerializer() {
+              @Override
+              public LongNode deserializeValue(byte[] bytes) throws IOException {
+                throw new IOException("unreadable");
+              }
+            },
+            1024)) {
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+    }
+    try (PersistentGraphEngineCache<LongNode, LongNode> cache = open("v1", 1024)) {
+      assertFalse(cache.get(LongNode.of(1)).isPresent());
+    }
+  }
+
+  private PersistentGraphEngineCache<LongNode, LongNode> open(String fingerprint, long maxSize)
+      throws IOException {
+    return PersistentGraphEngineCache.open(dbPath, fingerprint, new LongNodeSerializer(), maxSize);
+  }
+
+  private static class LongNodeSerializer
+      implements GraphEngineCacheSerializer<LongNode, LongNode> {
+    @Override
+    public byte[] serializeKey(LongNode key) {
+      return Longs.toByteArray(key.get());
+    }
+
+    @Override
+    public byte[] serializeValue(LongNode value) {
+      return Longs.toByteArray(value.get());
+    }
+
+    @Override
+    public LongNode deserializeValue(byte[] bytes) throws IOException {
+      if (bytes.length != Longs.BYTES) {
+        throw new IOException("Unexpected length " + bytes.length);
+      }
+      return LongNode.of(Longs.fromByteArray(bytes));
+    }
+  }
+}
@@ -174,7 +174,9 @@ public class ActionGraphProviderBuilder {
         eventBus,
         new ActionGraphFactory(
             new ParallelActionGraphFactory(
-                () -> executors.get(ExecutorPool.GRAPH_CPU), cellProvider),
+                () -> executors.get(ExecutorPool.GRAPH_CPU),
+                Runtime.getRuntime().availableProcessors(),
+                cellProvider),
             ruleAnalysisComputationMode,
             eventBus,
             incrementalActionGraphExperimentGroups,
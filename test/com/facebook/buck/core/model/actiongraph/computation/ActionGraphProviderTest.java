@@ -23,7 +23,9 @@ import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 
@@ -55,6 +57,7 @@ import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.stream.RichStream;
 import com.facebook.buck.util.timing.IncrementingFakeClock;
 import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
@@ -206,6 +209,67 @@ public class ActionGraphProviderTest {
     runAndCheckExpectedHitMissCount(cache, runList);
   }
 
+  @Test
+  public void incrementalGenerationKeepsUnrelatedCachedGraphs() {
+    ActionGraphProvider cache =
+        new ActionGraphProviderBuilder()
+            .withMaxEntries(2)
+            .withEventBus(eventBus)
+            .withIncrementalActionGraphMode(IncrementalActionGraphMode.ENABLED)
+            .build();
+    TargetGraph unrelatedTargetGraph = TargetGraphFactory.newInstance(createTargetNode("C"));
+
+    // List of (graph to run, (expected hit count, expected miss count))
+    ArrayList<Pair<TargetGraph, Pair<Integer, Integer>>> runList = new ArrayList<>();
+    runList.add(new Pair<>(targetGraph1, new Pair<>(0, 1)));
+    runList.add(new Pair<>(unrelatedTargetGraph, new Pair<>(0, 2)));
+    // Creating the second graph did not take any rules from the first one, so both are cached.
+    runList.add(new Pair<>(targetGraph1, new Pair<>(1, 2)));
+    runList.add(new Pair<>(unrelatedTargetGraph, new Pair<>(2, 2)));
+
+    runAndCheckExpectedHitMissCount(cache, runList);
+  }
+
+  @Test
+  public void incrementalGenerationReusesRulesOfClosestCachedGraph() {
+    ActionGraphCache actionGraphCache = new ActionGraphCache(3);
+    ActionGraphProvider cache =
+        new ActionGraphProviderBuilder()
+            .withActionGraphCache(actionGraphCache)
+            .withEventBus(eventBus)
+            .withIncrementalActionGraphMode(IncrementalActionGraphMode.ENABLED)
+            .build();
+    TargetNode<?> cacheableNodeB = createCacheableTargetNode("B");
+    TargetGraph originalTargetGraph =
+        TargetGraphFactory.newInstance(
+            createCacheableTargetNode("A", cacheableNodeB), cacheableNodeB);
+    TargetGraph unrelatedTargetGraph =
+        TargetGraphFactory.newInstance(createCacheableTargetNode("C"));
+    TargetGraph newTargetGraph = TargetGraphFactory.newInstance(cacheableNodeB);
+
+    BuildRule originalRuleB =
+        cache
+            .getActionGraph(TestTargetGraphCreationResultFactory.create(originalTargetGraph))
+            .getActionGraphBuilder()
+            .getRule(cacheableNodeB.getBuildTarget());
+    cache.getActionGraph(TestTargetGraphCreationResultFactory.create(unrelatedTargetGraph));
+    assertEquals(
+        ImmutableSet.of(1, 2),
+        actionGraphCache.getEntrySizes().stream()
+            .map(ActionGraphCache.EntrySize::getTargetNodeCount)
+            .collect(ImmutableSet.toImmutableSet()));
+
+    ActionGraphAndBuilder newResult =
+        cache.getActionGraph(TestTargetGraphCreationResultFactory.create(newTargetGraph));
+    assertSame(
+        originalRuleB, newResult.getActionGraphBuilder().getRule(cacheableNodeB.getBuildTarget()));
+
+    // The graph the rules were taken from is gone, the unrelated one is still cached.
+    assertNull(actionGraphCache.getIfPresent(originalTargetGraph));
+    assertNotNull(actionGraphCache.getIfPresent(unrelatedTargetGraph));
+    assertNotNull(actionGraphCache.getIfPresent(newTargetGraph));
+  }
+
   private void runAndCheckExpectedHitMissCount(
       ActionGraphProvider cache, List<Pair<TargetGraph, Pair<Integer, Integer>>> runList) {
     for (Pair<TargetGraph, Pair<Integer, Integer>> run : runList) {
@@ -385,6 +449,48 @@ public class ActionGraphProviderTest {
     }
   }
 
+  @Test
+  public void parallelCreationMatchesSerialCreation() {
+    TargetNode<?> nodeD = createTargetNode("D");
+    TargetNode<?> nodeC = createTargetNode("C", nodeD);
+    TargetNode<?> nodeE = createTargetNode("E", nodeD);
+    TargetNode<?> nodeF = createTargetNode("F", nodeC, nodeE);
+    TargetGraph targetGraph = TargetGraphFactory.newInstance(nodeF, nodeE, nodeC, nodeD);
+
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(MostExecutors.newMultiThreadExecutor("threads", 4));
+    try (Scope ignored = executor::shutdownNow) {
+      ActionGraphAndBuilder serial =
+          new ActionGraphProviderBuilder()
+              .withPoolSupplier(
+                  ImmutableMap.of(ExecutorPool.GRAPH_CPU, MoreExecutors.newDirectExecutorService()))
+              .withEventBus(eventBus)
+              .build()
+              .getFreshActionGraph(TestTargetGraphCreationResultFactory.create(targetGraph));
+      ActionGraphAndBuilder parallel =
+          new ActionGraphProviderBuilder()
+              .withPoolSupplier(ImmutableMap.of(ExecutorPool.GRAPH_CPU, executor))
+              .withEventBus(eventBus)
+              .build()
+              .getFreshActionGraph(TestTargetGraphCreationResultFactory.create(targetGraph));
+
+      assertEquals(
+          getBuildTargets(serial.getActionGraph().getNodes()),
+          getBuildTargets(parallel.getActionGraph().getNodes()));
+      assertEquals(
+          ImmutableList.of(
+              nodeC.getBuildTarget(),
+              nodeD.getBuildTarget(),
+              nodeE.getBuildTarget(),
+              nodeF.getBuildTarget()),
+          getBuildTargets(parallel.getActionGraph().getNodes()));
+    }
+  }
+
+  private ImmutableList<BuildTarget> getBuildTargets(Iterable<BuildRule> rules) {
+    return RichStream.from(rules).map(BuildRule::getBuildTarget).toImmutableList();
+  }
+
   private TargetNode<?> createCacheableTargetNode(String name, TargetNode<?>... deps) {
     return FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//foo:" + name))
         .setDeps(deps)
@@ -28,6 +28,7 @@ import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Optional;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -76,4 +77,14 @@ public class ResourcesConfigTest {
     }
     assertThat("IllegalArgumentException should be thrown", Matchers.equalTo(""));
   }
+
+  @Test
+  public void memoryBudgetLimitsTheMemoryResource() throws IOException {
+    Reader reader =
+        new StringReader(Joiner.on('\n').join("[resources]", "memory_budget_mb = 4096"));
+    BuckConfig config = BuckConfigTestUtils.createWithDefaultFilesystem(temporaryFolder, reader);
+    ResourcesConfig resourcesConfig = config.getView(ResourcesConfig.class);
+    assertEquals(Optional.of(4096L * 1024 * 1024), resourcesConfig.getMemoryBudgetBytes());
+    assertEquals(40, resourcesConfig.getMaximumResourceAmounts().getMemory());
+  }
 }
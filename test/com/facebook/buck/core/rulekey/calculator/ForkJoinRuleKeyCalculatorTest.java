@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.rulekey.calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.core.build.action.BuildEngineAction;
+import com.facebook.buck.core.build.action.resolver.BuildEngineActionToBuildRuleResolver;
+import com.facebook.buck.core.build.engine.impl.DefaultRuleDepsCache;
+import com.facebook.buck.core.exceptions.BuckUncheckedExecutionException;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.rules.keys.RuleKeyFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import javax.annotation.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ForkJoinRuleKeyCalculatorTest {
+
+  private ForkJoinPool pool;
+  private BuckEventBus eventBus;
+  private BuildRule leaf;
+  private BuildRule left;
+  private BuildRule right;
+  private BuildRule top;
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+    eventBus = BuckEventBusForTests.newInstance();
+    leaf = new FakeBuildRule("//:leaf");
+    left = new FakeBuildRule("//:left", leaf);
+    right = new FakeBuildRule("//:right", leaf);
+    top = new FakeBuildRule("//:top", left, right);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void calculatesEachKeyOnceAfterItsDeps() {
+    RecordingFactory factory = new RecordingFactory();
+    ForkJoinRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    ImmutableMap<BuildTarget, String> keys =
+        calculator.calculate(eventBus, ImmutableList.of(top, left));
+
+    assertEquals(
+        ImmutableMap.of(top.getBuildTarget(), "//:top", left.getBuildTarget(), "//:left"), keys);
+    assertEquals(4, factory.builds.size());
+    for (int count : factory.builds.values()) {
+      assertEquals(1, count);
+    }
+  }
+
+  @Test
+  public void onlyReusesKeysOfEarlierCallsThroughTheFactoryCache() {
+    RecordingFactory factory = new RecordingFactory();
+    ForkJoinRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    calculator.calculate(eventBus, ImmutableList.of(top));
+    assertEquals(4, calculator.getMetrics().getKeysComputed());
+
+    // The factory's cache only knows about //:left, e.g. because its deps were invalidated.
+    factory.cached.put(left, "cached-left");
+    ImmutableMap<BuildTarget, String> keys =
+        calculator.calculate(eventBus, ImmutableList.of(top, left));
+
+    assertEquals("cached-left", keys.get(left.getBuildTarget()));
+    assertEquals(7, calculator.getMetrics().getKeysComputed());
+    assertEquals(1, calculator.getMetrics().getCacheHits());
+  }
+
+  @Test
+  public void doesNotTraverseBelowCachedRules() {
+    RecordingFactory factory = new RecordingFactory();
+    factory.cached.put(left, "cached-left");
+    ForkJoinRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    ImmutableMap<BuildTarget, String> keys =
+        calculator.calculate(eventBus, ImmutableList.of(top, left));
+
+    assertEquals("cached-left", keys.get(left.getBuildTarget()));
+    assertEquals(3, factory.builds.size());
+
+    ForkJoinRuleKeyCalculator.Metrics metrics = calculator.getMetrics();
+    assertEquals(3, metrics.getKeysComputed());
+    assertEquals(1, metrics.getCacheHits());
+    assertEquals(0.25, metrics.getCacheHitRate(), 0.0001);
+    assertTrue(metrics.getKeysPerSecond() > 0);
+  }
+
+  @Test
+  public void leavesOutRulesWithoutKeys() {
+    RecordingFactory factory = new RecordingFactory();
+    factory.withoutKey = right;
+    ForkJoinRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    ImmutableMap<BuildTarget, String> keys =
+        calculator.calculate(eventBus, ImmutableList.of(top, right));
+
+    assertEquals(ImmutableMap.of(top.getBuildTarget(), "//:top"), keys);
+  }
+
+  @Test
+  public void propagatesFailures() {
+    RecordingFactory factory = new RecordingFactory();
+    factory.failing = left;
+    ForkJoinRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    try {
+      calculator.calculate(eventBus, ImmutableList.of(top));
+      fail("Expected the failure of //:left to propagate.");
+    } catch (BuckUncheckedExecutionException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("//:left"));
+    }
+  }
+
+  @Test
+  public void handlesLongChains() {
+    List<BuildRule> chain = new ArrayList<>();
+    BuildRule previous = new FakeBuildRule("//:r0");
+    chain.add(previous);
+    for (int i = 1; i < 10000; i++) {
+      previous = new FakeBuildRule("//:r" + i, previous);
+      chain.add(previous);
+    }
+    RecordingFactory factory = new RecordingFactory();
+    ForkJoinRuleKeyCalculator<String> calculator = newCalculator(factory);
+
+    calculator.calculate(eventBus, ImmutableList.of(previous));
+
+    assertEquals(chain.size(), factory.builds.size());
+  }
+
+  private ForkJoinRuleKeyCalculator<String> newCalculator(RuleKeyFactory<String> factory) {
+    return new ForkJoinRuleKeyCalculator<>(
+        pool,
+        factory,
+        new DefaultRuleDepsCache(
+            new TestActionGraphBuilder(), new BuildEngineActionToBuildRuleResolver()),
+        (buckEventBus, rule) -> () -> {});
+  }
+
+  /** Names rules by their target and checks that the keys of their deps are already known. */
+  private static class RecordingFactory implements RuleKeyFactory<String> {
+    private final Map<BuildEngineAction, Integer> builds = new ConcurrentHashMap<>();
+    private final Map<BuildEngineAction, String> cached = new ConcurrentHashMap<>();
+    @Nullable private BuildRule withoutKey;
+    @Nullable private BuildRule failing;
+
+    @Override
+    @Nullable
+    public String build(BuildEngineAction action) {
+      BuildRule rule = (BuildRule) action;
+      builds.merge(action, 1, Integer::sum);
+      if (rule == failing) {
+        throw new IllegalStateException("failed");
+      }
+      for (BuildRule dep : rule.getBuildDeps()) {
+        assertTrue(dep.toString(), builds.containsKey(dep) || cached.containsKey(dep));
+      }
+      return rule == withoutKey ? null : rule.getBuildTarget().getFullyQualifiedName();
+    }
+
+    @Nullable
+    @Override
+    public String getFromCache(BuildEngineAction action) {
+      return cached.get(action);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import org.junit.Test;
+
+public class CompactDirectedAcyclicGraphTest {
+
+  private static final int NODE_COUNT = 300;
+
+  /** Builds a random DAG whose nodes and edges are added in a random order. */
+  private static DirectedAcyclicGraph<String> makeRandomGraph(long seed) {
+    Random random = new Random(seed);
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < NODE_COUNT; i++) {
+      order.add(i);
+    }
+    Collections.shuffle(order, random);
+
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    for (int i : order) {
+      graph.addNode("node" + i);
+    }
+    for (int source : order) {
+      for (int j = 0; j < 4; j++) {
+        int sink = source + 1 + random.nextInt(20);
+        if (sink < NODE_COUNT) {
+          graph.addEdge("node" + source, "node" + sink);
+        }
+      }
+    }
+    return new DirectedAcyclicGraph<>(graph);
+  }
+
+  @Test
+  public void copyHasSameNodesAndEdges() {
+    DirectedAcyclicGraph<String> graph = makeRandomGraph(1);
+    CompactDirectedAcyclicGraph<String> compactGraph = CompactDirectedAcyclicGraph.copyOf(graph);
+
+    assertEquals(ImmutableList.copyOf(graph.getNodes()), compactGraph.getNodes());
+    assertEquals(
+        ImmutableList.copyOf(graph.getNodesWithNoIncomingEdges()),
+        compactGraph.getNodesWithNoIncomingEdges());
+    assertEquals(
+        ImmutableList.copyOf(graph.getNodesWithNoOutgoingEdges()),
+        compactGraph.getNodesWithNoOutgoingEdges());
+    for (String node : graph.getNodes()) {
+      int id = compactGraph.getId(node);
+      assertEquals(node, compactGraph.getNode(id));
+      assertEquals(
+          ImmutableList.copyOf(graph.getOutgoingNodesFor(node)),
+          ImmutableList.copyOf(compactGraph.getOutgoingNodesFor(node)));
+      assertEquals(
+          ImmutableList.copyOf(graph.getIncomingNodesFor(node)),
+          ImmutableList.copyOf(compactGraph.getIncomingNodesFor(node)));
+      assertEquals(graph.getOutgoingNodesFor(node).size(), compactGraph.getOutDegree(id));
+      assertEquals(graph.getIncomingNodesFor(node).size(), compactGraph.getInDegree(id));
+    }
+    assertEquals(-1, compactGraph.getId("missing"));
+  }
+
+  @Test
+  public void copyOfEmptyGraph() {
+    CompactDirectedAcyclicGraph<String> compactGraph =
+        CompactDirectedAcyclicGraph.copyOf(new MutableDirectedGraph<>());
+    assertEquals(0, compactGraph.getNodeCount());
+    assertEquals(-1, compactGraph.getId("missing"));
+    assertEquals(ImmutableList.of(), TopologicalSort.sort(compactGraph));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cyclesAreRejected() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "C");
+    graph.addEdge("C", "A");
+    CompactDirectedAcyclicGraph.copyOf(graph);
+  }
+
+  @Test
+  public void topologicalSortMatchesDirectedAcyclicGraph() {
+    for (long seed = 0; seed < 5; seed++) {
+      DirectedAcyclicGraph<String> graph = makeRandomGraph(seed);
+      assertEquals(
+          TopologicalSort.sort(graph),
+          TopologicalSort.sort(CompactDirectedAcyclicGraph.copyOf(graph)));
+    }
+  }
+
+  @Test
+  public void bottomUpTraversalMatchesDirectedAcyclicGraph() {
+    Predicate<String> shouldExploreChildren = node -> !node.endsWith("7");
+    for (long seed = 0; seed < 5; seed++) {
+      DirectedAcyclicGraph<String> graph = makeRandomGraph(seed);
+      assertEquals(
+          bottomUp(graph, shouldExploreChildren),
+          bottomUp(CompactDirectedAcyclicGraph.copyOf(graph), shouldExploreChildren));
+    }
+  }
+
+  @Test
+  public void depthFirstPostOrderTraversalMatchesTraversable() throws CycleException {
+    DirectedAcyclicGraph<String> graph = makeRandomGraph(7);
+    CompactDirectedAcyclicGraph<String> compactGraph = CompactDirectedAcyclicGraph.copyOf(graph);
+    ImmutableList<String> initialNodes = ImmutableList.of("node150", "node10", "node150", "node3");
+    Predicate<String> shouldExploreChildren = node -> !node.equals("node20");
+
+    assertEquals(
+        ImmutableList.copyOf(
+            new AcyclicDepthFirstPostOrderTraversal<String>(
+                    node -> graph.getOutgoingNodesFor(node).iterator())
+                .traverse(initialNodes, shouldExploreChildren)),
+        AcyclicDepthFirstPostOrderTraversal.traverse(
+            compactGraph, initialNodes, shouldExploreChildren));
+  }
+
+  @Test
+  public void breadthFirstTraversalMatchesVisitor() {
+    DirectedAcyclicGraph<String> graph = makeRandomGraph(3);
+    CompactDirectedAcyclicGraph<String> compactGraph = CompactDirectedAcyclicGraph.copyOf(graph);
+    ImmutableList<String> initialNodes = ImmutableList.of("node42", "node7", "node42");
+
+    List<String> expected = new ArrayList<>();
+    AbstractBreadthFirstTraversal.<String>traverse(
+        initialNodes,
+        node -> {
+          expected.add(node);
+          return graph.getOutgoingNodesFor(node);
+        });
+
+    List<String> actual = new ArrayList<>();
+    AbstractBreadthFirstTraversal.traverse(compactGraph, initialNodes, actual::add);
+
+    assertEquals(expected, actual);
+    assertEquals(actual.size(), ImmutableSet.copyOf(actual).size());
+  }
+
+  private static ImmutableList<String> bottomUp(
+      TraversableGraph<String> graph, Predicate<String> shouldExploreChildren) {
+    ImmutableList.Builder<String> visited = ImmutableList.builder();
+    new AbstractBottomUpTraversal<String, RuntimeException>(graph) {
+      @Override
+      public void visit(String node) {
+        visited.add(node);
+      }
+    }.traverse(shouldExploreChildren);
+    return visited.build();
+  }
+}
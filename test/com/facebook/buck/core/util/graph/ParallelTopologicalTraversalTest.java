@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelTopologicalTraversalTest {
+
+  private static final int NODE_COUNT = 500;
+
+  private ForkJoinPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  private static DirectedAcyclicGraph<Integer> makeRandomGraph() {
+    Random random = new Random(42);
+    MutableDirectedGraph<Integer> graph = new MutableDirectedGraph<>();
+    for (int node = 0; node < NODE_COUNT; node++) {
+      graph.addNode(node);
+      for (int i = 0; i < 3 && node > 0; i++) {
+        graph.addEdge(node, random.nextInt(node));
+      }
+    }
+    return new DirectedAcyclicGraph<>(graph);
+  }
+
+  @Test
+  public void bottomUpPropagatesPayloadsFromChildren() throws CycleException {
+    DirectedAcyclicGraph<Integer> graph = makeRandomGraph();
+
+    // Number of paths from each node to the sinks of the graph.
+    ImmutableMap<Integer, Long> paths =
+        new ParallelTopologicalTraversal<Integer, Long>(
+                pool,
+                ParallelTopologicalTraversal.Order.BOTTOM_UP,
+                (node, children) ->
+                    children.isEmpty() ? 1L : children.stream().mapToLong(p -> p).sum())
+            .traverse(graph);
+
+    Map<Integer, Long> expected = new HashMap<>();
+    for (Integer node : TopologicalSort.sort(graph)) {
+      long sum = 0;
+      for (Integer child : graph.getOutgoingNodesFor(node)) {
+        sum += expected.get(child);
+      }
+      expected.put(node, graph.getOutgoingNodesFor(node).isEmpty() ? 1L : sum);
+    }
+    assertEquals(expected, paths);
+    assertPostOrder(graph, paths.keySet().asList());
+  }
+
+  @Test
+  public void topDownPropagatesPayloadsFromParents() throws CycleException {
+    DirectedAcyclicGraph<Integer> graph = makeRandomGraph();
+    ImmutableList<Integer> roots = ImmutableList.of(NODE_COUNT - 1, NODE_COUNT / 2);
+
+    // Longest distance from the roots.
+    Set<Integer> visited = ConcurrentHashMap.newKeySet();
+    ImmutableMap<Integer, Integer> depths =
+        new ParallelTopologicalTraversal<Integer, Integer>(
+                pool,
+                ParallelTopologicalTraversal.Order.TOP_DOWN,
+                (node, parents) -> {
+                  assertTrue(visited.add(node));
+                  return parents.stream().mapToInt(d -> d + 1).max().orElse(0);
+                })
+            .traverse(roots, node -> graph.getOutgoingNodesFor(node).iterator());
+
+    assertEquals(visited, depths.keySet());
+    for (Integer node : depths.keySet()) {
+      for (Integer child : graph.getOutgoingNodesFor(node)) {
+        assertTrue(depths.get(child) > depths.get(node));
+      }
+    }
+    assertEquals(0, (int) depths.get(NODE_COUNT - 1));
+  }
+
+  @Test
+  public void cyclesAreDetectedBeforeVisiting() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "C");
+    graph.addEdge("C", "B");
+    try {
+      new ParallelTopologicalTraversal<String, String>(
+              pool,
+              ParallelTopologicalTraversal.Order.BOTTOM_UP,
+              (node, inputs) -> {
+                throw new AssertionError("Visited " + node);
+              })
+          .traverse(graph);
+      fail("Expected a CycleException");
+    } catch (CycleException e) {
+      assertEquals(ImmutableSet.of("B", "C"), ImmutableSet.copyOf(e.getCycle()));
+    }
+  }
+
+  @Test
+  public void failuresAreRethrown() throws CycleException {
+    DirectedAcyclicGraph<Integer> graph = makeRandomGraph();
+    try {
+      new ParallelTopologicalTraversal<Integer, Integer>(
+              pool,
+              ParallelTopologicalTraversal.Order.BOTTOM_UP,
+              (node, inputs) -> {
+                if (node == NODE_COUNT / 2) {
+                  throw new IllegalStateException("Failed on " + node);
+                }
+                return node;
+              })
+          .traverse(graph);
+      fail("Expected the visitor's exception");
+    } catch (IllegalStateException e) {
+      assertEquals("Failed on " + NODE_COUNT / 2, e.getMessage());
+    }
+  }
+
+  @Test
+  public void cancelStopsTheTraversal() throws CycleException {
+    DirectedAcyclicGraph<Integer> graph = makeRandomGraph();
+    AtomicReference<ParallelTopologicalTraversal<Integer, Integer>> traversal =
+        new AtomicReference<>();
+    Set<Integer> visited = ConcurrentHashMap.newKeySet();
+    traversal.set(
+        new ParallelTopologicalTraversal<>(
+            pool,
+            ParallelTopologicalTraversal.Order.BOTTOM_UP,
+            (node, inputs) -> {
+              visited.add(node);
+              if (node == 10) {
+                traversal.get().cancel();
+              }
+              return node;
+            }));
+
+    try {
+      traversal.get().traverse(graph);
+      fail("Expected the traversal to be cancelled");
+    } catch (CancellationException e) {
+      // Expected.
+    }
+    // Nothing which depends on the node which cancelled the traversal can have been visited.
+    assertTrue(visited.contains(10));
+    for (Integer parent : graph.getIncomingNodesFor(10)) {
+      assertFalse(visited.contains(parent));
+    }
+
+    try {
+      traversal.get().traverse(graph);
+      fail("Expected the traversal to stay cancelled");
+    } catch (CancellationException e) {
+      // Expected.
+    }
+  }
+
+  private static void assertPostOrder(TraversableGraph<Integer> graph, List<Integer> order) {
+    assertEquals(NODE_COUNT, order.size());
+    for (int i = 0; i < order.size(); i++) {
+      for (Integer child : graph.getOutgoingNodesFor(order.get(i))) {
+        assertTrue(order.indexOf(child) < i);
+      }
+    }
+  }
+}
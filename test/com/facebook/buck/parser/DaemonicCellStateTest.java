@@ -262,4 +262,45 @@ public class DaemonicCellStateTest {
     lookupManifest = state.lookupPackageFileManifest(packageFile);
     assertFalse(lookupManifest.isPresent());
   }
+
+  @Test
+  public void weightOfCachedContentIsReleasedOnInvalidation() throws BuildTargetException {
+    DaemonicCellState weighedState = new DaemonicCellState(cells.getRootCell(), 1, true);
+    Cache<UnconfiguredBuildTarget, UnconfiguredTargetNode> cache =
+        weighedState.getCache(DaemonicCellState.RAW_TARGET_NODE_CACHE_TYPE);
+    BuildTarget target = BuildTargetFactory.newInstance("//path/to:target");
+
+    populateDummyRawNode(weighedState, target);
+    long manifestWeight = weighedState.getEstimatedWeight();
+    assertTrue(manifestWeight > 0);
+
+    cache.putComputedNodeIfNotPresent(target.getUnconfiguredBuildTarget(), rawTargetNode("n1"));
+    assertTrue(weighedState.getEstimatedWeight() > manifestWeight);
+
+    AbsPath buildFile = AbsPath.of(filesystem.resolve("path/to/BUCK"));
+    assertEquals(ImmutableSet.of(buildFile), weighedState.getBuildFileLastUses().keySet());
+
+    weighedState.invalidatePath(buildFile);
+    assertEquals(0, weighedState.getEstimatedWeight());
+    assertTrue(weighedState.getBuildFileLastUses().isEmpty());
+  }
+
+  @Test
+  public void lookingUpCachedNodesRecordsTheUseOfTheirBuildFile() throws BuildTargetException {
+    DaemonicCellState weighedState = new DaemonicCellState(cells.getRootCell(), 1, true);
+    Cache<UnconfiguredBuildTarget, UnconfiguredTargetNode> cache =
+        weighedState.getCache(DaemonicCellState.RAW_TARGET_NODE_CACHE_TYPE);
+    BuildTarget first = BuildTargetFactory.newInstance("//first:target");
+    BuildTarget second = BuildTargetFactory.newInstance("//second:target");
+
+    populateDummyRawNode(weighedState, first);
+    cache.putComputedNodeIfNotPresent(first.getUnconfiguredBuildTarget(), rawTargetNode("n1"));
+    populateDummyRawNode(weighedState, second);
+    cache.lookupComputedNode(first.getUnconfiguredBuildTarget());
+
+    ImmutableMap<AbsPath, Long> lastUses = weighedState.getBuildFileLastUses();
+    assertTrue(
+        lastUses.get(AbsPath.of(filesystem.resolve("first/BUCK")))
+            > lastUses.get(AbsPath.of(filesystem.resolve("second/BUCK"))));
+  }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.api.BuildFileManifestFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DaemonicParserStateSnapshotTest {
+
+  private static final String FINGERPRINT = "version:config";
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private AbsPath buildFile;
+  private Path snapshotPath;
+  private BuildFileManifest manifest;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    filesystem.mkdirs(filesystem.getPath("foo/src"));
+    filesystem.writeContentsToPath("java_library(name = 'foo')", filesystem.getPath("foo/BUCK"));
+    buildFile = AbsPath.of(filesystem.resolve("foo/BUCK"));
+    // Files modified just before they are parsed are not saved.
+    setModifiedLongAgo(filesystem.getPath("foo/BUCK"), filesystem.getPath("foo/src"));
+    setModifiedLongAgo(filesystem.getPath("foo"));
+    snapshotPath = DaemonicParserStateSnapshot.getSnapshotPath(filesystem);
+    manifest =
+        BuildFileManifestFactory.create(
+            ImmutableMap.of("foo", ImmutableMap.of("name", "foo", "buck.base_path", "foo")));
+  }
+
+  private void setModifiedLongAgo(Path... paths) throws IOException {
+    for (Path path : paths) {
+      Files.setLastModifiedTime(
+          filesystem.resolve(path), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+    }
+  }
+
+  private void saveSnapshot() throws IOException {
+    DaemonicParserStateSnapshot.save(
+        snapshotPath,
+        FINGERPRINT,
+        ImmutableMap.of(
+            buildFile,
+            new DaemonicParserStateSnapshot.Entry(
+                manifest,
+                DaemonicParserStateSnapshot.stamp(
+                    filesystem, "BUCK", buildFile, ImmutableSet.of()))));
+  }
+
+  @Test
+  public void unchangedManifestIsRestored() throws IOException {
+    saveSnapshot();
+
+    ImmutableMap<AbsPath, DaemonicParserStateSnapshot.Entry> restored =
+        DaemonicParserStateSnapshot.load(snapshotPath, FINGERPRINT);
+
+    assertEquals(ImmutableSet.of(buildFile), restored.keySet());
+    assertEquals(manifest.getTargets(), restored.get(buildFile).getManifest().getTargets());
+  }
+
+  @Test
+  public void snapshotOfDifferentVersionIsIgnored() throws IOException {
+    saveSnapshot();
+
+    assertTrue(DaemonicParserStateSnapshot.load(snapshotPath, "other:config").isEmpty());
+  }
+
+  @Test
+  public void modifiedBuildFileIsNotRestored() throws IOException {
+    saveSnapshot();
+    filesystem.writeContentsToPath("java_library(name = 'bar')", filesystem.getPath("foo/BUCK"));
+    Files.setLastModifiedTime(buildFile.getPath(), FileTime.fromMillis(12345000L));
+
+    assertTrue(DaemonicParserStateSnapshot.load(snapshotPath, FINGERPRINT).isEmpty());
+  }
+
+  @Test
+  public void fileAddedToPackageInvalidatesManifest() throws IOException {
+    saveSnapshot();
+    Path srcDir = filesystem.resolve("foo/src");
+    Files.write(srcDir.resolve("Foo.java"), "class Foo {}".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(srcDir, FileTime.fromMillis(12345000L));
+
+    assertTrue(DaemonicParserStateSnapshot.load(snapshotPath, FINGERPRINT).isEmpty());
+  }
+
+  @Test
+  public void nestedPackageDoesNotInvalidateManifest() throws IOException {
+    filesystem.mkdirs(filesystem.getPath("foo/bar"));
+    filesystem.writeContentsToPath(
+        "java_library(name = 'bar')", filesystem.getPath("foo/bar/BUCK"));
+    saveSnapshot();
+    Path nestedDir = filesystem.resolve("foo/bar");
+    Files.write(nestedDir.resolve("Bar.java"), "class Bar {}".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(nestedDir, FileTime.fromMillis(12345000L));
+
+    assertFalse(DaemonicParserStateSnapshot.load(snapshotPath, FINGERPRINT).isEmpty());
+  }
+
+  @Test
+  public void daemonicParserStateRestoresSavedManifests() throws Exception {
+    Cell cell = new TestCellBuilder().setFilesystem(filesystem).build().getRootCell();
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+
+    DaemonicParserState state = new DaemonicParserState(1, Optional.of(FINGERPRINT));
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, manifest, false, eventBus);
+    state.saveSnapshots();
+
+    DaemonicParserState restarted = new DaemonicParserState(1, Optional.of(FINGERPRINT));
+    Optional<BuildFileManifest> restored =
+        restarted.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus);
+    assertTrue(restored.isPresent());
+    assertEquals(manifest.getTargets(), restored.get().getTargets());
+
+    DaemonicParserState disabled = new DaemonicParserState(1);
+    assertFalse(
+        disabled.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+  }
+
+  @Test
+  public void manifestsParsedByEachCommandAreRestoredAfterRestart() throws Exception {
+    Cell cell = new TestCellBuilder().setFilesystem(filesystem).build().getRootCell();
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+    filesystem.mkdirs(filesystem.getPath("bar"));
+    filesystem.writeContentsToPath("java_library(name = 'bar')", filesystem.getPath("bar/BUCK"));
+    setModifiedLongAgo(filesystem.getPath("bar/BUCK"), filesystem.getPath("bar"));
+    AbsPath barBuildFile = AbsPath.of(filesystem.resolve("bar/BUCK"));
+    BuildFileManifest barManifest =
+        BuildFileManifestFactory.create(
+            ImmutableMap.of("bar", ImmutableMap.of("name", "bar", "buck.base_path", "bar")));
+
+    DaemonicParserState state = new DaemonicParserState(1, Optional.of(FINGERPRINT));
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, manifest, false, eventBus);
+    // Saved after the first command.
+    state.saveSnapshots();
+    state
+        .getRawNodeCache()
+        .putComputedNodeIfNotPresent(cell, barBuildFile, barManifest, false, eventBus);
+    // Saved after the second command, the daemon is then killed without being closed.
+    state.saveSnapshots();
+
+    DaemonicParserState restarted = new DaemonicParserState(1, Optional.of(FINGERPRINT));
+    assertTrue(
+        restarted.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+    assertTrue(
+        restarted.getRawNodeCache().lookupComputedNode(cell, barBuildFile, eventBus).isPresent());
+  }
+
+  @Test
+  public void snapshotIsOnlySavedWhenManifestsWereParsed() throws Exception {
+    Cell cell = new TestCellBuilder().setFilesystem(filesystem).build().getRootCell();
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+
+    DaemonicParserState state = new DaemonicParserState(1, Optional.of(FINGERPRINT));
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, manifest, false, eventBus);
+    state.saveSnapshots();
+    assertTrue(Files.exists(snapshotPath));
+
+    Files.delete(snapshotPath);
+    state.saveSnapshots();
+    assertFalse(Files.exists(snapshotPath));
+  }
+
+  @Test
+  public void manifestOfBuildFileModifiedWhenParsedIsNotStamped() throws IOException {
+    long parsedAtMillis = System.currentTimeMillis() - 60000;
+    Files.setLastModifiedTime(buildFile.getPath(), FileTime.fromMillis(parsedAtMillis));
+
+    // A later edit within the mtime granularity may leave the mtime unchanged.
+    assertFalse(
+        DaemonicParserStateSnapshot.stampIfUnchangedSince(
+                manifest, filesystem, "BUCK", buildFile, ImmutableSet.of(), parsedAtMillis)
+            .isPresent());
+    assertTrue(
+        DaemonicParserStateSnapshot.stampIfUnchangedSince(
+                manifest,
+                filesystem,
+                "BUCK",
+                buildFile,
+                ImmutableSet.of(),
+                parsedAtMillis
+                    + TimeUnit.NANOSECONDS.toMillis(DaemonicParserStateSnapshot.RACY_WINDOW_NANOS)
+                    + 1)
+            .isPresent());
+  }
+
+  @Test
+  public void buildFileModifiedAfterParsingIsNotSaved() throws Exception {
+    Cell cell = new TestCellBuilder().setFilesystem(filesystem).build().getRootCell();
+    BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+
+    DaemonicParserState state = new DaemonicParserState(1, Optional.of(FINGERPRINT));
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, manifest, false, eventBus);
+    // Modified before the parser state was told about it.
+    filesystem.writeContentsToPath("java_library(name = 'bar')", filesystem.getPath("foo/BUCK"));
+    Files.setLastModifiedTime(
+        buildFile.getPath(), FileTime.fromMillis(System.currentTimeMillis() + 60000));
+    state.saveSnapshots();
+
+    DaemonicParserState restarted = new DaemonicParserState(1, Optional.of(FINGERPRINT));
+    assertFalse(
+        restarted.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.api.BuildFileManifestFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DaemonicParserStateTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Cell cell;
+  private BuckEventBus eventBus;
+  private long manifestWeight;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    cell = new TestCellBuilder().setFilesystem(filesystem).build().getRootCell();
+    eventBus = BuckEventBusForTests.newInstance();
+
+    DaemonicCellState weighed = new DaemonicCellState(cell, 1, true);
+    weighed.putBuildFileManifestIfNotPresent(
+        buildFile("a"), manifest("a"), ImmutableSet.of(), ImmutableMap.of());
+    manifestWeight = weighed.getEstimatedWeight();
+  }
+
+  private AbsPath buildFile(String basePath) {
+    return AbsPath.of(filesystem.resolve(basePath).resolve("BUCK"));
+  }
+
+  private static BuildFileManifest manifest(String basePath) {
+    return BuildFileManifestFactory.create(
+        ImmutableMap.of(basePath, ImmutableMap.of("name", basePath, "buck.base_path", basePath)));
+  }
+
+  private DaemonicParserState populatedState(long maxEstimatedSize) throws Exception {
+    DaemonicParserState state =
+        new DaemonicParserState(1, Optional.empty(), Optional.of(maxEstimatedSize));
+    for (String basePath : new String[] {"a", "b", "c", "d"}) {
+      state
+          .getRawNodeCache()
+          .putComputedNodeIfNotPresent(
+              cell, buildFile(basePath), manifest(basePath), false, eventBus);
+    }
+    // Least recently used first: c, d, b, a.
+    Thread.sleep(1);
+    isCached(state, "b");
+    Thread.sleep(1);
+    isCached(state, "a");
+    state.setLastTargetGraph(TargetGraphCreationResult.of(TargetGraph.EMPTY, ImmutableSet.of()));
+    return state;
+  }
+
+  private boolean isCached(DaemonicParserState state, String basePath) throws Exception {
+    return state
+        .getRawNodeCache()
+        .lookupComputedNode(cell, buildFile(basePath), eventBus)
+        .isPresent();
+  }
+
+  @Test
+  public void leastRecentlyUsedBuildFilesAreEvictedDownToThreeQuartersOfMaxSize()
+      throws Exception {
+    // Four build files weigh more than the maximum, and two are needed to get down to 3/4 of it.
+    DaemonicParserState state = populatedState(3 * manifestWeight);
+
+    state.perBuildStateCreated();
+
+    assertFalse(isCached(state, "c"));
+    assertFalse(isCached(state, "d"));
+    assertTrue(isCached(state, "b"));
+    assertTrue(isCached(state, "a"));
+    assertFalse(state.getLastTargetGraph().isPresent());
+    state.perBuildStateClosed();
+  }
+
+  @Test
+  public void nothingIsEvictedWithinMaxSize() throws Exception {
+    DaemonicParserState state = populatedState(4 * manifestWeight);
+
+    state.perBuildStateCreated();
+
+    for (String basePath : new String[] {"a", "b", "c", "d"}) {
+      assertTrue(isCached(state, basePath));
+    }
+    assertTrue(state.getLastTargetGraph().isPresent());
+    state.perBuildStateClosed();
+  }
+
+  @Test
+  public void nothingIsEvictedWhileAnotherPerBuildStateIsLive() throws Exception {
+    DaemonicParserState state = populatedState(4 * manifestWeight);
+    state.perBuildStateCreated();
+    state
+        .getRawNodeCache()
+        .putComputedNodeIfNotPresent(cell, buildFile("e"), manifest("e"), false, eventBus);
+
+    state.perBuildStateCreated();
+
+    // Eviction would have dropped the last target graph.
+    assertTrue(state.getLastTargetGraph().isPresent());
+    state.perBuildStateClosed();
+    state.perBuildStateClosed();
+
+    state.perBuildStateCreated();
+
+    assertFalse(state.getLastTargetGraph().isPresent());
+    assertEquals(3, countCached(state));
+    assertFalse(isCached(state, "c"));
+    assertFalse(isCached(state, "d"));
+    state.perBuildStateClosed();
+  }
+
+  private int countCached(DaemonicParserState state) throws Exception {
+    int cached = 0;
+    for (String basePath : new String[] {"a", "b", "c", "d", "e"}) {
+      if (isCached(state, basePath)) {
+        cached++;
+      }
+    }
+    return cached;
+  }
+}
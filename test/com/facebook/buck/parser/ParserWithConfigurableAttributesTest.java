@@ -27,6 +27,8 @@ import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
@@ -1889,6 +1891,93 @@ public class ParserWithConfigurableAttributesTest {
     assertNotEquals(lib2Key, hashes.get(fooLib2Target));
   }
 
+  @Test
+  public void incrementalTargetGraphReusesNodesWhichDidNotChange() throws Exception {
+    cell = createCellWithIncrementalTargetGraph();
+    parser = TestParserFactory.create(executor.get(), cell, knownRuleTypesProvider, eventBus);
+
+    tempDir.newFolder("foo");
+    tempDir.newFolder("bar");
+    Path fooBuckFile = tempDir.newFile("foo/BUCK");
+    Files.write(fooBuckFile, "java_library(name = 'lib', deps = ['//bar:lib'])\n".getBytes(UTF_8));
+    Files.write(
+        tempDir.newFile("bar/BUCK"),
+        "java_library(name = 'lib', visibility = ['PUBLIC'])\n".getBytes(UTF_8));
+
+    BuildTarget fooLibTarget = BuildTargetFactory.newInstance("//foo:lib");
+    BuildTarget fooLib2Target = BuildTargetFactory.newInstance("//foo:lib2");
+    BuildTarget barLibTarget = BuildTargetFactory.newInstance("//bar:lib");
+    ImmutableSet<BuildTarget> buildTargets = ImmutableSet.of(fooLibTarget);
+
+    TargetGraph first =
+        parser.buildTargetGraph(parsingContext.withCell(cell), buildTargets).getTargetGraph();
+    TargetGraph second =
+        parser.buildTargetGraph(parsingContext.withCell(cell), buildTargets).getTargetGraph();
+    assertSame(first, second);
+
+    Files.write(
+        fooBuckFile,
+        ("java_library(name = 'lib', deps = ['//bar:lib', ':lib2'])\n"
+                + "java_library(name = 'lib2')\n")
+            .getBytes(UTF_8));
+    parser
+        .getPermState()
+        .invalidateBasedOn(
+            WatchmanPathEvent.of(filesystem.getRootPath(), Kind.MODIFY, RelPath.get("foo/BUCK")));
+
+    TargetGraph third =
+        parser.buildTargetGraph(parsingContext.withCell(cell), buildTargets).getTargetGraph();
+    assertNotSame(first, third);
+    assertSame(first.get(barLibTarget), third.get(barLibTarget));
+    assertEquals(
+        ImmutableSet.of(barLibTarget, fooLib2Target),
+        third.getOutgoingNodesFor(third.get(fooLibTarget)).stream()
+            .map(TargetNode::getBuildTarget)
+            .collect(ImmutableSet.toImmutableSet()));
+  }
+
+  @Test
+  public void incrementalTargetGraphChecksVisibilityOfChangedNodes() throws Exception {
+    cell = createCellWithIncrementalTargetGraph();
+    parser = TestParserFactory.create(executor.get(), cell, knownRuleTypesProvider, eventBus);
+
+    tempDir.newFolder("foo");
+    tempDir.newFolder("bar");
+    Files.write(
+        tempDir.newFile("foo/BUCK"),
+        "java_library(name = 'lib', deps = ['//bar:lib'])\n".getBytes(UTF_8));
+    Path barBuckFile = tempDir.newFile("bar/BUCK");
+    Files.write(
+        barBuckFile, "java_library(name = 'lib', visibility = ['PUBLIC'])\n".getBytes(UTF_8));
+
+    ImmutableSet<BuildTarget> buildTargets =
+        ImmutableSet.of(BuildTargetFactory.newInstance("//foo:lib"));
+    parser.buildTargetGraph(parsingContext.withCell(cell), buildTargets);
+
+    Files.write(barBuckFile, "java_library(name = 'lib')\n".getBytes(UTF_8));
+    parser
+        .getPermState()
+        .invalidateBasedOn(
+            WatchmanPathEvent.of(filesystem.getRootPath(), Kind.MODIFY, RelPath.get("bar/BUCK")));
+
+    thrown.expect(HumanReadableException.class);
+    thrown.expectMessage("which is not visible");
+    parser.buildTargetGraph(parsingContext.withCell(cell), buildTargets);
+  }
+
+  private Cell createCellWithIncrementalTargetGraph() {
+    BuckConfig config =
+        FakeBuckConfig.builder()
+            .setFilesystem(filesystem)
+            .setSections("[parser]", "incremental_target_graph = true")
+            .build();
+    return new TestCellBuilder()
+        .setBuckConfig(config)
+        .setFilesystem(filesystem)
+        .build()
+        .getRootCell();
+  }
+
   @Test
   public void getOrLoadTargetNodeRules() throws IOException, BuildFileParseException {
     tempDir.newFolder("foo");
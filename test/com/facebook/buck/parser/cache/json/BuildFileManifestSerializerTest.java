@@ -16,6 +16,7 @@
 
 package com.facebook.buck.parser.cache.json;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeThat;
 
@@ -121,4 +122,14 @@ public class BuildFileManifestSerializerTest {
     assertTrue(resultString.contains("confKey1"));
     assertTrue(resultString.contains("confVal1"));
   }
+
+  @Test
+  public void buildFileManifestRoundTrip() throws Exception {
+    BuildFileManifest manifest = createFakeManifest();
+
+    BuildFileManifest deserialized =
+        BuildFileManifestSerializer.deserialize(BuildFileManifestSerializer.serialize(manifest));
+
+    assertEquals(manifest, deserialized);
+  }
 }
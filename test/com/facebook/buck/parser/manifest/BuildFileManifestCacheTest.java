@@ -346,4 +346,92 @@ public class BuildFileManifestCacheTest {
 
     assertPackages(true, true);
   }
+
+  @Test
+  public void manifestsAreRestoredByALaterPersistentCache() throws IOException {
+    BuildFileManifestCache first = persistentCache();
+    first.put(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get("")), manifestCell1Root);
+    first.close();
+
+    BuildFileManifestCache second = persistentCache();
+    assertEquals(
+        Optional.of(manifestCell1Root),
+        second.get(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get(""))));
+    assertEquals(Optional.of(1L), second.getPersistentCacheStats().get().getHitCount());
+    second.close();
+  }
+
+  @Test
+  public void manifestsOfModifiedBuildFilesAreNotRestored() throws IOException {
+    BuildFileManifestCache first = persistentCache();
+    first.put(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get("")), manifestCell1Root);
+    first.close();
+
+    Files.write(cell1Path.resolve("BUCK"), "java_library(name = 'changed')".getBytes());
+
+    BuildFileManifestCache second = persistentCache();
+    assertFalse(
+        second.get(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get(""))).isPresent());
+    assertEquals(Optional.of(1L), second.getPersistentCacheStats().get().getMissCount());
+    second.close();
+  }
+
+  @Test
+  public void manifestsOfPackagesWithCreatedFilesAreNotRestored() throws IOException {
+    BuildFileManifestCache first = persistentCache();
+    first.put(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get("")), manifestCell1Root);
+    first.close();
+
+    Files.createFile(cell1Path.resolve("folder1/3.java"));
+
+    BuildFileManifestCache second = persistentCache();
+    assertFalse(
+        second.get(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get(""))).isPresent());
+    second.close();
+  }
+
+  @Test
+  public void manifestsWithModifiedIncludesAreNotRestored() throws IOException {
+    BuildFileManifestCache first = persistentCache();
+    first.put(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get("")), manifestCell1Root);
+    first.close();
+
+    Files.write(cell1Path.resolve("includes/include1.bzl"), "FOO = 1".getBytes());
+
+    BuildFileManifestCache second = persistentCache();
+    assertFalse(
+        second.get(ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get(""))).isPresent());
+    second.close();
+  }
+
+  @Test
+  public void manifestsParsedBeforeTheBuildFileChangedAreNotStored() throws IOException {
+    BuildFileManifestCache first = persistentCache();
+    BuildPackagePathToBuildFileManifestKey key =
+        ImmutableBuildPackagePathToBuildFileManifestKey.of(Paths.get(""));
+    assertFalse(first.get(key).isPresent());
+    Files.write(cell1Path.resolve("BUCK"), "java_library(name = 'changed')".getBytes());
+    first
+        .getInvalidator()
+        .onFileSystemChange(
+            WatchmanPathEvent.of(
+                AbsPath.of(cell1Path), Kind.MODIFY, RelPath.of(Paths.get("BUCK"))));
+    first.put(key, manifestCell1Root);
+    first.close();
+
+    BuildFileManifestCache second = persistentCache();
+    assertFalse(second.get(key).isPresent());
+    second.close();
+  }
+
+  private BuildFileManifestCache persistentCache() throws IOException {
+    return BuildFileManifestCache.persistent(
+        rootCellPath,
+        cell1Path,
+        Paths.get("BUCK"),
+        TestProjectFilesystems.createProjectFilesystem(cell1Path).asView(),
+        tmp.getRoot().resolve("manifests.db"),
+        "fingerprint",
+        1024 * 1024);
+  }
 }
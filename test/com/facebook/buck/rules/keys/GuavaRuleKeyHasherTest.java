@@ -16,12 +16,21 @@
 
 package com.facebook.buck.rules.keys;
 
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.rules.keys.hasher.GuavaRuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasherTypes;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
 @SuppressWarnings("PMD.TestClassWithoutTestCases")
@@ -44,6 +53,55 @@ public class GuavaRuleKeyHasherTest {
     }
   }
 
+  @RunWith(Parameterized.class)
+  public static class EncodingTest {
+    @Parameter public String value;
+
+    @Parameters(name = "{0}")
+    public static Iterable<Object[]> cases() {
+      return ImmutableList.of(
+          new Object[] {""},
+          new Object[] {"ascii"},
+          new Object[] {"\u00e9t\u00e9"},
+          new Object[] {"\u4e2d\u6587"},
+          new Object[] {"\ud83d\ude00 smile"},
+          new Object[] {"unpaired \ud800 high"},
+          new Object[] {"unpaired \udc00 low"},
+          new Object[] {"\ud800\ud800\udc00"},
+          new Object[] {"trailing \ud83d"},
+          new Object[] {Strings.repeat("long \u00e9\ud83d\ude00", 200)});
+    }
+
+    @Test
+    public void stringsAreHashedAsUtf8Bytes() {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      HashCode expected =
+          Hashing.sha1()
+              .newHasher()
+              .putBytes(bytes)
+              .putInt(bytes.length)
+              .putByte(RuleKeyHasherTypes.STRING)
+              .hash();
+      assertEquals(expected, newHasher().putString(value).hash());
+    }
+  }
+
+  public static class HashCodeTest {
+    @Test
+    public void ruleKeysAreHashedAsBytes() {
+      RuleKey ruleKey = new RuleKey("0123456789abcdef0123456789abcdef01234567");
+      byte[] bytes = ruleKey.getHashCode().asBytes();
+      HashCode expected =
+          Hashing.sha1()
+              .newHasher()
+              .putBytes(bytes)
+              .putInt(bytes.length)
+              .putByte(RuleKeyHasherTypes.RULE_KEY)
+              .hash();
+      assertEquals(expected, newHasher().putRuleKey(ruleKey).hash());
+    }
+  }
+
   public static GuavaRuleKeyHasher newHasher() {
     return new GuavaRuleKeyHasher(Hashing.sha1().newHasher());
   }
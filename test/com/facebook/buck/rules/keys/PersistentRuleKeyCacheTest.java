@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.cell.name.CanonicalCellName;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.NoOpCacheStatsTracker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRuleKeyCacheTest {
+
+  private static final ProjectFilesystem FILESYSTEM = new FakeProjectFilesystem();
+  private static final String FINGERPRINT = "version:config";
+  private static final HashCode INPUTS_HASH = HashCode.fromString("aaaa");
+  private static final RuleKey RULE_KEY = new RuleKey("bbbb");
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path dbPath;
+  private BuildRule rule;
+  private ProjectFilesystem otherFilesystem;
+
+  @Before
+  public void setUp() {
+    dbPath = tmp.getRoot().resolve("scratch").resolve(PersistentRuleKeyStore.DB_FILE_NAME);
+    rule = new FakeBuildRule("//:rule");
+    otherFilesystem =
+        new FakeProjectFilesystem(CanonicalCellName.rootCell(), tmp.getRoot().resolve("other"));
+  }
+
+  @Test
+  public void storedKeysOutliveTheStore() throws IOException {
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      store.put(rule.getBuildTarget(), INPUTS_HASH, RULE_KEY);
+      // Pending keys are visible before they are flushed.
+      assertEquals(RULE_KEY, store.get(rule.getBuildTarget(), INPUTS_HASH));
+    }
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      assertEquals(RULE_KEY, store.get(rule.getBuildTarget(), INPUTS_HASH));
+      assertNull(store.get(rule.getBuildTarget(), HashCode.fromString("cccc")));
+      assertNull(store.get(new FakeBuildRule("//:other").getBuildTarget(), INPUTS_HASH));
+    }
+  }
+
+  @Test
+  public void keysAreDroppedWhenFingerprintChanges() throws IOException {
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      store.put(rule.getBuildTarget(), INPUTS_HASH, RULE_KEY);
+    }
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, "other")) {
+      assertNull(store.get(rule.getBuildTarget(), INPUTS_HASH));
+    }
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      assertNull(store.get(rule.getBuildTarget(), INPUTS_HASH));
+    }
+  }
+
+  @Test
+  public void persistedKeysAreReusedByFreshCaches() throws IOException {
+    RuleKeyInput input = ImmutableRuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input"));
+    Function<BuildRule, Optional<RuleKeyInputsFingerprint>> fingerprints =
+        r ->
+            Optional.of(
+                RuleKeyInputsFingerprint.of(
+                    INPUTS_HASH, FILESYSTEM, ImmutableSet.of(input.getPath())));
+    AtomicInteger computed = new AtomicInteger();
+    Function<Object, RuleKeyResult<RuleKey>> create =
+        r -> {
+          computed.incrementAndGet();
+          return new RuleKeyResult<>(RULE_KEY, ImmutableList.of(), ImmutableList.of(input));
+        };
+
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      PersistentRuleKeyCache cache =
+          new PersistentRuleKeyCache(new DefaultRuleKeyCache<>(), store, fingerprints);
+      assertEquals(RULE_KEY, cache.get(rule, create::apply, new NoOpCacheStatsTracker()));
+      assertEquals(1, computed.get());
+      cache.invalidateAllExceptFilesystems(
+          ImmutableSet.of(FILESYSTEM), new NoOpCacheStatsTracker());
+    }
+
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      DefaultRuleKeyCache<RuleKey> delegate = new DefaultRuleKeyCache<>();
+      PersistentRuleKeyCache cache = new PersistentRuleKeyCache(delegate, store, fingerprints);
+      assertEquals(RULE_KEY, cache.get(rule, create::apply, new NoOpCacheStatsTracker()));
+      assertEquals(1, computed.get());
+
+      // The reused key is invalidated by its inputs like a computed one.
+      assertTrue(delegate.isCached(rule));
+      cache.invalidateInputs(ImmutableList.of(input), new NoOpCacheStatsTracker());
+      assertFalse(delegate.isCached(rule));
+    }
+  }
+
+  @Test
+  public void keysOfRulesWithoutFingerprintAreComputed() throws IOException {
+    AtomicInteger computed = new AtomicInteger();
+    Function<Object, RuleKeyResult<RuleKey>> create =
+        r -> {
+          computed.incrementAndGet();
+          return new RuleKeyResult<>(RULE_KEY, ImmutableList.of(), ImmutableList.of());
+        };
+
+    for (int i = 0; i < 2; i++) {
+      try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+        PersistentRuleKeyCache cache =
+            new PersistentRuleKeyCache(new DefaultRuleKeyCache<>(), store, r -> Optional.empty());
+        assertEquals(RULE_KEY, cache.get(rule, create::apply, new NoOpCacheStatsTracker()));
+        assertNull(store.get(rule.getBuildTarget(), INPUTS_HASH));
+      }
+    }
+    assertEquals(2, computed.get());
+  }
+
+  @Test
+  public void keysDependingOnToolFilesAreNotPersisted() throws IOException {
+    RuleKeyInput input = ImmutableRuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input"));
+    RuleKeyInput toolFile =
+        ImmutableRuleKeyInput.of(otherFilesystem, otherFilesystem.getPath("tool"));
+    AddsToRuleKey tool = new AddsToRuleKey() {};
+    AtomicInteger computed = new AtomicInteger();
+
+    for (RuleKey toolKey : ImmutableList.of(RULE_KEY, new RuleKey("cccc"))) {
+      try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+        PersistentRuleKeyCache cache =
+            new PersistentRuleKeyCache(
+                new DefaultRuleKeyCache<>(),
+                store,
+                r ->
+                    Optional.of(
+                        RuleKeyInputsFingerprint.of(
+                            INPUTS_HASH, FILESYSTEM, ImmutableSet.of(input.getPath()))));
+        // The key of the rule is that of its tool, which changes with the tool file.
+        Function<Object, RuleKeyResult<RuleKey>> create =
+            r -> {
+              computed.incrementAndGet();
+              RuleKey key =
+                  cache.get(
+                      tool,
+                      t ->
+                          new RuleKeyResult<>(
+                              toolKey, ImmutableList.of(), ImmutableList.of(toolFile)),
+                      new NoOpCacheStatsTracker());
+              return new RuleKeyResult<>(key, ImmutableList.of(tool), ImmutableList.of(input));
+            };
+        assertEquals(toolKey, cache.get(rule, create::apply, new NoOpCacheStatsTracker()));
+        cache.invalidateAllExceptFilesystems(
+            ImmutableSet.of(FILESYSTEM, otherFilesystem), new NoOpCacheStatsTracker());
+        assertNull(store.get(rule.getBuildTarget(), INPUTS_HASH));
+      }
+    }
+    assertEquals(2, computed.get());
+  }
+
+  @Test
+  public void keysWhoseInputsChangeDuringTheCommandAreNotPersisted() throws IOException {
+    RuleKeyInput input = ImmutableRuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input"));
+    BuildRule dependent = new FakeBuildRule("//:dependent", rule);
+    HashCode dependentHash = HashCode.fromString("dddd");
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      PersistentRuleKeyCache cache =
+          new PersistentRuleKeyCache(
+              new DefaultRuleKeyCache<>(),
+              store,
+              r ->
+                  Optional.of(
+                      r == rule
+                          ? RuleKeyInputsFingerprint.of(
+                              INPUTS_HASH, FILESYSTEM, ImmutableSet.of(input.getPath()))
+                          : RuleKeyInputsFingerprint.of(
+                              dependentHash, FILESYSTEM, ImmutableSet.of())));
+      Function<Object, RuleKeyResult<RuleKey>> create =
+          r -> new RuleKeyResult<>(RULE_KEY, ImmutableList.of(), ImmutableList.of(input));
+      cache.get(
+          dependent,
+          r ->
+              new RuleKeyResult<>(
+                  cache.get(rule, create::apply, new NoOpCacheStatsTracker()),
+                  ImmutableList.of(rule),
+                  ImmutableList.of()),
+          new NoOpCacheStatsTracker());
+
+      // The keys may have been computed from contents newer than the fingerprints.
+      cache.invalidateInputs(ImmutableList.of(input), new NoOpCacheStatsTracker());
+      cache.invalidateAllExceptFilesystems(
+          ImmutableSet.of(FILESYSTEM), new NoOpCacheStatsTracker());
+      assertNull(store.get(rule.getBuildTarget(), INPUTS_HASH));
+      assertNull(store.get(dependent.getBuildTarget(), dependentHash));
+    }
+  }
+
+  @Test
+  public void keysOfUnwatchedFilesystemsAreNotPersisted() throws IOException {
+    RuleKeyInput input = ImmutableRuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("input"));
+    try (PersistentRuleKeyStore store = new PersistentRuleKeyStore(dbPath, FINGERPRINT)) {
+      PersistentRuleKeyCache cache =
+          new PersistentRuleKeyCache(
+              new DefaultRuleKeyCache<>(),
+              store,
+              r ->
+                  Optional.of(
+                      RuleKeyInputsFingerprint.of(
+                          INPUTS_HASH, FILESYSTEM, ImmutableSet.of(input.getPath()))));
+      assertEquals(
+          RULE_KEY,
+          cache.get(
+              rule,
+              r -> new RuleKeyResult<>(RULE_KEY, ImmutableList.of(), ImmutableList.of(input)),
+              new NoOpCacheStatsTracker()));
+      cache.invalidateAllExceptFilesystems(
+          ImmutableSet.of(otherFilesystem), new NoOpCacheStatsTracker());
+      assertNull(store.get(rule.getBuildTarget(), INPUTS_HASH));
+    }
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rulekey.AddToRuleKey;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.SourcePathRuleFinder;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.core.sourcepath.FakeSourcePath;
+import com.facebook.buck.core.sourcepath.PathSourcePath;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.io.file.FastPaths;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.facebook.buck.rules.keys.hasher.GuavaRuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasherTypes;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.StackedFileHashCache;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how fast default rule keys are computed for rules with different kinds of fields. Each
+ * iteration uses a fresh {@link DefaultRuleKeyFactory}, so that every key is computed rather than
+ * looked up.
+ */
+public class RuleKeyBuilderBenchmark {
+
+  /** The kinds of rules to compute keys for. */
+  public enum RuleType {
+    STRINGS,
+    SOURCE_PATHS,
+    NESTED,
+  }
+
+  @Param({"STRINGS", "SOURCE_PATHS", "NESTED"})
+  private RuleType ruleType = RuleType.STRINGS;
+
+  @Param({"1000"})
+  private int ruleCount = 1000;
+
+  @Param({"20"})
+  private int fieldSize = 20;
+
+  private ProjectFilesystem filesystem;
+  private StackedFileHashCache hashCache;
+  private SourcePathRuleFinder ruleFinder;
+  private List<BuildRule> rules;
+
+  @Before
+  public void setUp() throws IOException {
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  private void setUpBenchmark() throws IOException {
+    filesystem = new FakeProjectFilesystem();
+    hashCache =
+        new StackedFileHashCache(
+            ImmutableList.of(
+                DefaultFileHashCache.createDefaultFileHashCache(
+                    filesystem, FileHashCacheMode.DEFAULT)));
+    ruleFinder = new TestActionGraphBuilder();
+    rules = new ArrayList<>(ruleCount);
+    for (int i = 0; i < ruleCount; i++) {
+      rules.add(createRule(i));
+    }
+  }
+
+  private BuildRule createRule(int index) throws IOException {
+    String name = "//benchmark:rule" + index;
+    switch (ruleType) {
+      case STRINGS:
+        ImmutableList.Builder<String> flags = ImmutableList.builder();
+        ImmutableMap.Builder<String, String> env = ImmutableMap.builder();
+        for (int i = 0; i < fieldSize; i++) {
+          flags.add("-Dflag" + i + "=" + index);
+          env.put("VAR_" + i, "value/of/some/length/" + index);
+        }
+        return new StringsRule(name, flags.build(), env.build(), index);
+      case SOURCE_PATHS:
+        ImmutableList.Builder<SourcePath> srcs = ImmutableList.builder();
+        for (int i = 0; i < fieldSize; i++) {
+          PathSourcePath src =
+              FakeSourcePath.of(filesystem, "src/rule" + index + "/File" + i + ".java");
+          filesystem.mkdirs(src.getRelativePath().getParent());
+          filesystem.writeContentsToPath("class File" + i + " {}", src.getRelativePath());
+          srcs.add(src);
+        }
+        return new SourcePathsRule(name, srcs.build());
+      case NESTED:
+        ImmutableList.Builder<Nested> nested = ImmutableList.builder();
+        for (int i = 0; i < fieldSize; i++) {
+          nested.add(new Nested("nested" + i, i, ImmutableList.of("a" + index, "b", "c")));
+        }
+        return new NestedRule(name, nested.build());
+    }
+    throw new IllegalStateException("Unknown rule type: " + ruleType);
+  }
+
+  @Test
+  public void computeRuleKeysCorrectness() throws IOException {
+    for (RuleType type : RuleType.values()) {
+      ruleType = type;
+      setUpBenchmark();
+      DefaultRuleKeyFactory factory = new TestDefaultRuleKeyFactory(hashCache, ruleFinder);
+      Set<RuleKey> keys = new HashSet<>();
+      for (BuildRule rule : rules) {
+        RuleKeyDiagnostics.Result<RuleKey, HashCode> result =
+            factory.buildForDiagnostics(
+                rule, new LegacyGuavaRuleKeyHasher(Hashing.sha1().newHasher()));
+        assertEquals(rule.toString(), result.ruleKey.getHashCode(), result.diagKey);
+        keys.add(result.ruleKey);
+      }
+      assertEquals(ruleType.toString(), rules.size(), keys.size());
+    }
+  }
+
+  @Benchmark
+  private int benchComputeRuleKeys(int reps) {
+    int dummy = 0;
+    for (int rep = 0; rep < reps; rep++) {
+      DefaultRuleKeyFactory factory = new TestDefaultRuleKeyFactory(hashCache, ruleFinder);
+      for (BuildRule rule : rules) {
+        dummy += factory.build(rule).hashCode();
+      }
+    }
+    return dummy;
+  }
+
+  private static class StringsRule extends EmptyFakeBuildRule {
+    @AddToRuleKey private final ImmutableList<String> flags;
+    @AddToRuleKey private final ImmutableMap<String, String> env;
+    @AddToRuleKey private final int index;
+    @AddToRuleKey private final boolean enabled = true;
+
+    StringsRule(
+        String target, ImmutableList<String> flags, ImmutableMap<String, String> env, int index) {
+      super(BuildTargetFactory.newInstance(target));
+      this.flags = flags;
+      this.env = env;
+      this.index = index;
+    }
+  }
+
+  private static class SourcePathsRule extends EmptyFakeBuildRule {
+    @AddToRuleKey private final ImmutableList<SourcePath> srcs;
+
+    SourcePathsRule(String target, ImmutableList<SourcePath> srcs) {
+      super(BuildTargetFactory.newInstance(target));
+      this.srcs = srcs;
+    }
+  }
+
+  private static class NestedRule extends EmptyFakeBuildRule {
+    @AddToRuleKey private final ImmutableList<Nested> nested;
+
+    NestedRule(String target, ImmutableList<Nested> nested) {
+      super(BuildTargetFactory.newInstance(target));
+      this.nested = nested;
+    }
+  }
+
+  private static class Nested implements AddsToRuleKey {
+    @AddToRuleKey private final String name;
+    @AddToRuleKey private final long value;
+    @AddToRuleKey private final ImmutableList<String> args;
+
+    Nested(String name, long value, ImmutableList<String> args) {
+      this.name = name;
+      this.value = value;
+      this.args = args;
+    }
+  }
+
+  /**
+   * Hashes strings and hash codes the way {@link GuavaRuleKeyHasher} did before it copied them into
+   * a reused buffer, i.e. through {@link String#getBytes} and {@link HashCode#asBytes()}.
+   */
+  private static class LegacyGuavaRuleKeyHasher extends GuavaRuleKeyHasher {
+    private final Hasher hasher;
+
+    LegacyGuavaRuleKeyHasher(Hasher hasher) {
+      super(hasher);
+      this.hasher = hasher;
+    }
+
+    private LegacyGuavaRuleKeyHasher putBytes(byte type, byte[] bytes) {
+      hasher.putBytes(bytes);
+      hasher.putInt(bytes.length);
+      hasher.putByte(type);
+      return this;
+    }
+
+    private LegacyGuavaRuleKeyHasher putStringified(byte type, String val) {
+      return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public GuavaRuleKeyHasher putKey(String key) {
+      return putStringified(RuleKeyHasherTypes.KEY, key);
+    }
+
+    @Override
+    public GuavaRuleKeyHasher putString(String val) {
+      return putStringified(RuleKeyHasherTypes.STRING, val);
+    }
+
+    @Override
+    public GuavaRuleKeyHasher putPattern(Pattern pattern) {
+      return putStringified(RuleKeyHasherTypes.PATTERN, pattern.toString());
+    }
+
+    @Override
+    public GuavaRuleKeyHasher putPath(Path path, HashCode hash) {
+      FastPaths.hashPathFast(hasher, path);
+      hasher.putByte(RuleKeyHasherTypes.PATH);
+      return putBytes(RuleKeyHasherTypes.PATH, hash.asBytes());
+    }
+
+    @Override
+    public GuavaRuleKeyHasher putRuleKey(RuleKey ruleKey) {
+      return putBytes(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode().asBytes());
+    }
+
+    @Override
+    public GuavaRuleKeyHasher putRuleType(com.facebook.buck.core.model.RuleType ruleType) {
+      return putStringified(RuleKeyHasherTypes.RULE_TYPE, ruleType.toString());
+    }
+
+    @Override
+    public GuavaRuleKeyHasher putBuildTarget(BuildTarget buildTarget) {
+      return putStringified(RuleKeyHasherTypes.TARGET, buildTarget.getFullyQualifiedName());
+    }
+  }
+}
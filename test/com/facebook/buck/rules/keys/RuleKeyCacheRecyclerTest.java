@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules.keys;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -35,6 +36,8 @@ import com.facebook.buck.util.timing.FakeClock;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import org.junit.Test;
 
 public class RuleKeyCacheRecyclerTest {
@@ -188,4 +191,31 @@ public class RuleKeyCacheRecyclerTest {
         c -> {});
     assertFalse(cache.isCached(appendable));
   }
+
+  @Test
+  public void emptyCacheWrapperIsOnlyAppliedWhenThereIsNoCacheToRecycle() {
+    DefaultRuleKeyCache<String> cache = new DefaultRuleKeyCache<>();
+    RuleKeyCacheRecycler<String> recycler =
+        RuleKeyCacheRecycler.createAndRegister(EVENT_BUS, cache, ImmutableSet.of(FILESYSTEM));
+    AtomicInteger wrapped = new AtomicInteger();
+    Function<TrackableRuleKeyCache<String>, TrackableRuleKeyCache<String>> wrapper =
+        recycledCache -> {
+          wrapped.incrementAndGet();
+          return recycledCache;
+        };
+
+    recycler.withRecycledCacheWrapping(BUCK_EVENT_BUS, SETTINGS, wrapper).close();
+    assertEquals(1, wrapped.get());
+
+    // Neither identical nor changed settings apply the wrapper again.
+    recycler.withRecycledCacheWrapping(BUCK_EVENT_BUS, SETTINGS, wrapper).close();
+    recycler
+        .withRecycledCacheWrapping(
+            BUCK_EVENT_BUS,
+            new RuleKeyCacheRecycler.SettingsAffectingCache(
+                RULE_KEY_SEED, new ActionGraph(ImmutableList.of())),
+            wrapper)
+        .close();
+    assertEquals(1, wrapped.get());
+  }
 }
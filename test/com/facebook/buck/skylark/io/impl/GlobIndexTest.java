@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.filesystems.RelPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.facebook.buck.io.filesystem.skylark.SkylarkFilesystem;
+import com.facebook.buck.io.watchman.WatchmanEvent.Kind;
+import com.facebook.buck.io.watchman.WatchmanOverflowEvent;
+import com.facebook.buck.io.watchman.WatchmanPathEvent;
+import com.facebook.buck.skylark.io.Globber;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GlobIndexTest {
+
+  private AbsPath cellRoot;
+  private Path root;
+  private GlobIndex globIndex;
+  private Globber globber;
+  private int delegateRuns;
+
+  @Before
+  public void setUp() throws Exception {
+    ProjectFilesystem projectFilesystem = FakeProjectFilesystem.createRealTempFilesystem();
+    cellRoot = projectFilesystem.getRootPath();
+    root = SkylarkFilesystem.using(projectFilesystem).getPath(cellRoot.toString());
+    root.getChild("child").createDirectory();
+    FileSystemUtils.createEmptyFile(root.getRelative("child/foo.txt"));
+    FileSystemUtils.createEmptyFile(root.getRelative("child/bar.jpg"));
+
+    globIndex = new GlobIndex(1024 * 1024);
+    globber = createGlobber(root);
+  }
+
+  @Test
+  public void globsAreAnsweredFromTheIndex() throws Exception {
+    assertEquals(ImmutableSet.of("child/foo.txt"), glob("**/*.txt"));
+    assertEquals(ImmutableSet.of("child/foo.txt"), glob("**/*.txt"));
+    assertEquals(1, delegateRuns);
+  }
+
+  @Test
+  public void createdFilesAreAddedToMatchingGlobs() throws Exception {
+    assertEquals(ImmutableSet.of("child/foo.txt"), glob("**/*.txt"));
+    assertEquals(ImmutableSet.of("child/bar.jpg"), glob("child/*.jpg"));
+
+    createFile("child/baz.txt");
+    createFile("child/grandchild/qux.txt");
+
+    assertEquals(
+        ImmutableSet.of("child/foo.txt", "child/baz.txt", "child/grandchild/qux.txt"),
+        glob("**/*.txt"));
+    assertEquals(ImmutableSet.of("child/bar.jpg"), glob("child/*.jpg"));
+    assertEquals(2, delegateRuns);
+  }
+
+  @Test
+  public void createdFilesAreNotAddedToGlobsExcludingThem() throws Exception {
+    assertEquals(
+        ImmutableSet.of("child/foo.txt"),
+        globber.run(ImmutableList.of("**/*.txt"), ImmutableList.of("**/gen/**"), true));
+
+    createFile("child/gen/baz.txt");
+
+    assertEquals(
+        ImmutableSet.of("child/foo.txt"),
+        globber.run(ImmutableList.of("**/*.txt"), ImmutableList.of("**/gen/**"), true));
+    assertEquals(1, delegateRuns);
+  }
+
+  @Test
+  public void deletedFilesAreRemovedFromGlobs() throws Exception {
+    assertEquals(ImmutableSet.of("child/foo.txt"), glob("**/*.txt"));
+
+    root.getRelative("child/foo.txt").delete();
+    globIndex.onFileSystemChange(
+        WatchmanPathEvent.of(cellRoot, Kind.DELETE, RelPath.of(Paths.get("child/foo.txt"))));
+
+    assertEquals(ImmutableSet.of(), glob("**/*.txt"));
+    assertEquals(1, delegateRuns);
+  }
+
+  @Test
+  public void globsIncludingDirectoriesAreComputedAgain() throws Exception {
+    assertEquals(
+        ImmutableSet.of("child", "child/foo.txt", "child/bar.jpg"),
+        globber.run(ImmutableList.of("child/**"), ImmutableList.of(), false));
+
+    createFile("child/grandchild/qux.txt");
+
+    assertEquals(
+        ImmutableSet.of(
+            "child",
+            "child/foo.txt",
+            "child/bar.jpg",
+            "child/grandchild",
+            "child/grandchild/qux.txt"),
+        globber.run(ImmutableList.of("child/**"), ImmutableList.of(), false));
+    assertEquals(2, delegateRuns);
+  }
+
+  @Test
+  public void overflowDropsAllGlobs() throws Exception {
+    assertEquals(ImmutableSet.of("child/foo.txt"), glob("**/*.txt"));
+
+    FileSystemUtils.createEmptyFile(root.getRelative("child/baz.txt"));
+    globIndex.onFileSystemChange(WatchmanOverflowEvent.of(cellRoot, "too many changes"));
+
+    assertEquals(ImmutableSet.of("child/foo.txt", "child/baz.txt"), glob("**/*.txt"));
+    assertEquals(2, delegateRuns);
+  }
+
+  @Test
+  public void leastRecentlyUsedDirectoriesAreEvicted() throws Exception {
+    // Fits the results of two directories, but not of three.
+    globIndex = new GlobIndex(450);
+    globber = createGlobber(root);
+    Globber childGlobber = createGlobber(root.getChild("child"));
+    root.getChild("other").createDirectory();
+    Globber otherGlobber = createGlobber(root.getChild("other"));
+
+    assertEquals(ImmutableSet.of("child/foo.txt"), glob("**/*.txt"));
+    assertEquals(
+        ImmutableSet.of("foo.txt"),
+        childGlobber.run(ImmutableList.of("*.txt"), ImmutableList.of(), true));
+    // Use the root directory again, so that the child directory is the least recently used.
+    glob("**/*.txt");
+    otherGlobber.run(ImmutableList.of("*.txt"), ImmutableList.of(), true);
+    assertEquals(3, delegateRuns);
+    assertTrue(globIndex.getEstimatedWeight() <= 450);
+
+    glob("**/*.txt");
+    assertEquals(3, delegateRuns);
+    childGlobber.run(ImmutableList.of("*.txt"), ImmutableList.of(), true);
+    assertEquals(4, delegateRuns);
+  }
+
+  @Test
+  public void invalidateAllDropsAllGlobs() throws Exception {
+    glob("**/*.txt");
+    globIndex.invalidateAll();
+
+    assertEquals(0, globIndex.getEstimatedWeight());
+    glob("**/*.txt");
+    assertEquals(2, delegateRuns);
+  }
+
+  private Globber createGlobber(Path basePath) {
+    return globIndex
+        .wrap(
+            path ->
+                (include, exclude, excludeDirectories) -> {
+                  delegateRuns++;
+                  return NativeGlobber.create(path).run(include, exclude, excludeDirectories);
+                })
+        .create(basePath);
+  }
+
+  private Set<String> glob(String include) throws Exception {
+    return globber.run(ImmutableList.of(include), ImmutableList.of(), true);
+  }
+
+  private void createFile(String relativePath) throws Exception {
+    Path path = root.getRelative(relativePath);
+    path.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.createEmptyFile(path);
+    globIndex.onFileSystemChange(
+        WatchmanPathEvent.of(cellRoot, Kind.CREATE, RelPath.of(Paths.get(relativePath))));
+  }
+}
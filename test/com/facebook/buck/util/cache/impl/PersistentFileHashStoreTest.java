@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentFileHashStoreTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final HashCode HASH =
+      HashCode.fromString("0123456789abcdef0123456789abcdef01234567");
+
+  private static final FileTime AN_HOUR_AGO =
+      FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+
+  @Test
+  public void storedHashesSurviveReopening() throws IOException {
+    Path storePath = tmp.getRoot().resolve("store");
+    Path file = newSettledFile("Foo.java");
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put(Paths.get("Foo.java"), attributes, System.currentTimeMillis(), HASH);
+    }
+
+    try (PersistentFileHashStore reopened = new PersistentFileHashStore(storePath)) {
+      assertEquals(HASH, reopened.get(Paths.get("Foo.java"), attributes));
+    }
+  }
+
+  @Test
+  public void modifiedFileIsNotServedFromStore() throws IOException {
+    Path storePath = tmp.getRoot().resolve("store");
+    Path file = newSettledFile("Foo.java");
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put(
+          Paths.get("Foo.java"),
+          Files.readAttributes(file, BasicFileAttributes.class),
+          System.currentTimeMillis(),
+          HASH);
+    }
+
+    Files.write(file, "changed".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(12345000L));
+
+    try (PersistentFileHashStore reopened = new PersistentFileHashStore(storePath)) {
+      assertNull(
+          reopened.get(
+              Paths.get("Foo.java"), Files.readAttributes(file, BasicFileAttributes.class)));
+    }
+  }
+
+  @Test
+  public void invalidationIsPersisted() throws IOException {
+    Path storePath = tmp.getRoot().resolve("store");
+    Path file = newSettledFile("Foo.java");
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put(Paths.get("Foo.java"), attributes, System.currentTimeMillis(), HASH);
+      store.invalidate(Paths.get("Foo.java"));
+    }
+
+    try (PersistentFileHashStore reopened = new PersistentFileHashStore(storePath)) {
+      assertNull(reopened.get(Paths.get("Foo.java"), attributes));
+      assertEquals(0, reopened.size());
+    }
+  }
+
+  @Test
+  public void truncatedTrailingRecordIsIgnored() throws IOException {
+    Path storePath = tmp.getRoot().resolve("store");
+    Path file = newSettledFile("Foo.java");
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put(Paths.get("Foo.java"), attributes, System.currentTimeMillis(), HASH);
+    }
+    try (OutputStream out = Files.newOutputStream(storePath, StandardOpenOption.APPEND)) {
+      out.write(new byte[] {1, 0, 42});
+    }
+
+    try (PersistentFileHashStore reopened = new PersistentFileHashStore(storePath)) {
+      assertEquals(HASH, reopened.get(Paths.get("Foo.java"), attributes));
+      reopened.put(Paths.get("Bar.java"), attributes, System.currentTimeMillis(), HASH);
+    }
+
+    try (PersistentFileHashStore again = new PersistentFileHashStore(storePath)) {
+      assertEquals(2, again.size());
+    }
+  }
+
+  @Test
+  public void corruptStoreIsDiscarded() throws IOException {
+    Path storePath = tmp.getRoot().resolve("store");
+    Files.write(storePath, "garbage".getBytes(StandardCharsets.UTF_8));
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(0, store.size());
+    }
+  }
+
+  @Test
+  public void watchedCacheReusesHashesOfPreviousInstance() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path path = Paths.get("SomeClass.java");
+    filesystem.writeContentsToPath("Hello, world", path);
+    filesystem.setLastModifiedTime(path, AN_HOUR_AGO);
+    HashCode expected = Hashing.sha1().hashString("Hello, world", StandardCharsets.UTF_8);
+
+    WatchedFileHashCache cache =
+        new WatchedFileHashCache(filesystem, FileHashCacheMode.DEFAULT, true);
+    try {
+      assertEquals(expected, cache.get(path));
+    } finally {
+      cache.close();
+    }
+
+    try (PersistentFileHashStore store = PersistentFileHashStore.forFilesystem(filesystem)) {
+      assertEquals(
+          expected, store.get(path, filesystem.readAttributes(path, BasicFileAttributes.class)));
+    }
+
+    WatchedFileHashCache restarted =
+        new WatchedFileHashCache(filesystem, FileHashCacheMode.DEFAULT, true);
+    try {
+      assertEquals(expected, restarted.get(path));
+    } finally {
+      restarted.close();
+    }
+  }
+
+  @Test
+  public void hashOfRecentlyModifiedFileIsNotStored() throws IOException {
+    Path storePath = tmp.getRoot().resolve("store");
+    Path file = tmp.newFile("Foo.java");
+    long statTimeMillis = System.currentTimeMillis();
+    Files.setLastModifiedTime(file, FileTime.fromMillis(statTimeMillis));
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put(Paths.get("Foo.java"), attributes, statTimeMillis, HASH);
+      assertNull(store.get(Paths.get("Foo.java"), attributes));
+    }
+
+    try (PersistentFileHashStore reopened = new PersistentFileHashStore(storePath)) {
+      assertEquals(0, reopened.size());
+    }
+  }
+
+  @Test
+  public void deadRecordsAreCompactedOnLoad() throws IOException {
+    Path storePath = tmp.getRoot().resolve("store");
+    Path file = newSettledFile("Foo.java");
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    for (int i = 0; i < 2000; i++) {
+      store.put(Paths.get("Foo" + i + ".java"), attributes, System.currentTimeMillis(), HASH);
+      store.invalidate(Paths.get("Foo" + i + ".java"));
+    }
+    store.put(Paths.get("Foo.java"), attributes, System.currentTimeMillis(), HASH);
+    // Simulate a daemon that is killed without closing the store; only flush what was written.
+    store.flush();
+    long uncompactedSize = Files.size(storePath);
+
+    try (PersistentFileHashStore reopened = new PersistentFileHashStore(storePath)) {
+      assertEquals(HASH, reopened.get(Paths.get("Foo.java"), attributes));
+      assertFalse(Files.size(storePath) >= uncompactedSize);
+    }
+  }
+
+  private Path newSettledFile(String name) throws IOException {
+    Path file = tmp.newFile(name);
+    Files.setLastModifiedTime(file, AN_HOUR_AGO);
+    return file;
+  }
+}
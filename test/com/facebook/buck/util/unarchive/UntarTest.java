@@ -30,9 +30,14 @@ import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -325,6 +330,34 @@ public class UntarTest {
     assertExecutable(expectedPaths.subList(1, expectedPaths.size()), false);
   }
 
+  @Test
+  public void extractsFromStreamWithoutClosingIt() throws IOException {
+    byte[] archive = Files.readAllBytes(getTestFilePath(ArchiveFormat.TAR_GZ.getExtension()));
+    byte[] trailer = {1, 2, 3};
+    InputStream stream =
+        new SequenceInputStream(
+            new ByteArrayInputStream(archive), new ByteArrayInputStream(trailer));
+
+    ImmutableSet<Path> unarchivedFiles =
+        Untar.gzipUnarchiver()
+            .extractArchive(stream, filesystem, ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+
+    Path mainJava = Paths.get("root", "src", "com", "facebook", "buck", "Main.java");
+    Assert.assertThat(
+        unarchivedFiles,
+        Matchers.containsInAnyOrder(
+            Paths.get("root", "echo.sh"),
+            Paths.get("root", "alternative", "Main.java"),
+            Paths.get("root", "alternative", "Link.java"),
+            mainJava,
+            Paths.get("root_sibling", "Other.java")));
+    assertOutputFileExists(mainJava, mainDotJava);
+    assertModifiedTime(mainJava);
+
+    // Whatever follows the archive can still be read by the caller.
+    Assert.assertArrayEquals(trailer, ByteStreams.toByteArray(stream));
+  }
+
   @Test
   public void extractsFilesWithStrippedPrefix() throws IOException {
     ArchiveFormat format = ArchiveFormat.TAR;
@@ -633,6 +666,49 @@ public class UntarTest {
     }
   }
 
+  @Test
+  public void stagedArchiveOnlyReplacesFilesOnceCommitted() throws Exception {
+    List<String> toLeave = ImmutableList.of("BUCK", "buck-out/gen/pkg1/rule1.jar");
+    String toDelete = "buck-out/gen/pkg1/rule2#foo/lib.so";
+    for (String s : concat(ImmutableList.of(toDelete), toLeave)) {
+      Path path = filesystem.resolve(s);
+      filesystem.createParentDirs(path);
+      filesystem.writeContentsToPath("", path);
+    }
+
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream stream = new TarArchiveOutputStream(archive)) {
+      stream.putArchiveEntry(new TarArchiveEntry("buck-out/gen/pkg1/rule2#foo/"));
+      stream.closeArchiveEntry();
+      TarArchiveEntry entry = new TarArchiveEntry("buck-out/gen/pkg1/rule2.jar");
+      entry.setSize(3);
+      stream.putArchiveEntry(entry);
+      stream.write(new byte[] {1, 2, 3});
+      stream.closeArchiveEntry();
+    }
+
+    Path stagingPath = Paths.get("buck-out", "tmp", "staging");
+    Untar.StagedArchive staged =
+        Untar.tarUnarchiver()
+            .stageArchive(
+                new ByteArrayInputStream(archive.toByteArray()), filesystem, stagingPath);
+    Assert.assertTrue(filesystem.exists(filesystem.resolve(toDelete)));
+    Assert.assertFalse(filesystem.exists(Paths.get("buck-out/gen/pkg1/rule2.jar")));
+
+    Assert.assertEquals(
+        ImmutableSet.of(Paths.get("buck-out/gen/pkg1/rule2.jar")),
+        staged.commit(ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES));
+    Assert.assertArrayEquals(
+        new byte[] {1, 2, 3},
+        Files.readAllBytes(filesystem.resolve("buck-out/gen/pkg1/rule2.jar")));
+    Assert.assertFalse(filesystem.exists(filesystem.resolve(toDelete)));
+    Assert.assertTrue(filesystem.isDirectory(Paths.get("buck-out/gen/pkg1/rule2#foo")));
+    for (String s : toLeave) {
+      Assert.assertTrue(filesystem.exists(filesystem.resolve(s)));
+    }
+    Assert.assertFalse(filesystem.exists(stagingPath));
+  }
+
   @Test
   public void doesNotCleanUpFilesThatExistInDirectoryButNotArchiveWithOverwriteMode()
       throws IOException {